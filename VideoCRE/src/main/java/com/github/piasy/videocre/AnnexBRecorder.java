@@ -0,0 +1,77 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import org.webrtc.Logging;
+
+/**
+ * Dumps the elementary stream as is, i.e. a raw .h264 or .h265 Annex-B file, playable by most
+ * players and readable while it's written.
+ *
+ * Frames are written with one gathering write of {@link EncodedFrame#buffers()}, so SPS and PPS
+ * delivered separately precede their keyframe without any copy.
+ */
+public class AnnexBRecorder implements Recorder {
+    private static final String TAG = "AnnexBRecorder";
+
+    private final GatheringByteChannel mChannel;
+
+    private volatile LatencyTracker mLatencyTracker;
+    private volatile long mBytesWritten;
+
+    public AnnexBRecorder(final File outputFile) throws IOException {
+        this(new FileOutputStream(outputFile).getChannel());
+    }
+
+    /**
+     * @param channel e.g. a socket channel to stream, closed by {@link #stop()}.
+     */
+    public AnnexBRecorder(final GatheringByteChannel channel) {
+        mChannel = channel;
+    }
+
+    @Override
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        ByteBuffer[] buffers = frame.buffers();
+        try {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                mBytesWritten += mChannel.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(LatencyTracker.Stage.MUXED, frame.presentationTimestampUs());
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        Logging.d(TAG, "onOutputFormatChanged " + format.getString(MediaFormat.KEY_MIME));
+    }
+
+    public long bytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Logging.e(TAG, "stop fail", e);
+        }
+    }
+}
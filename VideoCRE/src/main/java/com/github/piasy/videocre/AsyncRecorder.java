@@ -0,0 +1,354 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import org.webrtc.Logging;
+
+/**
+ * Writes frames to a recorder, e.g. {@link Mp4Recorder} or {@link FragmentedMp4Recorder}, or any
+ * other sink, on a dedicated writer thread, so slow storage doesn't hold up the codec output.
+ * {@link SinkDispatcher} gives one to each sink of an encoder.
+ *
+ * Frames are retained, which copies them into buffers of {@link EncodedFramePool} once for all
+ * sinks, and queued up to {@code maxQueuedBytes}. When the queue is full, the
+ * {@link OverflowPolicy} blocks the codec output until there is room, or drops frames so the
+ * output stays decodable, {@link #setBackpressureListener} could request a keyframe then.
+ *
+ * Call {@link #stop()} before stopping the recorder.
+ */
+public class AsyncRecorder implements MediaCodecCallback {
+    private static final String TAG = "AsyncRecorder";
+
+    public enum OverflowPolicy {
+        /** Wait on the codec output thread until the frame fits, nothing is lost. */
+        BLOCK,
+        /** Drop the new frame, and the following ones until a keyframe fits. */
+        DROP_UNTIL_KEY_FRAME,
+        /**
+         * Drop H.264 frames no other frame refers to ({@code nal_ref_idc} 0), queued ones first
+         * to make room for reference frames, which are dropped like
+         * {@link #DROP_UNTIL_KEY_FRAME} only if that isn't enough. Encoders mark all frames as
+         * reference unless they use temporal layers.
+         */
+        DROP_NON_REFERENCE,
+    }
+
+    private static final class Entry {
+        final EncodedFrame mFrame;
+        final MediaCodec mCodec;
+        final MediaFormat mFormat;
+        final int mBytes;
+        final boolean mReference;
+        final long mQueuedNs;
+
+        Entry(final EncodedFrame frame, final MediaCodec codec, final MediaFormat format,
+                final int bytes, final boolean reference) {
+            mFrame = frame;
+            mCodec = codec;
+            mFormat = format;
+            mBytes = bytes;
+            mReference = reference;
+            mQueuedNs = System.nanoTime();
+        }
+    }
+
+    private final MediaCodecCallback mRecorder;
+    private final long mMaxQueuedBytes;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Thread mWriterThread;
+    // used on the codec output thread only
+    private final NalUnits mNalUnits = new NalUnits();
+    private volatile boolean mH264 = true;
+
+    // guarded by mQueue
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+    private final LatencyHistogram mQueueDelays = new LatencyHistogram();
+    private final LatencyHistogram mWriteLatencies = new LatencyHistogram();
+    private long mQueuedBytes;
+    private long mPeakQueuedBytes;
+    private int mPeakQueueDepth;
+    private long mWrittenFrames;
+    private long mDroppedFrames;
+    private boolean mDropping;
+    private boolean mStopped;
+    private BackpressureListener mBackpressureListener;
+
+    /**
+     * @param maxQueuedBytes a single frame larger than this is still queued when the queue is
+     * empty.
+     */
+    public AsyncRecorder(final MediaCodecCallback recorder, final long maxQueuedBytes,
+            final OverflowPolicy overflowPolicy) {
+        mRecorder = recorder;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mOverflowPolicy = overflowPolicy;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncRecorder");
+        mWriterThread.start();
+    }
+
+    /**
+     * Notified when frames start being dropped, and when a keyframe is queued after that. Called
+     * with the queue locked, it should return quickly.
+     */
+    public void setBackpressureListener(final BackpressureListener listener) {
+        synchronized (mQueue) {
+            mBackpressureListener = listener;
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        ByteBuffer codecConfig = frame.codecConfig();
+        int bytes = frame.size() + (codecConfig == null ? 0 : codecConfig.remaining());
+        boolean reference = mOverflowPolicy != OverflowPolicy.DROP_NON_REFERENCE
+                            || isReference(frame);
+        synchronized (mQueue) {
+            if (mStopped) {
+                return;
+            }
+            if (mOverflowPolicy == OverflowPolicy.BLOCK) {
+                while (!fits(bytes) && !mStopped) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mDroppedFrames++;
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+            } else if (mDropping && !frame.isKeyFrame()) {
+                mDroppedFrames++;
+                return;
+            } else if (!fits(bytes) && !(reference && evictNonReference(bytes))) {
+                mDroppedFrames++;
+                // the following frames may refer to a dropped reference frame
+                setDropping(reference);
+                return;
+            } else {
+                setDropping(false);
+            }
+            frame.retain();
+            enqueue(new Entry(frame, null, null, bytes, reference));
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        mH264 = MediaFormat.MIMETYPE_VIDEO_AVC.equals(format.getString(MediaFormat.KEY_MIME));
+        synchronized (mQueue) {
+            if (!mStopped) {
+                enqueue(new Entry(null, codec, format, 0, true));
+            }
+        }
+    }
+
+    /**
+     * Write the queued frames and stop the writer thread, frames arriving afterwards are ignored.
+     */
+    public void stop() {
+        synchronized (mQueue) {
+            mStopped = true;
+            mQueue.notifyAll();
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of frames and format changes waiting to be written.
+     */
+    public int queueDepth() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    public long queuedBytes() {
+        synchronized (mQueue) {
+            return mQueuedBytes;
+        }
+    }
+
+    public int peakQueueDepth() {
+        synchronized (mQueue) {
+            return mPeakQueueDepth;
+        }
+    }
+
+    public long peakQueuedBytes() {
+        synchronized (mQueue) {
+            return mPeakQueuedBytes;
+        }
+    }
+
+    public long writtenFrames() {
+        synchronized (mQueue) {
+            return mWrittenFrames;
+        }
+    }
+
+    /**
+     * @return age of the oldest frame waiting to be written, 0 if none.
+     */
+    public long lagUs() {
+        synchronized (mQueue) {
+            Entry oldest = mQueue.peekFirst();
+            return oldest == null ? 0 : (System.nanoTime() - oldest.mQueuedNs) / 1000;
+        }
+    }
+
+    /**
+     * @return number of frames dropped by the {@link OverflowPolicy}, or interrupted while
+     * blocked.
+     */
+    public long droppedFrames() {
+        synchronized (mQueue) {
+            return mDroppedFrames;
+        }
+    }
+
+    /**
+     * @return a copy of the durations frames waited in the queue.
+     */
+    public LatencyHistogram queueDelays() {
+        synchronized (mQueue) {
+            LatencyHistogram copy = new LatencyHistogram();
+            copy.addAll(mQueueDelays);
+            return copy;
+        }
+    }
+
+    /**
+     * @return a copy of the durations of the recorder writes.
+     */
+    public LatencyHistogram writeLatencies() {
+        synchronized (mQueue) {
+            LatencyHistogram copy = new LatencyHistogram();
+            copy.addAll(mWriteLatencies);
+            return copy;
+        }
+    }
+
+    private boolean fits(final int bytes) {
+        return mQueue.isEmpty() || mQueuedBytes + bytes <= mMaxQueuedBytes;
+    }
+
+    /**
+     * Drop queued non-reference frames, newest first, until {@code bytes} fit.
+     *
+     * @return whether {@code bytes} fit.
+     */
+    private boolean evictNonReference(final int bytes) {
+        Iterator<Entry> iterator = mQueue.descendingIterator();
+        while (!fits(bytes) && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.mReference) {
+                iterator.remove();
+                mQueuedBytes -= entry.mBytes;
+                mDroppedFrames++;
+                entry.mFrame.release();
+            }
+        }
+        return fits(bytes);
+    }
+
+    /**
+     * @return false for H.264 frames whose slices all have {@code nal_ref_idc} 0, true otherwise.
+     */
+    private boolean isReference(final EncodedFrame frame) {
+        if (frame.isKeyFrame() || !mH264) {
+            return true;
+        }
+        mNalUnits.clear();
+        H264NalParser.parseAnnexB(frame.buffer(), mNalUnits);
+        boolean reference = false;
+        boolean slice = false;
+        for (int i = 0, n = mNalUnits.count(); i < n && !reference; i++) {
+            int type = mNalUnits.type(i);
+            if (type == NalUnits.TYPE_SLICE || type == NalUnits.TYPE_IDR) {
+                slice = true;
+                reference = (mNalUnits.buffer(i).get(mNalUnits.offset(i)) & 0x60) != 0;
+            }
+        }
+        mNalUnits.clear();
+        return reference || !slice;
+    }
+
+    private void enqueue(final Entry entry) {
+        mQueue.offerLast(entry);
+        mQueuedBytes += entry.mBytes;
+        mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mQueuedBytes);
+        mPeakQueueDepth = Math.max(mPeakQueueDepth, mQueue.size());
+        mQueue.notifyAll();
+    }
+
+    private void setDropping(final boolean dropping) {
+        if (mDropping == dropping) {
+            return;
+        }
+        mDropping = dropping;
+        if (mBackpressureListener != null) {
+            mBackpressureListener.onBackpressureChanged(dropping);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry;
+            synchronized (mQueue) {
+                while (mQueue.isEmpty() && !mStopped) {
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        Logging.w(TAG, "writer interrupted");
+                        return;
+                    }
+                }
+                entry = mQueue.pollFirst();
+                if (entry == null) {
+                    return;
+                }
+                mQueueDelays.add((System.nanoTime() - entry.mQueuedNs) / 1000);
+            }
+
+            long startNs = System.nanoTime();
+            try {
+                if (entry.mFrame != null) {
+                    mRecorder.onEncodedFrame(entry.mFrame);
+                } else {
+                    mRecorder.onOutputFormatChanged(entry.mCodec, entry.mFormat);
+                }
+            } catch (RuntimeException e) {
+                Logging.e(TAG, "write fail", e);
+            } finally {
+                if (entry.mFrame != null) {
+                    entry.mFrame.release();
+                }
+            }
+            long writeUs = (System.nanoTime() - startNs) / 1000;
+
+            synchronized (mQueue) {
+                mQueuedBytes -= entry.mBytes;
+                if (entry.mFrame != null) {
+                    mWrittenFrames++;
+                    mWriteLatencies.add(writeUs);
+                }
+                mQueue.notifyAll();
+            }
+        }
+    }
+}
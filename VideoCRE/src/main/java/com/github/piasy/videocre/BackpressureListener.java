@@ -0,0 +1,11 @@
+package com.github.piasy.videocre;
+
+/**
+ * Notified when an encoder can't keep up with the capture, so the capture could slow down.
+ */
+public interface BackpressureListener {
+    /**
+     * @param saturated true when the encoder starts dropping frames, false when it catches up.
+     */
+    void onBackpressureChanged(boolean saturated);
+}
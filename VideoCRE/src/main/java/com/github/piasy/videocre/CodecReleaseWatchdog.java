@@ -0,0 +1,186 @@
+package com.github.piasy.videocre;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.webrtc.Logging;
+import org.webrtc.ThreadUtils;
+
+/**
+ * Runs codec releases, which may hang in {@code MediaCodec.stop()} or {@code release()}, on a
+ * small shared pool of threads, and watches them.
+ *
+ * At most {@code maxConcurrentReleases} releases run at once, further ones wait in a queue, so
+ * hung codecs can't pile up blocked threads. A release which doesn't finish within its timeout
+ * after it started marks its codec as hung until it eventually finishes, encoders avoid hung
+ * codecs meanwhile. Stop and release durations are recorded in histograms, including those
+ * finishing after their timeout. Thread safe.
+ */
+public class CodecReleaseWatchdog {
+    private static final String TAG = "CodecReleaseWatchdog";
+    private static final long IDLE_THREAD_KEEP_ALIVE_MS = 10_000;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final LatencyHistogram mStopDurations = new LatencyHistogram();
+    private final LatencyHistogram mReleaseDurations = new LatencyHistogram();
+    // guarded by this, codec name to number of releases still blocked after their timeout
+    private final Map<String, Integer> mHungCodecs = new HashMap<>();
+    private long mHangs;
+    private long mDeferredReleases;
+
+    public CodecReleaseWatchdog(final int maxConcurrentReleases) {
+        if (maxConcurrentReleases < 1) {
+            throw new IllegalArgumentException("maxConcurrentReleases must be positive");
+        }
+        mExecutor = new ThreadPoolExecutor(maxConcurrentReleases, maxConcurrentReleases,
+                IDLE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "CodecRelease-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run {@code release} on the release threads, and wait for it.
+     *
+     * The timeout starts when {@code release} starts, not while it waits in the queue. If it
+     * doesn't start within {@code timeoutMs}, because all release threads are busy, it's left in
+     * the queue and not waited for, it isn't hung.
+     *
+     * @param codecName marked as hung if {@code release} times out.
+     * @return false if {@code release} doesn't finish within {@code timeoutMs} after it started, it
+     * keeps running.
+     */
+    public boolean run(final String codecName, final Runnable release, final long timeoutMs) {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object hungLock = new Object();
+        final boolean[] hung = new boolean[1];
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.run();
+                } finally {
+                    synchronized (hungLock) {
+                        done.countDown();
+                        if (hung[0]) {
+                            onHungReleaseDone(codecName);
+                        }
+                    }
+                }
+            }
+        });
+        if (!ThreadUtils.awaitUninterruptibly(started, timeoutMs)) {
+            synchronized (this) {
+                mDeferredReleases++;
+            }
+            Logging.w(TAG, "release of " + codecName + " waits for a release thread, "
+                           + pendingReleases() + " pending");
+            return true;
+        }
+        if (ThreadUtils.awaitUninterruptibly(done, timeoutMs)) {
+            return true;
+        }
+        synchronized (hungLock) {
+            if (done.getCount() == 0) {
+                // finished right after the timeout
+                return true;
+            }
+            hung[0] = true;
+            onHang(codecName);
+        }
+        return false;
+    }
+
+    public synchronized void recordStopDuration(final long durationUs) {
+        mStopDurations.add(durationUs);
+    }
+
+    public synchronized void recordReleaseDuration(final long durationUs) {
+        mReleaseDurations.add(durationUs);
+    }
+
+    /**
+     * @return a copy of the histogram of {@code MediaCodec.stop()} durations.
+     */
+    public synchronized LatencyHistogram stopDurations() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.addAll(mStopDurations);
+        return copy;
+    }
+
+    /**
+     * @return a copy of the histogram of {@code MediaCodec.release()} durations.
+     */
+    public synchronized LatencyHistogram releaseDurations() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.addAll(mReleaseDurations);
+        return copy;
+    }
+
+    /**
+     * @return number of releases which timed out.
+     */
+    public synchronized long hangs() {
+        return mHangs;
+    }
+
+    /**
+     * @return number of releases which didn't start within their timeout, and weren't waited for.
+     */
+    public synchronized long deferredReleases() {
+        return mDeferredReleases;
+    }
+
+    public synchronized boolean isHung(final String codecName) {
+        return mHungCodecs.containsKey(codecName);
+    }
+
+    /**
+     * @return names of codecs whose release is still blocked after its timeout.
+     */
+    public synchronized List<String> hungCodecs() {
+        return new ArrayList<>(mHungCodecs.keySet());
+    }
+
+    /**
+     * @return releases running or waiting for a release thread.
+     */
+    public int pendingReleases() {
+        return mExecutor.getActiveCount() + mExecutor.getQueue().size();
+    }
+
+    private synchronized void onHang(final String codecName) {
+        mHangs++;
+        Integer count = mHungCodecs.get(codecName);
+        mHungCodecs.put(codecName, count == null ? 1 : count + 1);
+        Logging.e(TAG, "release of " + codecName + " hangs, hung releases: " + mHungCodecs);
+    }
+
+    private synchronized void onHungReleaseDone(final String codecName) {
+        Integer count = mHungCodecs.get(codecName);
+        if (count == null || count <= 1) {
+            mHungCodecs.remove(codecName);
+        } else {
+            mHungCodecs.put(codecName, count - 1);
+        }
+        Logging.w(TAG, "hung release of " + codecName + " done, hung releases: " + mHungCodecs);
+    }
+}
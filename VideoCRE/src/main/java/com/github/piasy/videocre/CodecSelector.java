@@ -0,0 +1,111 @@
+package com.github.piasy.videocre;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+/**
+ * Picks the codec of a {@link VideoConfig}, from {@link VideoConfig#codec()} followed by
+ * {@link VideoConfig#fallbackCodecs()}.
+ *
+ * Codecs the {@link VideoEncoder} doesn't support are skipped. Codecs whose encoder keeps up with
+ * the output size at the configured fps are tried first, in the configured order, which reflects
+ * the preference for e.g. a lower bitrate. An encoder keeps up if it claims to support the size
+ * and rate, and its measured throughput, see {@link VideoEncoder#getAchievableFrameRate}, if
+ * known, reaches the fps. The others are ranked by their throughput, an unknown one just before
+ * encoders which don't support the size at all. If initialization of a codec fails, the next one
+ * is tried.
+ */
+public final class CodecSelector {
+    private static final String TAG = "CodecSelector";
+
+    public interface Initializer {
+        /**
+         * @return whether the codec is configured and started.
+         */
+        boolean init(VideoCodecType type);
+    }
+
+    private CodecSelector() {
+        // no instance
+    }
+
+    /**
+     * @param useSurface whether frames are fed through the codec input surface.
+     * @return codecs to try in order, may be empty.
+     */
+    public static List<VideoCodecType> candidates(final VideoConfig config,
+            final boolean useSurface, final VideoEncoder encoder) {
+        List<VideoCodecType> preferred = new ArrayList<>();
+        preferred.add(config.codec());
+        for (VideoCodecType type : config.fallbackCodecs()) {
+            if (!preferred.contains(type)) {
+                preferred.add(type);
+            }
+        }
+        List<VideoCodecType> capable = new ArrayList<>();
+        List<VideoCodecType> incapable = new ArrayList<>();
+        final Map<VideoCodecType, Double> ranks = new EnumMap<>(VideoCodecType.class);
+        for (int i = 0, n = preferred.size(); i < n; i++) {
+            VideoCodecType type = preferred.get(i);
+            if (!encoder.supportsCodec(type, useSurface)) {
+                Logging.d(TAG, "no encoder for " + type);
+                continue;
+            }
+            double frameRate = encoder.getAchievableFrameRate(type, useSurface,
+                    config.outputWidth(), config.outputHeight());
+            if (encoder.supportsSizeAndRate(type, useSurface, config.outputWidth(),
+                    config.outputHeight(), config.fps())
+                && (frameRate < 0 || frameRate >= config.fps())) {
+                capable.add(type);
+            } else {
+                Logging.d(TAG, type + " can't handle " + config.outputWidth() + "x"
+                               + config.outputHeight() + "@" + config.fps() + ", achievable "
+                               + frameRate + " fps");
+                incapable.add(type);
+                ranks.put(type, frameRate < 0 ? Double.MIN_VALUE : frameRate);
+            }
+        }
+        // the sort is stable, ties keep the configured order
+        Collections.sort(incapable, new Comparator<VideoCodecType>() {
+            @Override
+            public int compare(final VideoCodecType a, final VideoCodecType b) {
+                return Double.compare(ranks.get(b), ranks.get(a));
+            }
+        });
+        capable.addAll(incapable);
+        return capable;
+    }
+
+    /**
+     * Initialize the first codec which succeeds.
+     *
+     * @return the initialized codec, or null if all fail.
+     */
+    public static VideoCodecType select(final VideoConfig config, final boolean useSurface,
+            final VideoEncoder encoder, final Initializer initializer) {
+        List<VideoCodecType> candidates = candidates(config, useSurface, encoder);
+        for (int i = 0, n = candidates.size(); i < n; i++) {
+            VideoCodecType type = candidates.get(i);
+            boolean success;
+            try {
+                success = initializer.init(type);
+            } catch (RuntimeException e) {
+                Logging.e(TAG, "init " + type + " fail", e);
+                success = false;
+            }
+            if (success) {
+                Logging.d(TAG, "selected " + type);
+                return type;
+            }
+            Logging.w(TAG, "init " + type + " fail, fall back to the next codec");
+        }
+        Logging.e(TAG, "no codec available in " + candidates);
+        return null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.piasy.videocre;
+
+import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+
+/**
+ * The bitrate adjustment WebRTC applies for known codecs:
+ *
+ * {@link BitrateAdjustmentType#FRAMERATE_ADJUSTMENT}: the codec relies on the initial fps
+ * ({@link #BITRATE_ADJUSTMENT_FPS}) to calculate frame budget, so the bitrate is scaled by the
+ * actual fps.
+ *
+ * {@link BitrateAdjustmentType#DYNAMIC_ADJUSTMENT}: the difference between actual and expected
+ * frame sizes is accumulated, and every correction window the bitrate is scaled by one or more
+ * steps, up to max scale (or down to 1 / max scale).
+ */
+public class DefaultRateController implements RateController {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public RateController create(final BitrateAdjustmentType bitrateAdjustmentType) {
+            return new DefaultRateController(bitrateAdjustmentType);
+        }
+    };
+
+    public static final int BITRATE_ADJUSTMENT_FPS = 30;
+
+    private static final String TAG = "DefaultRateController";
+    private static final double BITRATE_CORRECTION_SEC = 3.0;
+    // Maximum bitrate correction scale - no more than 4 times.
+    private static final double BITRATE_CORRECTION_MAX_SCALE = 4;
+    // Amount of correction steps to reach correction maximum scale.
+    private static final int BITRATE_CORRECTION_STEPS = 20;
+
+    private final BitrateAdjustmentType mBitrateAdjustmentType;
+    private final double mCorrectionSec;
+    private final double mCorrectionMaxScale;
+    private final int mCorrectionSteps;
+
+    private double mBitrateAccumulator;
+    private double mBitrateAccumulatorMax;
+    private double mBitrateObservationTimeMs;
+    private int mBitrateAdjustmentScaleExp;
+    private int mTargetBitrateBps;
+    private int mTargetFps;
+    private int mCodecBitrateBps;
+
+    public DefaultRateController(final BitrateAdjustmentType bitrateAdjustmentType) {
+        this(bitrateAdjustmentType, BITRATE_CORRECTION_SEC, BITRATE_CORRECTION_MAX_SCALE,
+                BITRATE_CORRECTION_STEPS);
+    }
+
+    /**
+     * @param correctionSec length of the correction window, for dynamic adjustment.
+     * @param correctionMaxScale max scale of the bitrate, for dynamic adjustment.
+     * @param correctionSteps steps to reach max scale, for dynamic adjustment.
+     */
+    public DefaultRateController(final BitrateAdjustmentType bitrateAdjustmentType,
+            final double correctionSec, final double correctionMaxScale,
+            final int correctionSteps) {
+        mBitrateAdjustmentType = bitrateAdjustmentType;
+        mCorrectionSec = correctionSec;
+        mCorrectionMaxScale = correctionMaxScale;
+        mCorrectionSteps = correctionSteps;
+    }
+
+    @Override
+    public int setTargetRates(final int targetBitrateBps, final int targetFps) {
+        if (mBitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
+            mBitrateAccumulatorMax = targetBitrateBps / 8.0;
+            if (mTargetBitrateBps > 0 && targetBitrateBps < mTargetBitrateBps) {
+                // Rescale the accumulator level if the accumulator max decreases
+                mBitrateAccumulator = mBitrateAccumulator * targetBitrateBps / mTargetBitrateBps;
+            }
+        }
+        mTargetBitrateBps = targetBitrateBps;
+        mTargetFps = targetFps;
+        mCodecBitrateBps = calculateCodecBitrate();
+        return mCodecBitrateBps;
+    }
+
+    @Override
+    public boolean onEncodedFrame(final int sizeBytes, final long presentationTimestampUs) {
+        if (mTargetFps == 0
+            || mBitrateAdjustmentType != BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
+            return false;
+        }
+
+        // Accumulate the difference between actual and expected frame sizes.
+        double expectedBytesPerFrame = mTargetBitrateBps / (8.0 * mTargetFps);
+        mBitrateAccumulator += (sizeBytes - expectedBytesPerFrame);
+        mBitrateObservationTimeMs += 1000.0 / mTargetFps;
+
+        // Put a cap on the accumulator, i.e., don't let it grow beyond some level to avoid
+        // using too old data for bitrate adjustment.
+        double bitrateAccumulatorCap = mCorrectionSec * mBitrateAccumulatorMax;
+        mBitrateAccumulator = Math.min(mBitrateAccumulator, bitrateAccumulatorCap);
+        mBitrateAccumulator = Math.max(mBitrateAccumulator, -bitrateAccumulatorCap);
+
+        // Do bitrate adjustment every correction window if actual encoder bitrate deviates too
+        // much form the target value.
+        if (mBitrateObservationTimeMs <= 1000 * mCorrectionSec) {
+            return false;
+        }
+        Logging.d(TAG, "Acc: " + (int) mBitrateAccumulator + ". Max: "
+                       + (int) mBitrateAccumulatorMax + ". ExpScale: "
+                       + mBitrateAdjustmentScaleExp);
+        mBitrateObservationTimeMs = 0;
+        int bitrateAdjustmentInc;
+        if (mBitrateAccumulator > mBitrateAccumulatorMax) {
+            // Encoder generates too high bitrate - need to reduce the scale.
+            bitrateAdjustmentInc = -(int) (mBitrateAccumulator / mBitrateAccumulatorMax + 0.5);
+            mBitrateAccumulator = mBitrateAccumulatorMax;
+        } else if (mBitrateAccumulator < -mBitrateAccumulatorMax) {
+            // Encoder generates too low bitrate - need to increase the scale.
+            bitrateAdjustmentInc = (int) (-mBitrateAccumulator / mBitrateAccumulatorMax + 0.5);
+            mBitrateAccumulator = -mBitrateAccumulatorMax;
+        } else {
+            return false;
+        }
+        mBitrateAdjustmentScaleExp += bitrateAdjustmentInc;
+        mBitrateAdjustmentScaleExp = Math.min(mBitrateAdjustmentScaleExp, mCorrectionSteps);
+        mBitrateAdjustmentScaleExp = Math.max(mBitrateAdjustmentScaleExp, -mCorrectionSteps);
+        Logging.d(TAG, "Adjusting bitrate scale to " + mBitrateAdjustmentScaleExp + ". Value: "
+                       + getBitrateScale(mBitrateAdjustmentScaleExp));
+        mCodecBitrateBps = calculateCodecBitrate();
+        return true;
+    }
+
+    @Override
+    public int codecBitrateBps() {
+        return mCodecBitrateBps;
+    }
+
+    private int calculateCodecBitrate() {
+        if (mBitrateAdjustmentType == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT
+            && mTargetFps > 0) {
+            return BITRATE_ADJUSTMENT_FPS * mTargetBitrateBps / mTargetFps;
+        } else if (mBitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT
+                   && mBitrateAdjustmentScaleExp != 0) {
+            return (int) (mTargetBitrateBps * getBitrateScale(mBitrateAdjustmentScaleExp));
+        }
+        return mTargetBitrateBps;
+    }
+
+    private double getBitrateScale(final int bitrateAdjustmentScaleExp) {
+        return Math.pow(mCorrectionMaxScale, (double) bitrateAdjustmentScaleExp / mCorrectionSteps);
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded video frame.
+ *
+ * The frame is reference counted: a sink that keeps it after
+ * {@link MediaCodecCallback#onEncodedFrame(EncodedFrame)} returns must call {@link #retain()},
+ * and {@link #release()} once done. Frames are read only, many sinks can hold the same frame
+ * without copying it.
+ *
+ * A frame may be delivered as a view of the codec output buffer, it's copied into a buffer of
+ * {@link EncodedFramePool} on the first {@link #retain()}, so a frame consumed synchronously is
+ * never copied. Views returned by {@link #buffer()} before {@link #retain()} are only valid
+ * during the callback, call it again afterwards.
+ *
+ * For H.264 keyframes, SPS and PPS are not part of {@link #buffer()} by default, they are
+ * available from {@link #codecConfig()}, and {@link #buffers()} returns both for gathering
+ * writes. See {@link VideoConfig#prependCodecConfig()} for the contiguous layout.
+ */
+public final class EncodedFrame {
+    private final EncodedFramePool mPool;
+    private final AtomicInteger mRefCount;
+    private final ByteBuffer mCodecConfig;
+    private final int mSize;
+    private final int mFlags;
+    private final long mPresentationTimestampUs;
+
+    private volatile ByteBuffer mData;
+    private volatile boolean mBorrowed;
+
+    EncodedFrame(final EncodedFramePool pool, final ByteBuffer data, final boolean borrowed,
+            final ByteBuffer codecConfig, final int size, final int flags,
+            final long presentationTimestampUs) {
+        mPool = pool;
+        mRefCount = new AtomicInteger(1);
+        mData = data;
+        mBorrowed = borrowed;
+        mCodecConfig = codecConfig;
+        mSize = size;
+        mFlags = flags;
+        mPresentationTimestampUs = presentationTimestampUs;
+    }
+
+    /**
+     * @return a new view of the encoded data, position 0, limit {@link #size()}. The caller may
+     * change its position and limit freely, but must not modify the content.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer buffer = mData.duplicate();
+        buffer.position(0);
+        buffer.limit(mSize);
+        return buffer;
+    }
+
+    /**
+     * @return a new view of the SPS and PPS NALs preceding this keyframe, or null if they are not
+     * delivered separately.
+     */
+    public ByteBuffer codecConfig() {
+        if (mCodecConfig == null) {
+            return null;
+        }
+        ByteBuffer buffer = mCodecConfig.duplicate();
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * @return {@link #codecConfig()} (if any) and {@link #buffer()}, for gathering writes.
+     */
+    public ByteBuffer[] buffers() {
+        return mCodecConfig == null
+               ? new ByteBuffer[] { buffer() }
+               : new ByteBuffer[] { codecConfig(), buffer() };
+    }
+
+    /**
+     * @return size of {@link #buffer()}, excluding {@link #codecConfig()}.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return {@link MediaCodec.BufferInfo#flags} of the codec output.
+     */
+    public int flags() {
+        return mFlags;
+    }
+
+    public boolean isKeyFrame() {
+        return (mFlags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+
+    public long presentationTimestampUs() {
+        return mPresentationTimestampUs;
+    }
+
+    public void retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("retain() called on a released frame");
+        }
+        if (mBorrowed) {
+            detach();
+        }
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            if (!mBorrowed) {
+                mPool.recycle(mData);
+            }
+            mData = null;
+        } else if (refCount < 0) {
+            throw new IllegalStateException("release() called on a released frame");
+        }
+    }
+
+    private synchronized void detach() {
+        if (!mBorrowed) {
+            return;
+        }
+        ByteBuffer data = mPool.take(mSize);
+        data.put(buffer());
+        mData = data;
+        mBorrowed = false;
+    }
+}
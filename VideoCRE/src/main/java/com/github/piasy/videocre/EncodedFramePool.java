@@ -0,0 +1,106 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers backing {@link EncodedFrame}, so the codec output buffer could be
+ * returned to the codec right after it's copied, and no buffer is allocated in steady state.
+ *
+ * Thread safe.
+ */
+public class EncodedFramePool {
+    private static final int DEFAULT_MAX_POOLED_BUFFERS = 8;
+    private static final int MIN_BUFFER_CAPACITY = 16 * 1024;
+
+    private final int mMaxPooledBuffers;
+    private final List<ByteBuffer> mFreeBuffers;
+    private final AtomicLong mBytesCopied;
+
+    public EncodedFramePool() {
+        this(DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    public EncodedFramePool(final int maxPooledBuffers) {
+        mMaxPooledBuffers = maxPooledBuffers;
+        mFreeBuffers = new ArrayList<>(maxPooledBuffers);
+        mBytesCopied = new AtomicLong();
+    }
+
+    /**
+     * Copy {@code prefix} (if not null) followed by {@code payload} into a pooled frame, both
+     * buffers are consumed from their position to their limit.
+     *
+     * @return a frame holding one reference, owned by the caller.
+     */
+    public EncodedFrame obtain(final ByteBuffer prefix, final ByteBuffer payload, final int flags,
+            final long presentationTimestampUs) {
+        int size = payload.remaining() + (prefix == null ? 0 : prefix.remaining());
+        ByteBuffer data = take(size);
+        if (prefix != null) {
+            data.put(prefix);
+        }
+        data.put(payload);
+        return new EncodedFrame(this, data, false, null, size, flags, presentationTimestampUs);
+    }
+
+    /**
+     * Wrap {@code payload} (from its position to its limit) without copying, it's copied into a
+     * pooled buffer only if the frame is retained. The caller must not reuse {@code payload} until
+     * it has released its reference.
+     *
+     * @return a frame holding one reference, owned by the caller.
+     */
+    public EncodedFrame wrap(final ByteBuffer payload, final ByteBuffer codecConfig,
+            final int flags, final long presentationTimestampUs) {
+        return new EncodedFrame(this, payload.slice(), true, codecConfig, payload.remaining(),
+                flags, presentationTimestampUs);
+    }
+
+    /**
+     * @return total bytes copied into pooled buffers, for measuring the copy cost of a frame
+     * layout.
+     */
+    public long bytesCopied() {
+        return mBytesCopied.get();
+    }
+
+    /**
+     * @return a cleared buffer of at least {@code size} bytes, the caller is going to fill it.
+     */
+    ByteBuffer take(final int size) {
+        mBytesCopied.addAndGet(size);
+        synchronized (mFreeBuffers) {
+            // prefer the smallest buffer which fits, keyframes need the bigger ones
+            int best = -1;
+            for (int i = 0, n = mFreeBuffers.size(); i < n; i++) {
+                int capacity = mFreeBuffers.get(i).capacity();
+                if (capacity >= size
+                    && (best < 0 || capacity < mFreeBuffers.get(best).capacity())) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                ByteBuffer buffer = mFreeBuffers.remove(best);
+                buffer.clear();
+                return buffer;
+            }
+            if (mFreeBuffers.size() == mMaxPooledBuffers) {
+                // all pooled buffers are too small, drop one so the pool adapts to bigger frames
+                mFreeBuffers.remove(0);
+            }
+        }
+        int capacity = Math.max(MIN_BUFFER_CAPACITY, Integer.highestOneBit(size) << 1);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    void recycle(final ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            if (mFreeBuffers.size() < mMaxPooledBuffers) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.piasy.videocre;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+import org.webrtc.MediaCodecVideoEncoder.EncoderProperties;
+
+/**
+ * Caches the result of HW encoder probing, i.e. walking MediaCodecList and codec capabilities,
+ * which is slow on low-end devices.
+ *
+ * Results, including "no HW encoder", are kept in memory, and optionally persisted in a small
+ * file, loaded lazily on the first lookup, and written on a background thread after a miss. The
+ * file is keyed by the Build fingerprint, so it's dropped after a system update. Probing time of
+ * each entry is stored as well, so the time saved by cache hits could be measured, see
+ * {@link #savedTimeUs()}.
+ */
+public final class EncoderCapabilityCache {
+    public interface Prober {
+        /**
+         * @return null if there is no HW encoder.
+         */
+        EncoderProperties probe();
+    }
+
+    private static final String TAG = "EncoderCapabilityCache";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\t";
+    private static final String NO_ENCODER = "-";
+    // writes and deletes the files in order, off the codec thread and the cache lock
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EncoderCapabilityCache");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final String mFingerprint;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private File mFile;
+    private boolean mLoaded;
+    private int mHits;
+    private int mMisses;
+    private long mSavedTimeUs;
+
+    /**
+     * @param fingerprint identifies the device and system, e.g. Build.FINGERPRINT.
+     */
+    public EncoderCapabilityCache(final String fingerprint) {
+        mFingerprint = String.valueOf(fingerprint);
+    }
+
+    /**
+     * Persist the cache in {@code file}, e.g. under Context.getCacheDir(). Should be called
+     * before the first query of HW encoder support, otherwise entries probed before are written
+     * at the next miss.
+     */
+    public synchronized void setFile(final File file) {
+        mFile = file;
+        mLoaded = false;
+    }
+
+    public synchronized EncoderProperties get(final String key, final Prober prober) {
+        load();
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            mHits++;
+            mSavedTimeUs += entry.mProbeTimeUs;
+            return entry.mProperties;
+        }
+        mMisses++;
+        long start = System.nanoTime();
+        EncoderProperties properties = prober.probe();
+        long probeTimeUs = (System.nanoTime() - start) / 1000;
+        Logging.d(TAG, "probe " + key + " took " + probeTimeUs + " us");
+        mEntries.put(key, new Entry(properties, probeTimeUs));
+        if (mFile != null) {
+            final File file = mFile;
+            final String content = serialize();
+            sWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save(file, content);
+                }
+            });
+        }
+        return properties;
+    }
+
+    /**
+     * Drop all entries, both in memory and in the file, e.g. after codec lists are changed.
+     */
+    public synchronized void invalidate() {
+        mEntries.clear();
+        mLoaded = true;
+        if (mFile != null) {
+            final File file = mFile;
+            sWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (file.exists() && !file.delete()) {
+                        Logging.w(TAG, "delete " + file + " fail");
+                    }
+                }
+            });
+        }
+    }
+
+    public synchronized int hits() {
+        return mHits;
+    }
+
+    public synchronized int misses() {
+        return mMisses;
+    }
+
+    /**
+     * @return sum of the probing time of all cache hits.
+     */
+    public synchronized long savedTimeUs() {
+        return mSavedTimeUs;
+    }
+
+    /**
+     * Wait for the file writes and deletes scheduled so far, for tests.
+     */
+    static void awaitPendingWrites() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), UTF_8));
+            if (!mFingerprint.equals(reader.readLine())) {
+                Logging.d(TAG, "fingerprint changed, drop " + mFile);
+                return;
+            }
+            Map<String, Entry> entries = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                if (fields.length == 3 && NO_ENCODER.equals(fields[1])) {
+                    entries.put(fields[0], new Entry(null, Long.parseLong(fields[2])));
+                } else if (fields.length == 5) {
+                    entries.put(fields[0], new Entry(new EncoderProperties(fields[1],
+                            Integer.parseInt(fields[2]),
+                            BitrateAdjustmentType.valueOf(fields[3])),
+                            Long.parseLong(fields[4])));
+                } else {
+                    throw new IOException("bad line: " + line);
+                }
+            }
+            // entries probed before the file is set win
+            entries.putAll(mEntries);
+            mEntries.clear();
+            mEntries.putAll(entries);
+            Logging.d(TAG, "loaded " + mEntries.size() + " entries from " + mFile);
+        } catch (IOException | IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException
+            Logging.e(TAG, "load " + mFile + " fail", e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private String serialize() {
+        StringBuilder content = new StringBuilder(mFingerprint).append('\n');
+        for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+            EncoderProperties properties = entry.getValue().mProperties;
+            content.append(entry.getKey()).append(SEPARATOR);
+            if (properties == null) {
+                content.append(NO_ENCODER);
+            } else {
+                content.append(properties.codecName).append(SEPARATOR)
+                        .append(properties.colorFormat).append(SEPARATOR)
+                        .append(properties.bitrateAdjustmentType);
+            }
+            content.append(SEPARATOR).append(entry.getValue().mProbeTimeUs).append('\n');
+        }
+        return content.toString();
+    }
+
+    private static void save(final File file, final String content) {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+            writer.write(content);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " fail");
+            }
+        } catch (IOException e) {
+            Logging.e(TAG, "save " + file + " fail", e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // ignored
+        }
+    }
+
+    private static class Entry {
+        private final EncoderProperties mProperties;
+        private final long mProbeTimeUs;
+
+        Entry(final EncoderProperties properties, final long probeTimeUs) {
+            mProperties = properties;
+            mProbeTimeUs = probeTimeUs;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.webrtc.Logging;
+
+/**
+ * Records H.264 to a fragmented MP4 file with {@link FragmentedMp4Writer}, a drop-in alternative
+ * to {@link Mp4Recorder}: memory is bounded by one fragment, and a file left by a crash is made
+ * playable by {@link #recover(File)}.
+ *
+ * Placed behind a {@link NalUnitStage}, frames are not parsed again. SPS and PPS are taken from
+ * the output format, or from the first keyframe if the format doesn't have them.
+ */
+public class FragmentedMp4Recorder implements Recorder, NalUnitStage.Sink {
+    private static final String TAG = "FragmentedMp4Recorder";
+    private static final String H264_MIME_TYPE = "video/avc";
+
+    private final FragmentedMp4Writer mWriter;
+    private final NalUnits mNalUnits = new NalUnits();
+
+    private int mWidth;
+    private int mHeight;
+    private boolean mFormatChanged;
+    private boolean mHeaderWritten;
+    private volatile LatencyTracker mLatencyTracker;
+
+    public FragmentedMp4Recorder(final File outputFile) throws IOException {
+        this(outputFile, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    /**
+     * @param maxFragmentBytes see {@link FragmentedMp4Writer#FragmentedMp4Writer(FileChannel,
+     * int)}.
+     */
+    public FragmentedMp4Recorder(final File outputFile, final int maxFragmentBytes)
+            throws IOException {
+        mWriter = new FragmentedMp4Writer(new FileOutputStream(outputFile).getChannel(),
+                maxFragmentBytes);
+    }
+
+    /**
+     * Truncate a recording cut by a crash after its last complete fragment.
+     *
+     * @return the length kept, 0 if nothing is playable.
+     */
+    public static long recover(final File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            return FragmentedMp4Writer.recover(randomAccessFile.getChannel());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        mNalUnits.clear();
+        if (frame.codecConfig() != null) {
+            H264NalParser.parseAnnexB(frame.codecConfig(), mNalUnits);
+        }
+        H264NalParser.parseAnnexB(frame.buffer(), mNalUnits);
+        onEncodedFrame(frame, mNalUnits);
+        mNalUnits.clear();
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame, final NalUnits nalUnits) {
+        if ((frame.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        try {
+            if (!mHeaderWritten) {
+                int sps = nalUnits.indexOf(NalUnits.TYPE_SPS);
+                int pps = nalUnits.indexOf(NalUnits.TYPE_PPS);
+                if (!mFormatChanged || sps < 0 || pps < 0) {
+                    Logging.w(TAG, "drop frame before SPS and PPS");
+                    return;
+                }
+                mWriter.writeHeader(mWidth, mHeight, nalUnit(nalUnits, sps),
+                        nalUnit(nalUnits, pps));
+                mHeaderWritten = true;
+            }
+            mWriter.writeSample(nalUnits, frame.presentationTimestampUs(), frame.isKeyFrame());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(LatencyTracker.Stage.MUXED, frame.presentationTimestampUs());
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        if (mFormatChanged) {
+            throw new RuntimeException("format changed twice");
+        }
+
+        String name = format.getString(MediaFormat.KEY_MIME);
+        if (!H264_MIME_TYPE.equals(name)) {
+            throw new IllegalArgumentException("unsupported mime " + name);
+        }
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        mFormatChanged = true;
+
+        Logging.d(TAG, "onOutputFormatChanged " + name + " " + mWidth + "x" + mHeight);
+
+        ByteBuffer sps = format.getByteBuffer("csd-0");
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        if (sps != null && pps != null) {
+            try {
+                mWriter.writeHeader(mWidth, mHeight, sps, pps);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            mHeaderWritten = true;
+        }
+    }
+
+    /**
+     * Write the last fragment and close the file.
+     */
+    @Override
+    public void stop() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Logging.e(TAG, "stop fail", e);
+        }
+    }
+
+    private static ByteBuffer nalUnit(final NalUnits nalUnits, final int index) {
+        ByteBuffer nalUnit = nalUnits.buffer(index).duplicate();
+        nalUnit.limit(nalUnits.offset(index) + nalUnits.size(index));
+        nalUnit.position(nalUnits.offset(index));
+        return nalUnit;
+    }
+}
@@ -0,0 +1,452 @@
+package com.github.piasy.videocre;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes an H.264 track as fragmented MP4, in pure Java.
+ *
+ * The header (ftyp and moov) is written first, then each fragment (moof and mdat) as soon as the
+ * next keyframe arrives, or when it reaches the max fragment size, so memory is bounded by one
+ * fragment, and a file cut by a crash loses the last fragment at most, see {@link #recover}.
+ * Samples are given in Annex-B and written in AVCC, SPS, PPS and AUD NAL units are left out of
+ * samples, SPS and PPS are in the header.
+ *
+ * Timestamps must increase, i.e. frames must not be reordered (no B-frames), which holds for the
+ * profiles encoded by {@link HwAvcEncoder}. Not thread safe.
+ */
+public class FragmentedMp4Writer {
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final int TIMESCALE = 90000;
+    private static final int TRACK_ID = 1;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final long DEFAULT_SAMPLE_DURATION_US = 33333;
+    private static final int INITIAL_PAYLOAD_CAPACITY = 256 * 1024;
+    private static final int INITIAL_SAMPLE_CAPACITY = 64;
+    private static final int[] MATRIX = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+
+    private final FileChannel mChannel;
+    private final int mMaxFragmentBytes;
+    private final NalUnits mNalUnits = new NalUnits();
+
+    private boolean mHeaderWritten;
+    private long mFirstPtsUs = -1;
+    private int mSequenceNumber;
+    private long mLastDurationUs = DEFAULT_SAMPLE_DURATION_US;
+
+    // current fragment
+    private ByteBuffer mPayload = ByteBuffer.allocateDirect(INITIAL_PAYLOAD_CAPACITY);
+    private int[] mSampleSizes = new int[INITIAL_SAMPLE_CAPACITY];
+    private long[] mSamplePtsUs = new long[INITIAL_SAMPLE_CAPACITY];
+    private boolean[] mSampleSync = new boolean[INITIAL_SAMPLE_CAPACITY];
+    private int mSampleCount;
+
+    public FragmentedMp4Writer(final FileChannel channel) {
+        this(channel, DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    /**
+     * @param maxFragmentBytes a fragment is cut before any sample which would make its media
+     * data exceed this, the next fragment may then start with a non-sync sample. A sample larger
+     * than this gets a fragment of its own.
+     */
+    public FragmentedMp4Writer(final FileChannel channel, final int maxFragmentBytes) {
+        mChannel = channel;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * @param sps SPS NAL unit, with or without start code.
+     * @param pps PPS NAL unit, with or without start code.
+     */
+    public void writeHeader(final int width, final int height, final ByteBuffer sps,
+            final ByteBuffer pps) throws IOException {
+        if (mHeaderWritten) {
+            throw new IllegalStateException("header written twice");
+        }
+        ByteBuffer rawSps = stripStartCode(sps);
+        ByteBuffer rawPps = stripStartCode(pps);
+        ByteBuffer header = ByteBuffer.allocate(1024 + rawSps.remaining() + rawPps.remaining());
+
+        int ftyp = begin(header, "ftyp");
+        putType(header, "isom");
+        header.putInt(0x200);
+        putType(header, "isom");
+        putType(header, "iso5");
+        putType(header, "iso6");
+        putType(header, "avc1");
+        putType(header, "mp41");
+        end(header, ftyp);
+
+        int moov = begin(header, "moov");
+        int mvhd = beginFull(header, "mvhd", 0, 0);
+        header.putInt(0).putInt(0).putInt(1000).putInt(0);
+        header.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0);
+        header.putLong(0);
+        putMatrix(header);
+        for (int i = 0; i < 6; i++) {
+            header.putInt(0);
+        }
+        header.putInt(TRACK_ID + 1);
+        end(header, mvhd);
+
+        int trak = begin(header, "trak");
+        int tkhd = beginFull(header, "tkhd", 0, 0x000003);
+        header.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        header.putLong(0);
+        header.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        putMatrix(header);
+        header.putInt(width << 16).putInt(height << 16);
+        end(header, tkhd);
+
+        int mdia = begin(header, "mdia");
+        int mdhd = beginFull(header, "mdhd", 0, 0);
+        // language "und"
+        header.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0).putShort((short) 0x55C4)
+                .putShort((short) 0);
+        end(header, mdhd);
+        int hdlr = beginFull(header, "hdlr", 0, 0);
+        header.putInt(0);
+        putType(header, "vide");
+        header.putInt(0).putInt(0).putInt(0);
+        header.put("VideoHandler".getBytes()).put((byte) 0);
+        end(header, hdlr);
+
+        int minf = begin(header, "minf");
+        int vmhd = beginFull(header, "vmhd", 0, 1);
+        header.putLong(0);
+        end(header, vmhd);
+        int dinf = begin(header, "dinf");
+        int dref = beginFull(header, "dref", 0, 0);
+        header.putInt(1);
+        // the media data is in this file
+        end(header, beginFull(header, "url ", 0, 1));
+        end(header, dref);
+        end(header, dinf);
+
+        int stbl = begin(header, "stbl");
+        int stsd = beginFull(header, "stsd", 0, 0);
+        header.putInt(1);
+        int avc1 = begin(header, "avc1");
+        header.putInt(0).putShort((short) 0).putShort((short) 1);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+        header.putShort((short) width).putShort((short) height);
+        header.putInt(0x00480000).putInt(0x00480000).putInt(0).putShort((short) 1);
+        header.put(new byte[32]);
+        header.putShort((short) 0x0018).putShort((short) -1);
+        int avcC = begin(header, "avcC");
+        header.put((byte) 1)
+                .put(rawSps.get(rawSps.position() + 1))
+                .put(rawSps.get(rawSps.position() + 2))
+                .put(rawSps.get(rawSps.position() + 3))
+                // 4 byte NAL unit lengths
+                .put((byte) 0xFF)
+                .put((byte) 0xE1)
+                .putShort((short) rawSps.remaining())
+                .put(rawSps)
+                .put((byte) 1)
+                .putShort((short) rawPps.remaining())
+                .put(rawPps);
+        end(header, avcC);
+        end(header, avc1);
+        end(header, stsd);
+        // empty sample tables, samples are in fragments
+        int stts = beginFull(header, "stts", 0, 0);
+        header.putInt(0);
+        end(header, stts);
+        int stsc = beginFull(header, "stsc", 0, 0);
+        header.putInt(0);
+        end(header, stsc);
+        int stsz = beginFull(header, "stsz", 0, 0);
+        header.putInt(0).putInt(0);
+        end(header, stsz);
+        int stco = beginFull(header, "stco", 0, 0);
+        header.putInt(0);
+        end(header, stco);
+        end(header, stbl);
+        end(header, minf);
+        end(header, mdia);
+        end(header, trak);
+
+        int mvex = begin(header, "mvex");
+        int trex = beginFull(header, "trex", 0, 0);
+        header.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        end(header, trex);
+        end(header, mvex);
+        end(header, moov);
+
+        header.flip();
+        writeFully(header);
+        mHeaderWritten = true;
+    }
+
+    /**
+     * Add a sample given in Annex-B.
+     */
+    public void writeSample(final ByteBuffer annexB, final long presentationTimestampUs,
+            final boolean keyFrame) throws IOException {
+        mNalUnits.clear();
+        H264NalParser.parseAnnexB(annexB, mNalUnits);
+        writeSample(mNalUnits, presentationTimestampUs, keyFrame);
+        mNalUnits.clear();
+    }
+
+    /**
+     * Add a sample already parsed, e.g. by {@link NalUnitStage}.
+     */
+    public void writeSample(final NalUnits nalUnits, final long presentationTimestampUs,
+            final boolean keyFrame) throws IOException {
+        if (!mHeaderWritten) {
+            throw new IllegalStateException("header not written");
+        }
+        if (mSampleCount > 0 && presentationTimestampUs <= mSamplePtsUs[mSampleCount - 1]) {
+            throw new IllegalArgumentException("timestamp " + presentationTimestampUs
+                                               + " doesn't increase");
+        }
+        int size = 0;
+        for (int i = 0, n = nalUnits.count(); i < n; i++) {
+            if (isSampleNalUnit(nalUnits.type(i))) {
+                size += 4 + nalUnits.size(i);
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+        if (mSampleCount > 0
+            && (keyFrame || mPayload.position() + size > mMaxFragmentBytes)) {
+            flushFragment(presentationTimestampUs);
+        }
+        if (mFirstPtsUs < 0) {
+            mFirstPtsUs = presentationTimestampUs;
+        }
+        ensureCapacity(size);
+        for (int i = 0, n = nalUnits.count(); i < n; i++) {
+            if (isSampleNalUnit(nalUnits.type(i))) {
+                mPayload.putInt(nalUnits.size(i));
+                ByteBuffer src = nalUnits.buffer(i).duplicate();
+                src.limit(nalUnits.offset(i) + nalUnits.size(i));
+                src.position(nalUnits.offset(i));
+                mPayload.put(src);
+            }
+        }
+        mSampleSizes[mSampleCount] = size;
+        mSamplePtsUs[mSampleCount] = presentationTimestampUs;
+        mSampleSync[mSampleCount] = keyFrame;
+        mSampleCount++;
+    }
+
+    /**
+     * Write the pending fragment and close the channel.
+     */
+    public void close() throws IOException {
+        try {
+            if (mSampleCount > 0) {
+                flushFragment(mSamplePtsUs[mSampleCount - 1] + mLastDurationUs);
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return number of fragments written.
+     */
+    public int fragments() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Truncate a file cut by a crash after its last complete fragment, so it's playable.
+     *
+     * @return the length kept, 0 if the header itself is incomplete.
+     */
+    public static long recover(final FileChannel channel) throws IOException {
+        long length = channel.size();
+        long offset = 0;
+        long valid = 0;
+        boolean moov = false;
+        boolean moof = false;
+        ByteBuffer boxHeader = ByteBuffer.allocate(16);
+        while (offset + 8 <= length) {
+            boxHeader.clear();
+            boxHeader.limit(8);
+            readFully(channel, boxHeader, offset);
+            long size = boxHeader.getInt(0) & 0xFFFFFFFFL;
+            int type = boxHeader.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (offset + 16 > length) {
+                    break;
+                }
+                boxHeader.limit(16);
+                readFully(channel, boxHeader, offset + 8);
+                size = boxHeader.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                // extends to the end of file, the writer never writes it
+                break;
+            }
+            if (size < headerSize || offset + size > length) {
+                break;
+            }
+            offset += size;
+            if (type == fourCc("moov")) {
+                moov = true;
+                valid = offset;
+            } else if (type == fourCc("moof")) {
+                moof = true;
+            } else if (type == fourCc("mdat") && moof) {
+                moof = false;
+                valid = offset;
+            } else if (!moof) {
+                valid = offset;
+            }
+        }
+        if (!moov) {
+            valid = 0;
+        }
+        if (valid < length) {
+            channel.truncate(valid);
+        }
+        return valid;
+    }
+
+    private void flushFragment(final long nextPtsUs) throws IOException {
+        int count = mSampleCount;
+        ByteBuffer moof = ByteBuffer.allocate(8 + 16 + 8 + 16 + 20 + 20 + 12 * count + 8);
+        int moofStart = begin(moof, "moof");
+        int mfhd = beginFull(moof, "mfhd", 0, 0);
+        moof.putInt(++mSequenceNumber);
+        end(moof, mfhd);
+        int traf = begin(moof, "traf");
+        int tfhd = beginFull(moof, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        moof.putInt(TRACK_ID);
+        end(moof, tfhd);
+        int tfdt = beginFull(moof, "tfdt", 1, 0);
+        moof.putLong(ticks(mSamplePtsUs[0]));
+        end(moof, tfdt);
+        int trun = beginFull(moof, "trun", 0, TRUN_FLAGS);
+        moof.putInt(count);
+        int dataOffset = moof.position();
+        moof.putInt(0);
+        for (int i = 0; i < count; i++) {
+            long next = i + 1 < count ? mSamplePtsUs[i + 1] : nextPtsUs;
+            moof.putInt((int) (ticks(next) - ticks(mSamplePtsUs[i])));
+            moof.putInt(mSampleSizes[i]);
+            moof.putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        end(moof, trun);
+        end(moof, traf);
+        end(moof, moofStart);
+        // the payload follows the mdat header
+        moof.putInt(dataOffset, moof.position() + 8);
+        moof.putInt(8 + mPayload.position());
+        putType(moof, "mdat");
+        moof.flip();
+        mPayload.flip();
+        writeFully(moof);
+        writeFully(mPayload);
+        mPayload.clear();
+
+        if (count > 1) {
+            mLastDurationUs = mSamplePtsUs[count - 1] - mSamplePtsUs[count - 2];
+        }
+        mSampleCount = 0;
+    }
+
+    private void ensureCapacity(final int size) {
+        if (mPayload.remaining() < size) {
+            int capacity = mPayload.capacity();
+            while (capacity - mPayload.position() < size) {
+                capacity *= 2;
+            }
+            ByteBuffer payload = ByteBuffer.allocateDirect(capacity);
+            mPayload.flip();
+            payload.put(mPayload);
+            mPayload = payload;
+        }
+        if (mSampleCount == mSampleSizes.length) {
+            int capacity = mSampleCount * 2;
+            mSampleSizes = Arrays.copyOf(mSampleSizes, capacity);
+            mSamplePtsUs = Arrays.copyOf(mSamplePtsUs, capacity);
+            mSampleSync = Arrays.copyOf(mSampleSync, capacity);
+        }
+    }
+
+    private long ticks(final long presentationTimestampUs) {
+        return (presentationTimestampUs - mFirstPtsUs) * TIMESCALE / 1000_000;
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            offset += read;
+        }
+    }
+
+    private static boolean isSampleNalUnit(final int type) {
+        return type != NalUnits.TYPE_SPS && type != NalUnits.TYPE_PPS
+               && type != NalUnits.TYPE_AUD;
+    }
+
+    private static ByteBuffer stripStartCode(final ByteBuffer nalUnit) {
+        NalUnits nalUnits = new NalUnits();
+        if (H264NalParser.parseAnnexB(nalUnit, nalUnits) == 0) {
+            return nalUnit.duplicate();
+        }
+        ByteBuffer raw = nalUnits.buffer(0).duplicate();
+        raw.limit(nalUnits.offset(0) + nalUnits.size(0));
+        raw.position(nalUnits.offset(0));
+        return raw;
+    }
+
+    private static int begin(final ByteBuffer buffer, final String type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        putType(buffer, type);
+        return start;
+    }
+
+    private static int beginFull(final ByteBuffer buffer, final String type, final int version,
+            final int flags) {
+        int start = begin(buffer, type);
+        buffer.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void end(final ByteBuffer buffer, final int start) {
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    private static void putType(final ByteBuffer buffer, final String type) {
+        buffer.putInt(fourCc(type));
+    }
+
+    private static void putMatrix(final ByteBuffer buffer) {
+        for (int value : MATRIX) {
+            buffer.putInt(value);
+        }
+    }
+
+    private static int fourCc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+               | type.charAt(3);
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.piasy.videocre;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops frames above a max frame rate, based on capture timestamps, e.g. to encode 15 fps out of
+ * a 30 fps camera.
+ *
+ * Frames are kept on an ideal schedule of one frame per {@code 1 / maxFps}, so the cadence stays
+ * as even as the source allows, and non-integer ratios like 30 to 20 or 25 keep the right
+ * average rate. A frame up to half a source frame interval early is still kept, and a source at
+ * most about 6% faster than the max rate isn't decimated, so capture jitter doesn't drop frames.
+ * The schedule restarts after a gap or when timestamps go backwards. Thread safe.
+ */
+public class FrameDecimator {
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final long MAX_SOURCE_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    // weight of a new interval in the moving average of the source interval, 1/32
+    private static final int SOURCE_INTERVAL_SHIFT = 5;
+    // sources up to 1/16 faster than the max rate are not decimated
+    private static final int SOURCE_RATE_MARGIN_SHIFT = 4;
+
+    // guarded by this
+    private long mIntervalNs;
+    private long mNextNs = UNSET;
+    private long mLastNs = UNSET;
+    private long mSourceIntervalNs;
+    private long mKept;
+    private long mDropped;
+
+    /**
+     * @param maxFps 0 or less to keep all frames.
+     */
+    public FrameDecimator(final int maxFps) {
+        mIntervalNs = intervalOf(maxFps);
+    }
+
+    /**
+     * Change the max frame rate, e.g. when the bitrate drops. The schedule restarts at the next
+     * frame, which is kept.
+     *
+     * @param maxFps 0 or less to keep all frames.
+     */
+    public synchronized void setMaxFps(final int maxFps) {
+        mIntervalNs = intervalOf(maxFps);
+        mNextNs = UNSET;
+    }
+
+    /**
+     * @return whether to keep the frame captured at {@code timestampNs}.
+     */
+    public synchronized boolean shouldKeep(final long timestampNs) {
+        boolean backwards = mLastNs != UNSET && timestampNs < mLastNs;
+        if (mLastNs != UNSET && !backwards && timestampNs - mLastNs < MAX_SOURCE_INTERVAL_NS) {
+            long interval = timestampNs - mLastNs;
+            mSourceIntervalNs = mSourceIntervalNs == 0
+                    ? interval
+                    : mSourceIntervalNs + ((interval - mSourceIntervalNs) >> SOURCE_INTERVAL_SHIFT);
+        }
+        mLastNs = timestampNs;
+
+        if (mIntervalNs == 0) {
+            mKept++;
+            return true;
+        }
+        // a source at about the max rate is kept whole, whatever its jitter
+        boolean sourceWithinRate = mSourceIntervalNs
+                >= mIntervalNs - (mIntervalNs >> SOURCE_RATE_MARGIN_SHIFT);
+        if (mNextNs == UNSET || backwards || sourceWithinRate
+            || timestampNs - mNextNs > mIntervalNs) {
+            mNextNs = timestampNs + mIntervalNs;
+            mKept++;
+            return true;
+        }
+        long tolerance = mSourceIntervalNs == 0
+                ? mIntervalNs / 4
+                : Math.min(mSourceIntervalNs, mIntervalNs) / 2;
+        if (timestampNs < mNextNs - tolerance) {
+            mDropped++;
+            return false;
+        }
+        mNextNs += mIntervalNs;
+        mKept++;
+        return true;
+    }
+
+    public synchronized long keptFrames() {
+        return mKept;
+    }
+
+    public synchronized long droppedFrames() {
+        return mDropped;
+    }
+
+    private static long intervalOf(final int maxFps) {
+        return maxFps > 0 ? TimeUnit.SECONDS.toNanos(1) / maxFps : 0;
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.piasy.videocre;
+
+import android.os.Handler;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of frames waiting to be encoded on the codec thread.
+ *
+ * Frames are offered from the capture thread and drained one by one on the codec thread, so other
+ * tasks, e.g. rate updates, could interleave with them. When the encoder falls behind, frames are
+ * dropped according to the {@link DropPolicy}, instead of piling up in the Looper queue.
+ */
+public final class FrameQueue<F> {
+    public enum DropPolicy {
+        /** Drop the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Drop the new frame, keep the queued ones. */
+        DROP_NEWEST,
+        /** Keep only the latest frame, the capacity is ignored. */
+        LATEST_ONLY,
+    }
+
+    public interface FrameEncoder<F> {
+        /**
+         * Called on the codec thread.
+         */
+        void encode(F frame);
+
+        /**
+         * Called when {@code frame} is dropped without being encoded, on the thread offering or
+         * clearing frames.
+         */
+        void onDropped(F frame);
+    }
+
+    private final Handler mHandler;
+    private final int mCapacity;
+    private final DropPolicy mDropPolicy;
+    private final FrameEncoder<F> mFrameEncoder;
+    private final ArrayDeque<F> mFrames;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // guarded by mFrames
+    private boolean mDrainPosted;
+    private boolean mSaturated;
+    private BackpressureListener mBackpressureListener;
+    private long mQueuedFrames;
+    private long mDroppedFrames;
+
+    private volatile long mEncodedFrames;
+
+    public FrameQueue(final Handler handler, final int capacity, final DropPolicy dropPolicy,
+            final FrameEncoder<F> frameEncoder) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mHandler = handler;
+        mCapacity = dropPolicy == DropPolicy.LATEST_ONLY ? 1 : capacity;
+        mDropPolicy = dropPolicy;
+        mFrameEncoder = frameEncoder;
+        mFrames = new ArrayDeque<>(mCapacity);
+    }
+
+    /**
+     * Notified when frames start being dropped, and when the queue is drained after that. Called
+     * with the queue locked, it should return quickly.
+     */
+    public void setBackpressureListener(final BackpressureListener listener) {
+        synchronized (mFrames) {
+            mBackpressureListener = listener;
+        }
+    }
+
+    public void offer(final F frame) {
+        synchronized (mFrames) {
+            if (mFrames.size() >= mCapacity) {
+                mDroppedFrames++;
+                setSaturated(true);
+                if (mDropPolicy == DropPolicy.DROP_NEWEST) {
+                    mFrameEncoder.onDropped(frame);
+                    return;
+                }
+                mFrameEncoder.onDropped(mFrames.pollFirst());
+            }
+            mFrames.offerLast(frame);
+            mQueuedFrames++;
+            if (mDrainPosted) {
+                return;
+            }
+            mDrainPosted = true;
+        }
+        mHandler.post(mDrainRunnable);
+    }
+
+    /**
+     * Drop all queued frames, they are not counted as dropped.
+     */
+    public void clear() {
+        synchronized (mFrames) {
+            F frame;
+            while ((frame = mFrames.pollFirst()) != null) {
+                mFrameEncoder.onDropped(frame);
+            }
+            setSaturated(false);
+        }
+    }
+
+    public int size() {
+        synchronized (mFrames) {
+            return mFrames.size();
+        }
+    }
+
+    /**
+     * @return number of frames accepted into the queue.
+     */
+    public long queuedFrames() {
+        synchronized (mFrames) {
+            return mQueuedFrames;
+        }
+    }
+
+    /**
+     * @return number of frames dropped because the queue is full.
+     */
+    public long droppedFrames() {
+        synchronized (mFrames) {
+            return mDroppedFrames;
+        }
+    }
+
+    /**
+     * @return number of frames handed to the encoder.
+     */
+    public long encodedFrames() {
+        return mEncodedFrames;
+    }
+
+    private void drain() {
+        F frame;
+        boolean more;
+        synchronized (mFrames) {
+            frame = mFrames.pollFirst();
+            more = !mFrames.isEmpty();
+            mDrainPosted = more;
+            if (!more) {
+                setSaturated(false);
+            }
+        }
+        if (frame == null) {
+            return;
+        }
+        mFrameEncoder.encode(frame);
+        mEncodedFrames++;
+        if (more) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    private void setSaturated(final boolean saturated) {
+        if (mSaturated == saturated) {
+            return;
+        }
+        mSaturated = saturated;
+        if (mBackpressureListener != null) {
+            mBackpressureListener.onBackpressureChanged(saturated);
+        }
+    }
+}
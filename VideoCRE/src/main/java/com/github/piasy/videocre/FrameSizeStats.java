@@ -0,0 +1,214 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Frame size distribution of an encoded stream, to compare encoder modes, e.g. the keyframe
+ * spikes of a short GOP with the flat sizes of intra refresh.
+ *
+ * Attach it as a {@link MediaCodecCallback} to record frames on the device, or feed it a trace of
+ * {@link RateControlSimulator#readTrace} on the JVM. Recorded frames can be saved with
+ * {@link #writeTrace(Writer)}, so each mode is recorded once and compared offline. Burstiness is
+ * the peak bitrate of any 1 second window over the average bitrate. Thread safe.
+ */
+public class FrameSizeStats implements MediaCodecCallback {
+    private static final long WINDOW_US = 1000_000;
+    private static final int DEFAULT_MAX_FRAMES = 30 * 60 * 10;
+
+    private final int mMaxFrames;
+    private final List<RateControlSimulator.Sample> mSamples = new ArrayList<>();
+    private final List<Boolean> mKeyFrames = new ArrayList<>();
+    private long mIgnored;
+
+    public FrameSizeStats() {
+        this(DEFAULT_MAX_FRAMES);
+    }
+
+    /**
+     * @param maxFrames frames after this many are ignored, to bound memory.
+     */
+    public FrameSizeStats(final int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("maxFrames must be positive");
+        }
+        mMaxFrames = maxFrames;
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        add(frame.presentationTimestampUs(), frame.size(), frame.isKeyFrame());
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+    }
+
+    public synchronized void add(final long presentationTimestampUs, final int sizeBytes,
+            final boolean keyFrame) {
+        if (mSamples.size() >= mMaxFrames) {
+            mIgnored++;
+            return;
+        }
+        mSamples.add(new RateControlSimulator.Sample(presentationTimestampUs, sizeBytes));
+        mKeyFrames.add(keyFrame);
+    }
+
+    /**
+     * Add a trace, whose keyframes are unknown, they are counted as delta frames.
+     */
+    public synchronized void addAll(final List<RateControlSimulator.Sample> trace) {
+        for (int i = 0, n = trace.size(); i < n; i++) {
+            RateControlSimulator.Sample sample = trace.get(i);
+            add(sample.presentationTimestampUs, sample.sizeBytes, false);
+        }
+    }
+
+    public synchronized void reset() {
+        mSamples.clear();
+        mKeyFrames.clear();
+        mIgnored = 0;
+    }
+
+    public synchronized int count() {
+        return mSamples.size();
+    }
+
+    public synchronized int keyFrameCount() {
+        int count = 0;
+        for (int i = 0, n = mKeyFrames.size(); i < n; i++) {
+            if (mKeyFrames.get(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return frames ignored after the max number of frames is reached.
+     */
+    public synchronized long ignored() {
+        return mIgnored;
+    }
+
+    /**
+     * @param keyFrames whether to average keyframes or delta frames.
+     */
+    public synchronized int meanSize(final boolean keyFrames) {
+        long total = 0;
+        int count = 0;
+        for (int i = 0, n = mSamples.size(); i < n; i++) {
+            if (mKeyFrames.get(i) == keyFrames) {
+                total += mSamples.get(i).sizeBytes;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : (int) (total / count);
+    }
+
+    /**
+     * @param percentile of all frames, in [0, 100].
+     */
+    public synchronized int percentileSize(final double percentile) {
+        int n = mSamples.size();
+        if (n == 0) {
+            return 0;
+        }
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sizes[i] = mSamples.get(i).sizeBytes;
+        }
+        Arrays.sort(sizes);
+        int rank = (int) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+        return sizes[Math.max(1, rank) - 1];
+    }
+
+    public synchronized int averageBitrateBps() {
+        int n = mSamples.size();
+        if (n < 2) {
+            return 0;
+        }
+        long durationUs = mSamples.get(n - 1).presentationTimestampUs
+                          - mSamples.get(0).presentationTimestampUs;
+        if (durationUs <= 0) {
+            return 0;
+        }
+        long totalBytes = 0;
+        // the last frame is outside of the duration
+        for (int i = 0; i < n - 1; i++) {
+            totalBytes += mSamples.get(i).sizeBytes;
+        }
+        return (int) (totalBytes * 8 * WINDOW_US / durationUs);
+    }
+
+    /**
+     * @return max bits in any 1 second window, i.e. the peak bitrate a link must absorb.
+     */
+    public synchronized int peakWindowBitrateBps() {
+        long peakBytes = 0;
+        long windowBytes = 0;
+        int start = 0;
+        for (int i = 0, n = mSamples.size(); i < n; i++) {
+            RateControlSimulator.Sample sample = mSamples.get(i);
+            windowBytes += sample.sizeBytes;
+            while (sample.presentationTimestampUs - mSamples.get(start).presentationTimestampUs
+                   >= WINDOW_US) {
+                windowBytes -= mSamples.get(start).sizeBytes;
+                start++;
+            }
+            peakBytes = Math.max(peakBytes, windowBytes);
+        }
+        return (int) (peakBytes * 8);
+    }
+
+    /**
+     * @return {@link #peakWindowBitrateBps()} over {@link #averageBitrateBps()}, 1 for a perfectly
+     * flat stream, 0 if unknown.
+     */
+    public synchronized double burstiness() {
+        int average = averageBitrateBps();
+        return average == 0 ? 0 : (double) peakWindowBitrateBps() / average;
+    }
+
+    /**
+     * @return frames recorded, as a trace for {@link RateControlSimulator}.
+     */
+    public synchronized List<RateControlSimulator.Sample> samples() {
+        return new ArrayList<>(mSamples);
+    }
+
+    /**
+     * Write frames recorded in the format of {@link RateControlSimulator#readTrace}, keyframes are
+     * marked by a trailing {@code K}, which the reader ignores.
+     */
+    public void writeTrace(final Writer writer) throws IOException {
+        List<RateControlSimulator.Sample> samples;
+        List<Boolean> keyFrames;
+        synchronized (this) {
+            samples = new ArrayList<>(mSamples);
+            keyFrames = new ArrayList<>(mKeyFrames);
+        }
+        writer.write("# presentationTimestampUs sizeBytes\n");
+        for (int i = 0, n = samples.size(); i < n; i++) {
+            RateControlSimulator.Sample sample = samples.get(i);
+            writer.write(sample.presentationTimestampUs + " " + sample.sizeBytes
+                         + (keyFrames.get(i) ? " K\n" : "\n"));
+        }
+        writer.flush();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameSizeStats{frames=" + count() + ", keyFrames=" + keyFrameCount()
+               + ", meanKeyFrame=" + meanSize(true) + ", meanDeltaFrame=" + meanSize(false)
+               + ", p50=" + percentileSize(50) + ", p99=" + percentileSize(99)
+               + ", max=" + percentileSize(100) + ", averageBps=" + averageBitrateBps()
+               + ", peakWindowBps=" + peakWindowBitrateBps() + ", burstiness="
+               + String.format("%.2f", burstiness()) + "}";
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds H.264 NAL units in Annex-B (start code delimited) or AVCC (length prefixed) buffers, and
+ * converts between both layouts.
+ *
+ * Buffers are read with absolute gets between their position and limit, which are not changed,
+ * nothing is copied or allocated.
+ */
+public final class H264NalParser {
+    private H264NalParser() {
+        // no instance
+    }
+
+    /**
+     * Append the NAL units of an Annex-B {@code buffer} to {@code nalUnits}. Bytes before the
+     * first start code are skipped.
+     *
+     * @return number of NAL units found.
+     */
+    public static int parseAnnexB(final ByteBuffer buffer, final NalUnits nalUnits) {
+        int limit = buffer.limit();
+        int found = 0;
+        int nalStart = findStartCode(buffer, buffer.position(), limit);
+        while (nalStart >= 0) {
+            int nextStartCode = findStartCode(buffer, nalStart, limit);
+            int nalEnd = nextStartCode < 0 ? limit : nextStartCode - 3;
+            // a 4 byte start code, or trailing zero bytes, belong to no NAL unit
+            while (nalEnd > nalStart && buffer.get(nalEnd - 1) == 0) {
+                nalEnd--;
+            }
+            if (nalEnd > nalStart) {
+                add(buffer, nalStart, nalEnd - nalStart, nalUnits);
+                found++;
+            }
+            nalStart = nextStartCode;
+        }
+        return found;
+    }
+
+    /**
+     * Append the NAL units of an AVCC {@code buffer} to {@code nalUnits}.
+     *
+     * @param lengthSize size of the big endian length prefixes, 1, 2 or 4.
+     * @return number of NAL units found.
+     * @throws IllegalArgumentException if a length exceeds the buffer.
+     */
+    public static int parseAvcc(final ByteBuffer buffer, final int lengthSize,
+            final NalUnits nalUnits) {
+        if (lengthSize != 1 && lengthSize != 2 && lengthSize != 4) {
+            throw new IllegalArgumentException("bad length size " + lengthSize);
+        }
+        int limit = buffer.limit();
+        int offset = buffer.position();
+        int found = 0;
+        while (offset + lengthSize <= limit) {
+            int size = 0;
+            for (int i = 0; i < lengthSize; i++) {
+                size = (size << 8) | (buffer.get(offset + i) & 0xFF);
+            }
+            offset += lengthSize;
+            if (size < 0 || size > limit - offset) {
+                throw new IllegalArgumentException("NAL unit size " + size + " exceeds buffer");
+            }
+            if (size > 0) {
+                add(buffer, offset, size, nalUnits);
+                found++;
+            }
+            offset += size;
+        }
+        return found;
+    }
+
+    /**
+     * Convert an Annex-B {@code buffer} parsed into {@code nalUnits} to AVCC with 4 byte lengths
+     * in place, possible only if every NAL unit follows a 4 byte start code. Only for buffers
+     * owned by the caller, not views of an {@link EncodedFrame}, which are read only.
+     *
+     * @return false if not possible, {@code buffer} is unchanged then, use
+     * {@link NalUnits#writeAvcc} instead.
+     */
+    public static boolean annexBToAvccInPlace(final ByteBuffer buffer, final NalUnits nalUnits) {
+        for (int i = 0, n = nalUnits.count(); i < n; i++) {
+            int offset = nalUnits.offset(i);
+            if (nalUnits.buffer(i) != buffer || offset < 4 || buffer.get(offset - 4) != 0) {
+                return false;
+            }
+        }
+        for (int i = 0, n = nalUnits.count(); i < n; i++) {
+            buffer.putInt(nalUnits.offset(i) - 4, nalUnits.size(i));
+        }
+        return true;
+    }
+
+    /**
+     * Convert an AVCC {@code buffer} with 4 byte lengths, parsed into {@code nalUnits}, to Annex-B
+     * with 4 byte start codes in place.
+     */
+    public static void avccToAnnexBInPlace(final ByteBuffer buffer, final NalUnits nalUnits) {
+        for (int i = 0, n = nalUnits.count(); i < n; i++) {
+            if (nalUnits.buffer(i) == buffer) {
+                buffer.putInt(nalUnits.offset(i) - 4, 1);
+            }
+        }
+    }
+
+    /**
+     * @return offset after the first start code in [from, limit), or -1.
+     */
+    private static int findStartCode(final ByteBuffer buffer, final int from, final int limit) {
+        int i = from + 2;
+        while (i < limit) {
+            int b = buffer.get(i) & 0xFF;
+            if (b > 1) {
+                // neither 0 nor 1, no start code ends here or in the next 2 bytes
+                i += 3;
+            } else if (b == 1 && buffer.get(i - 1) == 0 && buffer.get(i - 2) == 0) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static void add(final ByteBuffer buffer, final int offset, final int size,
+            final NalUnits nalUnits) {
+        int type = buffer.get(offset) & 0x1F;
+        int sliceType = NalUnits.SLICE_TYPE_UNKNOWN;
+        if (type == NalUnits.TYPE_SLICE || type == NalUnits.TYPE_IDR) {
+            sliceType = readSliceType(buffer, offset + 1, offset + size);
+        }
+        nalUnits.add(buffer, offset, size, type, sliceType);
+    }
+
+    /**
+     * Reads {@code first_mb_in_slice} and {@code slice_type} of a slice header, both ue(v), from
+     * its first 8 RBSP bytes, i.e. without emulation prevention bytes, which hold them unless the
+     * frame has more than 2^27 macroblocks.
+     */
+    private static int readSliceType(final ByteBuffer buffer, final int start, final int end) {
+        long bits = 0;
+        int bitCount = 0;
+        int zeros = 0;
+        for (int i = start; i < end && bitCount < 64; i++) {
+            int b = buffer.get(i) & 0xFF;
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+            bits = (bits << 8) | b;
+            bitCount += 8;
+        }
+        if (bitCount == 0) {
+            return NalUnits.SLICE_TYPE_UNKNOWN;
+        }
+        // left align, so the next bit to read is always the most significant one
+        bits <<= 64 - bitCount;
+        int firstMbZeros = Long.numberOfLeadingZeros(bits);
+        int firstMbBits = 2 * firstMbZeros + 1;
+        if (firstMbBits >= bitCount) {
+            return NalUnits.SLICE_TYPE_UNKNOWN;
+        }
+        bits <<= firstMbBits;
+        int sliceTypeZeros = Long.numberOfLeadingZeros(bits);
+        if (firstMbBits + 2 * sliceTypeZeros + 1 > bitCount) {
+            return NalUnits.SLICE_TYPE_UNKNOWN;
+        }
+        long sliceType = (bits >>> (63 - 2 * sliceTypeZeros)) - 1;
+        return (int) (sliceType % 5);
+    }
+}
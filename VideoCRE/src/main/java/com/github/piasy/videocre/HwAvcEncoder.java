@@ -7,7 +7,9 @@ import android.os.HandlerThread;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.webrtc.EglBase;
+import org.webrtc.Logging;
 import org.webrtc.MediaCodecVideoEncoder;
 import org.webrtc.VideoRenderer;
 
@@ -15,69 +17,351 @@ import org.webrtc.VideoRenderer;
  * Created by Piasy{github.com/Piasy} on 21/07/2017.
  */
 
-public class HwAvcEncoder implements VideoRenderer.Callbacks, MediaCodecCallback {
+public class HwAvcEncoder implements VideoRenderer.Callbacks, YuvFrame.Sink, MediaCodecCallback,
+        FrameQueue.FrameEncoder<VideoRenderer.I420Frame> {
+    private static final String TAG = "HwAvcEncoder";
 
     private final HandlerThread mMediaCodecThread;
     private final Handler mMediaCodecHandler;
-    private final MediaCodecVideoEncoder mVideoEncoder;
+    private final VideoEncoder mVideoEncoder;
     private final VideoConfig mVideoConfig;
-    private final List<MediaCodecCallback> mMediaCodecCallbacks;
+    private final FrameQueue<VideoRenderer.I420Frame> mFrameQueue;
+    private final FrameQueue<YuvFrame> mYuvFrameQueue;
+    private final KeyFrameRequester mKeyFrameRequester;
+    private final FrameDecimator mFrameDecimator;
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+    private final Object mCallbacksLock = new Object();
+    private volatile MediaCodecVideoEncoder.VideoCodecType mCodecType;
+    private volatile LatencyTracker mLatencyTracker;
+    private final Object mRatesLock = new Object();
+    private final Runnable mApplyRatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingRates();
+        }
+    };
+
+    // guarded by mRatesLock
+    private int mPendingBitrateKbps;
+    private int mPendingFps;
+    private boolean mRatesUpdatePosted;
+
+    private volatile List<MediaCodecCallback> mMediaCodecCallbacks;
+    // guarded by mCallbacksLock, replayed to callbacks set after the format change
+    private MediaCodec mMediaCodec;
+    private MediaFormat mOutputFormat;
 
     public HwAvcEncoder(final VideoConfig videoConfig, final MediaCodecCallback... callbacks) {
+        this(videoConfig, new MediaCodecVideoEncoder(), callbacks);
+    }
+
+    /**
+     * @param videoEncoder e.g. a {@link LoopbackVideoEncoder} to run without a HW codec.
+     * @param callbacks called one after another on the codec output thread, slow ones should be
+     * behind a {@link SinkDispatcher}.
+     */
+    public HwAvcEncoder(final VideoConfig videoConfig, final VideoEncoder videoEncoder,
+            final MediaCodecCallback... callbacks) {
         mVideoConfig = videoConfig;
         mMediaCodecThread = new HandlerThread("HwAvcEncoderThread");
         mMediaCodecThread.start();
         mMediaCodecHandler = new Handler(mMediaCodecThread.getLooper());
-        mVideoEncoder = new MediaCodecVideoEncoder();
+        mVideoEncoder = videoEncoder;
         mMediaCodecCallbacks = Arrays.asList(callbacks);
+        mKeyFrameRequester = new KeyFrameRequester(videoConfig.minKeyFrameRequestIntervalMs());
+        mFrameDecimator = new FrameDecimator(videoConfig.fps());
+        mFrameQueue = new FrameQueue<>(mMediaCodecHandler, videoConfig.inputQueueCapacity(),
+                videoConfig.inputDropPolicy(), this);
+        mYuvFrameQueue = new FrameQueue<>(mMediaCodecHandler, videoConfig.inputQueueCapacity(),
+                videoConfig.inputDropPolicy(), new FrameQueue.FrameEncoder<YuvFrame>() {
+                    @Override
+                    public void encode(final YuvFrame frame) {
+                        markLatency(LatencyTracker.Stage.ENCODER_INPUT,
+                                TimeUnit.NANOSECONDS.toMicros(frame.timestampNs()));
+                        boolean keyFrame = mKeyFrameRequester.poll();
+                        if (!mVideoEncoder.encodeYuvFrame(keyFrame, frame) && keyFrame) {
+                            mKeyFrameRequester.onForcedFrameFailed();
+                        }
+                        frame.release();
+                    }
+
+                    @Override
+                    public void onDropped(final YuvFrame frame) {
+                        frame.release();
+                    }
+                });
+    }
+
+    /**
+     * Replace the bitrate adjustment, must be called before {@link #start(EglBase)}.
+     */
+    public void setRateControllerFactory(final RateController.Factory factory) {
+        mVideoEncoder.setRateControllerFactory(factory);
     }
 
+    /**
+     * Mark frames passing this encoder at {@link LatencyTracker.Stage#ENCODER_INPUT} and
+     * {@link LatencyTracker.Stage#ENCODER_OUTPUT}.
+     */
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    public VideoConfig getVideoConfig() {
+        return mVideoConfig;
+    }
+
+    /**
+     * Replace the callbacks, e.g. when handed out by {@link HwAvcEncoderPool}. The output format
+     * is replayed if it's already known.
+     */
+    public void setCallbacks(final MediaCodecCallback... callbacks) {
+        synchronized (mCallbacksLock) {
+            mMediaCodecCallbacks = Arrays.asList(callbacks);
+            if (mOutputFormat != null) {
+                for (MediaCodecCallback callback : callbacks) {
+                    callback.onOutputFormatChanged(mMediaCodec, mOutputFormat);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create and start the codec, only the first call takes effect.
+     *
+     * @param eglBase encode texture frames from {@link #renderFrame} with a context shared with
+     * {@code eglBase}, or null to encode byte frames from {@link #onYuvFrame}, whose size must be
+     * the output size.
+     */
     public void start(final EglBase eglBase) {
+        if (!mStarted.compareAndSet(false, true)) {
+            return;
+        }
         mMediaCodecHandler.post(new Runnable() {
             @Override
             public void run() {
-                mVideoEncoder.initEncode(MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H264,
-                        MediaCodecVideoEncoder.H264Profile.CONSTRAINED_BASELINE.getValue(),
-                        mVideoConfig.outputWidth(), mVideoConfig.outputHeight(),
-                        mVideoConfig.outputBitrate(), mVideoConfig.fps(),
-                        eglBase.getEglBaseContext(), HwAvcEncoder.this);
+                mVideoEncoder.setPrependCodecConfig(mVideoConfig.prependCodecConfig());
+                mVideoEncoder.setEncoderMode(mVideoConfig.encoderMode());
+                mCodecType = CodecSelector.select(mVideoConfig, eglBase != null, mVideoEncoder,
+                        new CodecSelector.Initializer() {
+                            @Override
+                            public boolean init(
+                                    final MediaCodecVideoEncoder.VideoCodecType type) {
+                                return mVideoEncoder.initEncode(type,
+                                        mVideoConfig.profile().getValue(),
+                                        mVideoConfig.outputWidth(), mVideoConfig.outputHeight(),
+                                        mVideoConfig.outputBitrate(), mVideoConfig.fps(),
+                                        eglBase == null ? null : eglBase.getEglBaseContext(),
+                                        HwAvcEncoder.this);
+                            }
+                        });
             }
         });
     }
 
     @Override
     public void renderFrame(final VideoRenderer.I420Frame frame) {
-        mMediaCodecHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                mVideoEncoder.encodeTexture(false, frame.textureId, frame.samplingMatrix,
-                        TimeUnit.NANOSECONDS.toMicros(frame.timestamp));
+        if (mFrameDecimator.shouldKeep(frame.timestamp)) {
+            mFrameQueue.offer(frame);
+        }
+    }
+
+    @Override
+    public void encode(final VideoRenderer.I420Frame frame) {
+        long presentationTimestampUs = TimeUnit.NANOSECONDS.toMicros(frame.timestamp);
+        markLatency(LatencyTracker.Stage.ENCODER_INPUT, presentationTimestampUs);
+        boolean keyFrame = mKeyFrameRequester.poll();
+        if (!mVideoEncoder.encodeTexture(keyFrame, frame.textureId, frame.samplingMatrix,
+                presentationTimestampUs) && keyFrame) {
+            mKeyFrameRequester.onForcedFrameFailed();
+        }
+    }
+
+    @Override
+    public void onDropped(final VideoRenderer.I420Frame frame) {
+    }
+
+    @Override
+    public void onYuvFrame(final YuvFrame frame) {
+        if (!mFrameDecimator.shouldKeep(frame.timestampNs())) {
+            return;
+        }
+        frame.retain();
+        mYuvFrameQueue.offer(frame);
+    }
+
+    /**
+     * Notified when frames are dropped because the encoder falls behind, e.g. a
+     * {@link VideoSink}.
+     */
+    public void setBackpressureListener(final BackpressureListener listener) {
+        mFrameQueue.setBackpressureListener(listener);
+        mYuvFrameQueue.setBackpressureListener(listener);
+    }
+
+    /**
+     * @return counters of frames kept and dropped to stay within {@link VideoConfig#fps()}.
+     */
+    public FrameDecimator getFrameDecimator() {
+        return mFrameDecimator;
+    }
+
+    /**
+     * @return counters of texture frames queued, dropped and encoded.
+     */
+    public FrameQueue<VideoRenderer.I420Frame> getFrameQueue() {
+        return mFrameQueue;
+    }
+
+    /**
+     * @return counters of byte frames queued, dropped and encoded.
+     */
+    public FrameQueue<YuvFrame> getYuvFrameQueue() {
+        return mYuvFrameQueue;
+    }
+
+    /**
+     * @return codec in use, selected from {@link VideoConfig#codec()} and
+     * {@link VideoConfig#fallbackCodecs()}, null before started or if no codec is available.
+     */
+    public MediaCodecVideoEncoder.VideoCodecType getCodecType() {
+        return mCodecType;
+    }
+
+    /**
+     * Ask for a keyframe soon, e.g. for a viewer joining the stream, thread safe. Requests are
+     * coalesced and rate limited by {@link VideoConfig#minKeyFrameRequestIntervalMs()}.
+     */
+    public void requestKeyFrame() {
+        mKeyFrameRequester.request();
+    }
+
+    /**
+     * @return counters of keyframes requested, coalesced and honored.
+     */
+    public KeyFrameRequester getKeyFrameRequester() {
+        return mKeyFrameRequester;
+    }
+
+    /**
+     * @return GOP and rate control mode accepted by the codec, which may differ from the one
+     * requested by {@link VideoConfig}, null before started.
+     */
+    public MediaCodecVideoEncoder.EncoderMode getAcceptedEncoderMode() {
+        return mVideoEncoder.getAcceptedEncoderMode();
+    }
+
+    /**
+     * Change bitrate and framerate while encoding, thread safe. Requests arriving before the
+     * previous one is applied are coalesced, only the latest one is applied.
+     *
+     * @see #getAppliedBitrateKbps()
+     */
+    public void setRates(final int kbps, final int fps) {
+        synchronized (mRatesLock) {
+            mPendingBitrateKbps = kbps;
+            mPendingFps = fps;
+            if (mRatesUpdatePosted) {
+                return;
             }
-        });
+            mRatesUpdatePosted = true;
+        }
+        mMediaCodecHandler.post(mApplyRatesRunnable);
+    }
+
+    /**
+     * @return bitrate actually applied to the codec, after the bitrate adjustment required by
+     * some codecs, may differ from the requested bitrate.
+     */
+    public int getAppliedBitrateKbps() {
+        return mVideoEncoder.getCodecBitrateKbps();
+    }
+
+    private void applyPendingRates() {
+        int kbps;
+        int fps;
+        synchronized (mRatesLock) {
+            kbps = mPendingBitrateKbps;
+            fps = mPendingFps;
+            mRatesUpdatePosted = false;
+        }
+        boolean success = mVideoEncoder.setRates(kbps, fps);
+        Logging.d(TAG, "setRates " + kbps + " kbps " + fps + " fps, success " + success
+                       + ", applied " + mVideoEncoder.getCodecBitrateKbps() + " kbps");
     }
 
     public void destroy() {
+        destroy(null);
+    }
+
+    /**
+     * @param listener notified on the codec thread once the codec is released.
+     */
+    void destroy(final ReleaseListener listener) {
+        mFrameQueue.clear();
+        mYuvFrameQueue.clear();
         mMediaCodecHandler.post(new Runnable() {
             @Override
             public void run() {
-                mVideoEncoder.release();
+                boolean success = true;
+                try {
+                    mVideoEncoder.release();
+                } catch (RuntimeException e) {
+                    // release() throws when the codec hangs in stop() or release()
+                    Logging.e(TAG, "release fail", e);
+                    success = false;
+                }
+                if (listener != null) {
+                    listener.onReleased(success);
+                }
                 mMediaCodecThread.quit();
             }
         });
     }
 
+    /**
+     * Run {@code task} on the codec thread, after the tasks posted before it.
+     */
+    void runOnCodecThread(final Runnable task) {
+        mMediaCodecHandler.post(task);
+    }
+
     @Override
-    public void onEncodedFrame(final MediaCodecVideoEncoder.OutputBufferInfo frame,
-            final MediaCodec.BufferInfo bufferInfo) {
-        for (int i = 0, n = mMediaCodecCallbacks.size(); i < n; i++) {
-            mMediaCodecCallbacks.get(i).onEncodedFrame(frame, bufferInfo);
+    public void onEncodedFrame(final EncodedFrame frame) {
+        markLatency(LatencyTracker.Stage.ENCODER_OUTPUT, frame.presentationTimestampUs());
+        if (frame.isKeyFrame()) {
+            mKeyFrameRequester.onKeyFrameEncoded();
+        }
+        List<MediaCodecCallback> callbacks = mMediaCodecCallbacks;
+        for (int i = 0, n = callbacks.size(); i < n; i++) {
+            callbacks.get(i).onEncodedFrame(frame);
         }
     }
 
     @Override
     public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
-        for (int i = 0, n = mMediaCodecCallbacks.size(); i < n; i++) {
-            mMediaCodecCallbacks.get(i).onOutputFormatChanged(codec, format);
+        synchronized (mCallbacksLock) {
+            mMediaCodec = codec;
+            mOutputFormat = format;
+            List<MediaCodecCallback> callbacks = mMediaCodecCallbacks;
+            for (int i = 0, n = callbacks.size(); i < n; i++) {
+                callbacks.get(i).onOutputFormatChanged(codec, format);
+            }
+        }
+    }
+
+    private void markLatency(final LatencyTracker.Stage stage,
+            final long presentationTimestampUs) {
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(stage, presentationTimestampUs);
         }
     }
+
+    interface ReleaseListener {
+        /**
+         * @param success false if the codec hung, it shouldn't be created again.
+         */
+        void onReleased(boolean success);
+    }
 }
@@ -0,0 +1,173 @@
+package com.github.piasy.videocre;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.EglBase;
+import org.webrtc.Logging;
+import org.webrtc.ThreadUtils;
+
+/**
+ * Keeps {@link HwAvcEncoder}s configured and started ahead of time, so recording could begin
+ * without waiting for codec creation and EGL setup.
+ *
+ * Encoders are recycled by releasing them and pre-warming a fresh one for the same config, codecs
+ * are not reused after they have encoded frames. If a codec release hangs, see
+ * {@link org.webrtc.MediaCodecVideoEncoder#release()}, pre-warming stops, since creating more
+ * codecs on such devices usually fails or hangs too.
+ */
+public class HwAvcEncoderPool {
+    private static final String TAG = "HwAvcEncoderPool";
+
+    private final EglBase mEglBase;
+    private final List<HwAvcEncoder> mIdleEncoders = new ArrayList<>();
+
+    // guarded by this
+    private boolean mDestroyed;
+    private boolean mCodecHung;
+    private int mWarmAcquires;
+    private int mColdAcquires;
+    private long mAcquireTimeSumMs;
+    private long mLastAcquireTimeMs = -1;
+
+    public HwAvcEncoderPool(final EglBase eglBase) {
+        mEglBase = eglBase;
+    }
+
+    /**
+     * Create and start an encoder for {@code config}, to be handed out by {@link #acquire}.
+     */
+    public synchronized void prewarm(final VideoConfig config) {
+        if (mDestroyed || mCodecHung) {
+            return;
+        }
+        HwAvcEncoder encoder = new HwAvcEncoder(config);
+        encoder.start(mEglBase);
+        mIdleEncoders.add(encoder);
+    }
+
+    /**
+     * Blocks the caller until the encoder is usable: waits for a pre-warmed codec to finish its
+     * init, or creates and starts a new encoder if none is available, which could take hundreds
+     * of ms on low-end devices. Don't call it on the UI thread.
+     *
+     * @return a started encoder for {@code config}, a pre-warmed one if available and its codec
+     * initialized, otherwise a new one.
+     */
+    public HwAvcEncoder acquire(final VideoConfig config, final MediaCodecCallback... callbacks) {
+        final long startNs = System.nanoTime();
+        HwAvcEncoder encoder;
+        while ((encoder = takeIdle(config)) != null && !isInitialized(encoder)) {
+            Logging.w(TAG, "pre-warmed encoder failed to init, discard it");
+            encoder.destroy();
+        }
+        final boolean warm = encoder != null;
+        if (!warm) {
+            encoder = new HwAvcEncoder(config);
+            encoder.start(mEglBase);
+        }
+        encoder.setCallbacks(callbacks);
+        // runs after the codec is initialized, i.e. the encoder is ready for frames
+        encoder.runOnCodecThread(new Runnable() {
+            @Override
+            public void run() {
+                onAcquired(warm,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+            }
+        });
+        return encoder;
+    }
+
+    /**
+     * Release {@code encoder} and pre-warm a new one for the same config.
+     */
+    public void recycle(final HwAvcEncoder encoder) {
+        final VideoConfig config = encoder.getVideoConfig();
+        encoder.destroy(new HwAvcEncoder.ReleaseListener() {
+            @Override
+            public void onReleased(final boolean success) {
+                if (!success) {
+                    synchronized (HwAvcEncoderPool.this) {
+                        mCodecHung = true;
+                    }
+                    Logging.e(TAG, "codec release hung, stop pre-warming");
+                    return;
+                }
+                prewarm(config);
+            }
+        });
+    }
+
+    /**
+     * Release idle encoders, acquired ones should be destroyed or recycled by their users.
+     */
+    public void destroy() {
+        List<HwAvcEncoder> encoders;
+        synchronized (this) {
+            mDestroyed = true;
+            encoders = new ArrayList<>(mIdleEncoders);
+            mIdleEncoders.clear();
+        }
+        for (int i = 0, n = encoders.size(); i < n; i++) {
+            encoders.get(i).destroy();
+        }
+    }
+
+    /**
+     * @return ms from the last {@link #acquire} call till its encoder was ready, -1 if none.
+     */
+    public synchronized long getLastAcquireTimeMs() {
+        return mLastAcquireTimeMs;
+    }
+
+    public synchronized long getAverageAcquireTimeMs() {
+        int acquires = mWarmAcquires + mColdAcquires;
+        return acquires == 0 ? -1 : mAcquireTimeSumMs / acquires;
+    }
+
+    public synchronized int getWarmAcquires() {
+        return mWarmAcquires;
+    }
+
+    public synchronized int getColdAcquires() {
+        return mColdAcquires;
+    }
+
+    private synchronized HwAvcEncoder takeIdle(final VideoConfig config) {
+        for (int i = 0, n = mIdleEncoders.size(); i < n; i++) {
+            if (mIdleEncoders.get(i).getVideoConfig().equals(config)) {
+                return mIdleEncoders.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for the codec init of {@code encoder} on its codec thread, usually done long ago.
+     *
+     * @return whether a codec is initialized.
+     */
+    private static boolean isInitialized(final HwAvcEncoder encoder) {
+        final CountDownLatch initDone = new CountDownLatch(1);
+        encoder.runOnCodecThread(new Runnable() {
+            @Override
+            public void run() {
+                initDone.countDown();
+            }
+        });
+        ThreadUtils.awaitUninterruptibly(initDone);
+        return encoder.getCodecType() != null;
+    }
+
+    private synchronized void onAcquired(final boolean warm, final long timeMs) {
+        if (warm) {
+            mWarmAcquires++;
+        } else {
+            mColdAcquires++;
+        }
+        mAcquireTimeSumMs += timeMs;
+        mLastAcquireTimeMs = timeMs;
+        Logging.d(TAG, "acquire " + (warm ? "warm" : "cold") + " encoder took " + timeMs + " ms");
+    }
+}
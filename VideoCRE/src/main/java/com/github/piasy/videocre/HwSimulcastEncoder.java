@@ -0,0 +1,197 @@
+package com.github.piasy.videocre;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoEncoder;
+import org.webrtc.VideoRenderer;
+
+/**
+ * Encodes the same video into several layers, e.g. 448x800 and 720x1280.
+ *
+ * Unlike one {@link HwAvcEncoder} per layer, all layers share one thread, one EGL context and
+ * one {@link GlRectDrawer}, each frame is drawn into the input surfaces of all layers in a single
+ * pass, without EGL context switches.
+ */
+public class HwSimulcastEncoder implements VideoRenderer.Callbacks,
+        FrameQueue.FrameEncoder<VideoRenderer.I420Frame> {
+    private static final String TAG = "HwSimulcastEncoder";
+
+    private final HandlerThread mMediaCodecThread;
+    private final Handler mMediaCodecHandler;
+    private final List<VideoConfig> mVideoConfigs;
+    private final List<MediaCodecCallback> mMediaCodecCallbacks;
+    private final List<Layer> mLayers;
+    private final FrameQueue<VideoRenderer.I420Frame> mFrameQueue;
+
+    private EglBase mEglBase;
+    private GlRectDrawer mDrawer;
+    private volatile LatencyTracker mLatencyTracker;
+
+    /**
+     * @param callbacks one callback for each layer in {@code videoConfigs}, called on the codec
+     * output thread of its layer, e.g. a {@link SinkDispatcher} to feed several or slow sinks.
+     * The input queue settings of the first layer apply to all layers.
+     */
+    public HwSimulcastEncoder(final List<VideoConfig> videoConfigs,
+            final List<? extends MediaCodecCallback> callbacks) {
+        if (videoConfigs.size() != callbacks.size()) {
+            throw new IllegalArgumentException("need one callback for each layer");
+        }
+        mVideoConfigs = new ArrayList<>(videoConfigs);
+        mMediaCodecCallbacks = new ArrayList<>(callbacks);
+        mMediaCodecThread = new HandlerThread("HwSimulcastEncoderThread");
+        mMediaCodecThread.start();
+        mMediaCodecHandler = new Handler(mMediaCodecThread.getLooper());
+        mLayers = new ArrayList<>(videoConfigs.size());
+        VideoConfig config = videoConfigs.get(0);
+        mFrameQueue = new FrameQueue<>(mMediaCodecHandler, config.inputQueueCapacity(),
+                config.inputDropPolicy(), this);
+    }
+
+    /**
+     * Mark frames passing this encoder at {@link LatencyTracker.Stage#ENCODER_INPUT}.
+     */
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    public void start(final EglBase eglBase) {
+        mMediaCodecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEglBase = EglBase.create(eglBase.getEglBaseContext(),
+                        EglBase.CONFIG_RECORDABLE);
+                for (int i = 0, n = mVideoConfigs.size(); i < n; i++) {
+                    final VideoConfig config = mVideoConfigs.get(i);
+                    final MediaCodecCallback callback = mMediaCodecCallbacks.get(i);
+                    final MediaCodecVideoEncoder encoder = new MediaCodecVideoEncoder();
+                    encoder.setPrependCodecConfig(config.prependCodecConfig());
+                    encoder.setEncoderMode(config.encoderMode());
+                    MediaCodecVideoEncoder.VideoCodecType type = CodecSelector.select(config,
+                            true, encoder, new CodecSelector.Initializer() {
+                                @Override
+                                public boolean init(
+                                        final MediaCodecVideoEncoder.VideoCodecType type) {
+                                    return encoder.initEncodeWithInputSurface(type,
+                                            config.profile().getValue(), config.outputWidth(),
+                                            config.outputHeight(), config.outputBitrate(),
+                                            config.fps(), callback);
+                                }
+                            });
+                    if (type == null) {
+                        Logging.e(TAG, "init layer " + i + " fail");
+                        continue;
+                    }
+                    mLayers.add(new Layer(config, encoder,
+                            mEglBase.createWindowSurface(encoder.getInputSurface())));
+                }
+                if (!mLayers.isEmpty()) {
+                    mLayers.get(0).mInputSurface.makeCurrent();
+                    mDrawer = new GlRectDrawer();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void renderFrame(final VideoRenderer.I420Frame frame) {
+        mFrameQueue.offer(frame);
+    }
+
+    @Override
+    public void encode(final VideoRenderer.I420Frame frame) {
+        if (mDrawer == null) {
+            return;
+        }
+        long presentationTimestampUs = TimeUnit.NANOSECONDS.toMicros(frame.timestamp);
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(LatencyTracker.Stage.ENCODER_INPUT, presentationTimestampUs);
+        }
+        for (int i = 0, n = mLayers.size(); i < n; i++) {
+            Layer layer = mLayers.get(i);
+            if (!layer.mFrameDecimator.shouldKeep(frame.timestamp)) {
+                continue;
+            }
+            int width = layer.mVideoConfig.outputWidth();
+            int height = layer.mVideoConfig.outputHeight();
+            layer.mVideoEncoder.onInputSurfaceFrame(false, presentationTimestampUs);
+            layer.mInputSurface.makeCurrent();
+            // glClear() is a workaround for bug webrtc:5147, see encodeTexture().
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mDrawer.drawOes(frame.textureId, frame.samplingMatrix, width, height, 0, 0,
+                    width, height);
+            layer.mInputSurface.swapBuffers(frame.timestamp);
+        }
+    }
+
+    @Override
+    public void onDropped(final VideoRenderer.I420Frame frame) {
+    }
+
+    /**
+     * @see HwAvcEncoder#setBackpressureListener(BackpressureListener)
+     */
+    public void setBackpressureListener(final BackpressureListener listener) {
+        mFrameQueue.setBackpressureListener(listener);
+    }
+
+    /**
+     * @return counters of frames queued, dropped and encoded, shared by all layers.
+     */
+    public FrameQueue<VideoRenderer.I420Frame> getFrameQueue() {
+        return mFrameQueue;
+    }
+
+    public void destroy() {
+        mFrameQueue.clear();
+        mMediaCodecHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDrawer != null) {
+                    mDrawer.release();
+                    mDrawer = null;
+                }
+                for (int i = 0, n = mLayers.size(); i < n; i++) {
+                    Layer layer = mLayers.get(i);
+                    // EGL surface goes before the codec input surface it's created from.
+                    layer.mInputSurface.release();
+                    try {
+                        layer.mVideoEncoder.release();
+                    } catch (RuntimeException e) {
+                        Logging.e(TAG, "release layer " + i + " fail", e);
+                    }
+                }
+                mLayers.clear();
+                if (mEglBase != null) {
+                    mEglBase.release();
+                    mEglBase = null;
+                }
+                mMediaCodecThread.quit();
+            }
+        });
+    }
+
+    private static class Layer {
+        private final VideoConfig mVideoConfig;
+        private final MediaCodecVideoEncoder mVideoEncoder;
+        private final EglBase.WindowSurface mInputSurface;
+        // each layer encodes at most its own fps
+        private final FrameDecimator mFrameDecimator;
+
+        Layer(final VideoConfig videoConfig, final MediaCodecVideoEncoder videoEncoder,
+                final EglBase.WindowSurface inputSurface) {
+            mVideoConfig = videoConfig;
+            mVideoEncoder = videoEncoder;
+            mInputSurface = inputSurface;
+            mFrameDecimator = new FrameDecimator(videoConfig.fps());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.piasy.videocre;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses keyframe requests, e.g. from viewers joining a stream, into as few forced keyframes
+ * as possible.
+ *
+ * Requests arriving while one is pending are coalesced into it. A pending request is honored by
+ * the next frame encoded at least the min interval after the previous forced keyframe, so a storm
+ * of requests forces at most one keyframe per interval; it's also satisfied by a keyframe the
+ * codec produces by itself in the meantime. Thread safe.
+ */
+public class KeyFrameRequester {
+    private final long mMinIntervalMs;
+
+    // guarded by this
+    private boolean mPending;
+    private long mLastForcedMs = -1;
+    private long mPreviousForcedMs = -1;
+    private long mRequested;
+    private long mCoalesced;
+    private long mHonored;
+
+    /**
+     * @param minIntervalMs min time between forced keyframes, 0 to force them on every request.
+     */
+    public KeyFrameRequester(final long minIntervalMs) {
+        if (minIntervalMs < 0) {
+            throw new IllegalArgumentException("minIntervalMs must not be negative");
+        }
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    public synchronized void request() {
+        mRequested++;
+        if (mPending) {
+            mCoalesced++;
+        } else {
+            mPending = true;
+        }
+    }
+
+    /**
+     * Called before encoding each frame.
+     *
+     * @return whether to force a keyframe for this frame.
+     */
+    public synchronized boolean poll() {
+        if (!mPending) {
+            return false;
+        }
+        long nowMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if (mLastForcedMs >= 0 && nowMs - mLastForcedMs < mMinIntervalMs) {
+            return false;
+        }
+        mPending = false;
+        mPreviousForcedMs = mLastForcedMs;
+        mLastForcedMs = nowMs;
+        mHonored++;
+        return true;
+    }
+
+    /**
+     * Called when the frame {@link #poll()} forced a keyframe for wasn't encoded, the request is
+     * pending again, without waiting for the min interval.
+     */
+    public synchronized void onForcedFrameFailed() {
+        mHonored--;
+        mLastForcedMs = mPreviousForcedMs;
+        if (mPending) {
+            // a request arrived after the poll, the failed one joins it
+            mCoalesced++;
+        } else {
+            mPending = true;
+        }
+    }
+
+    /**
+     * Called for each keyframe output, a pending request is satisfied by it.
+     */
+    public synchronized void onKeyFrameEncoded() {
+        if (mPending) {
+            mPending = false;
+            mCoalesced++;
+        }
+    }
+
+    /**
+     * @return number of {@link #request()} calls.
+     */
+    public synchronized long requested() {
+        return mRequested;
+    }
+
+    /**
+     * @return requests satisfied without a keyframe of their own, because another request was
+     * pending, or the codec produced a keyframe by itself.
+     */
+    public synchronized long coalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return keyframes forced.
+     */
+    public synchronized long honored() {
+        return mHonored;
+    }
+
+    public synchronized boolean isPending() {
+        return mPending;
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.piasy.videocre;
+
+/**
+ * Histogram of latencies in microseconds, for percentiles, in pure Java.
+ *
+ * Values below 64 us are counted exactly, larger ones in 32 buckets per power of two, i.e. with
+ * about 3% precision, up to hours. Not thread safe.
+ */
+public final class LatencyHistogram {
+    private static final int EXACT_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^6 (64) ~ 2^40 us
+    private static final int OCTAVES = 40 - 6;
+
+    private final long[] mCounts = new long[EXACT_BUCKETS + OCTAVES * SUB_BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public void add(final long valueUs) {
+        long value = Math.max(0, valueUs);
+        mCounts[bucketOf(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public void addAll(final LatencyHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mCount += other.mCount;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public long count() {
+        return mCount;
+    }
+
+    public long meanUs() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    public long minUs() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public long maxUs() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile in [0, 100].
+     * @return the upper bound of the bucket holding the percentile, capped by the max value.
+     */
+    public long percentileUs(final double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                // the last bucket also holds all larger values, it has no upper bound
+                return i == mCounts.length - 1 ? mMax : Math.min(upperBoundOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < EXACT_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int octave = exponent - 6;
+        if (octave >= OCTAVES) {
+            return EXACT_BUCKETS + OCTAVES * SUB_BUCKETS - 1;
+        }
+        int sub = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT_BUCKETS + octave * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < EXACT_BUCKETS) {
+            return bucket;
+        }
+        int octave = (bucket - EXACT_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - EXACT_BUCKETS) % SUB_BUCKETS;
+        int shift = octave + 6 - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.piasy.videocre;
+
+import android.os.Handler;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.Logging;
+
+/**
+ * Traces frames through the pipeline, from capture to muxing, keyed by presentation timestamp.
+ *
+ * Each pipeline component given this tracker marks the frames passing it at its {@link Stage}.
+ * When a frame is muxed, the time spent reaching each stage from the previous marked one, and the
+ * total time since capture, are added to percentile histograms. The capture time is the frame
+ * timestamp itself, which is assumed to be based on {@link System#nanoTime()} like SurfaceTexture
+ * timestamps. Latencies which are negative or longer than 10 seconds, i.e. of other clocks, are
+ * discarded.
+ *
+ * One tracker per output stream: if several streams mux the same frame, only the first one is
+ * counted. Thread safe.
+ */
+public class LatencyTracker {
+    public enum Stage {
+        /** Frame timestamp, not marked. */
+        CAPTURED,
+        /** {@link VideoSink} received the frame from the capturer. */
+        SINK,
+        /** The frame is handed to the codec, on the codec thread. */
+        ENCODER_INPUT,
+        /** The codec delivered the encoded frame. */
+        ENCODER_OUTPUT,
+        /** The encoded frame is written to the muxer. */
+        MUXED,
+    }
+
+    private static final String TAG = "LatencyTracker";
+    private static final int TRACKED_FRAMES = 64;
+    private static final long MAX_LATENCY_US = TimeUnit.SECONDS.toMicros(10);
+    private static final int STAGES = Stage.values().length;
+    private static final double[] LOGGED_PERCENTILES = { 50, 90, 99 };
+
+    // ring of in-flight frames, guarded by this
+    private final long[] mTimestampsUs = new long[TRACKED_FRAMES];
+    private final long[][] mStageTimesUs = new long[TRACKED_FRAMES][STAGES];
+    private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[STAGES];
+    private final LatencyHistogram mTotalHistogram = new LatencyHistogram();
+    private int mNextSlot;
+    private long mDiscarded;
+
+    private Handler mLogHandler;
+    private long mLogIntervalMs;
+    private final Runnable mLogStatisticsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            logStatistics();
+            synchronized (LatencyTracker.this) {
+                if (mLogHandler != null) {
+                    mLogHandler.postDelayed(mLogStatisticsRunnable, mLogIntervalMs);
+                }
+            }
+        }
+    };
+
+    public LatencyTracker() {
+        for (int i = 0; i < STAGES; i++) {
+            mStageHistograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < TRACKED_FRAMES; i++) {
+            mTimestampsUs[i] = -1;
+        }
+    }
+
+    /**
+     * Record that the frame of {@code presentationTimestampUs} reaches {@code stage} now.
+     */
+    public synchronized void mark(final Stage stage, final long presentationTimestampUs) {
+        if (stage == Stage.CAPTURED) {
+            return;
+        }
+        long nowUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+        int slot = find(presentationTimestampUs);
+        if (slot < 0) {
+            if (stage == Stage.MUXED) {
+                // already counted, e.g. by another layer
+                return;
+            }
+            // the oldest frame is overwritten, it's dropped or stuck
+            slot = mNextSlot;
+            mNextSlot = (mNextSlot + 1) % TRACKED_FRAMES;
+            mTimestampsUs[slot] = presentationTimestampUs;
+            long[] times = mStageTimesUs[slot];
+            for (int i = 0; i < STAGES; i++) {
+                times[i] = -1;
+            }
+            times[Stage.CAPTURED.ordinal()] = presentationTimestampUs;
+        }
+        mStageTimesUs[slot][stage.ordinal()] = nowUs;
+        if (stage == Stage.MUXED) {
+            complete(slot);
+        }
+    }
+
+    /**
+     * @return a copy of the histogram of the time reaching {@code stage} from the previous
+     * marked stage, {@link Stage#CAPTURED} for the total latency.
+     */
+    public synchronized LatencyHistogram histogram(final Stage stage) {
+        LatencyHistogram source = stage == Stage.CAPTURED
+                ? mTotalHistogram
+                : mStageHistograms[stage.ordinal()];
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.addAll(source);
+        return copy;
+    }
+
+    /**
+     * @return number of latencies discarded because of clock mismatch.
+     */
+    public synchronized long discarded() {
+        return mDiscarded;
+    }
+
+    /**
+     * Log statistics every {@code intervalMs} on {@code handler}, like EglRenderer.
+     */
+    public synchronized void startLogging(final Handler handler, final long intervalMs) {
+        stopLogging();
+        mLogHandler = handler;
+        mLogIntervalMs = intervalMs;
+        handler.postDelayed(mLogStatisticsRunnable, intervalMs);
+    }
+
+    public synchronized void stopLogging() {
+        if (mLogHandler != null) {
+            mLogHandler.removeCallbacks(mLogStatisticsRunnable);
+            mLogHandler = null;
+        }
+    }
+
+    /**
+     * Log statistics since the previous call, then reset them.
+     */
+    public synchronized void logStatistics() {
+        if (mTotalHistogram.count() == 0) {
+            Logging.d(TAG, "No frames muxed.");
+            return;
+        }
+        StringBuilder builder = new StringBuilder("Frames muxed: ")
+                .append(mTotalHistogram.count())
+                .append(". Discarded: ")
+                .append(mDiscarded)
+                .append(". Latency in ms:");
+        for (int i = 1; i < STAGES; i++) {
+            append(builder, Stage.values()[i].name(), mStageHistograms[i]);
+            mStageHistograms[i].reset();
+        }
+        append(builder, "TOTAL", mTotalHistogram);
+        mTotalHistogram.reset();
+        mDiscarded = 0;
+        Logging.d(TAG, builder.toString());
+    }
+
+    private static void append(final StringBuilder builder, final String name,
+            final LatencyHistogram histogram) {
+        if (histogram.count() == 0) {
+            return;
+        }
+        builder.append(' ').append(name).append(" avg ").append(toMs(histogram.meanUs()));
+        for (double percentile : LOGGED_PERCENTILES) {
+            builder.append(" p")
+                    .append((int) percentile)
+                    .append(' ')
+                    .append(toMs(histogram.percentileUs(percentile)));
+        }
+        builder.append(" max ").append(toMs(histogram.maxUs())).append(';');
+    }
+
+    private static String toMs(final long us) {
+        return String.valueOf(us / 1000) + '.' + (us % 1000) / 100;
+    }
+
+    private int find(final long presentationTimestampUs) {
+        // search from the newest, the frame is usually recent
+        for (int i = 1; i <= TRACKED_FRAMES; i++) {
+            int slot = (mNextSlot - i + TRACKED_FRAMES) % TRACKED_FRAMES;
+            if (mTimestampsUs[slot] == presentationTimestampUs) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void complete(final int slot) {
+        long[] times = mStageTimesUs[slot];
+        long previous = times[Stage.CAPTURED.ordinal()];
+        for (int i = 1; i < STAGES; i++) {
+            if (times[i] < 0) {
+                continue;
+            }
+            long latency = times[i] - previous;
+            if (latency < 0 || latency > MAX_LATENCY_US) {
+                mDiscarded++;
+            } else {
+                mStageHistograms[i].add(latency);
+            }
+            previous = times[i];
+        }
+        long total = times[Stage.MUXED.ordinal()] - times[Stage.CAPTURED.ordinal()];
+        if (total < 0 || total > MAX_LATENCY_US) {
+            mDiscarded++;
+        } else {
+            mTotalHistogram.add(total);
+        }
+        mTimestampsUs[slot] = -1;
+    }
+}
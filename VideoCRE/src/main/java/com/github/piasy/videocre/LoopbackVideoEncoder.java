@@ -0,0 +1,331 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.EglBase;
+import org.webrtc.Logging;
+import org.webrtc.MediaCodecVideoEncoder;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+/**
+ * A software {@link VideoEncoder} which doesn't look at pixels, it emits synthetic H.264 access
+ * units, so the threading, queueing, callback and muxing paths could be load tested on a JVM,
+ * e.g. with Robolectric.
+ *
+ * Each frame is an Annex-B IDR or non-IDR slice NAL unit with a valid slice header, keyframes
+ * come with a synthetic SPS and PPS like {@link MediaCodecVideoEncoder} delivers them. Frame sizes
+ * follow the bitrate of the {@link RateController}: delta frames are normally distributed around
+ * {@code bitrate / fps} with a configurable deviation, keyframes are a configurable ratio larger.
+ * With intra refresh, the extra size of a keyframe is spread over the refresh period instead, and
+ * keyframes follow the requested GOP, which should be long then.
+ * Alternatively sizes are replayed from a trace, scaled like {@link RateControlSimulator} does.
+ * Frames are delivered after a fixed latency, on an output thread. Output is deterministic for a
+ * given seed and input.
+ */
+public class LoopbackVideoEncoder implements VideoEncoder {
+    private static final String TAG = "LoopbackVideoEncoder";
+    private static final String H264_MIME_TYPE = "video/avc";
+    private static final int DEFAULT_KEY_FRAME_INTERVAL_SEC = 2;
+    private static final byte[] SPS = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8
+    };
+    private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 };
+    // start code, NAL header, then first_mb_in_slice 0 and slice_type 7 (I) or 5 (P)
+    private static final byte[] IDR_SLICE_HEADER = { 0, 0, 0, 1, 0x65, (byte) 0x88 };
+    private static final byte[] SLICE_HEADER = { 0, 0, 0, 1, 0x41, (byte) 0x9A };
+
+    private final Random mRandom;
+    private final EncodedFramePool mFramePool = new EncodedFramePool();
+    private final ByteBuffer mCodecConfig;
+    // encoded, not yet delivered, released by release() if their delivery is cancelled
+    private final ConcurrentLinkedQueue<EncodedFrame> mPendingFrames =
+            new ConcurrentLinkedQueue<>();
+
+    private double mSizeDeviation = 0.1;
+    private double mKeyFrameSizeRatio = 5;
+    private long mLatencyMs = 20;
+    private List<RateControlSimulator.Sample> mSizeTrace;
+    private int mSizeTraceBitrateBps;
+    private RateController.Factory mRateControllerFactory = DefaultRateController.FACTORY;
+    private boolean mPrependCodecConfig;
+    private MediaCodecVideoEncoder.EncoderMode mRequestedEncoderMode =
+            new MediaCodecVideoEncoder.EncoderMode(0, 0, MediaCodecVideoEncoder.BitrateMode.CBR);
+
+    private volatile MediaCodecVideoEncoder.EncoderMode mAcceptedEncoderMode;
+    private volatile int mCodecBitrateBps;
+    private volatile boolean mRunning;
+    private RateController mRateController;
+    private int mFps;
+    private MediaCodecCallback mCallback;
+    private ScheduledThreadPoolExecutor mOutputExecutor;
+    private long mLastKeyFrameUs = -1;
+    private int mFrameIndex;
+    private volatile long mEncodedFrames;
+
+    /**
+     * @param seed of the frame size randomness.
+     */
+    public LoopbackVideoEncoder(final long seed) {
+        mRandom = new Random(seed);
+        mCodecConfig = ByteBuffer.allocateDirect(SPS.length + PPS.length);
+        mCodecConfig.put(SPS).put(PPS);
+        mCodecConfig.flip();
+    }
+
+    /**
+     * @param deviation standard deviation of delta frame sizes relative to their mean, 0.1 by
+     * default. Must be called before {@link #initEncode}, like the other setters.
+     */
+    public void setSizeDeviation(final double deviation) {
+        mSizeDeviation = deviation;
+    }
+
+    /**
+     * @param ratio keyframe size over the mean delta frame size, 5 by default.
+     */
+    public void setKeyFrameSizeRatio(final double ratio) {
+        mKeyFrameSizeRatio = ratio;
+    }
+
+    /**
+     * @param latencyMs from encode call to delivery, 20 ms by default.
+     */
+    public void setLatencyMs(final long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Replay frame sizes of {@code trace} in a loop instead, e.g. recorded by
+     * {@link FrameSizeStats}, scaled by the codec bitrate over {@code traceBitrateBps}. Keyframes
+     * still follow the GOP and requests, their size comes from the trace.
+     */
+    public void setSizeTrace(final List<RateControlSimulator.Sample> trace,
+            final int traceBitrateBps) {
+        if (trace.isEmpty() || traceBitrateBps <= 0) {
+            throw new IllegalArgumentException("empty trace or bad bitrate");
+        }
+        mSizeTrace = trace;
+        mSizeTraceBitrateBps = traceBitrateBps;
+    }
+
+    /**
+     * @return frames encoded, delivered or not yet.
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * @return frames encoded but not delivered yet.
+     */
+    public int getPendingFrames() {
+        return mPendingFrames.size();
+    }
+
+    @Override
+    public boolean supportsCodec(final VideoCodecType type, final boolean useSurface) {
+        return type == VideoCodecType.VIDEO_CODEC_H264;
+    }
+
+    @Override
+    public boolean supportsSizeAndRate(final VideoCodecType type, final boolean useSurface,
+            final int width, final int height, final int fps) {
+        return true;
+    }
+
+    @Override
+    public double getAchievableFrameRate(final VideoCodecType type, final boolean useSurface,
+            final int width, final int height) {
+        return -1;
+    }
+
+    @Override
+    public void setRateControllerFactory(final RateController.Factory rateControllerFactory) {
+        mRateControllerFactory = rateControllerFactory;
+    }
+
+    @Override
+    public void setPrependCodecConfig(final boolean prependCodecConfig) {
+        mPrependCodecConfig = prependCodecConfig;
+    }
+
+    @Override
+    public void setEncoderMode(final MediaCodecVideoEncoder.EncoderMode mode) {
+        mRequestedEncoderMode = mode;
+    }
+
+    @Override
+    public boolean initEncode(final VideoCodecType type, final int profile, final int width,
+            final int height, final int kbps, final int fps, final EglBase.Context sharedContext,
+            final MediaCodecCallback callback) {
+        if (mRunning) {
+            throw new RuntimeException("Forgot to release()?");
+        }
+        if (!supportsCodec(type, sharedContext != null)) {
+            Logging.e(TAG, "unsupported codec " + type);
+            return false;
+        }
+        Logging.d(TAG, "initEncode " + width + "x" + height + " @ " + kbps + " kbps " + fps
+                       + " fps, latency " + mLatencyMs + " ms");
+        // all modes are accepted, bitrate modes are not modelled
+        int keyFrameIntervalSec = mRequestedEncoderMode.keyFrameIntervalSec > 0
+                ? mRequestedEncoderMode.keyFrameIntervalSec
+                : DEFAULT_KEY_FRAME_INTERVAL_SEC;
+        mAcceptedEncoderMode = new MediaCodecVideoEncoder.EncoderMode(keyFrameIntervalSec,
+                mRequestedEncoderMode.intraRefreshPeriod, mRequestedEncoderMode.bitrateMode);
+        mCallback = callback;
+        mFps = fps;
+        mRateController = mRateControllerFactory.create(
+                MediaCodecVideoEncoder.BitrateAdjustmentType.NO_ADJUSTMENT);
+        mCodecBitrateBps = mRateController.setTargetRates(1000 * kbps, fps);
+        mLastKeyFrameUs = -1;
+        mFrameIndex = 0;
+        mOutputExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(runnable, "LoopbackEncoderOutput");
+            }
+        });
+        mOutputExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        mRunning = true;
+
+        final MediaFormat format = MediaFormat.createVideoFormat(H264_MIME_TYPE, width, height);
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(SPS));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(PPS));
+        mOutputExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    mCallback.onOutputFormatChanged(null, format);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean encodeTexture(final boolean isKeyframe, final int oesTextureId,
+            final float[] transformationMatrix, final long presentationTimestampUs) {
+        return encode(isKeyframe, presentationTimestampUs);
+    }
+
+    @Override
+    public boolean encodeYuvFrame(final boolean isKeyframe, final YuvFrame frame) {
+        return encode(isKeyframe, TimeUnit.NANOSECONDS.toMicros(frame.timestampNs()));
+    }
+
+    @Override
+    public boolean setRates(final int kbps, final int frameRate) {
+        if (!mRunning) {
+            return false;
+        }
+        mFps = frameRate;
+        mCodecBitrateBps = mRateController.setTargetRates(1000 * kbps, frameRate);
+        return true;
+    }
+
+    @Override
+    public int getCodecBitrateKbps() {
+        return mCodecBitrateBps / 1000;
+    }
+
+    @Override
+    public MediaCodecVideoEncoder.EncoderMode getAcceptedEncoderMode() {
+        return mAcceptedEncoderMode;
+    }
+
+    @Override
+    public void release() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mOutputExecutor.shutdown();
+        try {
+            if (!mOutputExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+                throw new RuntimeException("loopback output thread hangs");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        mOutputExecutor = null;
+        // deliveries still delayed are cancelled by the shutdown
+        int dropped = 0;
+        EncodedFrame frame;
+        while ((frame = mPendingFrames.poll()) != null) {
+            frame.release();
+            dropped++;
+        }
+        Logging.d(TAG, "released after " + mEncodedFrames + " frames, " + dropped
+                       + " not delivered");
+    }
+
+    private boolean encode(final boolean isKeyframe, final long presentationTimestampUs) {
+        if (!mRunning) {
+            return false;
+        }
+        long keyFrameIntervalUs =
+                TimeUnit.SECONDS.toMicros(mAcceptedEncoderMode.keyFrameIntervalSec);
+        boolean keyFrame = isKeyframe || mLastKeyFrameUs < 0
+                           || presentationTimestampUs - mLastKeyFrameUs >= keyFrameIntervalUs;
+        if (keyFrame) {
+            mLastKeyFrameUs = presentationTimestampUs;
+        }
+        byte[] sliceHeader = keyFrame ? IDR_SLICE_HEADER : SLICE_HEADER;
+        boolean prepend = keyFrame && mPrependCodecConfig;
+        int prefixSize = (prepend ? mCodecConfig.remaining() : 0) + sliceHeader.length;
+        int size = Math.max(prefixSize + 1, nextFrameSize(keyFrame));
+        mRateController.onEncodedFrame(size, presentationTimestampUs);
+        mFrameIndex++;
+        mEncodedFrames++;
+
+        ByteBuffer data = mFramePool.take(size);
+        if (prepend) {
+            data.put(mCodecConfig.duplicate());
+        }
+        data.put(sliceHeader);
+        // bytes with the high bit set never form a start code or an emulation prevention sequence
+        for (int i = data.position(); i < size; i++) {
+            data.put((byte) (0x80 | ((mFrameIndex + i) & 0x7F)));
+        }
+        final EncodedFrame frame = new EncodedFrame(mFramePool, data, false,
+                keyFrame && !prepend ? mCodecConfig.duplicate() : null, size,
+                keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, presentationTimestampUs);
+        mPendingFrames.add(frame);
+        mOutputExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPendingFrames.remove(frame);
+                if (mRunning) {
+                    mCallback.onEncodedFrame(frame);
+                }
+                frame.release();
+            }
+        }, mLatencyMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private int nextFrameSize(final boolean keyFrame) {
+        if (mSizeTrace != null) {
+            RateControlSimulator.Sample sample = mSizeTrace.get(mFrameIndex % mSizeTrace.size());
+            return (int) ((long) sample.sizeBytes * mCodecBitrateBps / mSizeTraceBitrateBps);
+        }
+        double mean = mCodecBitrateBps / 8.0 / Math.max(1, mFps);
+        double size = mean * (1 + mSizeDeviation * mRandom.nextGaussian());
+        if (keyFrame) {
+            size *= mKeyFrameSizeRatio;
+        } else if (mAcceptedEncoderMode.intraRefreshPeriod > 0) {
+            // each frame carries its share of the intra macroblocks
+            size *= 1 + (mKeyFrameSizeRatio - 1) / mAcceptedEncoderMode.intraRefreshPeriod;
+        }
+        return (int) Math.max(0, size);
+    }
+}
@@ -2,7 +2,6 @@ package com.github.piasy.videocre;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import org.webrtc.MediaCodecVideoEncoder;
 
 /**
  * Created by Piasy{github.com/Piasy} on 22/07/2017.
@@ -10,10 +9,10 @@ import org.webrtc.MediaCodecVideoEncoder;
 
 public interface MediaCodecCallback {
     /**
-     * must consume it synchronously.
+     * {@code frame} is only valid during this call, {@link EncodedFrame#retain()} it to keep it
+     * longer, and {@link EncodedFrame#release()} it when done.
      */
-    void onEncodedFrame(MediaCodecVideoEncoder.OutputBufferInfo frame,
-            MediaCodec.BufferInfo bufferInfo);
+    void onEncodedFrame(EncodedFrame frame);
 
     void onOutputFormatChanged(MediaCodec codec, MediaFormat format);
 }
@@ -0,0 +1,435 @@
+package com.github.piasy.videocre;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.webrtc.Logging;
+
+/**
+ * Moves the moov box of an MP4 file, written last by {@link Mp4Recorder}, before the media data,
+ * i.e. faststart, so players and servers can start before the whole file is downloaded.
+ *
+ * Chunk offsets (stco and co64) are patched, and stco tables are turned into co64 if an offset
+ * no longer fits 32 bits, so multi-GB files work. The media data is streamed with
+ * {@link FileChannel#transferTo} to a new file, or moved in place through a fixed buffer, so only
+ * the moov box is held in memory. In place processing corrupts the file if it's interrupted.
+ * Fragmented files, e.g. of {@link FragmentedMp4Recorder}, have their moov first already.
+ */
+public final class Mp4FastStart {
+    private static final String TAG = "Mp4FastStart";
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Mp4FastStart");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public interface Listener {
+        /**
+         * Called on the background thread.
+         *
+         * @param result the faststart file, {@code input} if it's faststart already or processed
+         * in place.
+         * @param success false if the file couldn't be processed, see the log.
+         * @param moved whether moov is moved, false if {@code input} is faststart already, in
+         * which case {@code output} isn't created.
+         */
+        void onFinished(File result, boolean success, boolean moved);
+    }
+
+    private Mp4FastStart() {
+        // no instance
+    }
+
+    /**
+     * {@link #process} on a background thread, one file at a time, e.g. after
+     * {@link Mp4Recorder#stop()}.
+     */
+    public static void processInBackground(final File input, final File output,
+            final Listener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                boolean moved = false;
+                try {
+                    moved = process(input, output);
+                } catch (IOException | RuntimeException e) {
+                    Logging.e(TAG, "process " + input + " fail", e);
+                    success = false;
+                }
+                if (listener != null) {
+                    listener.onFinished(output == null || !moved ? input : output, success,
+                            moved);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param output null to process {@code input} in place.
+     * @return whether moov is moved, false if it's already before the media data, in which case
+     * {@code output} is not created.
+     * @throws IOException if the file can't be read or written, or isn't a valid MP4 file.
+     */
+    public static boolean process(final File input, final File output) throws IOException {
+        if (output == null) {
+            RandomAccessFile file = new RandomAccessFile(input, "rw");
+            try {
+                return processInPlace(file.getChannel());
+            } finally {
+                file.close();
+            }
+        }
+        FileInputStream in = new FileInputStream(input);
+        try {
+            Layout layout = Layout.scan(in.getChannel());
+            if (layout == null) {
+                return false;
+            }
+            FileOutputStream out = new FileOutputStream(output);
+            try {
+                relocate(in.getChannel(), layout, out.getChannel());
+            } finally {
+                out.close();
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param output written from its current position, nothing is written if moov isn't moved.
+     */
+    public static boolean process(final FileChannel input, final FileChannel output)
+            throws IOException {
+        Layout layout = Layout.scan(input);
+        if (layout == null) {
+            return false;
+        }
+        relocate(input, layout, output);
+        return true;
+    }
+
+    public static boolean processInPlace(final FileChannel file) throws IOException {
+        Layout layout = Layout.scan(file);
+        if (layout == null) {
+            return false;
+        }
+        ByteBuffer moov = layout.relocatedMoov(file);
+        long newMoovSize = moov.remaining();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        // boxes after moov, if any, move by the growth of moov
+        moveForward(file, layout.mMoovEnd, layout.mFileSize - layout.mMoovEnd,
+                newMoovSize - (layout.mMoovEnd - layout.mMoovStart), buffer);
+        moveForward(file, layout.mInsertPosition, layout.mMoovStart - layout.mInsertPosition,
+                newMoovSize, buffer);
+        writeFully(file, moov, layout.mInsertPosition);
+        return true;
+    }
+
+    private static void relocate(final FileChannel input, final Layout layout,
+            final FileChannel output) throws IOException {
+        ByteBuffer moov = layout.relocatedMoov(input);
+        transferFully(input, 0, layout.mInsertPosition, output);
+        writeFully(output, moov, -1);
+        transferFully(input, layout.mInsertPosition,
+                layout.mMoovStart - layout.mInsertPosition, output);
+        transferFully(input, layout.mMoovEnd, layout.mFileSize - layout.mMoovEnd, output);
+    }
+
+    /**
+     * Copy {@code length} bytes at {@code from} to {@code from + shift}, from the end, so the
+     * ranges may overlap.
+     */
+    private static void moveForward(final FileChannel file, final long from, final long length,
+            final long shift, final ByteBuffer buffer) throws IOException {
+        if (shift == 0) {
+            return;
+        }
+        long position = from + length;
+        while (position > from) {
+            int size = (int) Math.min(buffer.capacity(), position - from);
+            position -= size;
+            buffer.clear();
+            buffer.limit(size);
+            readFully(file, buffer, position);
+            buffer.flip();
+            writeFully(file, buffer, position + shift);
+        }
+    }
+
+    private static void transferFully(final FileChannel input, final long position,
+            final long count, final FileChannel output) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = input.transferTo(position + done, count - done, output);
+            if (transferred <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            done += transferred;
+        }
+    }
+
+    private static void readFully(final FileChannel file, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * @param position -1 to write at the current position.
+     */
+    private static void writeFully(final FileChannel file, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            if (position < 0) {
+                file.write(buffer);
+            } else {
+                offset += file.write(buffer, offset);
+            }
+        }
+    }
+
+    private static int fourCc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+               | type.charAt(3);
+    }
+
+    /**
+     * Top level boxes: moov is moved to the first mdat.
+     */
+    private static final class Layout {
+        private static final int MOOV = fourCc("moov");
+        private static final int MDAT = fourCc("mdat");
+        private static final int MOOF = fourCc("moof");
+        private static final int STCO = fourCc("stco");
+        private static final int CO64 = fourCc("co64");
+        private static final int[] CONTAINERS = {
+                MOOV, fourCc("trak"), fourCc("mdia"), fourCc("minf"), fourCc("stbl"),
+        };
+
+        final long mFileSize;
+        final long mInsertPosition;
+        final long mMoovStart;
+        final long mMoovEnd;
+
+        // set by relocatedMoov
+        private long mNewMoovSize;
+
+        private Layout(final long fileSize, final long insertPosition, final long moovStart,
+                final long moovEnd) {
+            mFileSize = fileSize;
+            mInsertPosition = insertPosition;
+            mMoovStart = moovStart;
+            mMoovEnd = moovEnd;
+        }
+
+        /**
+         * @return null if moov is already before mdat, or the file is fragmented.
+         */
+        static Layout scan(final FileChannel file) throws IOException {
+            long fileSize = file.size();
+            long position = 0;
+            long firstMdat = -1;
+            long moovStart = -1;
+            long moovEnd = -1;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (position + 8 <= fileSize) {
+                header.clear();
+                header.limit(8);
+                readFully(file, header, position);
+                long size = header.getInt(0) & 0xFFFFFFFFL;
+                int type = header.getInt(4);
+                if (size == 1) {
+                    header.limit(16);
+                    readFully(file, header, position + 8);
+                    size = header.getLong(8);
+                } else if (size == 0) {
+                    size = fileSize - position;
+                }
+                if (size < 8 || position + size > fileSize) {
+                    throw new IOException("invalid box at " + position);
+                }
+                if (type == MOOF) {
+                    return null;
+                } else if (type == MDAT && firstMdat < 0) {
+                    firstMdat = position;
+                } else if (type == MOOV) {
+                    moovStart = position;
+                    moovEnd = position + size;
+                }
+                position += size;
+            }
+            if (moovStart < 0) {
+                throw new IOException("no moov box");
+            }
+            if (firstMdat < 0 || moovStart < firstMdat) {
+                return null;
+            }
+            if (moovEnd - moovStart > Integer.MAX_VALUE / 2) {
+                throw new IOException("moov box too large");
+            }
+            return new Layout(fileSize, firstMdat, moovStart, moovEnd);
+        }
+
+        /**
+         * @return moov with chunk offsets patched for its new position.
+         */
+        ByteBuffer relocatedMoov(final FileChannel file) throws IOException {
+            ByteBuffer moov = ByteBuffer.allocate((int) (mMoovEnd - mMoovStart));
+            readFully(file, moov, mMoovStart);
+            moov.flip();
+
+            // offsets are shifted by the size of moov, which grows if stco becomes co64
+            long moovSize = moov.remaining();
+            mNewMoovSize = moovSize;
+            long maxStcoOffset = maxStcoOffset(moov, 0, moov.limit());
+            boolean toCo64 = maxStcoOffset >= 0 && shift(maxStcoOffset) > 0xFFFFFFFFL;
+            if (toCo64) {
+                mNewMoovSize = moovSize + 4 * stcoEntries(moov, 0, moov.limit());
+            }
+            ByteBuffer relocated = ByteBuffer.allocate((int) mNewMoovSize);
+            copyBoxes(moov, 0, moov.limit(), relocated, toCo64);
+            relocated.flip();
+            if (relocated.remaining() != mNewMoovSize) {
+                throw new IllegalStateException("moov size " + relocated.remaining()
+                                                + " != " + mNewMoovSize);
+            }
+            return relocated;
+        }
+
+        private long shift(final long offset) {
+            if (offset >= mMoovEnd) {
+                return offset + mNewMoovSize - (mMoovEnd - mMoovStart);
+            }
+            return offset >= mInsertPosition ? offset + mNewMoovSize : offset;
+        }
+
+        private void copyBoxes(final ByteBuffer src, final int start, final int end,
+                final ByteBuffer dst, final boolean toCo64) throws IOException {
+            int position = start;
+            while (position + 8 <= end) {
+                int size = boxSize(src, position, end);
+                int type = src.getInt(position + 4);
+                if (isContainer(type)) {
+                    int boxStart = dst.position();
+                    dst.putInt(0).putInt(type);
+                    copyBoxes(src, position + headerSize(src, position), position + size, dst,
+                            toCo64);
+                    dst.putInt(boxStart, dst.position() - boxStart);
+                } else if (type == STCO) {
+                    int count = src.getInt(position + 12);
+                    dst.putInt(16 + count * (toCo64 ? 8 : 4))
+                            .putInt(toCo64 ? CO64 : STCO)
+                            .putInt(src.getInt(position + 8))
+                            .putInt(count);
+                    for (int i = 0; i < count; i++) {
+                        long offset = shift(src.getInt(position + 16 + 4 * i) & 0xFFFFFFFFL);
+                        if (toCo64) {
+                            dst.putLong(offset);
+                        } else {
+                            dst.putInt((int) offset);
+                        }
+                    }
+                } else if (type == CO64) {
+                    int count = src.getInt(position + 12);
+                    dst.putInt(size).putInt(CO64).putInt(src.getInt(position + 8)).putInt(count);
+                    for (int i = 0; i < count; i++) {
+                        dst.putLong(shift(src.getLong(position + 16 + 8 * i)));
+                    }
+                } else {
+                    ByteBuffer box = src.duplicate();
+                    box.limit(position + size);
+                    box.position(position);
+                    dst.put(box);
+                }
+                position += size;
+            }
+        }
+
+        private static long maxStcoOffset(final ByteBuffer src, final int start, final int end)
+                throws IOException {
+            long max = -1;
+            int position = start;
+            while (position + 8 <= end) {
+                int size = boxSize(src, position, end);
+                int type = src.getInt(position + 4);
+                if (isContainer(type)) {
+                    max = Math.max(max, maxStcoOffset(src, position + headerSize(src, position),
+                            position + size));
+                } else if (type == STCO) {
+                    for (int i = 0, n = src.getInt(position + 12); i < n; i++) {
+                        max = Math.max(max, src.getInt(position + 16 + 4 * i) & 0xFFFFFFFFL);
+                    }
+                }
+                position += size;
+            }
+            return max;
+        }
+
+        private static int stcoEntries(final ByteBuffer src, final int start, final int end)
+                throws IOException {
+            int entries = 0;
+            int position = start;
+            while (position + 8 <= end) {
+                int size = boxSize(src, position, end);
+                int type = src.getInt(position + 4);
+                if (isContainer(type)) {
+                    entries += stcoEntries(src, position + headerSize(src, position),
+                            position + size);
+                } else if (type == STCO) {
+                    entries += src.getInt(position + 12);
+                }
+                position += size;
+            }
+            return entries;
+        }
+
+        private static int boxSize(final ByteBuffer src, final int position, final int end)
+                throws IOException {
+            long size = src.getInt(position) & 0xFFFFFFFFL;
+            if (size == 1) {
+                size = src.getLong(position + 8);
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < 8 || position + size > end) {
+                throw new IOException("invalid box in moov at " + position);
+            }
+            return (int) size;
+        }
+
+        private static int headerSize(final ByteBuffer src, final int position) {
+            return src.getInt(position) == 1 ? 16 : 8;
+        }
+
+        private static boolean isContainer(final int type) {
+            for (int container : CONTAINERS) {
+                if (type == container) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
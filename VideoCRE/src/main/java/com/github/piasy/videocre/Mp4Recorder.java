@@ -8,32 +8,51 @@ import android.os.Build;
 import java.io.File;
 import java.io.IOException;
 import org.webrtc.Logging;
-import org.webrtc.MediaCodecVideoEncoder;
 
 /**
  * Created by Piasy{github.com/Piasy} on 22/07/2017.
  */
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-public class Mp4Recorder implements MediaCodecCallback {
+public class Mp4Recorder implements Recorder {
     private static final String TAG = "Mp4Recorder";
 
+    private final File mOutputFile;
     private final MediaMuxer mMediaMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
     private int mTrackIndex;
     private boolean mMuxerStarted;
+    private volatile LatencyTracker mLatencyTracker;
 
     public Mp4Recorder(final File outputFile) throws IOException {
+        mOutputFile = outputFile;
         mMediaMuxer = new MediaMuxer(outputFile.getAbsolutePath(),
                 MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
     }
 
+    /**
+     * @return the file, e.g. for {@link Mp4FastStart} once stopped.
+     */
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    @Override
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
     @Override
-    public void onEncodedFrame(final MediaCodecVideoEncoder.OutputBufferInfo frame,
-            final MediaCodec.BufferInfo bufferInfo) {
-        boolean configFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    public void onEncodedFrame(final EncodedFrame frame) {
+        boolean configFrame = (frame.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
         if (!configFrame) {
-            mMediaMuxer.writeSampleData(mTrackIndex, frame.buffer(), bufferInfo);
+            mBufferInfo.set(0, frame.size(), frame.presentationTimestampUs(), frame.flags());
+            mMediaMuxer.writeSampleData(mTrackIndex, frame.buffer(), mBufferInfo);
+            LatencyTracker latencyTracker = mLatencyTracker;
+            if (latencyTracker != null) {
+                latencyTracker.mark(LatencyTracker.Stage.MUXED, frame.presentationTimestampUs());
+            }
         }
     }
 
@@ -54,8 +73,12 @@ public class Mp4Recorder implements MediaCodecCallback {
         mMuxerStarted = true;
     }
 
+    @Override
     public void stop() {
-        mMediaMuxer.stop();
+        // MediaMuxer can't stop before it's started
+        if (mMuxerStarted) {
+            mMediaMuxer.stop();
+        }
         mMediaMuxer.release();
     }
 }
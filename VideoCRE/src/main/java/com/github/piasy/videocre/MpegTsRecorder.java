@@ -0,0 +1,352 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import org.webrtc.Logging;
+
+/**
+ * Writes H.264 or H.265 as an MPEG transport stream, which needs no finalization: it can be
+ * streamed, read while it's written, cut anywhere, or appended to.
+ *
+ * PAT and PMT precede each keyframe, which is marked as a random access point. Each frame is one
+ * PES with its PTS, starting with an access unit delimiter, and carries a PCR, so PCR intervals
+ * stay below the 100 ms limit down to 10 fps. PTS are ahead of PCR by {@link #PTS_DELAY_90K}.
+ *
+ * Packets are built in pooled direct buffers, and each frame is written with one gathering write.
+ */
+public class MpegTsRecorder implements Recorder {
+    private static final String TAG = "MpegTsRecorder";
+
+    /** Decoder buffering allowed by PTS, 700 ms, like common muxers. */
+    public static final int PTS_DELAY_90K = 63000;
+
+    private static final int PACKET_SIZE = 188;
+    private static final int PACKETS_PER_BUFFER = 64;
+    private static final int PAT_PID = 0;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final int PROGRAM_NUMBER = 1;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_H265 = 0x24;
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final byte[] H264_AUD = { 0, 0, 0, 1, 0x09, (byte) 0xF0 };
+    private static final byte[] H265_AUD = { 0, 0, 0, 1, 0x46, 0x01, 0x50 };
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        // MPEG-2 CRC32: polynomial 0x04C11DB7, not reflected
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final GatheringByteChannel mChannel;
+    private final boolean mAppend;
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> mFilledBuffers = new ArrayDeque<>();
+    private final ByteBuffer mPesHeader = ByteBuffer.allocate(14);
+
+    private volatile LatencyTracker mLatencyTracker;
+    private volatile long mBytesWritten;
+    private int mStreamType;
+    private byte[] mAccessUnitDelimiter;
+    private long mFirstPtsUs = -1;
+    private int mPatCounter;
+    private int mPmtCounter;
+    private int mVideoCounter;
+    private boolean mDiscontinuity;
+    private ByteBuffer[] mWriteBuffers = new ByteBuffer[0];
+
+    public MpegTsRecorder(final File outputFile, final boolean append) throws IOException {
+        this(new FileOutputStream(outputFile, append).getChannel(), append);
+    }
+
+    /**
+     * @param channel e.g. a socket channel to stream, closed by {@link #stop()}.
+     * @param append whether the channel already has packets, the first video packet is marked
+     * as a discontinuity then.
+     */
+    public MpegTsRecorder(final GatheringByteChannel channel, final boolean append) {
+        mChannel = channel;
+        mAppend = append;
+    }
+
+    @Override
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            mStreamType = STREAM_TYPE_H264;
+            mAccessUnitDelimiter = H264_AUD;
+        } else if (MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mime)) {
+            mStreamType = STREAM_TYPE_H265;
+            mAccessUnitDelimiter = H265_AUD;
+        } else {
+            throw new IllegalArgumentException("unsupported mime " + mime);
+        }
+        // a new format starts a new timeline
+        mFirstPtsUs = -1;
+        mDiscontinuity = mAppend || mBytesWritten > 0;
+        Logging.d(TAG, "onOutputFormatChanged " + mime);
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        if (mStreamType == 0 || (frame.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        if (mFirstPtsUs < 0) {
+            if (!frame.isKeyFrame()) {
+                return;
+            }
+            mFirstPtsUs = frame.presentationTimestampUs();
+        }
+        long ticks = (frame.presentationTimestampUs() - mFirstPtsUs) * 9 / 100;
+        if (frame.isKeyFrame()) {
+            writeTables();
+        }
+
+        ByteBuffer codecConfig = frame.codecConfig();
+        ByteBuffer payload = frame.buffer();
+        ByteBuffer aud = startsWithAud(codecConfig != null ? codecConfig : payload)
+                         ? null
+                         : ByteBuffer.wrap(mAccessUnitDelimiter);
+        long pts = (ticks + PTS_DELAY_90K) & 0x1FFFFFFFFL;
+        mPesHeader.clear();
+        mPesHeader.putInt(0x00000100 | STREAM_ID_VIDEO);
+        // unbounded length, allowed for video
+        mPesHeader.putShort((short) 0);
+        // marker bits, PTS only, 5 bytes of header data
+        mPesHeader.put((byte) 0x80).put((byte) 0x80).put((byte) 5);
+        putTimestamp(mPesHeader, 0x20, pts);
+        mPesHeader.flip();
+
+        writePes(frame.isKeyFrame(), ticks, mPesHeader, aud, codecConfig, payload);
+        flush();
+
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(LatencyTracker.Stage.MUXED, frame.presentationTimestampUs());
+        }
+    }
+
+    public long bytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Logging.e(TAG, "stop fail", e);
+        }
+    }
+
+    private void writeTables() {
+        ByteBuffer section = ByteBuffer.allocate(PACKET_SIZE);
+        // PAT
+        section.put((byte) 0x00)
+                .putShort((short) (0xB000 | 13))
+                .putShort((short) 1)
+                .put((byte) 0xC1)
+                .put((byte) 0)
+                .put((byte) 0)
+                .putShort((short) PROGRAM_NUMBER)
+                .putShort((short) (0xE000 | PMT_PID));
+        putCrc(section);
+        mPatCounter = writeSection(PAT_PID, mPatCounter, section);
+
+        section.clear();
+        // PMT, PCR on the video PID
+        section.put((byte) 0x02)
+                .putShort((short) (0xB000 | 18))
+                .putShort((short) PROGRAM_NUMBER)
+                .put((byte) 0xC1)
+                .put((byte) 0)
+                .put((byte) 0)
+                .putShort((short) (0xE000 | VIDEO_PID))
+                .putShort((short) 0xF000)
+                .put((byte) mStreamType)
+                .putShort((short) (0xE000 | VIDEO_PID))
+                .putShort((short) 0xF000);
+        putCrc(section);
+        mPmtCounter = writeSection(PMT_PID, mPmtCounter, section);
+    }
+
+    private int writeSection(final int pid, final int counter, final ByteBuffer section) {
+        section.flip();
+        ByteBuffer packet = nextPacket();
+        packet.put((byte) 0x47)
+                .put((byte) (0x40 | (pid >> 8)))
+                .put((byte) pid)
+                .put((byte) (0x10 | counter));
+        // pointer field
+        packet.put((byte) 0);
+        packet.put(section);
+        while (packet.position() % PACKET_SIZE != 0) {
+            packet.put((byte) 0xFF);
+        }
+        return (counter + 1) & 0xF;
+    }
+
+    private void writePes(final boolean keyFrame, final long pcrTicks, final ByteBuffer... parts) {
+        int remaining = 0;
+        for (ByteBuffer part : parts) {
+            if (part != null) {
+                remaining += part.remaining();
+            }
+        }
+        int partIndex = 0;
+        boolean first = true;
+        while (remaining > 0) {
+            // the first packet has flags and PCR
+            int adaptation = first ? 8 : 0;
+            if (remaining < PACKET_SIZE - 4 - adaptation) {
+                // stuff the last packet with the adaptation field
+                adaptation = PACKET_SIZE - 4 - remaining;
+            }
+
+            ByteBuffer packet = nextPacket();
+            packet.put((byte) 0x47)
+                    .put((byte) ((first ? 0x40 : 0) | (VIDEO_PID >> 8)))
+                    .put((byte) VIDEO_PID)
+                    .put((byte) ((adaptation > 0 ? 0x30 : 0x10) | mVideoCounter));
+            mVideoCounter = (mVideoCounter + 1) & 0xF;
+            if (adaptation > 0) {
+                putAdaptationField(packet, adaptation, first, keyFrame, pcrTicks);
+            }
+
+            int payloadSize = PACKET_SIZE - 4 - adaptation;
+            remaining -= payloadSize;
+            while (payloadSize > 0) {
+                ByteBuffer part = parts[partIndex];
+                if (part == null || !part.hasRemaining()) {
+                    partIndex++;
+                    continue;
+                }
+                int size = Math.min(payloadSize, part.remaining());
+                int limit = part.limit();
+                part.limit(part.position() + size);
+                packet.put(part);
+                part.limit(limit);
+                payloadSize -= size;
+            }
+            first = false;
+        }
+    }
+
+    /**
+     * @param length of the whole adaptation field, including its length byte.
+     */
+    private void putAdaptationField(final ByteBuffer packet, final int length,
+            final boolean first, final boolean keyFrame, final long pcrTicks) {
+        packet.put((byte) (length - 1));
+        if (length == 1) {
+            return;
+        }
+        int flags = 0;
+        if (first && mDiscontinuity) {
+            flags |= 0x80;
+            mDiscontinuity = false;
+        }
+        if (first && keyFrame) {
+            flags |= 0x40;
+        }
+        if (first) {
+            flags |= 0x10;
+        }
+        packet.put((byte) flags);
+        int stuffing = length - 2;
+        if (first) {
+            long base = pcrTicks & 0x1FFFFFFFFL;
+            packet.putInt((int) (base >> 1));
+            // 6 reserved bits, extension 0
+            packet.put((byte) (((base & 1) << 7) | 0x7E));
+            packet.put((byte) 0);
+            stuffing -= 6;
+        }
+        for (int i = 0; i < stuffing; i++) {
+            packet.put((byte) 0xFF);
+        }
+    }
+
+    private ByteBuffer nextPacket() {
+        ByteBuffer buffer = mFilledBuffers.peekLast();
+        if (buffer == null || !buffer.hasRemaining()) {
+            buffer = mFreeBuffers.pollFirst();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(PACKET_SIZE * PACKETS_PER_BUFFER);
+            }
+            buffer.clear();
+            mFilledBuffers.offerLast(buffer);
+        }
+        return buffer;
+    }
+
+    private void flush() {
+        int count = mFilledBuffers.size();
+        if (mWriteBuffers.length != count) {
+            mWriteBuffers = new ByteBuffer[count];
+        }
+        for (int i = 0; i < count; i++) {
+            ByteBuffer buffer = mFilledBuffers.pollFirst();
+            buffer.flip();
+            mWriteBuffers[i] = buffer;
+        }
+        try {
+            ByteBuffer last = mWriteBuffers[count - 1];
+            while (last.hasRemaining()) {
+                mBytesWritten += mChannel.write(mWriteBuffers);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                mFreeBuffers.offerLast(mWriteBuffers[i]);
+                mWriteBuffers[i] = null;
+            }
+        }
+    }
+
+    private boolean startsWithAud(final ByteBuffer buffer) {
+        int position = buffer.position();
+        int offset = buffer.remaining() > 4 && buffer.get(position + 2) == 1 ? 3 : 4;
+        if (buffer.remaining() <= offset) {
+            return false;
+        }
+        int header = buffer.get(position + offset) & 0xFF;
+        return mStreamType == STREAM_TYPE_H264
+               ? (header & 0x1F) == NalUnits.TYPE_AUD
+               : ((header >> 1) & 0x3F) == 35;
+    }
+
+    private static void putTimestamp(final ByteBuffer buffer, final int prefix,
+            final long timestamp) {
+        buffer.put((byte) (prefix | (((timestamp >> 30) & 0x7) << 1) | 1));
+        buffer.putShort((short) ((((timestamp >> 15) & 0x7FFF) << 1) | 1));
+        buffer.putShort((short) (((timestamp & 0x7FFF) << 1) | 1));
+    }
+
+    private static void putCrc(final ByteBuffer section) {
+        int crc = 0xFFFFFFFF;
+        for (int i = 0; i < section.position(); i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ section.get(i)) & 0xFF];
+        }
+        section.putInt(crc);
+    }
+}
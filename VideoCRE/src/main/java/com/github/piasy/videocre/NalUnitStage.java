@@ -0,0 +1,64 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses the NAL units of each H.264 frame once, for all its downstream callbacks.
+ *
+ * Callbacks implementing {@link Sink} receive the frame with its {@link NalUnits}, e.g. to write
+ * it as AVCC or Annex-B without scanning for start codes again, other callbacks receive the frame
+ * only. The codec config (SPS and PPS) delivered separately by {@link EncodedFrame#codecConfig()}
+ * comes first. Frames of other codecs are passed with no NAL units.
+ *
+ * Frames must be delivered on one thread at a time, like {@link HwAvcEncoder} does.
+ */
+public class NalUnitStage implements MediaCodecCallback {
+    private static final String H264_MIME_TYPE = "video/avc";
+
+    public interface Sink extends MediaCodecCallback {
+        /**
+         * Called instead of {@link #onEncodedFrame(EncodedFrame)}, {@code nalUnits} is only valid
+         * during this call, like the views of {@code frame}.
+         */
+        void onEncodedFrame(EncodedFrame frame, NalUnits nalUnits);
+    }
+
+    private final List<MediaCodecCallback> mCallbacks;
+    private final NalUnits mNalUnits = new NalUnits();
+    private volatile boolean mH264 = true;
+
+    public NalUnitStage(final MediaCodecCallback... callbacks) {
+        mCallbacks = Arrays.asList(callbacks);
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        mNalUnits.clear();
+        if (mH264) {
+            if (frame.codecConfig() != null) {
+                H264NalParser.parseAnnexB(frame.codecConfig(), mNalUnits);
+            }
+            H264NalParser.parseAnnexB(frame.buffer(), mNalUnits);
+        }
+        for (int i = 0, n = mCallbacks.size(); i < n; i++) {
+            MediaCodecCallback callback = mCallbacks.get(i);
+            if (callback instanceof Sink) {
+                ((Sink) callback).onEncodedFrame(frame, mNalUnits);
+            } else {
+                callback.onEncodedFrame(frame);
+            }
+        }
+        mNalUnits.clear();
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        mH264 = H264_MIME_TYPE.equals(format.getString(MediaFormat.KEY_MIME));
+        for (int i = 0, n = mCallbacks.size(); i < n; i++) {
+            mCallbacks.get(i).onOutputFormatChanged(codec, format);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * H.264 NAL units of an access unit, found by {@link H264NalParser}, as references into the
+ * parsed buffers, i.e. without copying.
+ *
+ * Meant to be reused for each frame, so parsing allocates nothing once its arrays have grown to
+ * the number of NAL units per frame. Not thread safe.
+ */
+public final class NalUnits {
+    public static final int TYPE_SLICE = 1;
+    public static final int TYPE_IDR = 5;
+    public static final int TYPE_SEI = 6;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+    public static final int TYPE_AUD = 9;
+
+    public static final int SLICE_TYPE_UNKNOWN = -1;
+    public static final int SLICE_TYPE_P = 0;
+    public static final int SLICE_TYPE_B = 1;
+    public static final int SLICE_TYPE_I = 2;
+    public static final int SLICE_TYPE_SP = 3;
+    public static final int SLICE_TYPE_SI = 4;
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    private ByteBuffer[] mBuffers = new ByteBuffer[INITIAL_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_CAPACITY];
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int[] mSliceTypes = new int[INITIAL_CAPACITY];
+    private int mCount;
+
+    public void clear() {
+        Arrays.fill(mBuffers, 0, mCount, null);
+        mCount = 0;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * @return the buffer holding NAL unit {@code index}, read it with absolute gets.
+     */
+    public ByteBuffer buffer(final int index) {
+        return mBuffers[index];
+    }
+
+    /**
+     * @return offset of the NAL unit header in {@link #buffer(int)}, after the start code or
+     * length prefix.
+     */
+    public int offset(final int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @return size of NAL unit {@code index}, excluding the start code or length prefix.
+     */
+    public int size(final int index) {
+        return mSizes[index];
+    }
+
+    /**
+     * @return {@code nal_unit_type}, e.g. {@link #TYPE_IDR}.
+     */
+    public int type(final int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * @return {@code slice_type} modulo 5, e.g. {@link #SLICE_TYPE_I}, or
+     * {@link #SLICE_TYPE_UNKNOWN} for non-slice NAL units.
+     */
+    public int sliceType(final int index) {
+        return mSliceTypes[index];
+    }
+
+    /**
+     * @return index of the first NAL unit of {@code type}, or -1.
+     */
+    public int indexOf(final int type) {
+        for (int i = 0; i < mCount; i++) {
+            if (mTypes[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isKeyFrame() {
+        return indexOf(TYPE_IDR) >= 0;
+    }
+
+    /**
+     * @return total size of the NAL units, excluding start codes or length prefixes.
+     */
+    public int payloadSize() {
+        int size = 0;
+        for (int i = 0; i < mCount; i++) {
+            size += mSizes[i];
+        }
+        return size;
+    }
+
+    /**
+     * @return size written by {@link #writeAvcc} or {@link #writeAnnexB}, with 4 byte prefixes.
+     */
+    public int prefixedSize() {
+        return payloadSize() + 4 * mCount;
+    }
+
+    /**
+     * Write all NAL units to {@code dst} in AVCC layout, each prefixed by its size as a 4 byte
+     * big endian integer, as in MP4 samples.
+     */
+    public void writeAvcc(final ByteBuffer dst) {
+        for (int i = 0; i < mCount; i++) {
+            dst.putInt(mSizes[i]);
+            put(dst, i);
+        }
+    }
+
+    /**
+     * Write all NAL units to {@code dst} in Annex-B layout, each prefixed by a 4 byte start code,
+     * as in MPEG-TS or raw .h264 files.
+     */
+    public void writeAnnexB(final ByteBuffer dst) {
+        for (int i = 0; i < mCount; i++) {
+            dst.put(START_CODE);
+            put(dst, i);
+        }
+    }
+
+    void add(final ByteBuffer buffer, final int offset, final int size, final int type,
+            final int sliceType) {
+        if (mCount == mOffsets.length) {
+            int capacity = mCount * 2;
+            mBuffers = Arrays.copyOf(mBuffers, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mSliceTypes = Arrays.copyOf(mSliceTypes, capacity);
+        }
+        mBuffers[mCount] = buffer;
+        mOffsets[mCount] = offset;
+        mSizes[mCount] = size;
+        mTypes[mCount] = type;
+        mSliceTypes[mCount] = sliceType;
+        mCount++;
+    }
+
+    private void put(final ByteBuffer dst, final int index) {
+        ByteBuffer src = mBuffers[index];
+        int position = src.position();
+        int limit = src.limit();
+        // bulk copy, restoring the position and limit of the parsed buffer afterwards
+        src.position(mOffsets[index]);
+        src.limit(mOffsets[index] + mSizes[index]);
+        dst.put(src);
+        src.limit(limit);
+        src.position(position);
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last seconds of encoded frames, to record them once something interesting happens,
+ * i.e. instant replay.
+ *
+ * Frames are copied into a fixed direct buffer used as a ring, with fixed metadata, so memory
+ * doesn't grow with the bitrate. The oldest GOP is evicted as a whole, so the buffer always starts
+ * at a keyframe: when a frame doesn't fit, and once the following GOP alone covers the window. A
+ * GOP larger than the buffer is dropped until the next keyframe. SPS and PPS of
+ * {@link EncodedFrame#codecConfig()} are kept aside, the buffer is cleared when the output format
+ * changes.
+ *
+ * {@link #startRecording} sends the output format and the buffered frames to a recorder, then the
+ * live frames until {@link #stopRecording()}, on the calling thread and then on the codec output
+ * thread, serialized. The replay is synchronous, a slow recorder should be wrapped in an
+ * {@link AsyncRecorder} which can queue the whole window. Thread safe.
+ */
+public class PreRollBuffer implements MediaCodecCallback {
+    private final long mWindowUs;
+    private final ByteBuffer mArena;
+    private final EncodedFramePool mFramePool = new EncodedFramePool();
+
+    // guarded by this, ring of frame metadata
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mTimestampsUs;
+    private int mHead;
+    private int mCount;
+    // arena offsets of the oldest frame and of the next free byte
+    private int mArenaHead;
+    private int mArenaTail;
+    private ByteBuffer mCodecConfig;
+    private MediaCodec mCodec;
+    private MediaFormat mFormat;
+    private boolean mDropping;
+    private MediaCodecCallback mRecorder;
+    private boolean mRecorderWaitingKeyFrame;
+    private long mEvictedFrames;
+    private long mDroppedFrames;
+
+    /**
+     * @param windowUs duration kept, at least, if {@code arenaBytes} and {@code maxFrames} allow.
+     * @param maxFrames e.g. window seconds * fps, with some margin.
+     */
+    public PreRollBuffer(final long windowUs, final int arenaBytes, final int maxFrames) {
+        mWindowUs = windowUs;
+        mArena = ByteBuffer.allocateDirect(arenaBytes);
+        mOffsets = new int[maxFrames];
+        mSizes = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mTimestampsUs = new long[maxFrames];
+    }
+
+    @Override
+    public synchronized void onEncodedFrame(final EncodedFrame frame) {
+        if ((frame.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        if (mRecorder != null) {
+            mRecorderWaitingKeyFrame &= !frame.isKeyFrame();
+            if (!mRecorderWaitingKeyFrame) {
+                mRecorder.onEncodedFrame(frame);
+            }
+        }
+        if (frame.isKeyFrame()) {
+            keepCodecConfig(frame.codecConfig());
+            mDropping = false;
+        } else if (mDropping || mCount == 0) {
+            // the GOP of this frame isn't in the buffer
+            mDroppedFrames++;
+            return;
+        }
+
+        int size = frame.size();
+        int offset = allocate(size, frame.isKeyFrame());
+        if (offset < 0) {
+            // even an empty buffer can't hold it, or it has lost its keyframe
+            mDropping = true;
+            mDroppedFrames++;
+            return;
+        }
+        ByteBuffer dst = mArena.duplicate();
+        dst.position(offset);
+        dst.put(frame.buffer());
+        mArenaTail = offset + size;
+
+        int index = (mHead + mCount) % mOffsets.length;
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mFlags[index] = frame.flags();
+        mTimestampsUs[index] = frame.presentationTimestampUs();
+        mCount++;
+
+        trimWindow(frame.presentationTimestampUs());
+    }
+
+    @Override
+    public synchronized void onOutputFormatChanged(final MediaCodec codec,
+            final MediaFormat format) {
+        mCodec = codec;
+        mFormat = format;
+        clear();
+        if (mRecorder != null) {
+            mRecorderWaitingKeyFrame = true;
+            mRecorder.onOutputFormatChanged(codec, format);
+        }
+    }
+
+    /**
+     * Send the buffered frames, from their first keyframe, and then the live ones to
+     * {@code recorder}.
+     *
+     * @return duration replayed.
+     */
+    public synchronized long startRecording(final MediaCodecCallback recorder) {
+        if (mRecorder != null) {
+            throw new IllegalStateException("already recording");
+        }
+        mRecorder = recorder;
+        mRecorderWaitingKeyFrame = mCount == 0;
+        if (mFormat == null) {
+            return 0;
+        }
+        recorder.onOutputFormatChanged(mCodec, mFormat);
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % mOffsets.length;
+            ByteBuffer payload = mArena.duplicate();
+            payload.limit(mOffsets[index] + mSizes[index]);
+            payload.position(mOffsets[index]);
+            boolean keyFrame = (mFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            ByteBuffer codecConfig = keyFrame && mCodecConfig != null
+                                     ? mCodecConfig.asReadOnlyBuffer()
+                                     : null;
+            EncodedFrame frame = mFramePool.wrap(payload, codecConfig, mFlags[index],
+                    mTimestampsUs[index]);
+            recorder.onEncodedFrame(frame);
+            frame.release();
+        }
+        return bufferedDurationUs();
+    }
+
+    /**
+     * Stop sending frames to the recorder, the buffer keeps filling.
+     *
+     * @return the recorder, to stop it, or null if not recording.
+     */
+    public synchronized MediaCodecCallback stopRecording() {
+        MediaCodecCallback recorder = mRecorder;
+        mRecorder = null;
+        return recorder;
+    }
+
+    public synchronized long bufferedDurationUs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mTimestampsUs[(mHead + mCount - 1) % mOffsets.length] - mTimestampsUs[mHead];
+    }
+
+    public synchronized int bufferedFrames() {
+        return mCount;
+    }
+
+    public synchronized long bufferedBytes() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mArenaHead < mArenaTail
+               ? mArenaTail - mArenaHead
+               : mArena.capacity() - mArenaHead + mArenaTail;
+    }
+
+    /**
+     * @return number of frames evicted with their GOP.
+     */
+    public synchronized long evictedFrames() {
+        return mEvictedFrames;
+    }
+
+    /**
+     * @return number of frames not buffered because their GOP doesn't fit.
+     */
+    public synchronized long droppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return offset where {@code size} bytes fit, evicting GOPs as needed, -1 if they can't.
+     */
+    private int allocate(final int size, final boolean keyFrame) {
+        if (size > mArena.capacity()) {
+            return -1;
+        }
+        while (true) {
+            if (mCount == 0) {
+                mArenaHead = 0;
+                mArenaTail = 0;
+                return 0;
+            }
+            if (mCount < mOffsets.length) {
+                if (mArenaTail > mArenaHead) {
+                    if (mArena.capacity() - mArenaTail >= size) {
+                        return mArenaTail;
+                    }
+                    // wrap around, the end of the arena stays unused until the head passes it
+                    if (mArenaHead >= size) {
+                        return 0;
+                    }
+                } else if (mArenaHead - mArenaTail >= size) {
+                    return mArenaTail;
+                }
+            }
+            if (!keyFrame && nextKeyFrame(1) < 0) {
+                // evicting the current GOP would leave this frame without its keyframe
+                clear();
+                return -1;
+            }
+            evictGop();
+        }
+    }
+
+    private void trimWindow(final long newestUs) {
+        int next;
+        while ((next = nextKeyFrame(1)) > 0
+               && mTimestampsUs[(mHead + next) % mOffsets.length] <= newestUs - mWindowUs) {
+            evictGop();
+        }
+    }
+
+    /**
+     * @return position, relative to the head, of the first keyframe at or after {@code from}, -1
+     * if none.
+     */
+    private int nextKeyFrame(final int from) {
+        for (int i = from; i < mCount; i++) {
+            if ((mFlags[(mHead + i) % mOffsets.length] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void evictGop() {
+        int next = nextKeyFrame(1);
+        int evicted = next < 0 ? mCount : next;
+        mHead = (mHead + evicted) % mOffsets.length;
+        mCount -= evicted;
+        mEvictedFrames += evicted;
+        mArenaHead = mCount == 0 ? 0 : mOffsets[mHead];
+    }
+
+    private void clear() {
+        mEvictedFrames += mCount;
+        mHead = 0;
+        mCount = 0;
+        mArenaHead = 0;
+        mArenaTail = 0;
+    }
+
+    private void keepCodecConfig(final ByteBuffer codecConfig) {
+        if (codecConfig == null || codecConfig.equals(mCodecConfig)) {
+            return;
+        }
+        // replayed frames may still reference the previous one
+        ByteBuffer copy = ByteBuffer.allocate(codecConfig.remaining());
+        copy.put(codecConfig);
+        copy.flip();
+        mCodecConfig = copy;
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.piasy.videocre;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays a recorded trace of encoded frames through a {@link RateController}, on the JVM.
+ *
+ * The trace is recorded at a known codec bitrate, the simulated codec is assumed to produce frames
+ * proportional to the bitrate configured by the controller, i.e. a frame of {@code size} bytes in
+ * the trace becomes {@code size * codecBitrate / traceBitrate} bytes. The achieved bitrate is
+ * measured in 1 second windows, and compared with the target bitrate.
+ */
+public final class RateControlSimulator {
+    private static final long WINDOW_US = 1000_000;
+
+    private RateControlSimulator() {
+        // no instance
+    }
+
+    /**
+     * Parses a trace, one frame per line: {@code <presentationTimestampUs> <sizeBytes>}, lines
+     * starting with {@code #} are ignored.
+     */
+    public static List<Sample> readTrace(final Reader reader) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        List<Sample> trace = new ArrayList<>();
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("[\\s,]+");
+            if (fields.length < 2) {
+                throw new IOException("bad trace line: " + line);
+            }
+            try {
+                trace.add(new Sample(Long.parseLong(fields[0]), Integer.parseInt(fields[1])));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad trace line: " + line, e);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @param traceBitrateBps codec bitrate the trace is recorded with.
+     * @param tolerance the bitrate is converged once the error of a window is within it, e.g. 0.1.
+     */
+    public static Result run(final RateController controller, final List<Sample> trace,
+            final int traceBitrateBps, final int targetBitrateBps, final int targetFps,
+            final double tolerance) {
+        controller.setTargetRates(targetBitrateBps, targetFps);
+        List<Double> windowErrors = new ArrayList<>();
+        long totalBytes = 0;
+        long windowBytes = 0;
+        long windowStartUs = trace.isEmpty() ? 0 : trace.get(0).presentationTimestampUs;
+        long convergenceUs = -1;
+        for (int i = 0, n = trace.size(); i < n; i++) {
+            Sample sample = trace.get(i);
+            while (sample.presentationTimestampUs - windowStartUs >= WINDOW_US) {
+                double error = windowError(windowBytes, WINDOW_US, targetBitrateBps);
+                windowErrors.add(error);
+                if (Math.abs(error) > tolerance) {
+                    convergenceUs = -1;
+                } else if (convergenceUs < 0) {
+                    convergenceUs = windowStartUs - trace.get(0).presentationTimestampUs;
+                }
+                windowBytes = 0;
+                windowStartUs += WINDOW_US;
+            }
+            int size = (int) ((long) sample.sizeBytes * controller.codecBitrateBps()
+                              / traceBitrateBps);
+            totalBytes += size;
+            windowBytes += size;
+            controller.onEncodedFrame(size, sample.presentationTimestampUs);
+        }
+
+        long durationUs = trace.size() < 2 ? 0
+                : trace.get(trace.size() - 1).presentationTimestampUs
+                  - trace.get(0).presentationTimestampUs;
+        // the last frame lasts one frame interval
+        durationUs += trace.isEmpty() || targetFps == 0 ? 0 : WINDOW_US / targetFps;
+        int achievedBitrateBps = durationUs == 0 ? 0 : (int) (totalBytes * 8 * WINDOW_US
+                                                               / durationUs);
+        double errorSum = 0;
+        for (int i = 0, n = windowErrors.size(); i < n; i++) {
+            errorSum += Math.abs(windowErrors.get(i));
+        }
+        double meanAbsError = windowErrors.isEmpty() ? 0 : errorSum / windowErrors.size();
+        return new Result(achievedBitrateBps, Collections.unmodifiableList(windowErrors),
+                meanAbsError, convergenceUs < 0 ? -1 : convergenceUs / 1000,
+                controller.codecBitrateBps());
+    }
+
+    private static double windowError(final long bytes, final long durationUs,
+            final int targetBitrateBps) {
+        double bitrateBps = bytes * 8.0 * WINDOW_US / durationUs;
+        return (bitrateBps - targetBitrateBps) / targetBitrateBps;
+    }
+
+    public static final class Sample {
+        public final long presentationTimestampUs;
+        public final int sizeBytes;
+
+        public Sample(final long presentationTimestampUs, final int sizeBytes) {
+            this.presentationTimestampUs = presentationTimestampUs;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    public static final class Result {
+        public final int achievedBitrateBps;
+        /** (achieved - target) / target of each 1 second window. */
+        public final List<Double> windowErrors;
+        public final double meanAbsError;
+        /** Since when all windows stay within the tolerance, -1 if it never converges. */
+        public final long convergenceTimeMs;
+        public final int finalCodecBitrateBps;
+
+        Result(final int achievedBitrateBps, final List<Double> windowErrors,
+                final double meanAbsError, final long convergenceTimeMs,
+                final int finalCodecBitrateBps) {
+            this.achievedBitrateBps = achievedBitrateBps;
+            this.windowErrors = windowErrors;
+            this.meanAbsError = meanAbsError;
+            this.convergenceTimeMs = convergenceTimeMs;
+            this.finalCodecBitrateBps = finalCodecBitrateBps;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{achievedBitrateBps=" + achievedBitrateBps
+                   + ", meanAbsError=" + meanAbsError
+                   + ", convergenceTimeMs=" + convergenceTimeMs
+                   + ", finalCodecBitrateBps=" + finalCodecBitrateBps
+                   + ", windows=" + windowErrors.size()
+                   + "}";
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.piasy.videocre;
+
+import org.webrtc.MediaCodecVideoEncoder;
+
+/**
+ * Decides the bitrate configured to the codec, given the target rates and the encoded frames.
+ *
+ * Some HW encoders don't hit the configured bitrate, e.g. they ignore frame timestamps, the
+ * controller compensates for it. Called on both the codec thread and the output thread, but never
+ * concurrently. Pure Java, so it can be evaluated on the JVM with {@link RateControlSimulator}.
+ */
+public interface RateController {
+    /**
+     * @return bitrate to configure to the codec.
+     */
+    int setTargetRates(int targetBitrateBps, int targetFps);
+
+    /**
+     * @return whether {@link #codecBitrateBps()} changed and should be applied to the codec.
+     */
+    boolean onEncodedFrame(int sizeBytes, long presentationTimestampUs);
+
+    int codecBitrateBps();
+
+    interface Factory {
+        RateController create(MediaCodecVideoEncoder.BitrateAdjustmentType bitrateAdjustmentType);
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.piasy.videocre;
+
+/**
+ * Writes encoded frames to a file, e.g. {@link Mp4Recorder} or {@link FragmentedMp4Recorder}.
+ */
+public interface Recorder extends MediaCodecCallback {
+    /**
+     * Mark frames passing this recorder at {@link LatencyTracker.Stage#MUXED}.
+     */
+    void setLatencyTracker(LatencyTracker latencyTracker);
+
+    /**
+     * Finish the file, also valid if no frame was written.
+     */
+    void stop();
+}
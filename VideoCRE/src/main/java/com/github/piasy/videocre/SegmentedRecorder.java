@@ -0,0 +1,271 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.Logging;
+
+/**
+ * Splits a recording into segments by duration or size, cut at keyframes, while the encoder keeps
+ * running.
+ *
+ * The next segment is created in the background ahead of time, at a rotation it receives the
+ * cached output format and then the keyframe, and the finished segment is stopped in the
+ * background, so no frame is lost at the boundary and the codec output isn't blocked. If the next
+ * segment isn't ready yet, the rotation is retried at the following keyframe. Only a new output
+ * format, which a segment can't take, waits for the next segment.
+ *
+ * A segment starts with a keyframe: frames before the first keyframe, and after a new output
+ * format until the next keyframe, are dropped, see {@link #droppedFrames()}. Frames arriving
+ * after {@link #stop()} are dropped too.
+ *
+ * Frames must be delivered on one thread at a time, like {@link HwAvcEncoder} does.
+ */
+public class SegmentedRecorder implements MediaCodecCallback {
+    private static final String TAG = "SegmentedRecorder";
+    private static final long STOP_TIMEOUT_MS = 10_000;
+
+    public interface SegmentFactory {
+        /**
+         * Create the recorder of segment {@code index}, counting from 0. Called on a background
+         * thread.
+         */
+        Recorder createSegment(int index) throws IOException;
+
+        /**
+         * Called on a background thread once the segment is stopped, e.g. to upload it, or to
+         * delete it if {@code frames} is 0, which happens to the segment created ahead of time
+         * when the recording stops.
+         */
+        void onSegmentFinished(int index, Recorder segment, long frames);
+    }
+
+    private final SegmentFactory mSegmentFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final ExecutorService mExecutor;
+    // held while handling a frame or stopping
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private boolean mStopped;
+    private Recorder mSegment;
+    private int mSegmentIndex = -1;
+    private long mSegmentFrames;
+    private long mSegmentBytes;
+    private long mSegmentStartUs;
+    private Future<Recorder> mNextSegment;
+    private MediaCodec mCodec;
+    private MediaFormat mFormat;
+    private boolean mFormatChanged;
+
+    private volatile int mSegments;
+    private volatile long mLateRotations;
+    private volatile long mDroppedFrames;
+
+    /**
+     * @param maxDurationUs rotate at the first keyframe after this duration, 0 for no limit.
+     * @param maxBytes rotate at the first keyframe after this size, 0 for no limit.
+     */
+    public SegmentedRecorder(final SegmentFactory segmentFactory, final long maxDurationUs,
+            final long maxBytes) {
+        mSegmentFactory = segmentFactory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(runnable, "SegmentedRecorder");
+            }
+        });
+        prepareNextSegment(0);
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        synchronized (mLock) {
+            if ((frame.flags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                return;
+            }
+            if (mStopped || mFormat == null) {
+                mDroppedFrames++;
+                return;
+            }
+            if (mSegment == null || mFormatChanged) {
+                // the first segment, or the format changed, can't write without a new segment,
+                // which must start with a keyframe
+                if (!frame.isKeyFrame() || !rotate(true)) {
+                    mDroppedFrames++;
+                    return;
+                }
+            } else if (frame.isKeyFrame() && segmentFull(frame.presentationTimestampUs())) {
+                rotate(false);
+            }
+            if (mSegmentFrames == 0) {
+                mSegmentStartUs = frame.presentationTimestampUs();
+            }
+            mSegment.onEncodedFrame(frame);
+            mSegmentFrames++;
+            mSegmentBytes += frame.size();
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        synchronized (mLock) {
+            mCodec = codec;
+            mFormat = format;
+            mFormatChanged = true;
+        }
+    }
+
+    /**
+     * Stop the current segment, and discard the one created ahead of time, waiting for all
+     * segments to be finished. Frames delivered meanwhile or later are dropped.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            stopSegments();
+        }
+        try {
+            if (!mExecutor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Logging.e(TAG, "segments not finished in " + STOP_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of segments started.
+     */
+    public int segments() {
+        return mSegments;
+    }
+
+    /**
+     * @return number of keyframes which should have started a segment, but the next segment
+     * wasn't ready.
+     */
+    public long lateRotations() {
+        return mLateRotations;
+    }
+
+    /**
+     * @return number of frames dropped while waiting for a keyframe, or after {@link #stop()}.
+     */
+    public long droppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void stopSegments() {
+        if (mSegment != null) {
+            finishSegment(mSegmentIndex, mSegment, mSegmentFrames);
+            mSegment = null;
+        }
+        final Future<Recorder> next = mNextSegment;
+        final int nextIndex = mSegmentIndex + 1;
+        mNextSegment = null;
+        if (next != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Recorder segment = next.get();
+                        if (segment != null) {
+                            segment.stop();
+                            mSegmentFactory.onSegmentFinished(nextIndex, segment, 0);
+                        }
+                    } catch (InterruptedException | ExecutionException e) {
+                        Logging.e(TAG, "discard segment " + nextIndex + " fail", e);
+                    }
+                }
+            });
+        }
+        mExecutor.shutdown();
+    }
+
+    private boolean segmentFull(final long presentationTimestampUs) {
+        return (mMaxDurationUs > 0 && presentationTimestampUs - mSegmentStartUs >= mMaxDurationUs)
+               || (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+    }
+
+    /**
+     * @param wait whether to wait for the next segment if it's not ready.
+     * @return whether a segment is open.
+     */
+    private boolean rotate(final boolean wait) {
+        if (!wait && !mNextSegment.isDone()) {
+            mLateRotations++;
+            return mSegment != null;
+        }
+        Recorder next;
+        try {
+            next = mNextSegment.get();
+        } catch (InterruptedException | ExecutionException e) {
+            next = null;
+        }
+        if (next == null) {
+            Logging.e(TAG, "create segment " + (mSegmentIndex + 1) + " fail");
+            // retried at the next rotation, frames go to the current segment meanwhile
+            prepareNextSegment(mSegmentIndex + 1);
+            return mSegment != null && !mFormatChanged;
+        }
+
+        Recorder finished = mSegment;
+        long finishedFrames = mSegmentFrames;
+        mSegment = next;
+        mSegmentIndex++;
+        mSegmentFrames = 0;
+        mSegmentBytes = 0;
+        mSegments++;
+        mSegment.onOutputFormatChanged(mCodec, mFormat);
+        mFormatChanged = false;
+        // create the next one first, stopping a segment may take long
+        prepareNextSegment(mSegmentIndex + 1);
+        if (finished != null) {
+            finishSegment(mSegmentIndex - 1, finished, finishedFrames);
+        }
+        Logging.d(TAG, "start segment " + mSegmentIndex);
+        return true;
+    }
+
+    private void prepareNextSegment(final int index) {
+        mNextSegment = mExecutor.submit(new Callable<Recorder>() {
+            @Override
+            public Recorder call() {
+                try {
+                    return mSegmentFactory.createSegment(index);
+                } catch (IOException e) {
+                    Logging.e(TAG, "create segment " + index + " fail", e);
+                    return null;
+                }
+            }
+        });
+    }
+
+    private void finishSegment(final int index, final Recorder segment, final long frames) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    segment.stop();
+                } catch (RuntimeException e) {
+                    Logging.e(TAG, "stop segment " + index + " fail", e);
+                }
+                mSegmentFactory.onSegmentFinished(index, segment, frames);
+            }
+        });
+    }
+}
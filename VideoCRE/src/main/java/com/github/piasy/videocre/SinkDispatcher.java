@@ -0,0 +1,63 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans frames out to sinks which each have their own bounded queue and thread, an
+ * {@link AsyncRecorder}, so the slowest sink doesn't set the pace for the others, e.g. a file
+ * recorder on a slow SD card and a live network sink.
+ *
+ * Registered as a callback of {@link HwAvcEncoder} or {@link HwSimulcastEncoder}, the codec
+ * output thread only enqueues: a frame is copied into a pooled buffer once, and shared by the
+ * queues. Each sink has its own {@link AsyncRecorder.OverflowPolicy} and metrics, e.g.
+ * {@link AsyncRecorder#lagUs()}.
+ *
+ * Sinks should be added before frames are delivered, a sink added later misses the output
+ * format. No lock is held while dispatching, so a sink blocking the codec output thread with
+ * {@link AsyncRecorder.OverflowPolicy#BLOCK} doesn't block {@link #getSinks()} or {@link #stop()}.
+ * Call {@link #stop()} once the encoder is destroyed, before stopping the sinks.
+ */
+public class SinkDispatcher implements MediaCodecCallback {
+    private final List<AsyncRecorder> mSinks = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return the queue of {@code sink}, for its metrics.
+     */
+    public AsyncRecorder addSink(final MediaCodecCallback sink,
+            final long maxQueuedBytes, final AsyncRecorder.OverflowPolicy overflowPolicy) {
+        AsyncRecorder queue = new AsyncRecorder(sink, maxQueuedBytes, overflowPolicy);
+        mSinks.add(queue);
+        return queue;
+    }
+
+    public List<AsyncRecorder> getSinks() {
+        return Collections.unmodifiableList(mSinks);
+    }
+
+    @Override
+    public void onEncodedFrame(final EncodedFrame frame) {
+        for (AsyncRecorder sink : mSinks) {
+            sink.onEncodedFrame(frame);
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        for (AsyncRecorder sink : mSinks) {
+            sink.onOutputFormatChanged(codec, format);
+        }
+    }
+
+    /**
+     * Write the queued frames of all sinks, and stop their threads.
+     */
+    public void stop() {
+        for (AsyncRecorder sink : mSinks) {
+            sink.stop();
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.piasy.videocre;
 
 import com.google.auto.value.AutoValue;
+import java.util.Collections;
+import java.util.List;
+import org.webrtc.MediaCodecVideoEncoder;
 
 /**
  * Created by Piasy{github.com/Piasy} on 20/07/2017.
@@ -10,7 +13,17 @@ import com.google.auto.value.AutoValue;
 public abstract class VideoConfig {
 
     public static Builder builder() {
-        return new AutoValue_VideoConfig.Builder();
+        return new AutoValue_VideoConfig.Builder()
+                .prependCodecConfig(false)
+                .inputQueueCapacity(2)
+                .inputDropPolicy(FrameQueue.DropPolicy.DROP_OLDEST)
+                .codec(MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H264)
+                .profile(MediaCodecVideoEncoder.H264Profile.CONSTRAINED_BASELINE)
+                .fallbackCodecs(Collections.<MediaCodecVideoEncoder.VideoCodecType>emptyList())
+                .keyFrameIntervalSec(0)
+                .intraRefreshPeriod(0)
+                .bitrateMode(MediaCodecVideoEncoder.BitrateMode.CBR)
+                .minKeyFrameRequestIntervalMs(1000);
     }
 
     public abstract int previewWidth();
@@ -21,10 +34,80 @@ public abstract class VideoConfig {
 
     public abstract int outputHeight();
 
+    /**
+     * Max frame rate encoded, captured frames above it are dropped by {@link FrameDecimator}.
+     */
     public abstract int fps();
 
     public abstract int outputBitrate();
 
+    /**
+     * Whether H.264 keyframes are delivered with SPS and PPS copied in front of the payload, for
+     * sinks needing the contiguous layout. By default they are referenced by
+     * {@link EncodedFrame#codecConfig()} without copying.
+     */
+    public abstract boolean prependCodecConfig();
+
+    /**
+     * Max number of frames waiting to be encoded, 2 by default.
+     */
+    public abstract int inputQueueCapacity();
+
+    /**
+     * What to drop when {@link #inputQueueCapacity()} is reached, oldest frame by default.
+     */
+    public abstract FrameQueue.DropPolicy inputDropPolicy();
+
+    /**
+     * Preferred codec, H.264 by default. Note that {@link Mp4Recorder} can't mux VP8 or VP9, and
+     * H.265 needs Android N for muxing.
+     */
+    public abstract MediaCodecVideoEncoder.VideoCodecType codec();
+
+    /**
+     * H.264 profile, constrained baseline by default, high profile is used only if supported.
+     */
+    public abstract MediaCodecVideoEncoder.H264Profile profile();
+
+    /**
+     * Codecs to try in order, when {@link #codec()} isn't supported, or fails to configure or
+     * start. None by default.
+     */
+    public abstract List<MediaCodecVideoEncoder.VideoCodecType> fallbackCodecs();
+
+    /**
+     * Seconds between keyframes, 0 by default for the codec default: 2 for H.264 and H.265, 100
+     * for VP8 and VP9.
+     */
+    public abstract int keyFrameIntervalSec();
+
+    /**
+     * Frames to refresh the whole picture with intra macroblocks, spreading the cost of a keyframe
+     * over them, 0 by default to disable intra refresh. Needs Android N and codec support, combine
+     * it with a long {@link #keyFrameIntervalSec()}.
+     */
+    public abstract int intraRefreshPeriod();
+
+    /**
+     * CBR by default, VBR and CQ are used only if supported by the codec.
+     */
+    public abstract MediaCodecVideoEncoder.BitrateMode bitrateMode();
+
+    /**
+     * Min time between keyframes forced by {@link HwAvcEncoder#requestKeyFrame()}, 1 second by
+     * default, requests within it are coalesced.
+     */
+    public abstract int minKeyFrameRequestIntervalMs();
+
+    /**
+     * @return mode to request, see {@link MediaCodecVideoEncoder#getAcceptedEncoderMode()} for
+     * what the codec accepts.
+     */
+    public MediaCodecVideoEncoder.EncoderMode encoderMode() {
+        return new MediaCodecVideoEncoder.EncoderMode(keyFrameIntervalSec(), intraRefreshPeriod(),
+                bitrateMode());
+    }
+
     @AutoValue.Builder
     public abstract static class Builder {
         public abstract Builder previewWidth(int previewWidth);
@@ -39,6 +122,27 @@ public abstract class VideoConfig {
 
         public abstract Builder outputBitrate(int outputBitrate);
 
+        public abstract Builder prependCodecConfig(boolean prependCodecConfig);
+
+        public abstract Builder inputQueueCapacity(int inputQueueCapacity);
+
+        public abstract Builder inputDropPolicy(FrameQueue.DropPolicy inputDropPolicy);
+
+        public abstract Builder codec(MediaCodecVideoEncoder.VideoCodecType codec);
+
+        public abstract Builder profile(MediaCodecVideoEncoder.H264Profile profile);
+
+        public abstract Builder fallbackCodecs(
+                List<MediaCodecVideoEncoder.VideoCodecType> fallbackCodecs);
+
+        public abstract Builder keyFrameIntervalSec(int keyFrameIntervalSec);
+
+        public abstract Builder intraRefreshPeriod(int intraRefreshPeriod);
+
+        public abstract Builder bitrateMode(MediaCodecVideoEncoder.BitrateMode bitrateMode);
+
+        public abstract Builder minKeyFrameRequestIntervalMs(int minKeyFrameRequestIntervalMs);
+
         public abstract VideoConfig build();
     }
 }
@@ -0,0 +1,89 @@
+package com.github.piasy.videocre;
+
+import org.webrtc.EglBase;
+import org.webrtc.MediaCodecVideoEncoder;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+/**
+ * An encoder driven by {@link HwAvcEncoder}, {@link MediaCodecVideoEncoder} on devices, or
+ * {@link LoopbackVideoEncoder} to exercise the pipeline on a JVM.
+ *
+ * Except the capability queries, methods are called on one thread, the one calling
+ * {@link #initEncode}. Encoded frames are delivered to the {@link MediaCodecCallback} given to
+ * {@link #initEncode}, on a thread of the encoder.
+ */
+public interface VideoEncoder {
+    /**
+     * @param useSurface whether frames are fed as textures.
+     */
+    boolean supportsCodec(VideoCodecType type, boolean useSurface);
+
+    /**
+     * @return whether {@code type} claims to encode {@code width} x {@code height} at {@code fps},
+     * true if unknown.
+     */
+    boolean supportsSizeAndRate(VideoCodecType type, boolean useSurface, int width, int height,
+            int fps);
+
+    /**
+     * @return the max frame rate {@code type} is measured to achieve at {@code width} x
+     * {@code height}, 0 if it can't encode that size, -1 if unknown.
+     */
+    double getAchievableFrameRate(VideoCodecType type, boolean useSurface, int width, int height);
+
+    /**
+     * Must be called before {@link #initEncode}.
+     */
+    void setRateControllerFactory(RateController.Factory rateControllerFactory);
+
+    /**
+     * Must be called before {@link #initEncode}.
+     *
+     * @see VideoConfig#prependCodecConfig()
+     */
+    void setPrependCodecConfig(boolean prependCodecConfig);
+
+    /**
+     * Must be called before {@link #initEncode}.
+     */
+    void setEncoderMode(MediaCodecVideoEncoder.EncoderMode mode);
+
+    /**
+     * @param profile {@link MediaCodecVideoEncoder.H264Profile#getValue()}.
+     * @param sharedContext encode textures with a context shared with it, or null to encode
+     * {@link YuvFrame}s.
+     * @return whether the encoder is configured and started, it's released otherwise.
+     */
+    boolean initEncode(VideoCodecType type, int profile, int width, int height, int kbps, int fps,
+            EglBase.Context sharedContext, MediaCodecCallback callback);
+
+    boolean encodeTexture(boolean isKeyframe, int oesTextureId, float[] transformationMatrix,
+            long presentationTimestampUs);
+
+    /**
+     * The caller keeps its reference to {@code frame}.
+     */
+    boolean encodeYuvFrame(boolean isKeyframe, YuvFrame frame);
+
+    /**
+     * @return false if the encoder doesn't support changing bitrate.
+     */
+    boolean setRates(int kbps, int frameRate);
+
+    /**
+     * @return bitrate applied to the codec, which may differ from the target bitrate.
+     */
+    int getCodecBitrateKbps();
+
+    /**
+     * @return mode configured by the last {@link #initEncode}, null before it.
+     */
+    MediaCodecVideoEncoder.EncoderMode getAcceptedEncoderMode();
+
+    /**
+     * No frame is delivered once this returns.
+     *
+     * @throws RuntimeException if the codec hangs or fails to release.
+     */
+    void release();
+}
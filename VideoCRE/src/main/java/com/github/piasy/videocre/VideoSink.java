@@ -1,7 +1,9 @@
 package com.github.piasy.videocre;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.webrtc.Logging;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFrame;
@@ -11,20 +13,41 @@ import org.webrtc.VideoRenderer;
  * Created by Piasy{github.com/Piasy} on 20/07/2017.
  */
 
-public class VideoSink implements VideoCapturer.CapturerObserver {
+public class VideoSink implements VideoCapturer.CapturerObserver, BackpressureListener {
 
     private static final String TAG = "VideoSink";
 
     private final List<VideoRenderer.Callbacks> mCallbacks;
+    private final List<YuvFrame.Sink> mYuvFrameSinks;
     private final MatrixHelper mMatrixHelper;
+    private final YuvFramePool mYuvFramePool;
 
     private volatile boolean mFlipHorizontal;
     private volatile boolean mFlipVertical;
     private volatile float mRotateDegree;
+    private volatile LatencyTracker mLatencyTracker;
+
+    // guarded by this
+    private int mSaturatedEncoders;
+    private BackpressureListener mBackpressureListener;
 
     public VideoSink(final VideoRenderer.Callbacks... callbacks) {
         mCallbacks = Arrays.asList(callbacks);
+        mYuvFrameSinks = new ArrayList<>();
+        for (VideoRenderer.Callbacks callback : callbacks) {
+            if (callback instanceof YuvFrame.Sink) {
+                mYuvFrameSinks.add((YuvFrame.Sink) callback);
+            }
+        }
         mMatrixHelper = new MatrixHelper();
+        mYuvFramePool = new YuvFramePool();
+    }
+
+    /**
+     * Mark frames passing this sink at {@link LatencyTracker.Stage#SINK}.
+     */
+    public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        mLatencyTracker = latencyTracker;
     }
 
     public void flipHorizontal(boolean flip) {
@@ -39,6 +62,26 @@ public class VideoSink implements VideoCapturer.CapturerObserver {
         mRotateDegree = rotateDegree;
     }
 
+    /**
+     * Notified when any encoder registered with this sink (through
+     * {@link HwAvcEncoder#setBackpressureListener(BackpressureListener)}) starts dropping frames,
+     * and when all of them catch up, so the capture could slow down and speed up.
+     */
+    public synchronized void setBackpressureListener(final BackpressureListener listener) {
+        mBackpressureListener = listener;
+    }
+
+    @Override
+    public synchronized void onBackpressureChanged(final boolean saturated) {
+        mSaturatedEncoders += saturated ? 1 : -1;
+        boolean changed = saturated ? mSaturatedEncoders == 1 : mSaturatedEncoders == 0;
+        Logging.d(TAG, "onBackpressureChanged " + saturated + ", saturated encoders "
+                       + mSaturatedEncoders);
+        if (changed && mBackpressureListener != null) {
+            mBackpressureListener.onBackpressureChanged(saturated);
+        }
+    }
+
     @Override
     public void onCapturerStarted(final boolean success) {
         Logging.d(TAG, "onCapturerStarted " + success);
@@ -52,11 +95,23 @@ public class VideoSink implements VideoCapturer.CapturerObserver {
     @Override
     public void onByteBufferFrameCaptured(final byte[] data, final int width, final int height,
             final int rotation, final long timestamp) {
+        // byte frames are NV21, only delivered to callbacks accepting them, e.g. HwAvcEncoder
+        if (mYuvFrameSinks.isEmpty()) {
+            return;
+        }
+        markLatency(timestamp);
+        YuvFrame frame = mYuvFramePool.obtain(data, YuvFrame.FORMAT_NV21, width, height,
+                rotation, timestamp);
+        for (int i = 0, n = mYuvFrameSinks.size(); i < n; i++) {
+            mYuvFrameSinks.get(i).onYuvFrame(frame);
+        }
+        frame.release();
     }
 
     @Override
     public void onTextureFrameCaptured(final int width, final int height, final int oesTextureId,
             final float[] transformMatrix, final int rotation, final long timestamp) {
+        markLatency(timestamp);
         mMatrixHelper.flip(transformMatrix, mFlipHorizontal, mFlipVertical);
         mMatrixHelper.rotate(transformMatrix, mRotateDegree);
 
@@ -70,4 +125,12 @@ public class VideoSink implements VideoCapturer.CapturerObserver {
     @Override
     public void onFrameCaptured(final VideoFrame frame) {
     }
+
+    private void markLatency(final long timestampNs) {
+        LatencyTracker latencyTracker = mLatencyTracker;
+        if (latencyTracker != null) {
+            latencyTracker.mark(LatencyTracker.Stage.SINK,
+                    TimeUnit.NANOSECONDS.toMicros(timestampNs));
+        }
+    }
 }
@@ -0,0 +1,82 @@
+package com.github.piasy.videocre;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ref-counted frame captured into a byte array, e.g. by Camera1 or {@code FileVideoCapturer}.
+ *
+ * The pixel array comes from a {@link YuvFramePool}, and goes back to it when the last reference
+ * is released. Sinks must {@link #retain()} the frame if they use it after
+ * {@link Sink#onYuvFrame(YuvFrame)} returns.
+ */
+public final class YuvFrame {
+    public static final int FORMAT_I420 = 1;
+    public static final int FORMAT_NV21 = 2;
+
+    public interface Sink {
+        void onYuvFrame(YuvFrame frame);
+    }
+
+    private final YuvFramePool mPool;
+    private final byte[] mData;
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final long mTimestampNs;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    YuvFrame(final YuvFramePool pool, final byte[] data, final int format, final int width,
+            final int height, final int rotation, final long timestampNs) {
+        mPool = pool;
+        mData = data;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mTimestampNs = timestampNs;
+    }
+
+    /**
+     * @return pixels, the array may be larger than {@link YuvPacker#frameSize(int, int)}.
+     */
+    public byte[] data() {
+        return mData;
+    }
+
+    /**
+     * @return {@link #FORMAT_I420} or {@link #FORMAT_NV21}.
+     */
+    public int format() {
+        return mFormat;
+    }
+
+    public int width() {
+        return mWidth;
+    }
+
+    public int height() {
+        return mHeight;
+    }
+
+    public int rotation() {
+        return mRotation;
+    }
+
+    public long timestampNs() {
+        return mTimestampNs;
+    }
+
+    public void retain() {
+        mRefCount.incrementAndGet();
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mPool.recycle(mData);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("YuvFrame released too many times");
+        }
+    }
+}
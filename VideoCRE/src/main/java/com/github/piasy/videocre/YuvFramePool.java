@@ -0,0 +1,67 @@
+package com.github.piasy.videocre;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of pixel arrays backing {@link YuvFrame}, so captured frames could be handed to encoders
+ * on other threads without allocating an array for each frame.
+ *
+ * Thread safe.
+ */
+public class YuvFramePool {
+    private static final int DEFAULT_MAX_POOLED_ARRAYS = 4;
+
+    private final int mMaxPooledArrays;
+    private final List<byte[]> mFreeArrays;
+
+    public YuvFramePool() {
+        this(DEFAULT_MAX_POOLED_ARRAYS);
+    }
+
+    public YuvFramePool(final int maxPooledArrays) {
+        if (maxPooledArrays < 1) {
+            throw new IllegalArgumentException("maxPooledArrays must be positive");
+        }
+        mMaxPooledArrays = maxPooledArrays;
+        mFreeArrays = new ArrayList<>(maxPooledArrays);
+    }
+
+    /**
+     * Copy {@code data} into a pooled frame, the capturer could reuse {@code data} once this
+     * returns.
+     *
+     * @return a frame holding one reference, owned by the caller.
+     */
+    public YuvFrame obtain(final byte[] data, final int format, final int width, final int height,
+            final int rotation, final long timestampNs) {
+        int size = YuvPacker.frameSize(width, height);
+        if (data.length < size) {
+            throw new IllegalArgumentException("frame too small: " + data.length + " < " + size);
+        }
+        byte[] array = take(size);
+        System.arraycopy(data, 0, array, 0, size);
+        return new YuvFrame(this, array, format, width, height, rotation, timestampNs);
+    }
+
+    private byte[] take(final int size) {
+        synchronized (mFreeArrays) {
+            for (int i = mFreeArrays.size() - 1; i >= 0; i--) {
+                if (mFreeArrays.get(i).length == size) {
+                    return mFreeArrays.remove(i);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    void recycle(final byte[] array) {
+        synchronized (mFreeArrays) {
+            if (mFreeArrays.size() >= mMaxPooledArrays) {
+                // evict the oldest, it may be of a previous resolution
+                mFreeArrays.remove(0);
+            }
+            mFreeArrays.add(array);
+        }
+    }
+}
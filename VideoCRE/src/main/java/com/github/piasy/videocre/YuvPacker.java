@@ -0,0 +1,97 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs I420 or NV21 frames into codec input buffers, in pure Java.
+ *
+ * Codec input is either planar (I420, COLOR_FormatYUV420Planar) or semi-planar (NV12, the other
+ * supported color formats), with strides equal to the width, like WebRTC's native
+ * implementation. Y plane is copied in bulk, chroma planes are rearranged in a caller-provided
+ * staging array of at least {@link #stagingSize(int, int)} bytes then copied in bulk, so packing
+ * doesn't allocate, and doesn't access the (usually direct) codec buffer byte by byte.
+ */
+public final class YuvPacker {
+    private YuvPacker() {
+        // no instance
+    }
+
+    /**
+     * @return size of an I420 or NV21 frame, also the size of packed codec input.
+     */
+    public static int frameSize(final int width, final int height) {
+        return width * height + 2 * chromaSize(width, height);
+    }
+
+    public static int stagingSize(final int width, final int height) {
+        return 2 * chromaSize(width, height);
+    }
+
+    /**
+     * @return number of bytes written to {@code dst}, starting at its position.
+     */
+    public static int packI420(final byte[] src, final int width, final int height,
+            final boolean semiPlanar, final ByteBuffer dst, final byte[] staging) {
+        int ySize = width * height;
+        int chromaSize = chromaSize(width, height);
+        checkSizes(src, width, height, dst, staging);
+        if (!semiPlanar) {
+            dst.put(src, 0, ySize + 2 * chromaSize);
+            return ySize + 2 * chromaSize;
+        }
+        dst.put(src, 0, ySize);
+        int u = ySize;
+        int v = ySize + chromaSize;
+        for (int i = 0; i < chromaSize; i++) {
+            staging[2 * i] = src[u + i];
+            staging[2 * i + 1] = src[v + i];
+        }
+        dst.put(staging, 0, 2 * chromaSize);
+        return ySize + 2 * chromaSize;
+    }
+
+    /**
+     * @return number of bytes written to {@code dst}, starting at its position.
+     */
+    public static int packNv21(final byte[] src, final int width, final int height,
+            final boolean semiPlanar, final ByteBuffer dst, final byte[] staging) {
+        int ySize = width * height;
+        int chromaSize = chromaSize(width, height);
+        checkSizes(src, width, height, dst, staging);
+        dst.put(src, 0, ySize);
+        int vu = ySize;
+        if (semiPlanar) {
+            // NV21 is VU interleaved, NV12 is UV interleaved
+            for (int i = 0; i < chromaSize; i++) {
+                staging[2 * i] = src[vu + 2 * i + 1];
+                staging[2 * i + 1] = src[vu + 2 * i];
+            }
+        } else {
+            for (int i = 0; i < chromaSize; i++) {
+                staging[i] = src[vu + 2 * i + 1];
+                staging[chromaSize + i] = src[vu + 2 * i];
+            }
+        }
+        dst.put(staging, 0, 2 * chromaSize);
+        return ySize + 2 * chromaSize;
+    }
+
+    private static int chromaSize(final int width, final int height) {
+        return ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    private static void checkSizes(final byte[] src, final int width, final int height,
+            final ByteBuffer dst, final byte[] staging) {
+        int frameSize = frameSize(width, height);
+        if (src.length < frameSize) {
+            throw new IllegalArgumentException("src too small: " + src.length + " < " + frameSize);
+        }
+        if (dst.remaining() < frameSize) {
+            throw new IllegalArgumentException(
+                    "dst too small: " + dst.remaining() + " < " + frameSize);
+        }
+        if (staging.length < stagingSize(width, height)) {
+            throw new IllegalArgumentException("staging too small: " + staging.length);
+        }
+    }
+}
@@ -23,6 +23,15 @@ public abstract class EglBase {
   // EGL wrapper for an actual EGLContext.
   public static class Context {}
 
+  // An EGLSurface created by createWindowSurface(), independent from the surface of the EglBase.
+  public interface WindowSurface {
+    void makeCurrent();
+
+    void swapBuffers(long timestampNs);
+
+    void release();
+  }
+
   // According to the documentation, EGL can be used from multiple threads at the same time if each
   // thread has its own EGLContext, but in practice it deadlocks on some devices when doing this.
   // Therefore, synchronize on this global lock before calling dangerous EGL functions that might
@@ -142,6 +151,10 @@ public abstract class EglBase {
 
   public abstract void createSurface(Surface surface);
 
+  // Create an additional EGLSurface from the Android Surface, rendered with this EGL context. Used
+  // to draw the same frame into several surfaces without switching contexts.
+  public abstract WindowSurface createWindowSurface(Surface surface);
+
   // Create EGLSurface from the Android SurfaceTexture.
   public abstract void createSurface(SurfaceTexture surfaceTexture);
 
@@ -57,6 +57,10 @@ class EglBase10 extends EglBase {
 
   @Override
   public void createSurface(Surface surface) {
+    createSurfaceInternal(toNativeWindow(surface));
+  }
+
+  private static Object toNativeWindow(Surface surface) {
     /**
      * We have to wrap Surface in a SurfaceHolder because for some reason eglCreateWindowSurface
      * couldn't actually take a Surface object until API 17. Older versions fortunately just call
@@ -120,7 +124,7 @@ class EglBase10 extends EglBase {
       }
     }
 
-    createSurfaceInternal(new FakeSurfaceHolder(surface));
+    return new FakeSurfaceHolder(surface);
   }
 
   // Create EGLSurface from the Android SurfaceTexture.
@@ -131,19 +135,58 @@ class EglBase10 extends EglBase {
 
   // Create EGLSurface from either a SurfaceHolder or a SurfaceTexture.
   private void createSurfaceInternal(Object nativeWindow) {
-    if (!(nativeWindow instanceof SurfaceHolder) && !(nativeWindow instanceof SurfaceTexture)) {
-      throw new IllegalStateException("Input must be either a SurfaceHolder or SurfaceTexture");
-    }
     checkIsNotReleased();
     if (eglSurface != EGL10.EGL_NO_SURFACE) {
       throw new RuntimeException("Already has an EGLSurface");
     }
+    eglSurface = createEglWindowSurface(nativeWindow);
+  }
+
+  // Create an EGLSurface from either a SurfaceHolder or a SurfaceTexture, without making it the
+  // surface of this EglBase.
+  private EGLSurface createEglWindowSurface(Object nativeWindow) {
+    if (!(nativeWindow instanceof SurfaceHolder) && !(nativeWindow instanceof SurfaceTexture)) {
+      throw new IllegalStateException("Input must be either a SurfaceHolder or SurfaceTexture");
+    }
     int[] surfaceAttribs = {EGL10.EGL_NONE};
-    eglSurface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, nativeWindow, surfaceAttribs);
-    if (eglSurface == EGL10.EGL_NO_SURFACE) {
+    EGLSurface surface =
+        egl.eglCreateWindowSurface(eglDisplay, eglConfig, nativeWindow, surfaceAttribs);
+    if (surface == EGL10.EGL_NO_SURFACE) {
       throw new RuntimeException(
           "Failed to create window surface: 0x" + Integer.toHexString(egl.eglGetError()));
     }
+    return surface;
+  }
+
+  @Override
+  public WindowSurface createWindowSurface(Surface surface) {
+    checkIsNotReleased();
+    final EGLSurface windowSurface = createEglWindowSurface(toNativeWindow(surface));
+    return new WindowSurface() {
+      @Override
+      public void makeCurrent() {
+        checkIsNotReleased();
+        synchronized (EglBase.lock) {
+          if (!egl.eglMakeCurrent(eglDisplay, windowSurface, windowSurface, eglContext)) {
+            throw new RuntimeException(
+                "eglMakeCurrent failed: 0x" + Integer.toHexString(egl.eglGetError()));
+          }
+        }
+      }
+
+      @Override
+      public void swapBuffers(long timestampNs) {
+        checkIsNotReleased();
+        synchronized (EglBase.lock) {
+          egl.eglSwapBuffers(eglDisplay, windowSurface);
+        }
+      }
+
+      @Override
+      public void release() {
+        egl.eglDestroySurface(eglDisplay, windowSurface);
+      }
+    };
   }
 
   // Create dummy 1x1 pixel buffer surface so the context can be made current.
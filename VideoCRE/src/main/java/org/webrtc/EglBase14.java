@@ -90,6 +90,46 @@ class EglBase14 extends EglBase {
     }
   }
 
+  @Override
+  public WindowSurface createWindowSurface(Surface surface) {
+    checkIsNotReleased();
+    int[] surfaceAttribs = {EGL14.EGL_NONE};
+    final EGLSurface windowSurface =
+        EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, surfaceAttribs, 0);
+    if (windowSurface == EGL14.EGL_NO_SURFACE) {
+      throw new RuntimeException(
+          "Failed to create window surface: 0x" + Integer.toHexString(EGL14.eglGetError()));
+    }
+    return new WindowSurface() {
+      @Override
+      public void makeCurrent() {
+        checkIsNotReleased();
+        synchronized (EglBase.lock) {
+          if (!EGL14.eglMakeCurrent(eglDisplay, windowSurface, windowSurface, eglContext)) {
+            throw new RuntimeException(
+                "eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+          }
+        }
+      }
+
+      @Override
+      public void swapBuffers(long timestampNs) {
+        checkIsNotReleased();
+        synchronized (EglBase.lock) {
+          if (timestampNs != -1) {
+            EGLExt.eglPresentationTimeANDROID(eglDisplay, windowSurface, timestampNs);
+          }
+          EGL14.eglSwapBuffers(eglDisplay, windowSurface);
+        }
+      }
+
+      @Override
+      public void release() {
+        EGL14.eglDestroySurface(eglDisplay, windowSurface);
+      }
+    };
+  }
+
   @Override
   public void createDummyPbufferSurface() {
     createPbufferSurface(1, 1);
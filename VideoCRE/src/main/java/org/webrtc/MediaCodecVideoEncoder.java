@@ -10,6 +10,7 @@
 
 package org.webrtc;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecInfo.CodecCapabilities;
@@ -18,21 +19,35 @@ import android.media.MediaFormat;
 import android.opengl.GLES20;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Range;
 import android.view.Surface;
+import com.github.piasy.videocre.CodecReleaseWatchdog;
+import com.github.piasy.videocre.DefaultRateController;
+import com.github.piasy.videocre.EncodedFrame;
+import com.github.piasy.videocre.EncoderCapabilityCache;
+import com.github.piasy.videocre.EncodedFramePool;
 import com.github.piasy.videocre.MediaCodecCallback;
+import com.github.piasy.videocre.RateController;
+import com.github.piasy.videocre.VideoEncoder;
+import com.github.piasy.videocre.YuvFrame;
+import com.github.piasy.videocre.YuvPacker;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 // Java-side of peerconnection_jni.cc:MediaCodecVideoEncoder.
 // This class is an implementation detail of the Java PeerConnection API.
 @SuppressWarnings("deprecation")
-public class MediaCodecVideoEncoder {
+public class MediaCodecVideoEncoder implements VideoEncoder {
   // This class is constructed, operated, and destroyed by its C++ incarnation,
   // so the class and its methods have non-public visibility.  The API this
   // class exposes aims to mimic the webrtc::VideoEncoder API as closely as
@@ -41,18 +56,21 @@ public class MediaCodecVideoEncoder {
   private static final String TAG = "MediaCodecVideoEncoder";
 
   // Tracks webrtc::VideoCodecType.
-  public enum VideoCodecType { VIDEO_CODEC_VP8, VIDEO_CODEC_VP9, VIDEO_CODEC_H264 }
+  public enum VideoCodecType {
+    VIDEO_CODEC_VP8,
+    VIDEO_CODEC_VP9,
+    VIDEO_CODEC_H264,
+    VIDEO_CODEC_H265
+  }
 
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000; // Timeout for codec releasing.
+  private static final int MAX_CONCURRENT_RELEASES = 2;
   private static final int DEQUEUE_TIMEOUT = 0; // Non-blocking, no wait.
   private static final int OUTPUT_THREAD_DEQUEUE_TIMEOUT_US = 3000; // 3 ms
-  private static final int BITRATE_ADJUSTMENT_FPS = 30;
+  // Number of in-flight frames whose queue time is kept for output delay statistics.
+  private static final int OUTPUT_DELAY_TRACKED_FRAMES = 32;
+  private static final int BITRATE_ADJUSTMENT_FPS = DefaultRateController.BITRATE_ADJUSTMENT_FPS;
   private static final int MAXIMUM_INITIAL_FPS = 30;
-  private static final double BITRATE_CORRECTION_SEC = 3.0;
-  // Maximum bitrate correction scale - no more than 4 times.
-  private static final double BITRATE_CORRECTION_MAX_SCALE = 4;
-  // Amount of correction steps to reach correction maximum scale.
-  private static final int BITRATE_CORRECTION_STEPS = 20;
   // Forced key frame interval - used to reduce color distortions on Qualcomm platform.
   private static final long QCOM_VP8_KEY_FRAME_INTERVAL_ANDROID_L_MS = 15000;
   private static final long QCOM_VP8_KEY_FRAME_INTERVAL_ANDROID_M_MS = 20000;
@@ -65,10 +83,22 @@ public class MediaCodecVideoEncoder {
   private static int codecErrors = 0;
   // List of disabled codec types - can be set from application.
   private static Set<String> hwEncoderDisabledTypes = new HashSet<String>();
+  // Results of findHwEncoder(), shared by the static queries and initEncode().
+  private static final EncoderCapabilityCache capabilityCache =
+      new EncoderCapabilityCache(Build.FINGERPRINT);
+  // Runs MediaCodec stop() and release(), which may hang, on a bounded pool of threads.
+  private static final CodecReleaseWatchdog releaseWatchdog =
+      new CodecReleaseWatchdog(MAX_CONCURRENT_RELEASES);
+  // Whether MediaCodec.Callback based output is disabled - can be set from application.
+  private static boolean asyncOutputDisabled = false;
 
   private Thread mediaCodecThread;
   private MediaCodec mediaCodec;
   private ByteBuffer[] outputBuffers;
+  // Input buffers for encodeYuvFrame() before Lollipop, and the array chroma planes are rearranged
+  // in before being copied into them.
+  private ByteBuffer[] inputBuffers;
+  private byte[] packStaging;
   private EglBase eglBase;
   private int profile;
   private int width;
@@ -76,11 +106,25 @@ public class MediaCodecVideoEncoder {
   private Surface inputSurface;
   private GlRectDrawer drawer;
 
-  // Thread that delivers encoded frames to the user callback.
+  // Thread that delivers encoded frames to the user callback. In async output mode this is a
+  // HandlerThread receiving MediaCodec.Callback events, or null if the events are delivered on the
+  // looper of |mediaCodecThread|.
   private Thread outputThread;
+  private Handler outputHandler;
+  // Whether encoded frames are delivered through MediaCodec.Callback instead of polling.
+  private boolean asyncOutput;
+  // Input buffers reported by MediaCodec.Callback, only used in async output mode.
+  private final ArrayDeque<Integer> availableInputBuffers = new ArrayDeque<Integer>();
   private MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
-  private ByteBuffer keyFrameData = ByteBuffer.allocateDirect(10240); // pre-allocate 10 KB
-  private OutputBufferInfo outputFrame = new OutputBufferInfo();
+  // Pool for encoded frames retained by the callback, or assembled with SPS and PPS NALs.
+  private final EncodedFramePool framePool = new EncodedFramePool();
+  // Whether H.264 keyframes are delivered with SPS and PPS NALs copied in front of the payload,
+  // instead of referenced by EncodedFrame.codecConfig().
+  private volatile boolean prependCodecConfig;
+  // Mode requested by setEncoderMode(), and the one configured by the last initEncode().
+  private EncoderMode requestedEncoderMode = new EncoderMode(0, 0, BitrateMode.CBR);
+  private volatile EncoderMode acceptedEncoderMode;
+  private long initTimeNs;
   private MediaCodecCallback callback;
   // Whether the encoder is running.  Volatile so that the output thread can watch this value and
   // exit when the encoder stops.
@@ -89,6 +133,7 @@ public class MediaCodecVideoEncoder {
   private static final String VP8_MIME_TYPE = "video/x-vnd.on2.vp8";
   private static final String VP9_MIME_TYPE = "video/x-vnd.on2.vp9";
   private static final String H264_MIME_TYPE = "video/avc";
+  private static final String H265_MIME_TYPE = "video/hevc";
 
   private static final int VIDEO_AVCProfileHigh = 8;
   private static final int VIDEO_AVCLevel3 = 0x100;
@@ -125,6 +170,45 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  // Bitrate modes, values are in sync with MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*.
+  public static enum BitrateMode {
+    // Constant quality, bitrate is ignored.
+    CQ(0),
+    VBR(1),
+    CBR(2);
+
+    private final int value;
+
+    BitrateMode(int value) {
+      this.value = value;
+    }
+
+    public int getValue() {
+      return value;
+    }
+  }
+
+  // GOP and rate control of the encoder. Requested with setEncoderMode(), the codec may accept
+  // only part of it, see getAcceptedEncoderMode().
+  public static class EncoderMode {
+    public EncoderMode(int keyFrameIntervalSec, int intraRefreshPeriod, BitrateMode bitrateMode) {
+      this.keyFrameIntervalSec = keyFrameIntervalSec;
+      this.intraRefreshPeriod = intraRefreshPeriod;
+      this.bitrateMode = bitrateMode;
+    }
+    // Seconds between keyframes, 0 for the codec type default.
+    public final int keyFrameIntervalSec;
+    // Frames to refresh the whole picture with intra macroblocks, 0 to disable intra refresh.
+    public final int intraRefreshPeriod;
+    public final BitrateMode bitrateMode;
+
+    @Override
+    public String toString() {
+      return "EncoderMode{keyFrameIntervalSec=" + keyFrameIntervalSec + ", intraRefreshPeriod="
+          + intraRefreshPeriod + ", bitrateMode=" + bitrateMode + "}";
+    }
+  }
+
   // Class describing supported media codec properties.
   private static class MediaCodecProperties {
     public final String codecPrefix;
@@ -143,6 +227,47 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  // Releases the input surface and its EGL context once the codec no longer uses them. If the
+  // codec release waits for a release thread or hangs, that is after release() returns.
+  private static class InputSurfaceRelease {
+    private boolean codecReleased;
+    private EglBase eglBase;
+    private Surface surface;
+
+    InputSurfaceRelease(boolean codecReleased) {
+      this.codecReleased = codecReleased;
+    }
+
+    synchronized void onCodecReleased() {
+      codecReleased = true;
+      releaseIfReady();
+    }
+
+    // |eglBase| must not be current on any thread.
+    synchronized void release(EglBase eglBase, Surface surface) {
+      this.eglBase = eglBase;
+      this.surface = surface;
+      if (!codecReleased && (eglBase != null || surface != null)) {
+        Logging.w(TAG, "Input surface released after the codec");
+      }
+      releaseIfReady();
+    }
+
+    private void releaseIfReady() {
+      if (!codecReleased) {
+        return;
+      }
+      if (eglBase != null) {
+        eglBase.release();
+        eglBase = null;
+      }
+      if (surface != null) {
+        surface.release();
+        surface = null;
+      }
+    }
+  }
+
   // List of supported HW VP8 encoders.
   private static final MediaCodecProperties qcomVp8HwProperties = new MediaCodecProperties(
       "OMX.qcom.", Build.VERSION_CODES.KITKAT, BitrateAdjustmentType.NO_ADJUSTMENT);
@@ -181,15 +306,20 @@ public class MediaCodecVideoEncoder {
   private static final MediaCodecProperties[] h264HighProfileHwList =
       new MediaCodecProperties[] {exynosH264HighProfileHwProperties};
 
+  // List of supported HW H.265 encoders.
+  private static final MediaCodecProperties qcomH265HwProperties = new MediaCodecProperties(
+      "OMX.qcom.", Build.VERSION_CODES.M, BitrateAdjustmentType.NO_ADJUSTMENT);
+  private static final MediaCodecProperties exynosH265HwProperties = new MediaCodecProperties(
+      "OMX.Exynos.", Build.VERSION_CODES.M, BitrateAdjustmentType.FRAMERATE_ADJUSTMENT);
+  private static final MediaCodecProperties[] h265HwList =
+      new MediaCodecProperties[] {qcomH265HwProperties, exynosH265HwProperties};
+
   // List of devices with poor H.264 encoder quality.
   // HW H.264 encoder on below devices has poor bitrate control - actual
   // bitrates deviates a lot from the target value.
   private static final String[] H264_HW_EXCEPTION_MODELS =
       new String[] {"SAMSUNG-SGH-I337", "Nexus 7", "Nexus 4"};
 
-  // Bitrate modes - should be in sync with OMX_VIDEO_CONTROLRATETYPE defined
-  // in OMX_Video.h
-  private static final int VIDEO_ControlRateConstant = 2;
   // NV12 color format supported by QCOM codec, but not declared in MediaCodec -
   // see /hardware/qcom/media/mm-core/inc/OMX_QCOMExtns.h
   private static final int COLOR_QCOM_FORMATYUV420PackedSemiPlanar32m = 0x7FA30C04;
@@ -202,14 +332,14 @@ public class MediaCodecVideoEncoder {
   private VideoCodecType type;
   private int colorFormat; // Used by native code.
 
-  // Variables used for dynamic bitrate adjustment.
+  // Bitrate adjustment. Rates are set on the codec thread and adjusted on the output thread,
+  // |rateController| is synchronized on |ratesLock|.
+  private final Object ratesLock = new Object();
   private BitrateAdjustmentType bitrateAdjustmentType = BitrateAdjustmentType.NO_ADJUSTMENT;
-  private double bitrateAccumulator;
-  private double bitrateAccumulatorMax;
-  private double bitrateObservationTimeMs;
-  private int bitrateAdjustmentScaleExp;
-  private int targetBitrateBps;
-  private int targetFps;
+  private RateController.Factory rateControllerFactory = DefaultRateController.FACTORY;
+  private RateController rateController;
+  // Bitrate currently applied to the codec, after bitrate adjustment.
+  private volatile int codecBitrateBps;
 
   // Interval in ms to force key frame generation. Used to reduce the time of color distortions
   // happened sometime when using Qualcomm video encoder.
@@ -219,6 +349,18 @@ public class MediaCodecVideoEncoder {
   // SPS and PPS NALs (Config frame) for H.264.
   private ByteBuffer configData = null;
 
+  // Output delay statistics: time between a frame being queued to the codec and its encoded image
+  // being delivered to |callback|, in both output modes. Queue times are kept in a FIFO in queue
+  // order, which is the output order. Synchronized on |outputDelayLock|.
+  private final Object outputDelayLock = new Object();
+  private final long[] queuedTimestampsUs = new long[OUTPUT_DELAY_TRACKED_FRAMES];
+  private final long[] queuedTimesNs = new long[OUTPUT_DELAY_TRACKED_FRAMES];
+  private int queuedHead;
+  private int queuedCount;
+  private int deliveredFrames;
+  private long outputDelaySumNs;
+  private long outputDelayMaxNs;
+
   // MediaCodec error handler - invoked when critical error happens which may prevent
   // further use of media codec API. Now it means that one of media codec instances
   // is hanging and can no longer be used in the next call.
@@ -231,6 +373,16 @@ public class MediaCodecVideoEncoder {
     MediaCodecVideoEncoder.errorCallback = errorCallback;
   }
 
+  // Called on the codec thread for a release timeout, or on the output thread for an error
+  // reported by MediaCodec.Callback.
+  private static synchronized void reportCodecError() {
+    codecErrors++;
+    if (errorCallback != null) {
+      Logging.e(TAG, "Invoke codec error callback. Errors: " + codecErrors);
+      errorCallback.onMediaCodecVideoEncoderCriticalError(codecErrors);
+    }
+  }
+
   // Functions to disable HW encoding - can be called from applications for platforms
   // which have known HW decoding problems.
   public static void disableVp8HwCodec() {
@@ -248,6 +400,25 @@ public class MediaCodecVideoEncoder {
     hwEncoderDisabledTypes.add(H264_MIME_TYPE);
   }
 
+  public static void disableH265HwCodec() {
+    Logging.w(TAG, "H.265 encoding is disabled by application.");
+    hwEncoderDisabledTypes.add(H265_MIME_TYPE);
+  }
+
+  // Forces the polling output thread even on devices supporting MediaCodec.Callback.
+  public static void disableAsyncOutput() {
+    Logging.w(TAG, "Async output is disabled by application.");
+    asyncOutputDisabled = true;
+  }
+
+  private static boolean isAsyncOutputSupported() {
+    if (asyncOutputDisabled || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return false;
+    }
+    // Before M callbacks can only be delivered on the looper of the thread creating the codec.
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M || Looper.myLooper() != null;
+  }
+
   // Functions to query if HW encoding is supported.
   public static boolean isVp8HwSupported() {
     return !hwEncoderDisabledTypes.contains(VP8_MIME_TYPE)
@@ -277,6 +448,11 @@ public class MediaCodecVideoEncoder {
         && (findHwEncoder(H264_MIME_TYPE, h264HighProfileHwList, supportedColorList) != null);
   }
 
+  public static boolean isH265HwSupported() {
+    return !hwEncoderDisabledTypes.contains(H265_MIME_TYPE)
+        && (findHwEncoder(H265_MIME_TYPE, h265HwList, supportedColorList) != null);
+  }
+
   public static boolean isVp8HwSupportedUsingTextures() {
     return !hwEncoderDisabledTypes.contains(VP8_MIME_TYPE)
         && (findHwEncoder(VP8_MIME_TYPE, vp8HwList(), supportedSurfaceColorList) != null);
@@ -292,6 +468,136 @@ public class MediaCodecVideoEncoder {
         && (findHwEncoder(H264_MIME_TYPE, h264HwList, supportedSurfaceColorList) != null);
   }
 
+  public static boolean isH265HwSupportedUsingTextures() {
+    return !hwEncoderDisabledTypes.contains(H265_MIME_TYPE)
+        && (findHwEncoder(H265_MIME_TYPE, h265HwList, supportedSurfaceColorList) != null);
+  }
+
+  public static boolean isHwSupported(VideoCodecType type, boolean useSurface) {
+    switch (type) {
+      case VIDEO_CODEC_VP8:
+        return useSurface ? isVp8HwSupportedUsingTextures() : isVp8HwSupported();
+      case VIDEO_CODEC_VP9:
+        return useSurface ? isVp9HwSupportedUsingTextures() : isVp9HwSupported();
+      case VIDEO_CODEC_H264:
+        return useSurface ? isH264HwSupportedUsingTextures() : isH264HwSupported();
+      case VIDEO_CODEC_H265:
+        return useSurface ? isH265HwSupportedUsingTextures() : isH265HwSupported();
+      default:
+        return false;
+    }
+  }
+
+  @Override
+  public boolean supportsCodec(VideoCodecType type, boolean useSurface) {
+    return isHwSupported(type, useSurface);
+  }
+
+  @Override
+  public boolean supportsSizeAndRate(
+      VideoCodecType type, boolean useSurface, int width, int height, int fps) {
+    return isSizeAndRateSupported(type, useSurface, width, height, fps);
+  }
+
+  @Override
+  public double getAchievableFrameRate(
+      VideoCodecType type, boolean useSurface, int width, int height) {
+    return getAchievableFrameRateOf(type, useSurface, width, height);
+  }
+
+  // Whether the HW encoder of |type| claims to encode |width| x |height| at |fps|. Returns true if
+  // it's unknown, i.e. before Lollipop.
+  public static boolean isSizeAndRateSupported(
+      VideoCodecType type, boolean useSurface, int width, int height, int fps) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return true;
+    }
+    EncoderProperties properties = findHwEncoder(type, useSurface);
+    if (properties == null) {
+      return false;
+    }
+    MediaCodecInfo.VideoCapabilities capabilities =
+        getVideoCapabilities(properties.codecName, mimeType(type));
+    return capabilities == null || capabilities.areSizeAndRateSupported(width, height, fps);
+  }
+
+  // Upper bound of the frame rates the HW encoder of |type| is measured to achieve at |width| x
+  // |height|, from the device's media_codecs_performance.xml. Returns 0 if there is no encoder or
+  // it doesn't support the size, -1 if it's unknown, i.e. not measured or before Marshmallow.
+  @TargetApi(Build.VERSION_CODES.M)
+  public static double getAchievableFrameRateOf(
+      VideoCodecType type, boolean useSurface, int width, int height) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      return -1;
+    }
+    EncoderProperties properties = findHwEncoder(type, useSurface);
+    if (properties == null) {
+      return 0;
+    }
+    MediaCodecInfo.VideoCapabilities capabilities =
+        getVideoCapabilities(properties.codecName, mimeType(type));
+    if (capabilities == null) {
+      return -1;
+    }
+    if (!capabilities.isSizeSupported(width, height)) {
+      return 0;
+    }
+    Range<Double> frameRates = capabilities.getAchievableFrameRatesFor(width, height);
+    return frameRates == null ? -1 : frameRates.getUpper();
+  }
+
+  private static String mimeType(VideoCodecType type) {
+    switch (type) {
+      case VIDEO_CODEC_VP8:
+        return VP8_MIME_TYPE;
+      case VIDEO_CODEC_VP9:
+        return VP9_MIME_TYPE;
+      case VIDEO_CODEC_H265:
+        return H265_MIME_TYPE;
+      default:
+        return H264_MIME_TYPE;
+    }
+  }
+
+  private static EncoderProperties findHwEncoder(VideoCodecType type, boolean useSurface) {
+    MediaCodecProperties[] hwList;
+    switch (type) {
+      case VIDEO_CODEC_VP8:
+        hwList = vp8HwList();
+        break;
+      case VIDEO_CODEC_VP9:
+        hwList = vp9HwList;
+        break;
+      case VIDEO_CODEC_H265:
+        hwList = h265HwList;
+        break;
+      default:
+        hwList = h264HwList;
+        break;
+    }
+    return findHwEncoder(
+        mimeType(type), hwList, useSurface ? supportedSurfaceColorList : supportedColorList);
+  }
+
+  // Returns null if unknown.
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private static MediaCodecInfo.VideoCapabilities getVideoCapabilities(
+      String codecName, String mime) {
+    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+      try {
+        MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+        if (!info.isEncoder() || !info.getName().equals(codecName)) {
+          continue;
+        }
+        return info.getCapabilitiesForType(mime).getVideoCapabilities();
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve encoder capabilities", e);
+        return null;
+      }
+    }
+    return null;
+  }
+
   // Helper struct for findHwEncoder() below.
   public static class EncoderProperties {
     public EncoderProperties(
@@ -305,8 +611,50 @@ public class MediaCodecVideoEncoder {
     public final BitrateAdjustmentType bitrateAdjustmentType; // Bitrate adjustment type
   }
 
-  private static EncoderProperties findHwEncoder(
-      String mime, MediaCodecProperties[] supportedHwCodecProperties, int[] colorList) {
+  // Persist with EncoderCapabilityCache.setFile(), clear with EncoderCapabilityCache.invalidate().
+  public static EncoderCapabilityCache getCapabilityCache() {
+    return capabilityCache;
+  }
+
+  // Stop and release durations, and codecs whose release hangs, which encoders avoid meanwhile.
+  public static CodecReleaseWatchdog getReleaseWatchdog() {
+    return releaseWatchdog;
+  }
+
+  private static EncoderProperties findHwEncoder(final String mime,
+      final MediaCodecProperties[] supportedHwCodecProperties, final int[] colorList) {
+    // The key covers everything the result depends on besides the device, so changes of the
+    // codec lists invalidate cached entries.
+    StringBuilder key = new StringBuilder(mime);
+    for (MediaCodecProperties codecProperties : supportedHwCodecProperties) {
+      key.append(',').append(codecProperties.codecPrefix).append(codecProperties.minSdk)
+          .append(codecProperties.bitrateAdjustmentType.ordinal());
+    }
+    for (int colorFormat : colorList) {
+      key.append(",0x").append(Integer.toHexString(colorFormat));
+    }
+    EncoderProperties properties =
+        capabilityCache.get(key.toString(), new EncoderCapabilityCache.Prober() {
+          @Override
+          public EncoderProperties probe() {
+            return probeHwEncoder(mime, supportedHwCodecProperties, colorList,
+                Collections.<String>emptyList());
+          }
+        });
+    // Another instance of a codec whose release hangs would likely hang too, use another codec,
+    // or none so that the caller falls back to another codec type. Hung codecs only matter for
+    // this process, so they are left out of the cache, and the rare probe without them isn't
+    // cached.
+    List<String> excludedCodecs = releaseWatchdog.hungCodecs();
+    if (properties != null && excludedCodecs.contains(properties.codecName)) {
+      properties = probeHwEncoder(mime, supportedHwCodecProperties, colorList, excludedCodecs);
+    }
+    return properties;
+  }
+
+  private static EncoderProperties probeHwEncoder(String mime,
+      MediaCodecProperties[] supportedHwCodecProperties, int[] colorList,
+      List<String> excludedCodecs) {
     // MediaCodec.setParameters is missing for JB and below, so bitrate
     // can not be adjusted dynamically.
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
@@ -342,6 +690,10 @@ public class MediaCodecVideoEncoder {
       if (name == null) {
         continue; // No HW support in this codec; try the next one.
       }
+      if (excludedCodecs.contains(name)) {
+        Logging.w(TAG, "Skip encoder " + name + " whose release hangs");
+        continue;
+      }
       Logging.v(TAG, "Found candidate encoder " + name);
 
       // Check if this is supported HW encoder.
@@ -423,9 +775,23 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  @Override
   public boolean initEncode(VideoCodecType type, int profile, int width, int height, int kbps, int fps,
       EglBase.Context sharedContext, MediaCodecCallback callback) {
-    final boolean useSurface = sharedContext != null;
+    return initEncode(type, profile, width, height, kbps, fps, sharedContext != null,
+        sharedContext, callback);
+  }
+
+  // Like initEncode(), but the caller renders frames into getInputSurface() with its own EGL
+  // context, e.g. a context shared by several encoders, and calls onInputSurfaceFrame() before
+  // rendering each frame.
+  public boolean initEncodeWithInputSurface(VideoCodecType type, int profile, int width,
+      int height, int kbps, int fps, MediaCodecCallback callback) {
+    return initEncode(type, profile, width, height, kbps, fps, true, null, callback);
+  }
+
+  private boolean initEncode(VideoCodecType type, int profile, int width, int height, int kbps,
+      int fps, boolean useSurface, EglBase.Context sharedContext, MediaCodecCallback callback) {
     Logging.d(TAG,
         "Java initEncode: " + type + ". Profile: " + profile + " : " + width + " x " + height
             + ". @ " + kbps + " kbps. Fps: " + fps + ". Encode from texture : " + useSurface);
@@ -466,6 +832,11 @@ public class MediaCodecVideoEncoder {
         }
       }
       keyFrameIntervalSec = 2;
+    } else if (type == VideoCodecType.VIDEO_CODEC_H265) {
+      mime = H265_MIME_TYPE;
+      properties = findHwEncoder(
+          H265_MIME_TYPE, h265HwList, useSurface ? supportedSurfaceColorList : supportedColorList);
+      keyFrameIntervalSec = 2;
     }
     if (properties == null) {
       throw new RuntimeException("Can not find HW encoder for " + type);
@@ -495,60 +866,132 @@ public class MediaCodecVideoEncoder {
 
     Logging.d(TAG, "Color format: " + colorFormat + ". Bitrate adjustment: " + bitrateAdjustmentType
             + ". Key frame interval: " + forcedKeyFrameMs + " . Initial fps: " + fps);
-    targetBitrateBps = 1000 * kbps;
-    targetFps = fps;
-    bitrateAccumulatorMax = targetBitrateBps / 8.0;
-    bitrateAccumulator = 0;
-    bitrateObservationTimeMs = 0;
-    bitrateAdjustmentScaleExp = 0;
+    rateController = rateControllerFactory.create(bitrateAdjustmentType);
+    codecBitrateBps = rateController.setTargetRates(1000 * kbps, fps);
 
     mediaCodecThread = Thread.currentThread();
+    asyncOutput = isAsyncOutputSupported();
+    resetOutputDelayStats();
+    synchronized (outputDelayLock) {
+      queuedCount = 0;
+    }
+    initTimeNs = System.nanoTime();
     try {
+      mediaCodec = createByCodecName(properties.codecName);
+      this.type = type;
+      if (mediaCodec == null) {
+        Logging.e(TAG, "Can not create media encoder");
+        release();
+        return false;
+      }
+      EncoderMode mode = negotiateEncoderMode(mime, keyFrameIntervalSec);
+      acceptedEncoderMode = mode;
       MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
-      format.setInteger(MediaFormat.KEY_BIT_RATE, targetBitrateBps);
-      format.setInteger("bitrate-mode", VIDEO_ControlRateConstant);
+      format.setInteger(MediaFormat.KEY_BIT_RATE, codecBitrateBps);
+      format.setInteger("bitrate-mode", mode.bitrateMode.getValue());
       format.setInteger(MediaFormat.KEY_COLOR_FORMAT, properties.colorFormat);
-      format.setInteger(MediaFormat.KEY_FRAME_RATE, targetFps);
-      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSec);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mode.keyFrameIntervalSec);
+      if (mode.intraRefreshPeriod > 0) {
+        format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, mode.intraRefreshPeriod);
+      }
       if (configureH264HighProfile) {
         format.setInteger("profile", VIDEO_AVCProfileHigh);
         format.setInteger("level", VIDEO_AVCLevel3);
       }
       Logging.d(TAG, "  Format: " + format);
-      mediaCodec = createByCodecName(properties.codecName);
-      this.type = type;
-      if (mediaCodec == null) {
-        Logging.e(TAG, "Can not create media encoder");
-        release();
-        return false;
+      if (asyncOutput) {
+        setAsyncCallback();
       }
       mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
       if (useSurface) {
-        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
         // Create an input surface and keep a reference since we must release the surface when done.
         inputSurface = mediaCodec.createInputSurface();
-        eglBase.createSurface(inputSurface);
-        eglBase.makeCurrent();
-        drawer = new GlRectDrawer();
+        if (sharedContext != null) {
+          eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
+          eglBase.createSurface(inputSurface);
+          eglBase.makeCurrent();
+          drawer = new GlRectDrawer();
+        }
       }
+      running = true;
       mediaCodec.start();
-      outputBuffers = mediaCodec.getOutputBuffers();
-      Logging.d(TAG, "Output buffers: " + outputBuffers.length);
+      if (!asyncOutput) {
+        outputBuffers = mediaCodec.getOutputBuffers();
+        Logging.d(TAG, "Output buffers: " + outputBuffers.length);
+      }
 
-    } catch (IllegalStateException e) {
+    } catch (RuntimeException e) {
+      // Not only IllegalStateException, the codec may reject the format with
+      // IllegalArgumentException, and EGL setup may fail, release so another codec could be tried.
       Logging.e(TAG, "initEncode failed", e);
       release();
       return false;
     }
 
-    running = true;
-    outputThread = createOutputThread();
-    outputThread.start();
+    Logging.d(TAG, "Output mode: " + (asyncOutput ? "async callback" : "polling thread"));
+    if (!asyncOutput) {
+      outputThread = createOutputThread();
+      outputThread.start();
+    }
 
     return true;
   }
 
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private void setAsyncCallback() {
+    MediaCodec.Callback asyncCallback = new MediaCodec.Callback() {
+      @Override
+      public void onInputBufferAvailable(MediaCodec codec, int index) {
+        synchronized (availableInputBuffers) {
+          availableInputBuffers.add(index);
+        }
+      }
+
+      @Override
+      public void onOutputBufferAvailable(
+          MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        // Buffers are no longer valid once release() has started stopping the codec.
+        if (!running) {
+          return;
+        }
+        try {
+          deliverEncodedImage(index, info, codec.getOutputBuffer(index));
+        } catch (IllegalStateException e) {
+          Logging.e(TAG, "deliverOutput failed", e);
+        }
+      }
+
+      @Override
+      public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        Logging.e(TAG, "MediaCodec error", e);
+        // The codec is in the error state and won't produce output anymore, stop delivering and
+        // let the application recreate the encoder.
+        if (running) {
+          running = false;
+          reportCodecError();
+        }
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        if (running) {
+          callback.onOutputFormatChanged(codec, format);
+        }
+      }
+    };
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      HandlerThread handlerThread = new HandlerThread("MediaCodecVideoEncoderOutputThread");
+      handlerThread.start();
+      outputThread = handlerThread;
+      outputHandler = new Handler(handlerThread.getLooper());
+      mediaCodec.setCallback(asyncCallback, outputHandler);
+    } else {
+      mediaCodec.setCallback(asyncCallback);
+    }
+  }
+
   ByteBuffer[] getInputBuffers() {
     ByteBuffer[] inputBuffers = mediaCodec.getInputBuffers();
     Logging.d(TAG, "Input buffers: " + inputBuffers.length);
@@ -589,6 +1032,7 @@ public class MediaCodecVideoEncoder {
     checkOnMediaCodecThread();
     try {
       checkKeyFrameRequired(isKeyframe, presentationTimestampUs);
+      onFrameQueued(presentationTimestampUs);
       mediaCodec.queueInputBuffer(inputBuffer, 0, size, presentationTimestampUs, 0);
       return true;
     } catch (IllegalStateException e) {
@@ -597,6 +1041,7 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  @Override
   public boolean encodeTexture(boolean isKeyframe, int oesTextureId, float[] transformationMatrix,
       long presentationTimestampUs) {
     checkOnMediaCodecThread();
@@ -608,6 +1053,7 @@ public class MediaCodecVideoEncoder {
       // but it's a workaround for bug webrtc:5147.
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       drawer.drawOes(oesTextureId, transformationMatrix, width, height, 0, 0, width, height);
+      onFrameQueued(presentationTimestampUs);
       eglBase.swapBuffers(TimeUnit.MICROSECONDS.toNanos(presentationTimestampUs));
       return true;
     } catch (RuntimeException e) {
@@ -616,6 +1062,71 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  // Encodes a frame captured into a byte array, in Java, without nativeFillBuffer(). The codec
+  // must be initialized without a shared context, and the frame must be of the codec size.
+  // Returns false if the frame is dropped, e.g. no input buffer is available.
+  @Override
+  public boolean encodeYuvFrame(boolean isKeyframe, YuvFrame frame) {
+    checkOnMediaCodecThread();
+    if (inputSurface != null) {
+      Logging.e(TAG, "encodeYuvFrame: codec is configured for surface input");
+      return false;
+    }
+    if (frame.width() != width || frame.height() != height) {
+      Logging.e(TAG, "encodeYuvFrame: frame size " + frame.width() + "x" + frame.height()
+          + " doesn't match codec size " + width + "x" + height);
+      return false;
+    }
+    try {
+      int bufferIndex = dequeueInputBuffer();
+      if (bufferIndex < 0) {
+        return false;
+      }
+      long presentationTimestampUs = TimeUnit.NANOSECONDS.toMicros(frame.timestampNs());
+      checkKeyFrameRequired(isKeyframe, presentationTimestampUs);
+
+      ByteBuffer inputBuffer = getInputBuffer(bufferIndex);
+      inputBuffer.clear();
+      int stagingSize = YuvPacker.stagingSize(width, height);
+      if (packStaging == null || packStaging.length < stagingSize) {
+        packStaging = new byte[stagingSize];
+      }
+      boolean semiPlanar = colorFormat != CodecCapabilities.COLOR_FormatYUV420Planar;
+      int yuvSize = frame.format() == YuvFrame.FORMAT_NV21
+          ? YuvPacker.packNv21(frame.data(), width, height, semiPlanar, inputBuffer, packStaging)
+          : YuvPacker.packI420(frame.data(), width, height, semiPlanar, inputBuffer, packStaging);
+      onFrameQueued(presentationTimestampUs);
+      mediaCodec.queueInputBuffer(bufferIndex, 0, yuvSize, presentationTimestampUs, 0);
+      return true;
+    } catch (RuntimeException e) {
+      Logging.e(TAG, "encodeYuvFrame failed", e);
+      return false;
+    }
+  }
+
+  private ByteBuffer getInputBuffer(int index) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      return mediaCodec.getInputBuffer(index);
+    }
+    if (inputBuffers == null) {
+      inputBuffers = mediaCodec.getInputBuffers();
+    }
+    return inputBuffers[index];
+  }
+
+  // Returns the codec input surface created by initEncodeWithInputSurface().
+  public Surface getInputSurface() {
+    return inputSurface;
+  }
+
+  // Called before the caller of initEncodeWithInputSurface() renders a frame into the input
+  // surface.
+  public void onInputSurfaceFrame(boolean isKeyframe, long presentationTimestampUs) {
+    checkOnMediaCodecThread();
+    checkKeyFrameRequired(isKeyframe, presentationTimestampUs);
+    onFrameQueued(presentationTimestampUs);
+  }
+
   /**
    * Encodes a new style VideoFrame. Called by JNI. |bufferIndex| is -1 if we are not encoding in
    * surface mode.
@@ -637,6 +1148,7 @@ public class MediaCodecVideoEncoder {
             RendererCommon.convertMatrixFromAndroidGraphicsMatrix(
                 textureBuffer.getTransformMatrix()),
             width, height, 0, 0, width, height);
+        onFrameQueued(presentationTimestampUs);
         eglBase.swapBuffers(frame.getTimestampNs());
       } else {
         VideoFrame.I420Buffer i420Buffer = buffer.toI420();
@@ -647,6 +1159,7 @@ public class MediaCodecVideoEncoder {
         // I420 consists of one full-resolution and two half-resolution planes.
         // 1 + 1 / 4 + 1 / 4 = 3 / 2
         int yuvSize = width * height * 3 / 2;
+        onFrameQueued(presentationTimestampUs);
         mediaCodec.queueInputBuffer(bufferIndex, 0, yuvSize, presentationTimestampUs, 0);
       }
       return true;
@@ -656,6 +1169,7 @@ public class MediaCodecVideoEncoder {
     }
   }
 
+  @Override
   public void release() {
     Logging.d(TAG, "Java releaseEncoder");
     checkOnMediaCodecThread();
@@ -664,39 +1178,51 @@ public class MediaCodecVideoEncoder {
       Exception e;
     }
     final CaughtException caughtException = new CaughtException();
+    final InputSurfaceRelease inputSurfaceRelease = new InputSurfaceRelease(mediaCodec == null);
     boolean stopHung = false;
 
     running = false;
-    ThreadUtils.joinUninterruptibly(outputThread);
+    if (outputHandler != null) {
+      // Wait for a callback which may be delivering a frame right now, later ones see !running.
+      ThreadUtils.invokeAtFrontUninterruptibly(outputHandler, new Runnable() {
+        @Override
+        public void run() {}
+      });
+    } else if (outputThread != null) {
+      ThreadUtils.joinUninterruptibly(outputThread);
+    }
 
     if (mediaCodec != null) {
-      // Run Mediacodec stop() and release() on separate thread since sometime
+      // Run Mediacodec stop() and release() on the release threads since sometime
       // Mediacodec.stop() may hang.
-      final CountDownLatch releaseDone = new CountDownLatch(1);
-
+      final MediaCodec codec = mediaCodec;
+      final String codecName = codec.getName();
       Runnable runMediaCodecRelease = new Runnable() {
         @Override
         public void run() {
           Logging.d(TAG, "Java releaseEncoder on release thread");
+          long startNs = System.nanoTime();
           try {
-            mediaCodec.stop();
+            codec.stop();
           } catch (Exception e) {
             Logging.e(TAG, "Media encoder stop failed", e);
           }
+          long stopNs = System.nanoTime();
+          releaseWatchdog.recordStopDuration(TimeUnit.NANOSECONDS.toMicros(stopNs - startNs));
           try {
-            mediaCodec.release();
+            codec.release();
           } catch (Exception e) {
             Logging.e(TAG, "Media encoder release failed", e);
             caughtException.e = e;
           }
+          releaseWatchdog.recordReleaseDuration(
+              TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - stopNs));
+          inputSurfaceRelease.onCodecReleased();
           Logging.d(TAG, "Java releaseEncoder on release thread done");
-
-          releaseDone.countDown();
         }
       };
-      new Thread(runMediaCodecRelease).start();
 
-      if (!ThreadUtils.awaitUninterruptibly(releaseDone, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
+      if (!releaseWatchdog.run(codecName, runMediaCodecRelease, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
         Logging.e(TAG, "Media encoder release timeout");
         stopHung = true;
       }
@@ -704,27 +1230,33 @@ public class MediaCodecVideoEncoder {
       mediaCodec = null;
     }
 
+    if (outputHandler != null) {
+      ((HandlerThread) outputThread).quit();
+      outputHandler = null;
+    }
+    outputThread = null;
+    inputBuffers = null;
+    synchronized (availableInputBuffers) {
+      availableInputBuffers.clear();
+    }
+    logOutputDelayStats();
+
     mediaCodecThread = null;
     if (drawer != null) {
       drawer.release();
       drawer = null;
     }
     if (eglBase != null) {
-      eglBase.release();
-      eglBase = null;
-    }
-    if (inputSurface != null) {
-      inputSurface.release();
-      inputSurface = null;
+      // May be released on a release thread, after a queued or hung codec release.
+      eglBase.detachCurrent();
     }
+    inputSurfaceRelease.release(eglBase, inputSurface);
+    eglBase = null;
+    inputSurface = null;
     runningInstance = null;
 
     if (stopHung) {
-      codecErrors++;
-      if (errorCallback != null) {
-        Logging.e(TAG, "Invoke codec error callback. Errors: " + codecErrors);
-        errorCallback.onMediaCodecVideoEncoderCriticalError(codecErrors);
-      }
+      reportCodecError();
       throw new RuntimeException("Media encoder release timeout.");
     }
 
@@ -740,40 +1272,47 @@ public class MediaCodecVideoEncoder {
     Logging.d(TAG, "Java releaseEncoder done");
   }
 
-  private boolean setRates(int kbps, int frameRate) {
+  // Returns false if the codec doesn't support changing bitrate, see getCodecBitrateKbps() for the
+  // bitrate actually applied.
+  @Override
+  public boolean setRates(int kbps, int frameRate) {
+    if (mediaCodec == null) {
+      Logging.w(TAG, "setRates called on a released encoder");
+      return false;
+    }
     checkOnMediaCodecThread();
-
-    int codecBitrateBps = 1000 * kbps;
-    if (bitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      bitrateAccumulatorMax = codecBitrateBps / 8.0;
-      if (targetBitrateBps > 0 && codecBitrateBps < targetBitrateBps) {
-        // Rescale the accumulator level if the accumulator max decreases
-        bitrateAccumulator = bitrateAccumulator * codecBitrateBps / targetBitrateBps;
-      }
+    synchronized (ratesLock) {
+      return applyRates(kbps, frameRate);
     }
-    targetBitrateBps = codecBitrateBps;
-    targetFps = frameRate;
+  }
 
-    // Adjust actual encoder bitrate based on bitrate adjustment type.
-    if (bitrateAdjustmentType == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT && targetFps > 0) {
-      codecBitrateBps = BITRATE_ADJUSTMENT_FPS * targetBitrateBps / targetFps;
-      Logging.v(TAG,
-          "setRates: " + kbps + " -> " + (codecBitrateBps / 1000) + " kbps. Fps: " + targetFps);
-    } else if (bitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps + ". ExpScale: "
-              + bitrateAdjustmentScaleExp);
-      if (bitrateAdjustmentScaleExp != 0) {
-        codecBitrateBps = (int) (codecBitrateBps * getBitrateScale(bitrateAdjustmentScaleExp));
-      }
-    } else {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps);
-    }
+  // Bitrate currently applied to the codec, which differs from the target bitrate when the codec
+  // requires framerate or dynamic bitrate adjustment.
+  @Override
+  public int getCodecBitrateKbps() {
+    return codecBitrateBps / 1000;
+  }
+
+  // Replaces the bitrate adjustment, must be called before initEncode().
+  @Override
+  public void setRateControllerFactory(RateController.Factory rateControllerFactory) {
+    this.rateControllerFactory = rateControllerFactory;
+  }
 
+  private boolean applyRates(int kbps, int frameRate) {
+    int codecBitrateBps = rateController.setTargetRates(1000 * kbps, frameRate);
+    Logging.v(TAG, "setRates: " + kbps + " -> " + (codecBitrateBps / 1000) + " kbps. Fps: "
+            + frameRate + ". Bitrate adjustment: " + bitrateAdjustmentType);
+    return applyCodecBitrate(codecBitrateBps);
+  }
+
+  private boolean applyCodecBitrate(int codecBitrateBps) {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
       try {
         Bundle params = new Bundle();
         params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, codecBitrateBps);
         mediaCodec.setParameters(params);
+        this.codecBitrateBps = codecBitrateBps;
         return true;
       } catch (IllegalStateException e) {
         Logging.e(TAG, "setRates failed", e);
@@ -788,6 +1327,12 @@ public class MediaCodecVideoEncoder {
   // available, or -2 if the codec is no longer operative.
   int dequeueInputBuffer() {
     checkOnMediaCodecThread();
+    if (asyncOutput) {
+      synchronized (availableInputBuffers) {
+        Integer index = availableInputBuffers.poll();
+        return index == null ? -1 : index;
+      }
+    }
     try {
       return mediaCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT);
     } catch (IllegalStateException e) {
@@ -796,46 +1341,6 @@ public class MediaCodecVideoEncoder {
     }
   }
 
-  // Helper struct for dequeueOutputBuffer() below.
-  public static class OutputBufferInfo {
-    private int index;
-    private ByteBuffer buffer;
-    private int size;
-    private boolean isKeyFrame;
-    private long presentationTimestampUs;
-
-    private OutputBufferInfo fill(
-        int index, ByteBuffer buffer, int size, boolean isKeyFrame, long presentationTimestampUs) {
-      this.index = index;
-      this.buffer = buffer;
-      this.size = size;
-      this.isKeyFrame = isKeyFrame;
-      this.presentationTimestampUs = presentationTimestampUs;
-
-      return this;
-    }
-
-    public int index() {
-      return index;
-    }
-
-    public ByteBuffer buffer() {
-      return buffer;
-    }
-
-    public int size() {
-      return size;
-    }
-
-    public boolean isKeyFrame() {
-      return isKeyFrame;
-    }
-
-    public long presentationTimestampUs() {
-      return presentationTimestampUs;
-    }
-  }
-
   private Thread createOutputThread() {
     return new Thread() {
       @Override
@@ -854,107 +1359,229 @@ public class MediaCodecVideoEncoder {
       if (index < 0) {
         if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
           callback.onOutputFormatChanged(mediaCodec, mediaCodec.getOutputFormat());
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+          outputBuffers = mediaCodec.getOutputBuffers();
+          Logging.d(TAG, "Output buffers changed: " + outputBuffers.length);
         }
         return;
       }
 
-      ByteBuffer codecOutputBuffer = mediaCodec.getOutputBuffers()[index];
-      codecOutputBuffer.position(outputBufferInfo.offset);
-      codecOutputBuffer.limit(outputBufferInfo.offset + outputBufferInfo.size);
+      deliverEncodedImage(index, outputBufferInfo, outputBuffers[index]);
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "deliverOutput failed", e);
+    }
+  }
 
-      if ((outputBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-        Logging.d(TAG, "Config frame generated. Offset: " + outputBufferInfo.offset
-                       + ". Size: " + outputBufferInfo.size);
-        configData = ByteBuffer.allocateDirect(outputBufferInfo.size);
-        configData.put(codecOutputBuffer);
-        // Log few SPS header bytes to check profile and level.
-        String spsData = "";
-        for (int i = 0; i < (outputBufferInfo.size < 8 ? outputBufferInfo.size : 8); i++) {
-          spsData += Integer.toHexString(configData.get(i) & 0xff) + " ";
-        }
-        Logging.d(TAG, spsData);
+  // Called on the output thread, or on the codec callback looper in async output mode.
+  private void deliverEncodedImage(
+      int index, MediaCodec.BufferInfo info, ByteBuffer codecOutputBuffer) {
+    codecOutputBuffer.position(info.offset);
+    codecOutputBuffer.limit(info.offset + info.size);
+
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
+      configData = ByteBuffer.allocateDirect(info.size);
+      configData.put(codecOutputBuffer);
+      // Log few SPS header bytes to check profile and level.
+      String spsData = "";
+      for (int i = 0; i < (info.size < 8 ? info.size : 8); i++) {
+        spsData += Integer.toHexString(configData.get(i) & 0xff) + " ";
+      }
+      Logging.d(TAG, spsData);
+      releaseOutputBuffer(index);
+      return;
+    }
+
+    reportEncodedFrame(info.size, info.presentationTimeUs);
+
+    // Check key frame flag.
+    boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    boolean withCodecConfig = isKeyFrame
+        && (type == VideoCodecType.VIDEO_CODEC_H264 || type == VideoCodecType.VIDEO_CODEC_H265);
+    if (withCodecConfig && prependCodecConfig) {
+      // For H.264 (H.265) key frame append (VPS,) SPS and PPS NALs at the start
+      ByteBuffer prefix = configData.duplicate();
+      prefix.rewind();
+      EncodedFrame frame =
+          framePool.obtain(prefix, codecOutputBuffer, info.flags, info.presentationTimeUs);
+      // The frame owns a copy now, give the buffer back to the codec before any sink runs.
+      releaseOutputBuffer(index);
+      onFrameDelivered(info.presentationTimeUs);
+      try {
+        callback.onEncodedFrame(frame);
+      } finally {
+        frame.release();
+      }
+    } else {
+      // Deliver a view of the codec buffer, SPS and PPS NALs are referenced rather than copied.
+      // A sink retaining the frame makes it copy the payload, so the codec buffer can always be
+      // released once the callback returns.
+      EncodedFrame frame = framePool.wrap(codecOutputBuffer, withCodecConfig ? configData : null,
+          info.flags, info.presentationTimeUs);
+      onFrameDelivered(info.presentationTimeUs);
+      try {
+        callback.onEncodedFrame(frame);
+      } finally {
+        frame.release();
+        releaseOutputBuffer(index);
+      }
+    }
+  }
+
+  // Whether to copy SPS and PPS NALs in front of each H.264 keyframe, for sinks needing the
+  // contiguous layout. Otherwise they are available from EncodedFrame.codecConfig().
+  @Override
+  public void setPrependCodecConfig(boolean prependCodecConfig) {
+    this.prependCodecConfig = prependCodecConfig;
+  }
+
+  // GOP length, intra refresh and bitrate mode of the next initEncode(). Parts the codec doesn't
+  // support fall back to the defaults: codec type GOP, no intra refresh, CBR.
+  @Override
+  public void setEncoderMode(EncoderMode mode) {
+    this.requestedEncoderMode = mode;
+  }
+
+  // Mode configured by the last initEncode(), null before it.
+  @Override
+  public EncoderMode getAcceptedEncoderMode() {
+    return acceptedEncoderMode;
+  }
+
+  @TargetApi(Build.VERSION_CODES.N)
+  private EncoderMode negotiateEncoderMode(String mime, int defaultKeyFrameIntervalSec) {
+    EncoderMode requested = requestedEncoderMode;
+    CodecCapabilities capabilities = null;
+    if ((requested.intraRefreshPeriod > 0 || requested.bitrateMode != BitrateMode.CBR)
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      try {
+        capabilities = mediaCodec.getCodecInfo().getCapabilitiesForType(mime);
+      } catch (RuntimeException e) {
+        Logging.e(TAG, "Cannot retrieve encoder capabilities", e);
+      }
+    }
+    boolean intraRefreshSupported = requested.intraRefreshPeriod > 0 && capabilities != null
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+        && capabilities.isFeatureSupported(CodecCapabilities.FEATURE_IntraRefresh);
+    boolean bitrateModeSupported = requested.bitrateMode != BitrateMode.CBR
+        && capabilities != null && capabilities.getEncoderCapabilities() != null
+        && capabilities.getEncoderCapabilities().isBitrateModeSupported(
+            requested.bitrateMode.getValue());
+    return negotiateEncoderMode(requested, defaultKeyFrameIntervalSec, intraRefreshSupported,
+        bitrateModeSupported, mediaCodec.getName());
+  }
+
+  // Mode to configure for |requested|, given whether the codec supports intra refresh and the
+  // requested bitrate mode.
+  static EncoderMode negotiateEncoderMode(EncoderMode requested, int defaultKeyFrameIntervalSec,
+      boolean intraRefreshSupported, boolean bitrateModeSupported, String codecName) {
+    int keyFrameIntervalSec = requested.keyFrameIntervalSec > 0
+        ? requested.keyFrameIntervalSec : defaultKeyFrameIntervalSec;
+    int intraRefreshPeriod = 0;
+    // CBR is what this encoder always used, keep it without asking the codec.
+    BitrateMode bitrateMode = BitrateMode.CBR;
+    if (requested.intraRefreshPeriod > 0) {
+      if (intraRefreshSupported) {
+        intraRefreshPeriod = requested.intraRefreshPeriod;
       } else {
-        reportEncodedFrame(outputBufferInfo.size);
-
-        // Check key frame flag.
-        boolean isKeyFrame = (outputBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        if (isKeyFrame && type == VideoCodecType.VIDEO_CODEC_H264) {
-          // For H.264 key frame append SPS and PPS NALs at the start
-          if (keyFrameData.capacity() < configData.capacity() + outputBufferInfo.size) {
-            // allocate double size
-            int newSize = Math.max(keyFrameData.capacity() * 2,
-                    configData.capacity() + outputBufferInfo.size);
-            keyFrameData = ByteBuffer.allocateDirect(newSize);
-          }
-          keyFrameData.position(0);
-          configData.rewind();
-          keyFrameData.put(configData);
-          keyFrameData.put(codecOutputBuffer);
-          keyFrameData.position(0);
-          outputFrame.fill(index, keyFrameData, configData.capacity() + outputBufferInfo.size,
-                  isKeyFrame, outputBufferInfo.presentationTimeUs);
-          callback.onEncodedFrame(outputFrame, outputBufferInfo);
-          releaseOutputBuffer(index);
-        } else {
-          outputFrame.fill(index, codecOutputBuffer, outputBufferInfo.size, isKeyFrame,
-                  outputBufferInfo.presentationTimeUs);
-          callback.onEncodedFrame(outputFrame, outputBufferInfo);
-          releaseOutputBuffer(index);
+        Logging.w(TAG, "Intra refresh not supported by " + codecName);
+      }
+    }
+    if (requested.bitrateMode != BitrateMode.CBR) {
+      if (bitrateModeSupported) {
+        bitrateMode = requested.bitrateMode;
+      } else {
+        Logging.w(TAG, requested.bitrateMode + " not supported by " + codecName
+            + ", use " + bitrateMode);
+      }
+    }
+    EncoderMode accepted = new EncoderMode(keyFrameIntervalSec, intraRefreshPeriod, bitrateMode);
+    Logging.d(TAG, "Requested " + requested + ", accepted " + accepted);
+    return accepted;
+  }
+
+  // Bytes copied into pooled frames since the encoder was created.
+  public long getBytesCopied() {
+    return framePool.bytesCopied();
+  }
+
+  private void onFrameQueued(long presentationTimestampUs) {
+    synchronized (outputDelayLock) {
+      if (queuedCount == OUTPUT_DELAY_TRACKED_FRAMES) {
+        // The oldest frame is not tracked anymore.
+        queuedHead = (queuedHead + 1) % OUTPUT_DELAY_TRACKED_FRAMES;
+        queuedCount--;
+      }
+      int tail = (queuedHead + queuedCount) % OUTPUT_DELAY_TRACKED_FRAMES;
+      queuedTimestampsUs[tail] = presentationTimestampUs;
+      queuedTimesNs[tail] = System.nanoTime();
+      queuedCount++;
+    }
+  }
+
+  private void onFrameDelivered(long presentationTimestampUs) {
+    synchronized (outputDelayLock) {
+      // Frames queued before this one and not delivered were dropped by the codec.
+      while (queuedCount > 0 && queuedTimestampsUs[queuedHead] <= presentationTimestampUs) {
+        int index = queuedHead;
+        queuedHead = (queuedHead + 1) % OUTPUT_DELAY_TRACKED_FRAMES;
+        queuedCount--;
+        if (queuedTimestampsUs[index] == presentationTimestampUs) {
+          long delayNs = System.nanoTime() - queuedTimesNs[index];
+          deliveredFrames++;
+          outputDelaySumNs += delayNs;
+          outputDelayMaxNs = Math.max(outputDelayMaxNs, delayNs);
+          return;
         }
       }
-    } catch (IllegalStateException e) {
-      Logging.e(TAG, "deliverOutput failed", e);
     }
   }
 
-  private double getBitrateScale(int bitrateAdjustmentScaleExp) {
-    return Math.pow(BITRATE_CORRECTION_MAX_SCALE,
-        (double) bitrateAdjustmentScaleExp / BITRATE_CORRECTION_STEPS);
+  private void logOutputDelayStats() {
+    Logging.d(TAG, "Output delay. Frames: " + getDeliveredFrames() + ". Average: "
+            + getAverageOutputDelayMs() + " ms. Max: " + getMaxOutputDelayMs() + " ms. Async: "
+            + asyncOutput);
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initTimeNs);
+    Logging.d(TAG, "Bytes copied: " + getBytesCopied() + ". Per second: "
+            + (elapsedMs == 0 ? 0 : getBytesCopied() * 1000 / elapsedMs)
+            + ". Prepend codec config: " + prependCodecConfig);
   }
 
-  private void reportEncodedFrame(int size) {
-    if (targetFps == 0 || bitrateAdjustmentType != BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      return;
+  // Number of encoded frames delivered with a known queue time since initEncode() or
+  // resetOutputDelayStats().
+  public int getDeliveredFrames() {
+    synchronized (outputDelayLock) {
+      return deliveredFrames;
     }
+  }
 
-    // Accumulate the difference between actial and expected frame sizes.
-    double expectedBytesPerFrame = targetBitrateBps / (8.0 * targetFps);
-    bitrateAccumulator += (size - expectedBytesPerFrame);
-    bitrateObservationTimeMs += 1000.0 / targetFps;
-
-    // Put a cap on the accumulator, i.e., don't let it grow beyond some level to avoid
-    // using too old data for bitrate adjustment.
-    double bitrateAccumulatorCap = BITRATE_CORRECTION_SEC * bitrateAccumulatorMax;
-    bitrateAccumulator = Math.min(bitrateAccumulator, bitrateAccumulatorCap);
-    bitrateAccumulator = Math.max(bitrateAccumulator, -bitrateAccumulatorCap);
-
-    // Do bitrate adjustment every 3 seconds if actual encoder bitrate deviates too much
-    // form the target value.
-    if (bitrateObservationTimeMs > 1000 * BITRATE_CORRECTION_SEC) {
-      Logging.d(TAG, "Acc: " + (int) bitrateAccumulator + ". Max: " + (int) bitrateAccumulatorMax
-              + ". ExpScale: " + bitrateAdjustmentScaleExp);
-      boolean bitrateAdjustmentScaleChanged = false;
-      if (bitrateAccumulator > bitrateAccumulatorMax) {
-        // Encoder generates too high bitrate - need to reduce the scale.
-        int bitrateAdjustmentInc = (int) (bitrateAccumulator / bitrateAccumulatorMax + 0.5);
-        bitrateAdjustmentScaleExp -= bitrateAdjustmentInc;
-        bitrateAccumulator = bitrateAccumulatorMax;
-        bitrateAdjustmentScaleChanged = true;
-      } else if (bitrateAccumulator < -bitrateAccumulatorMax) {
-        // Encoder generates too low bitrate - need to increase the scale.
-        int bitrateAdjustmentInc = (int) (-bitrateAccumulator / bitrateAccumulatorMax + 0.5);
-        bitrateAdjustmentScaleExp += bitrateAdjustmentInc;
-        bitrateAccumulator = -bitrateAccumulatorMax;
-        bitrateAdjustmentScaleChanged = true;
-      }
-      if (bitrateAdjustmentScaleChanged) {
-        bitrateAdjustmentScaleExp = Math.min(bitrateAdjustmentScaleExp, BITRATE_CORRECTION_STEPS);
-        bitrateAdjustmentScaleExp = Math.max(bitrateAdjustmentScaleExp, -BITRATE_CORRECTION_STEPS);
-        Logging.d(TAG, "Adjusting bitrate scale to " + bitrateAdjustmentScaleExp + ". Value: "
-                + getBitrateScale(bitrateAdjustmentScaleExp));
-        setRates(targetBitrateBps / 1000, targetFps);
-      }
-      bitrateObservationTimeMs = 0;
+  // Average time between queueing a frame to the codec and delivering its encoded image to the
+  // callback.
+  public double getAverageOutputDelayMs() {
+    synchronized (outputDelayLock) {
+      return deliveredFrames == 0 ? 0 : outputDelaySumNs / 1e6 / deliveredFrames;
+    }
+  }
+
+  public double getMaxOutputDelayMs() {
+    synchronized (outputDelayLock) {
+      return outputDelayMaxNs / 1e6;
+    }
+  }
+
+  public void resetOutputDelayStats() {
+    synchronized (outputDelayLock) {
+      deliveredFrames = 0;
+      outputDelaySumNs = 0;
+      outputDelayMaxNs = 0;
+    }
+  }
+
+  private void reportEncodedFrame(int size, long presentationTimestampUs) {
+    synchronized (ratesLock) {
+      if (rateController.onEncodedFrame(size, presentationTimestampUs)) {
+        applyCodecBitrate(rateController.codecBitrateBps());
+      }
     }
   }
 
@@ -0,0 +1,273 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills the bounded queue behind a sink blocked on the first frame, then checks which frames
+ * each {@link AsyncRecorder.OverflowPolicy} drops.
+ */
+public class AsyncRecorderTest {
+    private static final int FRAME_SIZE = 100;
+    // the frame being written counts until it's written, so 3 more fit
+    private static final long MAX_QUEUED_BYTES = 4 * FRAME_SIZE;
+    private static final int KEY = 0;
+    private static final int REFERENCE = 1;
+    private static final int NON_REFERENCE = 2;
+
+    private CountingPool mPool;
+    private BlockingSink mSink;
+    private List<Boolean> mBackpressure;
+
+    @Before
+    public void setUp() {
+        mPool = new CountingPool();
+        mSink = new BlockingSink();
+        mBackpressure = new ArrayList<>();
+    }
+
+    @Test
+    public void dropNonReferenceEvictsNewestFirst() throws InterruptedException {
+        AsyncRecorder recorder = blockedRecorder(AsyncRecorder.OverflowPolicy.DROP_NON_REFERENCE);
+        deliver(recorder, REFERENCE, 1);
+        deliver(recorder, NON_REFERENCE, 2);
+        deliver(recorder, NON_REFERENCE, 3);
+        assertEquals(4, mPool.outstanding());
+
+        // makes room by evicting frame 3, frame 2 stays
+        deliver(recorder, REFERENCE, 4);
+        // a non-reference frame evicts nothing
+        deliver(recorder, NON_REFERENCE, 5);
+
+        assertEquals(2, recorder.droppedFrames());
+        assertEquals(3, recorder.queueDepth());
+        assertEquals(MAX_QUEUED_BYTES, recorder.queuedBytes());
+        // the evicted frame was released, the dropped one never retained
+        assertEquals(4, mPool.outstanding());
+        assertTrue(mBackpressure.isEmpty());
+
+        mSink.unblock();
+        recorder.stop();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 4L), mSink.written());
+        assertEquals(4, recorder.writtenFrames());
+        assertEquals(0, mPool.outstanding());
+    }
+
+    @Test
+    public void dropNonReferenceFallsBackToKeyFrame() throws InterruptedException {
+        AsyncRecorder recorder = blockedRecorder(AsyncRecorder.OverflowPolicy.DROP_NON_REFERENCE);
+        deliver(recorder, REFERENCE, 1);
+        deliver(recorder, NON_REFERENCE, 2);
+        deliver(recorder, REFERENCE, 3);
+        // evicts frame 2
+        deliver(recorder, REFERENCE, 4);
+        // nothing left to evict, dropped with the frames referring to it
+        deliver(recorder, REFERENCE, 5);
+        deliver(recorder, NON_REFERENCE, 6);
+        // doesn't fit either
+        deliver(recorder, KEY, 7);
+
+        assertEquals(4, recorder.droppedFrames());
+        assertEquals(4, mPool.outstanding());
+        assertEquals(Arrays.asList(true), mBackpressure);
+
+        mSink.unblock();
+        awaitWritten(recorder, 4);
+        deliver(recorder, REFERENCE, 8);
+        deliver(recorder, KEY, 9);
+        deliver(recorder, NON_REFERENCE, 10);
+        recorder.stop();
+
+        assertEquals(Arrays.asList(0L, 1L, 3L, 4L, 9L, 10L), mSink.written());
+        assertEquals(5, recorder.droppedFrames());
+        assertEquals(Arrays.asList(true, false), mBackpressure);
+        assertEquals(0, mPool.outstanding());
+    }
+
+    @Test
+    public void dropUntilKeyFrame() throws InterruptedException {
+        AsyncRecorder recorder =
+                blockedRecorder(AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+        for (int i = 1; i <= 3; i++) {
+            // non-reference frames are not evicted by this policy
+            deliver(recorder, i == 2 ? NON_REFERENCE : REFERENCE, i);
+        }
+        deliver(recorder, REFERENCE, 4);
+        deliver(recorder, NON_REFERENCE, 5);
+        deliver(recorder, KEY, 6);
+
+        assertEquals(3, recorder.droppedFrames());
+        assertEquals(3, recorder.queueDepth());
+        assertEquals(4, mPool.outstanding());
+        assertEquals(Arrays.asList(true), mBackpressure);
+
+        mSink.unblock();
+        awaitWritten(recorder, 4);
+        // still dropping until a keyframe, although the queue is empty
+        deliver(recorder, REFERENCE, 7);
+        deliver(recorder, KEY, 8);
+        deliver(recorder, REFERENCE, 9);
+        recorder.stop();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 8L, 9L), mSink.written());
+        assertEquals(4, recorder.droppedFrames());
+        assertEquals(Arrays.asList(true, false), mBackpressure);
+        assertEquals(0, mPool.outstanding());
+    }
+
+    @Test
+    public void metricsArePerSink() throws InterruptedException {
+        SinkDispatcher dispatcher = new SinkDispatcher();
+        BlockingSink fastSink = new BlockingSink();
+        fastSink.unblock();
+        // room for all frames, so its writer thread doesn't need to keep up
+        AsyncRecorder fast = dispatcher.addSink(fastSink, 16 * MAX_QUEUED_BYTES,
+                AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+        AsyncRecorder slow = dispatcher.addSink(mSink, MAX_QUEUED_BYTES,
+                AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+
+        deliver(dispatcher, KEY, 0);
+        assertTrue(mSink.awaitWriting());
+        for (int i = 1; i <= 5; i++) {
+            deliver(dispatcher, REFERENCE, i);
+        }
+        awaitWritten(fast, 6);
+        Thread.sleep(20);
+
+        assertEquals(0, fast.lagUs());
+        assertEquals(0, fast.droppedFrames());
+        assertEquals(0, fast.queueDepth());
+        assertTrue("lag " + slow.lagUs(), slow.lagUs() >= TimeUnit.MILLISECONDS.toMicros(20));
+        assertEquals(2, slow.droppedFrames());
+        assertEquals(3, slow.queueDepth());
+        assertEquals(3, slow.peakQueueDepth());
+        assertEquals(MAX_QUEUED_BYTES, slow.peakQueuedBytes());
+        // one copy per frame, shared by both queues
+        assertEquals(4, mPool.outstanding());
+
+        mSink.unblock();
+        dispatcher.stop();
+        assertEquals(0, slow.lagUs());
+        assertEquals(4, slow.writtenFrames());
+        assertEquals(4, slow.queueDelays().count());
+        assertEquals(6, fast.writeLatencies().count());
+        assertEquals(0, mPool.outstanding());
+    }
+
+    /**
+     * @return a recorder whose sink is writing frame 0, and blocked until
+     * {@link BlockingSink#unblock()}.
+     */
+    private AsyncRecorder blockedRecorder(final AsyncRecorder.OverflowPolicy policy)
+            throws InterruptedException {
+        AsyncRecorder recorder = new AsyncRecorder(mSink, MAX_QUEUED_BYTES, policy);
+        recorder.setBackpressureListener(new BackpressureListener() {
+            @Override
+            public void onBackpressureChanged(final boolean dropping) {
+                mBackpressure.add(dropping);
+            }
+        });
+        deliver(recorder, KEY, 0);
+        assertTrue(mSink.awaitWriting());
+        return recorder;
+    }
+
+    private void deliver(final MediaCodecCallback callback, final int kind, final long index) {
+        ByteBuffer payload = ByteBuffer.allocateDirect(FRAME_SIZE);
+        payload.putInt(1);
+        // nal_ref_idc 3 for the IDR, 2 or 0 for P slices
+        payload.put((byte) (kind == KEY ? 0x65 : kind == REFERENCE ? 0x41 : 0x01));
+        payload.put((byte) 0x88);
+        payload.clear();
+        EncodedFrame frame = mPool.wrap(payload, null,
+                kind == KEY ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, index);
+        callback.onEncodedFrame(frame);
+        frame.release();
+    }
+
+    private static void awaitWritten(final AsyncRecorder recorder, final long frames)
+            throws InterruptedException {
+        long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (recorder.writtenFrames() < frames && System.nanoTime() < deadlineNs) {
+            Thread.sleep(1);
+        }
+        assertEquals(frames, recorder.writtenFrames());
+    }
+
+    /**
+     * Counts buffers taken and not recycled yet, i.e. retained frames not released.
+     */
+    private static class CountingPool extends EncodedFramePool {
+        private final AtomicInteger mOutstanding = new AtomicInteger();
+
+        CountingPool() {
+            super(64);
+        }
+
+        int outstanding() {
+            return mOutstanding.get();
+        }
+
+        @Override
+        ByteBuffer take(final int size) {
+            mOutstanding.incrementAndGet();
+            return super.take(size);
+        }
+
+        @Override
+        void recycle(final ByteBuffer buffer) {
+            mOutstanding.decrementAndGet();
+            super.recycle(buffer);
+        }
+    }
+
+    /**
+     * Records the timestamps written, blocks on the first frame until unblocked.
+     */
+    private static class BlockingSink implements MediaCodecCallback {
+        private final CountDownLatch mWriting = new CountDownLatch(1);
+        private final CountDownLatch mUnblock = new CountDownLatch(1);
+        private final List<Long> mWritten = new ArrayList<>();
+
+        boolean awaitWriting() throws InterruptedException {
+            return mWriting.await(1, TimeUnit.SECONDS);
+        }
+
+        void unblock() {
+            mUnblock.countDown();
+        }
+
+        synchronized List<Long> written() {
+            return new ArrayList<>(mWritten);
+        }
+
+        @Override
+        public void onEncodedFrame(final EncodedFrame frame) {
+            synchronized (this) {
+                mWritten.add(frame.presentationTimestampUs());
+            }
+            mWriting.countDown();
+            try {
+                mUnblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.piasy.videocre;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs under Robolectric, the timeouts are measured with {@code SystemClock}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CodecReleaseWatchdogTest {
+    private static final long TIMEOUT_MS = 500;
+
+    @Test
+    public void queueWaitDoesNotCountAsHang() throws InterruptedException {
+        CodecReleaseWatchdog watchdog = new CodecReleaseWatchdog(1);
+        Thread first = runInBackground(watchdog, "first", sleeping(300));
+
+        // waits 300 ms for the thread, then runs 300 ms, longer than the timeout in total
+        assertTrue(watchdog.run("second", sleeping(300), TIMEOUT_MS));
+        first.join();
+        assertEquals(0, watchdog.hangs());
+        assertEquals(0, watchdog.deferredReleases());
+    }
+
+    @Test
+    public void unstartedReleaseIsNotHung() throws InterruptedException {
+        CodecReleaseWatchdog watchdog = new CodecReleaseWatchdog(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        assertFalse(watchdog.run("first", awaiting(blocked), TIMEOUT_MS));
+
+        assertTrue(watchdog.run("second", new Runnable() {
+            @Override
+            public void run() {
+                secondDone.countDown();
+            }
+        }, TIMEOUT_MS));
+        assertEquals(1, watchdog.hangs());
+        assertEquals(1, watchdog.deferredReleases());
+        assertTrue(watchdog.isHung("first"));
+        assertFalse(watchdog.isHung("second"));
+
+        // the queued release still runs once the hung one finishes
+        blocked.countDown();
+        assertTrue(secondDone.await(1, TimeUnit.SECONDS));
+        assertFalse(watchdog.isHung("first"));
+    }
+
+    private static Thread runInBackground(final CodecReleaseWatchdog watchdog,
+            final String codecName, final Runnable release) throws InterruptedException {
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                submitted.countDown();
+                watchdog.run(codecName, release, TIMEOUT_MS);
+            }
+        });
+        thread.start();
+        submitted.await();
+        // let it take the release thread
+        Thread.sleep(50);
+        return thread;
+    }
+
+    private static Runnable sleeping(final long ms) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(ms);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable awaiting(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.piasy.videocre;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+import static org.junit.Assert.assertEquals;
+import static org.webrtc.MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H264;
+import static org.webrtc.MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H265;
+import static org.webrtc.MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_VP8;
+import static org.webrtc.MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_VP9;
+
+public class CodecSelectorTest {
+    private static final int FPS = 30;
+
+    @Test
+    public void capableCodecsKeepConfiguredOrder() {
+        FakeEncoder encoder = new FakeEncoder();
+        encoder.put(VIDEO_CODEC_H265, true, 60);
+        encoder.put(VIDEO_CODEC_VP8, true, -1);
+        encoder.put(VIDEO_CODEC_H264, true, 120);
+
+        assertEquals(Arrays.asList(VIDEO_CODEC_H265, VIDEO_CODEC_VP8, VIDEO_CODEC_H264),
+                CodecSelector.candidates(config(), true, encoder));
+    }
+
+    @Test
+    public void unsupportedCodecsAreSkipped() {
+        FakeEncoder encoder = new FakeEncoder();
+        encoder.put(VIDEO_CODEC_H264, true, -1);
+
+        assertEquals(Arrays.asList(VIDEO_CODEC_H264),
+                CodecSelector.candidates(config(), true, encoder));
+    }
+
+    @Test
+    public void slowCodecsAreRankedByAchievableFrameRate() {
+        FakeEncoder encoder = new FakeEncoder();
+        // claims the size and rate, but measured too slow
+        encoder.put(VIDEO_CODEC_H265, true, 12);
+        encoder.put(VIDEO_CODEC_VP8, false, -1);
+        encoder.put(VIDEO_CODEC_VP9, false, 0);
+        encoder.put(VIDEO_CODEC_H264, false, 24);
+
+        assertEquals(
+                Arrays.asList(VIDEO_CODEC_H264, VIDEO_CODEC_H265, VIDEO_CODEC_VP8,
+                        VIDEO_CODEC_VP9),
+                CodecSelector.candidates(config(VIDEO_CODEC_VP9), true, encoder));
+    }
+
+    @Test
+    public void selectFallsBackWhenInitFails() {
+        FakeEncoder encoder = new FakeEncoder();
+        encoder.put(VIDEO_CODEC_H265, true, -1);
+        encoder.put(VIDEO_CODEC_VP8, true, -1);
+        encoder.put(VIDEO_CODEC_H264, true, -1);
+
+        VideoCodecType selected = CodecSelector.select(config(), true, encoder,
+                new CodecSelector.Initializer() {
+                    @Override
+                    public boolean init(final VideoCodecType type) {
+                        if (type == VIDEO_CODEC_H265) {
+                            throw new IllegalStateException("configure fail");
+                        }
+                        return type == VIDEO_CODEC_H264;
+                    }
+                });
+
+        assertEquals(VIDEO_CODEC_H264, selected);
+    }
+
+    /**
+     * H265, falling back to VP8, H264 and the extra ones, 720p@30.
+     */
+    private static VideoConfig config(final VideoCodecType... extraFallbacks) {
+        List<VideoCodecType> fallbacks = new ArrayList<>(
+                Arrays.asList(VIDEO_CODEC_VP8, VIDEO_CODEC_H264));
+        fallbacks.addAll(Arrays.asList(extraFallbacks));
+        return VideoConfig.builder()
+                .previewWidth(1280)
+                .previewHeight(720)
+                .outputWidth(1280)
+                .outputHeight(720)
+                .fps(FPS)
+                .outputBitrate(2000_000)
+                .codec(VIDEO_CODEC_H265)
+                .fallbackCodecs(fallbacks)
+                .build();
+    }
+
+    private static class FakeEncoder extends LoopbackVideoEncoder {
+        private final Map<VideoCodecType, Boolean> mSupportsSize =
+                new EnumMap<>(VideoCodecType.class);
+        private final Map<VideoCodecType, Double> mFrameRates =
+                new EnumMap<>(VideoCodecType.class);
+
+        FakeEncoder() {
+            super(0);
+        }
+
+        void put(final VideoCodecType type, final boolean supportsSize, final double frameRate) {
+            mSupportsSize.put(type, supportsSize);
+            mFrameRates.put(type, frameRate);
+        }
+
+        @Override
+        public boolean supportsCodec(final VideoCodecType type, final boolean useSurface) {
+            return mSupportsSize.containsKey(type);
+        }
+
+        @Override
+        public boolean supportsSizeAndRate(final VideoCodecType type, final boolean useSurface,
+                final int width, final int height, final int fps) {
+            return mSupportsSize.get(type);
+        }
+
+        @Override
+        public double getAchievableFrameRate(final VideoCodecType type, final boolean useSurface,
+                final int width, final int height) {
+            return mFrameRates.get(type);
+        }
+    }
+}
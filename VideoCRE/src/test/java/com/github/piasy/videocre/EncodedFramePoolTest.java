@@ -0,0 +1,124 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EncodedFramePoolTest {
+    private static final int GOP_FRAMES = 60;
+    private static final int KEY_FRAME_SIZE = 40 * 1024;
+    private static final int DELTA_FRAME_SIZE = 8 * 1024;
+    private static final int CODEC_CONFIG_SIZE = 21;
+
+    @Test
+    public void wrappedFrameIsCopiedOnRetainOnly() {
+        EncodedFramePool pool = new EncodedFramePool();
+        ByteBuffer output = filled(DELTA_FRAME_SIZE, 1);
+        EncodedFrame frame = pool.wrap(output, null, 0, 0);
+
+        assertEquals(0, pool.bytesCopied());
+        frame.retain();
+        assertEquals(DELTA_FRAME_SIZE, pool.bytesCopied());
+
+        // the copy must not change when the codec reuses its buffer
+        output.put(0, (byte) 99);
+        assertEquals(1, frame.buffer().get(0));
+        frame.retain();
+        assertEquals(DELTA_FRAME_SIZE, pool.bytesCopied());
+        frame.release();
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void retainSharesCodecConfig() {
+        EncodedFramePool pool = new EncodedFramePool();
+        ByteBuffer codecConfig = filled(CODEC_CONFIG_SIZE, 7);
+        EncodedFrame frame = pool.wrap(filled(KEY_FRAME_SIZE, 1), codecConfig,
+                MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        frame.retain();
+
+        assertEquals(KEY_FRAME_SIZE, pool.bytesCopied());
+        assertEquals(CODEC_CONFIG_SIZE, frame.codecConfig().remaining());
+        ByteBuffer[] buffers = frame.buffers();
+        assertEquals(2, buffers.length);
+        assertEquals(CODEC_CONFIG_SIZE, buffers[0].remaining());
+        assertEquals(KEY_FRAME_SIZE, buffers[1].remaining());
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void obtainCopiesPrefixAndPayload() {
+        EncodedFramePool pool = new EncodedFramePool();
+        EncodedFrame frame = pool.obtain(filled(CODEC_CONFIG_SIZE, 7), filled(KEY_FRAME_SIZE, 1),
+                MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+
+        assertEquals(CODEC_CONFIG_SIZE + KEY_FRAME_SIZE, pool.bytesCopied());
+        assertEquals(CODEC_CONFIG_SIZE + KEY_FRAME_SIZE, frame.size());
+        assertNull(frame.codecConfig());
+        assertEquals(7, frame.buffer().get(0));
+        assertEquals(1, frame.buffer().get(CODEC_CONFIG_SIZE));
+        // already owned, retaining doesn't copy again
+        frame.retain();
+        assertEquals(CODEC_CONFIG_SIZE + KEY_FRAME_SIZE, pool.bytesCopied());
+        frame.release();
+        frame.release();
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        EncodedFramePool pool = new EncodedFramePool();
+        ByteBuffer first = pool.take(DELTA_FRAME_SIZE);
+        pool.recycle(first);
+
+        assertSame(first, pool.take(DELTA_FRAME_SIZE - 1));
+        assertNotSame(first, pool.take(DELTA_FRAME_SIZE));
+    }
+
+    /**
+     * Bytes copied for a GOP delivered like MediaCodecVideoEncoder does, in both keyframe layouts.
+     */
+    @Test
+    public void referencedCodecConfigCopiesLess() {
+        assertEquals(CODEC_CONFIG_SIZE + KEY_FRAME_SIZE, deliverGop(true, false));
+        assertEquals(0, deliverGop(false, false));
+
+        long gopBytes = KEY_FRAME_SIZE + (GOP_FRAMES - 1) * DELTA_FRAME_SIZE;
+        assertEquals(CODEC_CONFIG_SIZE + gopBytes, deliverGop(true, true));
+        assertEquals(gopBytes, deliverGop(false, true));
+    }
+
+    private static long deliverGop(final boolean prependCodecConfig, final boolean retain) {
+        EncodedFramePool pool = new EncodedFramePool();
+        ByteBuffer codecConfig = filled(CODEC_CONFIG_SIZE, 7);
+        for (int i = 0; i < GOP_FRAMES; i++) {
+            boolean keyFrame = i == 0;
+            ByteBuffer output = filled(keyFrame ? KEY_FRAME_SIZE : DELTA_FRAME_SIZE, i);
+            int flags = keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            EncodedFrame frame = keyFrame && prependCodecConfig
+                    ? pool.obtain(codecConfig.duplicate(), output, flags, i)
+                    : pool.wrap(output, keyFrame ? codecConfig : null, flags, i);
+            if (retain) {
+                frame.retain();
+                frame.release();
+            }
+            frame.release();
+        }
+        return pool.bytesCopied();
+    }
+
+    private static ByteBuffer filled(final int size, final int value) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
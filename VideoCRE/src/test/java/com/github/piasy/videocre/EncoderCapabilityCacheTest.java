@@ -0,0 +1,123 @@
+package com.github.piasy.videocre;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+import org.webrtc.MediaCodecVideoEncoder.EncoderProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Persists the cache in the app cache dir, like the example app does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EncoderCapabilityCacheTest {
+    private static final String FINGERPRINT = "vendor/device:8.0.0/OPR1/1:user/release-keys";
+    private static final String UPDATED_FINGERPRINT =
+            "vendor/device:8.1.0/OPM1/2:user/release-keys";
+    private static final String H264_KEY = "video/avc";
+    private static final String VP8_KEY = "video/x-vnd.on2.vp8";
+    private static final int COLOR_FORMAT = 0x7FA30C04;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(RuntimeEnvironment.application.getCacheDir(), "encoder_capabilities");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void entriesPersistAcrossInstances() throws InterruptedException {
+        EncoderCapabilityCache writer = newCache(FINGERPRINT);
+        writer.get(H264_KEY, probing(new EncoderProperties("OMX.qcom.video.encoder.avc",
+                COLOR_FORMAT, BitrateAdjustmentType.DYNAMIC_ADJUSTMENT)));
+        writer.get(VP8_KEY, probing(null));
+        EncoderCapabilityCache.awaitPendingWrites();
+        assertTrue(mFile.exists());
+
+        EncoderCapabilityCache reader = newCache(FINGERPRINT);
+        EncoderProperties h264 = reader.get(H264_KEY, failing());
+        assertNull(reader.get(VP8_KEY, failing()));
+
+        assertEquals("OMX.qcom.video.encoder.avc", h264.codecName);
+        assertEquals(COLOR_FORMAT, h264.colorFormat);
+        assertEquals(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT, h264.bitrateAdjustmentType);
+        assertEquals(2, reader.hits());
+        assertEquals(0, reader.misses());
+    }
+
+    @Test
+    public void fingerprintChangeDropsEntries() throws InterruptedException {
+        EncoderCapabilityCache writer = newCache(FINGERPRINT);
+        writer.get(H264_KEY, probing(new EncoderProperties("OMX.qcom.video.encoder.avc",
+                COLOR_FORMAT, BitrateAdjustmentType.NO_ADJUSTMENT)));
+        EncoderCapabilityCache.awaitPendingWrites();
+
+        EncoderCapabilityCache updated = newCache(UPDATED_FINGERPRINT);
+        EncoderProperties probed = new EncoderProperties("OMX.google.h264.encoder",
+                COLOR_FORMAT, BitrateAdjustmentType.NO_ADJUSTMENT);
+
+        assertEquals(probed, updated.get(H264_KEY, probing(probed)));
+        assertEquals(0, updated.hits());
+        assertEquals(1, updated.misses());
+
+        // the file is rewritten for the new fingerprint
+        EncoderCapabilityCache.awaitPendingWrites();
+        EncoderCapabilityCache reader = newCache(UPDATED_FINGERPRINT);
+        assertEquals("OMX.google.h264.encoder", reader.get(H264_KEY, failing()).codecName);
+    }
+
+    @Test
+    public void invalidateDropsMemoryAndFile() throws InterruptedException {
+        EncoderCapabilityCache cache = newCache(FINGERPRINT);
+        cache.get(VP8_KEY, probing(null));
+        EncoderCapabilityCache.awaitPendingWrites();
+        assertTrue(mFile.exists());
+
+        cache.invalidate();
+        EncoderCapabilityCache.awaitPendingWrites();
+
+        assertFalse(mFile.exists());
+        cache.get(VP8_KEY, probing(null));
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+
+    private EncoderCapabilityCache newCache(final String fingerprint) {
+        EncoderCapabilityCache cache = new EncoderCapabilityCache(fingerprint);
+        cache.setFile(mFile);
+        return cache;
+    }
+
+    private static EncoderCapabilityCache.Prober probing(final EncoderProperties properties) {
+        return new EncoderCapabilityCache.Prober() {
+            @Override
+            public EncoderProperties probe() {
+                return properties;
+            }
+        };
+    }
+
+    private static EncoderCapabilityCache.Prober failing() {
+        return new EncoderCapabilityCache.Prober() {
+            @Override
+            public EncoderProperties probe() {
+                throw new AssertionError("probed despite a cached entry");
+            }
+        };
+    }
+}
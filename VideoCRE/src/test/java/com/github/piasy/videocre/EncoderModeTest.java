@@ -0,0 +1,97 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.webrtc.MediaCodecVideoEncoder.BitrateMode;
+import org.webrtc.MediaCodecVideoEncoder.EncoderMode;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Keyframes and burstiness of each {@link EncoderMode}, with {@link LoopbackVideoEncoder} frame
+ * sizes. Frames of the first second are skipped, so the first keyframe doesn't dominate.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class EncoderModeTest {
+    private static final int FPS = 30;
+    private static final int BITRATE_KBPS = 1000;
+    private static final int DURATION_SEC = 10;
+    private static final long SKIPPED_US = 1000_000;
+
+    @Test
+    public void defaultGop() throws InterruptedException {
+        FrameSizeStats stats = encode(new EncoderMode(0, 0, BitrateMode.CBR), -1);
+
+        // keyframes at 2, 4, 6 and 8 seconds
+        assertEquals(4, stats.keyFrameCount());
+        assertTrue(stats.toString(), stats.burstiness() > 1.05);
+    }
+
+    @Test
+    public void shortGop() throws InterruptedException {
+        FrameSizeStats stats = encode(new EncoderMode(1, 0, BitrateMode.CBR), -1);
+
+        assertEquals(DURATION_SEC - 1, stats.keyFrameCount());
+    }
+
+    @Test
+    public void intraRefreshIsFlat() throws InterruptedException {
+        FrameSizeStats stats = encode(new EncoderMode(60, FPS, BitrateMode.CBR), -1);
+
+        assertEquals(0, stats.keyFrameCount());
+        assertEquals(1, stats.burstiness(), 0.01);
+        assertEquals(stats.percentileSize(0), stats.percentileSize(100));
+    }
+
+    @Test
+    public void intraRefreshHonorsKeyFrameRequest() throws InterruptedException {
+        FrameSizeStats stats = encode(new EncoderMode(60, FPS, BitrateMode.CBR), 5 * FPS);
+
+        assertEquals(1, stats.keyFrameCount());
+        assertTrue(stats.toString(), stats.burstiness() > 1.05);
+    }
+
+    /**
+     * @param keyFrameRequestIndex frame to encode as keyframe, -1 for none.
+     */
+    private static FrameSizeStats encode(final EncoderMode mode, final int keyFrameRequestIndex)
+            throws InterruptedException {
+        final int frames = DURATION_SEC * FPS;
+        final FrameSizeStats stats = new FrameSizeStats();
+        final CountDownLatch delivered = new CountDownLatch(frames);
+        LoopbackVideoEncoder encoder = new LoopbackVideoEncoder(0);
+        encoder.setSizeDeviation(0);
+        encoder.setLatencyMs(0);
+        encoder.setEncoderMode(mode);
+        encoder.initEncode(VideoCodecType.VIDEO_CODEC_H264, 0, 1280, 720, BITRATE_KBPS, FPS, null,
+                new MediaCodecCallback() {
+                    @Override
+                    public void onEncodedFrame(final EncodedFrame frame) {
+                        if (frame.presentationTimestampUs() >= SKIPPED_US) {
+                            stats.onEncodedFrame(frame);
+                        }
+                        delivered.countDown();
+                    }
+
+                    @Override
+                    public void onOutputFormatChanged(final MediaCodec codec,
+                            final MediaFormat format) {
+                    }
+                });
+        assertEquals(mode.intraRefreshPeriod, encoder.getAcceptedEncoderMode().intraRefreshPeriod);
+        for (int i = 0; i < frames; i++) {
+            assertTrue(encoder.encodeTexture(i == keyFrameRequestIndex, 0, null,
+                    i * 1000_000L / FPS));
+        }
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        encoder.release();
+        return stats;
+    }
+}
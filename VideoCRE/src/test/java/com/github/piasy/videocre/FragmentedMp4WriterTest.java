@@ -0,0 +1,278 @@
+package com.github.piasy.videocre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records {@link LoopbackVideoEncoder} output with {@link FragmentedMp4Recorder} and parses the
+ * boxes back.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FragmentedMp4WriterTest {
+    private static final int FPS = 30;
+    private static final int FRAMES = 10 * FPS;
+    // LoopbackVideoEncoder default GOP
+    private static final int GOP_FRAMES = 2 * FPS;
+    private static final long FIRST_PTS_US = 1000;
+    private static final int TIMESCALE = 90000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    // size, type, version and flags, entry count
+    private static final int STSD_HEADER_SIZE = 16;
+    // size, type and the visual sample entry fields
+    private static final int AVC1_HEADER_SIZE = 86;
+    private static final byte[] SPS = {
+            0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8
+    };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 };
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("FragmentedMp4WriterTest", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteBuffer mp4 = record();
+
+        List<Integer> boxes = children(mp4, 0, mp4.limit());
+        assertEquals("ftyp", type(mp4, boxes.get(0)));
+        assertEquals("moov", type(mp4, boxes.get(1)));
+        assertEquals(2 + 2 * FRAMES / GOP_FRAMES, boxes.size());
+
+        int stsd = path(mp4, boxes.get(1), "trak", "mdia", "minf", "stbl", "stsd");
+        int avc1 = child(mp4, stsd + STSD_HEADER_SIZE, end(mp4, stsd), "avc1");
+        int avcC = child(mp4, avc1 + AVC1_HEADER_SIZE, end(mp4, avc1), "avcC");
+        assertEquals(1, mp4.get(avcC + 8));
+        assertEquals(SPS[1], mp4.get(avcC + 9));
+        // 4 byte lengths, 1 SPS
+        assertEquals((byte) 0xFF, mp4.get(avcC + 12));
+        assertEquals((byte) 0xE1, mp4.get(avcC + 13));
+        assertArrayEquals(SPS, bytes(mp4, avcC + 16, mp4.getShort(avcC + 14)));
+        int ppsStart = avcC + 16 + SPS.length;
+        assertEquals(1, mp4.get(ppsStart));
+        assertArrayEquals(PPS, bytes(mp4, ppsStart + 3, mp4.getShort(ppsStart + 1)));
+
+        long totalDuration = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            int moof = boxes.get(i);
+            int mdat = boxes.get(i + 1);
+            assertEquals("moof", type(mp4, moof));
+            assertEquals("mdat", type(mp4, mdat));
+            assertEquals(i / 2, mp4.getInt(path(mp4, moof, "mfhd") + 12));
+            int traf = path(mp4, moof, "traf");
+            long baseDecodeTime = mp4.getLong(path(mp4, traf, "tfdt") + 12);
+            assertEquals(totalDuration, baseDecodeTime);
+
+            int trun = path(mp4, traf, "trun");
+            int sampleCount = mp4.getInt(trun + 12);
+            assertEquals(GOP_FRAMES, sampleCount);
+            assertEquals(mdat + 8, moof + mp4.getInt(trun + 16));
+            int sampleStart = mdat + 8;
+            for (int s = 0; s < sampleCount; s++) {
+                int entry = trun + 20 + 12 * s;
+                int duration = mp4.getInt(entry);
+                assertTrue("duration " + duration, Math.abs(duration - TIMESCALE / FPS) <= 1);
+                totalDuration += duration;
+                int sampleSize = mp4.getInt(entry + 4);
+                boolean sync = s == 0;
+                assertEquals(sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+                        mp4.getInt(entry + 8));
+                assertAvcc(mp4, sampleStart, sampleSize, sync);
+                sampleStart += sampleSize;
+            }
+            assertEquals(end(mp4, mdat), sampleStart);
+        }
+        assertEquals(FRAMES * TIMESCALE / FPS, totalDuration, FRAMES);
+    }
+
+    @Test
+    public void recoverKeepsCompleteFragments() throws Exception {
+        ByteBuffer mp4 = record();
+        List<Integer> boxes = children(mp4, 0, mp4.limit());
+        // cut in the middle of the 3rd fragment
+        int cut = boxes.get(6) + mp4.getInt(boxes.get(6)) / 2;
+        truncate(cut);
+
+        assertEquals((long) boxes.get(6), FragmentedMp4Recorder.recover(mFile));
+        ByteBuffer recovered = ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+        assertEquals(6, children(recovered, 0, recovered.limit()).size());
+
+        // already complete
+        assertEquals((long) boxes.get(6), FragmentedMp4Recorder.recover(mFile));
+    }
+
+    @Test
+    public void recoverDropsIncompleteHeader() throws Exception {
+        ByteBuffer mp4 = record();
+        List<Integer> boxes = children(mp4, 0, mp4.limit());
+        truncate(boxes.get(1) + 16);
+
+        assertEquals(0, FragmentedMp4Recorder.recover(mFile));
+        assertEquals(0, mFile.length());
+    }
+
+    @Test
+    public void sizeLimitCutsBeforeAnySample() throws Exception {
+        int sampleSize = 300;
+        int[] fragmentSamples = { 3, 3, 1, 3 };
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file.getChannel(), 1000);
+        writer.writeHeader(640, 360, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        for (int i = 0; i < 10; i++) {
+            // the 7th sample is too large to join any fragment
+            int size = i == 6 ? 1200 : sampleSize;
+            writer.writeSample(slice(size, i == 0), FIRST_PTS_US + i * 1000_000L / FPS, i == 0);
+        }
+        writer.close();
+        ByteBuffer mp4 = ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+
+        List<Integer> boxes = children(mp4, 0, mp4.limit());
+        assertEquals(fragmentSamples.length, writer.fragments());
+        assertEquals(2 + 2 * fragmentSamples.length, boxes.size());
+        for (int f = 0; f < fragmentSamples.length; f++) {
+            int trun = path(mp4, path(mp4, boxes.get(2 + 2 * f), "traf"), "trun");
+            assertEquals(fragmentSamples[f], mp4.getInt(trun + 12));
+            // only the first sample is a keyframe, the others start with a delta frame
+            assertEquals(f == 0 ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+                    mp4.getInt(trun + 20 + 8));
+            int mdat = boxes.get(3 + 2 * f);
+            int mdatPayload = end(mp4, mdat) - mdat - 8;
+            assertTrue("mdat payload " + mdatPayload, fragmentSamples[f] == 1
+                    || mdatPayload <= 1000);
+        }
+    }
+
+    private ByteBuffer record() throws Exception {
+        FragmentedMp4Recorder recorder = new FragmentedMp4Recorder(mFile);
+        LoopbackVideoEncoder encoder = new LoopbackVideoEncoder(0);
+        encoder.setLatencyMs(0);
+        encoder.initEncode(VideoCodecType.VIDEO_CODEC_H264, 0, 640, 360, 800, FPS, null,
+                new NalUnitStage(recorder));
+        for (int i = 0; i < FRAMES; i++) {
+            encoder.encodeTexture(false, 0, null, FIRST_PTS_US + i * 1000_000L / FPS);
+        }
+        long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (encoder.getPendingFrames() > 0 && System.nanoTime() < deadlineNs) {
+            Thread.sleep(10);
+        }
+        encoder.release();
+        recorder.stop();
+        return ByteBuffer.wrap(Files.readAllBytes(mFile.toPath()));
+    }
+
+    /**
+     * @return a single slice NAL unit with a 4 byte start code, of {@code size} bytes in AVCC.
+     */
+    private static ByteBuffer slice(final int size, final boolean idr) {
+        ByteBuffer annexB = ByteBuffer.allocate(size);
+        annexB.putInt(1).put((byte) (idr ? 0x65 : 0x41));
+        while (annexB.hasRemaining()) {
+            annexB.put((byte) 0x55);
+        }
+        annexB.flip();
+        return annexB;
+    }
+
+    private void truncate(final long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Walk the 4 byte lengths of a sample, which must end exactly at its size, and hold a single
+     * slice NAL unit, IDR for a sync sample.
+     */
+    private static void assertAvcc(final ByteBuffer mp4, final int start, final int size,
+            final boolean sync) {
+        int offset = start;
+        int slices = 0;
+        while (offset < start + size) {
+            int length = mp4.getInt(offset);
+            assertTrue(length > 0);
+            int type = mp4.get(offset + 4) & 0x1F;
+            assertEquals(sync ? NalUnits.TYPE_IDR : NalUnits.TYPE_SLICE, type);
+            slices++;
+            offset += 4 + length;
+        }
+        assertEquals(start + size, offset);
+        assertEquals(1, slices);
+    }
+
+    private static List<Integer> children(final ByteBuffer mp4, final int start, final int end) {
+        List<Integer> boxes = new ArrayList<>();
+        int offset = start;
+        while (offset < end) {
+            int size = mp4.getInt(offset);
+            assertTrue("bad box at " + offset, size >= 8 && offset + size <= end);
+            boxes.add(offset);
+            offset += size;
+        }
+        return boxes;
+    }
+
+    private static int child(final ByteBuffer mp4, final int start, final int end,
+            final String type) {
+        for (int box : children(mp4, start, end)) {
+            if (type.equals(type(mp4, box))) {
+                return box;
+            }
+        }
+        throw new AssertionError("no " + type + " in [" + start + ", " + end + ")");
+    }
+
+    /**
+     * @return offset of the box reached through the child {@code types} of container {@code box}.
+     */
+    private static int path(final ByteBuffer mp4, final int box, final String... types) {
+        int parent = box;
+        for (String type : types) {
+            parent = child(mp4, parent + 8, end(mp4, parent), type);
+        }
+        return parent;
+    }
+
+    private static int end(final ByteBuffer mp4, final int box) {
+        return box + mp4.getInt(box);
+    }
+
+    private static String type(final ByteBuffer mp4, final int box) {
+        return new String(bytes(mp4, box + 4, 4), Charset.forName("US-ASCII"));
+    }
+
+    private static byte[] bytes(final ByteBuffer mp4, final int offset, final int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = mp4.get(offset + i);
+        }
+        return bytes;
+    }
+}
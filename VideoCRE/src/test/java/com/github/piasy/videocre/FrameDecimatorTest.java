@@ -0,0 +1,152 @@
+package com.github.piasy.videocre;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecimatorTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SOURCE_INTERVAL_NS = SECOND_NS / 30;
+    private static final long JITTER_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int SECONDS = 10;
+
+    @Test
+    public void integerRatio() {
+        Run run = new Run(new FrameDecimator(15), 0).frames(30 * SECONDS);
+
+        assertEquals(15 * SECONDS, run.mKept);
+        // every other frame, no jumps
+        assertEquals(2 * SOURCE_INTERVAL_NS, run.mMaxGapNs);
+        assertEquals(2 * SOURCE_INTERVAL_NS, run.mMinGapNs);
+    }
+
+    @Test
+    public void nonIntegerRatio() {
+        Run run = new Run(new FrameDecimator(24), 0).frames(30 * SECONDS);
+
+        assertWithin(24 * SECONDS, 1, run.mKept);
+        // 4 of 5 frames, never 2 dropped in a row
+        assertEquals(2 * SOURCE_INTERVAL_NS, run.mMaxGapNs);
+        assertEquals(SOURCE_INTERVAL_NS, run.mMinGapNs);
+    }
+
+    @Test
+    public void sourceAtMaxRateIsKeptWhole() {
+        FrameDecimator decimator = new FrameDecimator(30);
+        Run run = new Run(decimator, JITTER_NS).frames(30 * SECONDS);
+
+        assertEquals(30 * SECONDS, run.mKept);
+        assertEquals(0, decimator.droppedFrames());
+    }
+
+    @Test
+    public void integerRatioWithJitter() {
+        Run run = new Run(new FrameDecimator(15), JITTER_NS).frames(30 * SECONDS);
+
+        assertWithin(15 * SECONDS, 3, run.mKept);
+        assertTrue("max gap " + run.mMaxGapNs,
+                run.mMaxGapNs <= 2 * SOURCE_INTERVAL_NS + 2 * JITTER_NS);
+    }
+
+    @Test
+    public void nonIntegerRatioWithJitter() {
+        Run run = new Run(new FrameDecimator(24), JITTER_NS).frames(30 * SECONDS);
+
+        assertWithin(24 * SECONDS, 3, run.mKept);
+        assertTrue("max gap " + run.mMaxGapNs,
+                run.mMaxGapNs <= 2 * SOURCE_INTERVAL_NS + 2 * JITTER_NS);
+    }
+
+    @Test
+    public void maxFpsChangedWhileRunning() {
+        FrameDecimator decimator = new FrameDecimator(15);
+        Run run = new Run(decimator, 0).frames(30 * SECONDS);
+        assertEquals(15 * SECONDS, run.mKept);
+
+        decimator.setMaxFps(24);
+        run.reset().frames(30 * SECONDS);
+        assertWithin(24 * SECONDS, 1, run.mKept);
+        assertEquals(2 * SOURCE_INTERVAL_NS, run.mMaxGapNs);
+
+        decimator.setMaxFps(10);
+        run.reset().frames(30 * SECONDS);
+        assertWithin(10 * SECONDS, 1, run.mKept);
+        assertEquals(3 * SOURCE_INTERVAL_NS, run.mMaxGapNs);
+
+        decimator.setMaxFps(0);
+        run.reset().frames(30 * SECONDS);
+        assertEquals(30 * SECONDS, run.mKept);
+
+        assertEquals(4 * 30 * SECONDS, decimator.keptFrames() + decimator.droppedFrames());
+    }
+
+    @Test
+    public void scheduleRestartsAfterGapAndBackwards() {
+        FrameDecimator decimator = new FrameDecimator(15);
+        assertTrue(decimator.shouldKeep(0));
+        assertFalse(decimator.shouldKeep(SOURCE_INTERVAL_NS));
+        // the first frame after a gap is kept
+        assertTrue(decimator.shouldKeep(5 * SECOND_NS));
+        assertFalse(decimator.shouldKeep(5 * SECOND_NS + SOURCE_INTERVAL_NS));
+        // so is the first one going backwards, e.g. of a new capture session
+        assertTrue(decimator.shouldKeep(SECOND_NS));
+        assertEquals(2, decimator.droppedFrames());
+    }
+
+    private static void assertWithin(final long expected, final long delta, final long actual) {
+        assertTrue("expected " + expected + " +- " + delta + ", actual " + actual,
+                Math.abs(expected - actual) <= delta);
+    }
+
+    /**
+     * Feeds 30 fps timestamps, optionally jittered uniformly in [-jitter, jitter], and records
+     * the kept frames since the last reset.
+     */
+    private static class Run {
+        private final FrameDecimator mDecimator;
+        private final long mJitterNs;
+        private final Random mRandom = new Random(42);
+
+        private long mFrame;
+        private long mLastKeptNs = -1;
+        private long mKept;
+        private long mMaxGapNs;
+        private long mMinGapNs = Long.MAX_VALUE;
+
+        Run(final FrameDecimator decimator, final long jitterNs) {
+            mDecimator = decimator;
+            mJitterNs = jitterNs;
+        }
+
+        Run reset() {
+            mLastKeptNs = -1;
+            mKept = 0;
+            mMaxGapNs = 0;
+            mMinGapNs = Long.MAX_VALUE;
+            return this;
+        }
+
+        Run frames(final int count) {
+            for (int i = 0; i < count; i++, mFrame++) {
+                long jitter = mJitterNs == 0
+                        ? 0
+                        : (long) ((mRandom.nextDouble() * 2 - 1) * mJitterNs);
+                long timestampNs = SECOND_NS + mFrame * SOURCE_INTERVAL_NS + jitter;
+                if (!mDecimator.shouldKeep(timestampNs)) {
+                    continue;
+                }
+                mKept++;
+                if (mLastKeptNs >= 0) {
+                    mMaxGapNs = Math.max(mMaxGapNs, timestampNs - mLastKeptNs);
+                    mMinGapNs = Math.min(mMinGapNs, timestampNs - mLastKeptNs);
+                }
+                mLastKeptNs = timestampNs;
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class H264NalParserTest {
+    private static final byte[] SPS = bytes(0x67, 0x42, 0x00, 0x1F);
+    private static final byte[] PPS = bytes(0x68, 0xCE, 0x38, 0x80);
+    // first_mb_in_slice 0, slice_type 7 (I)
+    private static final byte[] IDR = bytes(0x65, 0x88, 0x84, 0x21);
+    // first_mb_in_slice 0, slice_type 5 (P)
+    private static final byte[] P_SLICE = bytes(0x41, 0x98, 0x21);
+    // first_mb_in_slice 2^22 - 1, slice_type 5 (P), RBSP 00 00 02 00 00 01 a0, read without
+    // removing the emulation prevention bytes it would be an SP slice
+    private static final byte[] ESCAPED_P_SLICE =
+            bytes(0x41, 0x00, 0x00, 0x03, 0x02, 0x00, 0x00, 0x03, 0x01, 0xA0);
+    // first_mb_in_slice 2^21 - 1, slice_type 7 (I), RBSP 00 00 04 00 00 02 20, it would be a B
+    // slice
+    private static final byte[] ESCAPED_IDR =
+            bytes(0x65, 0x00, 0x00, 0x04, 0x00, 0x00, 0x03, 0x02, 0x20);
+
+    @Test
+    public void mixedStartCodes() {
+        ByteBuffer buffer = ByteBuffer.wrap(concat(
+                // garbage before the first start code is skipped
+                bytes(0xFF, 0x00),
+                bytes(0, 0, 0, 1), SPS,
+                bytes(0, 0, 1), PPS,
+                bytes(0, 0, 0, 1), IDR,
+                // trailing zeros belong to no NAL unit
+                bytes(0, 0)));
+        NalUnits nalUnits = new NalUnits();
+
+        assertEquals(3, H264NalParser.parseAnnexB(buffer, nalUnits));
+        assertEquals(3, nalUnits.count());
+        assertNal(nalUnits, 0, buffer, 6, SPS, NalUnits.TYPE_SPS);
+        assertNal(nalUnits, 1, buffer, 13, PPS, NalUnits.TYPE_PPS);
+        assertNal(nalUnits, 2, buffer, 21, IDR, NalUnits.TYPE_IDR);
+        assertEquals(NalUnits.SLICE_TYPE_UNKNOWN, nalUnits.sliceType(0));
+        assertEquals(NalUnits.SLICE_TYPE_I, nalUnits.sliceType(2));
+        assertTrue(nalUnits.isKeyFrame());
+        // position and limit are untouched
+        assertEquals(0, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+    }
+
+    @Test
+    public void parseBetweenPositionAndLimit() {
+        byte[] data = concat(bytes(0, 0, 1), SPS, bytes(0, 0, 1), P_SLICE, bytes(0, 0, 1), PPS);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(SPS.length + 3);
+        buffer.limit(buffer.position() + 3 + P_SLICE.length);
+        NalUnits nalUnits = new NalUnits();
+
+        assertEquals(1, H264NalParser.parseAnnexB(buffer, nalUnits));
+        assertNal(nalUnits, 0, buffer, SPS.length + 6, P_SLICE, NalUnits.TYPE_SLICE);
+        assertEquals(NalUnits.SLICE_TYPE_P, nalUnits.sliceType(0));
+        assertFalse(nalUnits.isKeyFrame());
+    }
+
+    @Test
+    public void emulationPreventionInSliceHeader() {
+        ByteBuffer buffer = ByteBuffer.wrap(concat(
+                bytes(0, 0, 0, 1), ESCAPED_IDR,
+                bytes(0, 0, 0, 1), ESCAPED_P_SLICE));
+        NalUnits nalUnits = new NalUnits();
+
+        assertEquals(2, H264NalParser.parseAnnexB(buffer, nalUnits));
+        // the escaped bytes are kept in the NAL units
+        assertNal(nalUnits, 0, buffer, 4, ESCAPED_IDR, NalUnits.TYPE_IDR);
+        assertNal(nalUnits, 1, buffer, 8 + ESCAPED_IDR.length, ESCAPED_P_SLICE,
+                NalUnits.TYPE_SLICE);
+        assertEquals(NalUnits.SLICE_TYPE_I, nalUnits.sliceType(0));
+        assertEquals(NalUnits.SLICE_TYPE_P, nalUnits.sliceType(1));
+    }
+
+    @Test
+    public void truncatedSliceHeader() {
+        ByteBuffer buffer = ByteBuffer.wrap(concat(
+                // header byte only
+                bytes(0, 0, 0, 1, 0x41),
+                // first_mb_in_slice cut in the middle
+                bytes(0, 0, 0, 1, 0x41, 0x00, 0x03),
+                // slice_type cut in the middle
+                bytes(0, 0, 0, 1, 0x65, 0x80, 0x00, 0x00, 0x00, 0x01)));
+        NalUnits nalUnits = new NalUnits();
+
+        // 00 00 00 01 at the end is a start code without NAL unit
+        assertEquals(3, H264NalParser.parseAnnexB(buffer, nalUnits));
+        assertEquals(1, nalUnits.size(0));
+        assertEquals(3, nalUnits.size(1));
+        assertEquals(2, nalUnits.size(2));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(NalUnits.SLICE_TYPE_UNKNOWN, nalUnits.sliceType(i));
+        }
+    }
+
+    @Test
+    public void truncatedAvcc() {
+        ByteBuffer buffer = ByteBuffer.wrap(concat(bytes(0, 0, 0, 4), SPS, bytes(0, 0, 0, 5),
+                PPS));
+        NalUnits nalUnits = new NalUnits();
+
+        try {
+            H264NalParser.parseAvcc(buffer, 4, nalUnits);
+            fail("NAL unit longer than the buffer");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        // a partial length prefix at the end is ignored
+        nalUnits.clear();
+        buffer.limit(SPS.length + 6);
+        assertEquals(1, H264NalParser.parseAvcc(buffer, 4, nalUnits));
+        assertNal(nalUnits, 0, buffer, 4, SPS, NalUnits.TYPE_SPS);
+    }
+
+    @Test
+    public void shortLengthPrefixes() {
+        ByteBuffer buffer = ByteBuffer.wrap(concat(bytes(0, 4), SPS, bytes(0, 0), bytes(0, 3),
+                P_SLICE));
+        NalUnits nalUnits = new NalUnits();
+
+        // the empty NAL unit is skipped
+        assertEquals(2, H264NalParser.parseAvcc(buffer, 2, nalUnits));
+        assertNal(nalUnits, 0, buffer, 2, SPS, NalUnits.TYPE_SPS);
+        assertNal(nalUnits, 1, buffer, 10, P_SLICE, NalUnits.TYPE_SLICE);
+        assertEquals(NalUnits.SLICE_TYPE_P, nalUnits.sliceType(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badLengthSize() {
+        H264NalParser.parseAvcc(ByteBuffer.wrap(SPS), 3, new NalUnits());
+    }
+
+    @Test
+    public void annexBToAvccRoundTrip() {
+        byte[] annexB = concat(bytes(0, 0, 0, 1), SPS, bytes(0, 0, 0, 1), PPS,
+                bytes(0, 0, 0, 1), ESCAPED_IDR);
+        ByteBuffer buffer = ByteBuffer.wrap(annexB.clone());
+        NalUnits nalUnits = new NalUnits();
+        H264NalParser.parseAnnexB(buffer, nalUnits);
+        ByteBuffer copied = ByteBuffer.allocate(nalUnits.prefixedSize());
+        nalUnits.writeAvcc(copied);
+
+        assertTrue(H264NalParser.annexBToAvccInPlace(buffer, nalUnits));
+        // same bytes as copying
+        assertArrayEquals(copied.array(), buffer.array());
+
+        NalUnits avccNalUnits = new NalUnits();
+        assertEquals(3, H264NalParser.parseAvcc(buffer, 4, avccNalUnits));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(nalUnits.offset(i), avccNalUnits.offset(i));
+            assertEquals(nalUnits.size(i), avccNalUnits.size(i));
+            assertEquals(nalUnits.type(i), avccNalUnits.type(i));
+            assertEquals(nalUnits.sliceType(i), avccNalUnits.sliceType(i));
+        }
+
+        H264NalParser.avccToAnnexBInPlace(buffer, avccNalUnits);
+        assertArrayEquals(annexB, buffer.array());
+        ByteBuffer written = ByteBuffer.allocate(avccNalUnits.prefixedSize());
+        avccNalUnits.writeAnnexB(written);
+        assertArrayEquals(annexB, written.array());
+    }
+
+    @Test
+    public void annexBToAvccInPlaceRejectsShortStartCode() {
+        byte[] annexB = concat(bytes(0, 0, 0, 1), SPS, bytes(0, 0, 1), PPS,
+                bytes(0, 0, 0, 1), IDR);
+        ByteBuffer buffer = ByteBuffer.wrap(annexB.clone());
+        NalUnits nalUnits = new NalUnits();
+        H264NalParser.parseAnnexB(buffer, nalUnits);
+
+        assertFalse(H264NalParser.annexBToAvccInPlace(buffer, nalUnits));
+        assertArrayEquals(annexB, buffer.array());
+    }
+
+    @Test
+    public void annexBToAvccInPlaceRejectsLeadingShortStartCode() {
+        byte[] annexB = concat(bytes(0, 0, 1), IDR);
+        ByteBuffer buffer = ByteBuffer.wrap(annexB.clone());
+        NalUnits nalUnits = new NalUnits();
+        H264NalParser.parseAnnexB(buffer, nalUnits);
+
+        assertFalse(H264NalParser.annexBToAvccInPlace(buffer, nalUnits));
+        assertArrayEquals(annexB, buffer.array());
+    }
+
+    private static void assertNal(final NalUnits nalUnits, final int index,
+            final ByteBuffer buffer, final int offset, final byte[] expected, final int type) {
+        assertSame(buffer, nalUnits.buffer(index));
+        assertEquals(offset, nalUnits.offset(index));
+        assertEquals(expected.length, nalUnits.size(index));
+        assertEquals(type, nalUnits.type(index));
+        byte[] actual = Arrays.copyOfRange(buffer.array(), offset, offset + expected.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    private static byte[] bytes(final int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(final byte[]... arrays) {
+        int size = 0;
+        for (byte[] array : arrays) {
+            size += array.length;
+        }
+        byte[] result = new byte[size];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.piasy.videocre;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyFrameRequesterTest {
+    private static final long MIN_INTERVAL_MS = 60_000;
+
+    @Test
+    public void requestsAreCoalesced() {
+        KeyFrameRequester requester = new KeyFrameRequester(MIN_INTERVAL_MS);
+        requester.request();
+        requester.request();
+
+        assertTrue(requester.poll());
+        assertFalse(requester.poll());
+        assertEquals(2, requester.requested());
+        assertEquals(1, requester.coalesced());
+        assertEquals(1, requester.honored());
+    }
+
+    @Test
+    public void failedForcedFrameIsRetried() {
+        KeyFrameRequester requester = new KeyFrameRequester(MIN_INTERVAL_MS);
+        requester.request();
+        assertTrue(requester.poll());
+        requester.onForcedFrameFailed();
+
+        assertTrue(requester.isPending());
+        assertEquals(0, requester.honored());
+        // the failed frame doesn't start the min interval
+        assertTrue(requester.poll());
+        assertEquals(1, requester.honored());
+    }
+
+    @Test
+    public void requestAfterPollJoinsFailedOne() {
+        KeyFrameRequester requester = new KeyFrameRequester(MIN_INTERVAL_MS);
+        requester.request();
+        assertTrue(requester.poll());
+        requester.request();
+        requester.onForcedFrameFailed();
+
+        assertTrue(requester.poll());
+        assertFalse(requester.isPending());
+        assertEquals(2, requester.requested());
+        assertEquals(1, requester.coalesced());
+        assertEquals(1, requester.honored());
+    }
+}
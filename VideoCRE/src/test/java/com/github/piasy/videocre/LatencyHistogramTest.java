@@ -0,0 +1,108 @@
+package com.github.piasy.videocre;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final long LARGE_US = 1_000_000;
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(62);
+        histogram.add(63);
+        histogram.add(LARGE_US);
+
+        assertEquals(62, histogram.percentileUs(1));
+        assertEquals(63, histogram.percentileUs(50));
+    }
+
+    @Test
+    public void bucketEdges() {
+        // 64 and 65 share the first bucket above the exact ones, 66 starts the next
+        assertEquals(65, lowerPercentileOf(64));
+        assertEquals(65, lowerPercentileOf(65));
+        assertEquals(67, lowerPercentileOf(66));
+        // 32 buckets per power of two
+        assertEquals(127, lowerPercentileOf(126));
+        assertEquals(131, lowerPercentileOf(128));
+    }
+
+    @Test
+    public void percentileIsCappedByMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(64);
+
+        assertEquals(64, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void valuesAboveTopBucket() {
+        long huge = 1L << 45;
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(1L << 41);
+        histogram.add(huge);
+
+        assertEquals(2, histogram.count());
+        assertEquals(huge, histogram.maxUs());
+        assertEquals(huge, histogram.percentileUs(100));
+        assertTrue(histogram.percentileUs(50) >= 1L << 40);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(-5);
+
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.minUs());
+        assertEquals(0, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1000; value >= 1; value--) {
+            histogram.add(value);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500, histogram.meanUs());
+        assertEquals(1, histogram.minUs());
+        assertEquals(1000, histogram.maxUs());
+        // upper bounds of the buckets holding 500 and 990
+        assertEquals(503, histogram.percentileUs(50));
+        assertEquals(991, histogram.percentileUs(99));
+        assertEquals(1000, histogram.percentileUs(100));
+    }
+
+    @Test
+    public void addAllAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (long value = 1; value <= 10; value++) {
+            first.add(value);
+            second.add(value + 10);
+        }
+        first.addAll(second);
+
+        assertEquals(20, first.count());
+        assertEquals(1, first.minUs());
+        assertEquals(20, first.maxUs());
+        assertEquals(10, first.percentileUs(50));
+
+        first.reset();
+        assertEquals(0, first.count());
+        assertEquals(0, first.percentileUs(50));
+        assertEquals(0, first.minUs());
+    }
+
+    private static long lowerPercentileOf(final long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.add(value);
+        histogram.add(LARGE_US);
+        return histogram.percentileUs(50);
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.piasy.videocre;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTrackerTest {
+    private static final int TRACKED_FRAMES = 64;
+
+    private LatencyTracker mTracker;
+    // presentation timestamps on the System.nanoTime() clock, captured just before
+    private long mBaseUs;
+
+    @Before
+    public void setUp() {
+        mTracker = new LatencyTracker();
+        mBaseUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()) - 1000;
+    }
+
+    @Test
+    public void muxedFrameIsCounted() {
+        for (LatencyTracker.Stage stage : LatencyTracker.Stage.values()) {
+            mTracker.mark(stage, mBaseUs);
+        }
+
+        LatencyHistogram total = mTracker.histogram(LatencyTracker.Stage.CAPTURED);
+        assertEquals(1, total.count());
+        assertTrue(total.minUs() >= 1000);
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.SINK).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.ENCODER_INPUT).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.ENCODER_OUTPUT).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.MUXED).count());
+        assertEquals(0, mTracker.discarded());
+    }
+
+    @Test
+    public void skippedStagesAreNotCounted() {
+        mTracker.mark(LatencyTracker.Stage.ENCODER_INPUT, mBaseUs);
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs);
+
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.SINK).count());
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.ENCODER_OUTPUT).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.ENCODER_INPUT).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+    }
+
+    @Test
+    public void muxOfUnknownTimestampIsIgnored() {
+        mTracker.mark(LatencyTracker.Stage.SINK, mBaseUs);
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs + 1);
+
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+        assertEquals(0, mTracker.discarded());
+    }
+
+    @Test
+    public void frameIsCountedOnce() {
+        mTracker.mark(LatencyTracker.Stage.SINK, mBaseUs);
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs);
+        // e.g. another layer muxing the same frame
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs);
+
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+    }
+
+    @Test
+    public void staleFramesAreEvicted() {
+        for (int i = 0; i <= TRACKED_FRAMES; i++) {
+            mTracker.mark(LatencyTracker.Stage.SINK, mBaseUs + i);
+        }
+        // the first frame was overwritten by the last one
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs);
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+
+        for (int i = 1; i <= TRACKED_FRAMES; i++) {
+            mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs + i);
+        }
+        assertEquals(TRACKED_FRAMES, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+    }
+
+    @Test
+    public void latencyOfOtherClockIsDiscarded() {
+        long futureUs = mBaseUs + TimeUnit.SECONDS.toMicros(60);
+        mTracker.mark(LatencyTracker.Stage.SINK, futureUs);
+        mTracker.mark(LatencyTracker.Stage.MUXED, futureUs);
+
+        // the negative SINK and total latencies
+        assertEquals(2, mTracker.discarded());
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+        assertEquals(0, mTracker.histogram(LatencyTracker.Stage.SINK).count());
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.MUXED).count());
+    }
+
+    @Test
+    public void histogramIsCopied() {
+        mTracker.mark(LatencyTracker.Stage.SINK, mBaseUs);
+        mTracker.mark(LatencyTracker.Stage.MUXED, mBaseUs);
+        mTracker.histogram(LatencyTracker.Stage.CAPTURED).reset();
+
+        assertEquals(1, mTracker.histogram(LatencyTracker.Stage.CAPTURED).count());
+    }
+}
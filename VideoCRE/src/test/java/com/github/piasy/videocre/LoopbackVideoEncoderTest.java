@@ -0,0 +1,78 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.webrtc.MediaCodecVideoEncoder.VideoCodecType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LoopbackVideoEncoderTest {
+    private static final int FPS = 30;
+    private static final int FRAMES = 10;
+
+    @Test
+    public void deliveredFramesAreNotPending() throws InterruptedException {
+        CountingCallback callback = new CountingCallback(FRAMES);
+        LoopbackVideoEncoder encoder = start(0, callback);
+        encodeFrames(encoder);
+
+        assertTrue(callback.mDelivered.await(5, TimeUnit.SECONDS));
+        encoder.release();
+        assertEquals(FRAMES, encoder.getEncodedFrames());
+        assertEquals(0, encoder.getPendingFrames());
+    }
+
+    @Test
+    public void releaseDropsPendingFrames() {
+        CountingCallback callback = new CountingCallback(FRAMES);
+        LoopbackVideoEncoder encoder = start(60_000, callback);
+        encodeFrames(encoder);
+
+        assertEquals(FRAMES, encoder.getPendingFrames());
+        encoder.release();
+        assertEquals(0, encoder.getPendingFrames());
+        assertEquals(0, callback.mFrames.get());
+    }
+
+    private static LoopbackVideoEncoder start(final long latencyMs,
+            final MediaCodecCallback callback) {
+        LoopbackVideoEncoder encoder = new LoopbackVideoEncoder(0);
+        encoder.setLatencyMs(latencyMs);
+        assertTrue(encoder.initEncode(VideoCodecType.VIDEO_CODEC_H264, 0, 640, 360, 500, FPS,
+                null, callback));
+        return encoder;
+    }
+
+    private static void encodeFrames(final LoopbackVideoEncoder encoder) {
+        for (int i = 0; i < FRAMES; i++) {
+            assertTrue(encoder.encodeTexture(false, 0, null, i * 1000_000L / FPS));
+        }
+    }
+
+    private static class CountingCallback implements MediaCodecCallback {
+        final AtomicInteger mFrames = new AtomicInteger();
+        final CountDownLatch mDelivered;
+
+        CountingCallback(final int frames) {
+            mDelivered = new CountDownLatch(frames);
+        }
+
+        @Override
+        public void onEncodedFrame(final EncodedFrame frame) {
+            mFrames.incrementAndGet();
+            mDelivered.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.piasy.videocre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4FastStartTest {
+    private static final int CHUNKS = 100;
+    private static final int MDAT_SIZE = 100_000;
+    private static final long MARKER = 0x5A5A000000000000L;
+
+    private File mInput;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws IOException {
+        mInput = File.createTempFile("Mp4FastStartTest", ".mp4");
+        mOutput = new File(mInput.getPath() + ".faststart.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @Test
+    public void copy() throws IOException {
+        buildMoovLast(mInput, true);
+
+        assertTrue(Mp4FastStart.process(mInput, mOutput));
+        assertFastStart(mOutput);
+    }
+
+    @Test
+    public void inPlace() throws IOException {
+        buildMoovLast(mInput, true);
+        long size = mInput.length();
+
+        assertTrue(Mp4FastStart.process(mInput, null));
+        assertFastStart(mInput);
+        assertEquals(size, mInput.length());
+
+        assertFalse(Mp4FastStart.process(mInput, null));
+        assertFastStart(mInput);
+    }
+
+    @Test
+    public void alreadyFastStartCreatesNoOutput() throws IOException {
+        buildMoovLast(mInput, false);
+        Mp4FastStart.process(mInput, null);
+
+        assertFalse(Mp4FastStart.process(mInput, mOutput));
+        assertFalse(mOutput.exists());
+    }
+
+    @Test
+    public void backgroundReportsInputIfAlreadyFastStart() throws Exception {
+        buildMoovLast(mInput, false);
+        Mp4FastStart.process(mInput, null);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Object[] result = new Object[3];
+
+        Mp4FastStart.processInBackground(mInput, mOutput, new Mp4FastStart.Listener() {
+            @Override
+            public void onFinished(final File file, final boolean success, final boolean moved) {
+                result[0] = file;
+                result[1] = success;
+                result[2] = moved;
+                finished.countDown();
+            }
+        });
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(mInput, result[0]);
+        assertEquals(true, result[1]);
+        assertEquals(false, result[2]);
+        assertFalse(mOutput.exists());
+    }
+
+    /**
+     * ftyp, mdat with a marker at each chunk, moov with the stco of the chunks, and a free box if
+     * {@code trailing}, like MediaMuxer writes.
+     */
+    private static void buildMoovLast(final File file, final boolean trailing)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20 + 8 + MDAT_SIZE + 200 + 4 * CHUNKS);
+        buffer.putInt(20).putInt(fourCc("ftyp")).putInt(fourCc("isom")).putInt(0)
+                .putInt(fourCc("isom"));
+        int mdat = buffer.position();
+        buffer.putInt(8 + MDAT_SIZE).putInt(fourCc("mdat"));
+        long[] offsets = new long[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            offsets[i] = mdat + 8 + MDAT_SIZE / CHUNKS * i;
+            buffer.putLong((int) offsets[i], MARKER | i);
+        }
+        buffer.position(mdat + 8 + MDAT_SIZE);
+
+        String[] containers = { "moov", "trak", "mdia", "minf", "stbl" };
+        int[] starts = new int[containers.length];
+        for (int i = 0; i < containers.length; i++) {
+            starts[i] = buffer.position();
+            buffer.putInt(0).putInt(fourCc(containers[i]));
+            if (i == 0) {
+                buffer.putInt(108).putInt(fourCc("mvhd")).position(buffer.position() + 100);
+            }
+        }
+        buffer.putInt(16 + 4 * CHUNKS).putInt(fourCc("stco")).putInt(0).putInt(CHUNKS);
+        for (long offset : offsets) {
+            buffer.putInt((int) offset);
+        }
+        for (int i = containers.length - 1; i >= 0; i--) {
+            buffer.putInt(starts[i], buffer.position() - starts[i]);
+        }
+        if (trailing) {
+            buffer.putInt(16).putInt(fourCc("free")).putLong(0);
+        }
+        buffer.flip();
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.getChannel().write(buffer);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * moov before mdat, boxes covering the whole file, and each chunk offset at its marker.
+     */
+    private static void assertFastStart(final File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer mp4 = ByteBuffer.allocate((int) channel.size());
+            channel.read(mp4, 0);
+            int moov = -1;
+            int mdat = -1;
+            int position = 0;
+            while (position < mp4.limit()) {
+                int type = mp4.getInt(position + 4);
+                if (type == fourCc("moov")) {
+                    moov = position;
+                } else if (type == fourCc("mdat")) {
+                    mdat = position;
+                }
+                position += mp4.getInt(position);
+            }
+            assertEquals(mp4.limit(), position);
+            assertTrue("moov " + moov + " mdat " + mdat, moov >= 0 && moov < mdat);
+
+            int stco = moov;
+            while (mp4.getInt(stco + 4) != fourCc("stco")) {
+                stco++;
+            }
+            assertEquals(CHUNKS, mp4.getInt(stco + 12));
+            for (int i = 0; i < CHUNKS; i++) {
+                assertEquals(MARKER | i, mp4.getLong(mp4.getInt(stco + 16 + 4 * i)));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int fourCc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+               | type.charAt(3);
+    }
+}
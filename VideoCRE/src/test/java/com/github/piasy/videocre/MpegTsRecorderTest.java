@@ -0,0 +1,419 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records synthetic frames and parses the transport stream back.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MpegTsRecorderTest {
+    private static final int PACKET_SIZE = 188;
+    private static final int PAT_PID = 0;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final long FIRST_PTS_US = 1000_000;
+    private static final long FRAME_US = 33333;
+    private static final int PES_HEADER_SIZE = 14;
+    // payload of the first packet of a PES, after the adaptation field with PCR
+    private static final int FIRST_PAYLOAD = PACKET_SIZE - 4 - 8;
+    private static final byte[] H264_AUD = { 0, 0, 0, 1, 0x09, (byte) 0xF0 };
+    private static final byte[] H265_AUD = { 0, 0, 0, 1, 0x46, 0x01, 0x50 };
+    private static final byte[] CODEC_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, 0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C,
+            (byte) 0x80
+    };
+
+    private final EncodedFramePool mPool = new EncodedFramePool();
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("MpegTsRecorderTest", ".ts");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void h264Stream() throws Exception {
+        MpegTsRecorder recorder = new MpegTsRecorder(mFile, false);
+        recorder.onOutputFormatChanged(null, format(MediaFormat.MIMETYPE_VIDEO_AVC));
+        // skipped: codec config, and a delta frame before the first keyframe
+        deliver(recorder, CODEC_CONFIG, MediaCodec.BUFFER_FLAG_CODEC_CONFIG, null, 0);
+        deliver(recorder, slice(false, 50), 0, null, 0);
+
+        List<byte[]> payloads = new ArrayList<>();
+        // 1000 bytes, several full packets
+        payloads.add(slice(true, 1000));
+        // 183 bytes left for the last packet, its adaptation field is just the length byte
+        payloads.add(slice(false, FIRST_PAYLOAD + 183 - PES_HEADER_SIZE - H264_AUD.length));
+        // fits in the first packet, stuffed
+        payloads.add(slice(false, 100));
+        // starts with its own AUD, and fills 2 packets exactly, without stuffing
+        payloads.add(concat(H264_AUD,
+                slice(false, FIRST_PAYLOAD + 184 - PES_HEADER_SIZE - H264_AUD.length)));
+        payloads.add(slice(true, 500));
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            boolean keyFrame = (payload[4] & 0x1F) == NalUnits.TYPE_IDR;
+            deliver(recorder, payload, keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    keyFrame ? CODEC_CONFIG : null, i + 1);
+        }
+        recorder.stop();
+
+        byte[] ts = Files.readAllBytes(mFile.toPath());
+        assertEquals(ts.length, recorder.bytesWritten());
+        List<Packet> packets = parse(ts);
+        List<Pes> pesList = assertPes(packets);
+        assertEquals(payloads.size(), pesList.size());
+        for (int i = 0; i < pesList.size(); i++) {
+            Pes pes = pesList.get(i);
+            byte[] payload = payloads.get(i);
+            boolean keyFrame = (payload[4] & 0x1F) == NalUnits.TYPE_IDR;
+            long ticks = i * FRAME_US * 9 / 100;
+            assertEquals(ticks, pes.mPcr);
+            assertEquals(ticks + MpegTsRecorder.PTS_DELAY_90K, pes.mPts);
+            assertEquals(keyFrame, pes.mRandomAccess);
+            assertFalse(pes.mDiscontinuity);
+            // tables right before each keyframe
+            assertEquals(keyFrame, pes.mAfterTables);
+            byte[] expected = i == 3
+                              ? payload
+                              : keyFrame
+                                ? concat(H264_AUD, CODEC_CONFIG, payload)
+                                : concat(H264_AUD, payload);
+            assertArrayEquals("frame " + i, expected, pes.mData);
+        }
+
+        // 1036 bytes with the header, AUD, SPS and PPS
+        assertPacketCount(pesList.get(0), 6);
+        assertPacketCount(pesList.get(1), 2);
+        assertEquals(1, pesList.get(1).mLastAdaptationLength);
+        assertPacketCount(pesList.get(2), 1);
+        assertPacketCount(pesList.get(3), 2);
+        assertEquals(0, pesList.get(3).mLastAdaptationLength);
+
+        assertTables(packets, 0x1B);
+    }
+
+    @Test
+    public void formatChangeRestartsTimeline() throws Exception {
+        MpegTsRecorder recorder = new MpegTsRecorder(mFile, false);
+        recorder.onOutputFormatChanged(null, format(MediaFormat.MIMETYPE_VIDEO_AVC));
+        deliver(recorder, slice(true, 300), MediaCodec.BUFFER_FLAG_SYNC_FRAME, CODEC_CONFIG, 0);
+        deliver(recorder, slice(false, 300), 0, null, 1);
+        recorder.onOutputFormatChanged(null, format(MediaFormat.MIMETYPE_VIDEO_AVC));
+        // waits for a keyframe
+        deliver(recorder, slice(false, 300), 0, null, 2);
+        deliver(recorder, slice(true, 300), MediaCodec.BUFFER_FLAG_SYNC_FRAME, CODEC_CONFIG, 3);
+        deliver(recorder, slice(false, 300), 0, null, 4);
+        recorder.stop();
+
+        List<Pes> pesList = assertPes(parse(Files.readAllBytes(mFile.toPath())));
+        assertEquals(4, pesList.size());
+        assertFalse(pesList.get(0).mDiscontinuity);
+        assertFalse(pesList.get(1).mDiscontinuity);
+        assertTrue(pesList.get(2).mDiscontinuity);
+        assertFalse(pesList.get(3).mDiscontinuity);
+        assertEquals(0, pesList.get(2).mPcr);
+        assertEquals(MpegTsRecorder.PTS_DELAY_90K, pesList.get(2).mPts);
+        assertEquals(FRAME_US * 9 / 100, pesList.get(3).mPcr);
+    }
+
+    @Test
+    public void appendedH265Stream() throws Exception {
+        MpegTsRecorder recorder = new MpegTsRecorder(mFile, true);
+        recorder.onOutputFormatChanged(null, format(MediaFormat.MIMETYPE_VIDEO_HEVC));
+        // IDR_W_RADL
+        byte[] idr = concat(new byte[] { 0, 0, 0, 1, 0x26, 0x01 }, new byte[400]);
+        deliver(recorder, idr, MediaCodec.BUFFER_FLAG_SYNC_FRAME, null, 0);
+        deliver(recorder, concat(new byte[] { 0, 0, 0, 1, 0x02, 0x01 }, new byte[400]), 0,
+                null, 1);
+        recorder.stop();
+
+        List<Packet> packets = parse(Files.readAllBytes(mFile.toPath()));
+        List<Pes> pesList = assertPes(packets);
+        assertEquals(2, pesList.size());
+        // the stream appended to may have ended anywhere
+        assertTrue(pesList.get(0).mDiscontinuity);
+        assertTrue(pesList.get(0).mRandomAccess);
+        assertFalse(pesList.get(1).mDiscontinuity);
+        assertArrayEquals(concat(H265_AUD, idr), pesList.get(0).mData);
+        assertTables(packets, 0x24);
+    }
+
+    private void deliver(final MpegTsRecorder recorder, final byte[] payload, final int flags,
+            final byte[] codecConfig, final int frameIndex) {
+        ByteBuffer data = ByteBuffer.allocateDirect(payload.length);
+        data.put(payload).flip();
+        EncodedFrame frame = mPool.wrap(data, codecConfig == null ? null
+                : ByteBuffer.wrap(codecConfig).asReadOnlyBuffer(), flags,
+                FIRST_PTS_US + frameIndex * FRAME_US);
+        recorder.onEncodedFrame(frame);
+        frame.release();
+    }
+
+    private static MediaFormat format(final String mime) {
+        return MediaFormat.createVideoFormat(mime, 640, 360);
+    }
+
+    /**
+     * A slice NAL unit with a 4 byte start code, {@code size} bytes in total.
+     */
+    private static byte[] slice(final boolean idr, final int size) {
+        byte[] slice = new byte[size];
+        slice[3] = 1;
+        slice[4] = (byte) (idr ? 0x65 : 0x41);
+        for (int i = 5; i < size; i++) {
+            slice[i] = (byte) (i * 7 + 3);
+        }
+        return slice;
+    }
+
+    private static void assertPacketCount(final Pes pes, final int count) {
+        assertEquals(count, pes.mPackets);
+    }
+
+    /**
+     * Checks the PAT and PMT packets, which must be identical each time.
+     */
+    private static void assertTables(final List<Packet> packets, final int streamType) {
+        int pats = 0;
+        for (Packet packet : packets) {
+            if (packet.mPid != PAT_PID && packet.mPid != PMT_PID) {
+                continue;
+            }
+            assertTrue(packet.mPayloadStart);
+            assertFalse(packet.mHasAdaptation);
+            byte[] payload = packet.mPayload;
+            assertEquals("pointer field", 0, payload[0]);
+            int sectionLength = ((payload[2] & 0x0F) << 8) | (payload[3] & 0xFF);
+            byte[] section = Arrays.copyOfRange(payload, 1, 4 + sectionLength);
+            // section syntax indicator
+            assertEquals(0x80, section[1] & 0x80);
+            // the CRC covers the whole section including itself
+            assertEquals(0, crc32(section));
+            for (int i = 4 + sectionLength; i < payload.length; i++) {
+                assertEquals((byte) 0xFF, payload[i]);
+            }
+            ByteBuffer fields = ByteBuffer.wrap(section);
+            if (packet.mPid == PAT_PID) {
+                pats++;
+                assertEquals(0, section[0]);
+                assertEquals(13, sectionLength);
+                // program 1 on the PMT PID
+                assertEquals(1, fields.getShort(8));
+                assertEquals(PMT_PID, fields.getShort(10) & 0x1FFF);
+            } else {
+                assertEquals(2, section[0]);
+                assertEquals(18, sectionLength);
+                // PCR PID
+                assertEquals(VIDEO_PID, fields.getShort(8) & 0x1FFF);
+                assertEquals(0, fields.getShort(10) & 0x0FFF);
+                assertEquals(streamType, section[12] & 0xFF);
+                assertEquals(VIDEO_PID, fields.getShort(13) & 0x1FFF);
+                assertEquals(0, fields.getShort(15) & 0x0FFF);
+            }
+        }
+        assertTrue(pats > 0);
+    }
+
+    /**
+     * Reassembles the PES packets of the video PID, checking their headers.
+     */
+    private static List<Pes> assertPes(final List<Packet> packets) {
+        List<Pes> pesList = new ArrayList<>();
+        ByteArrayOutputStream data = null;
+        Pes pes = null;
+        boolean tables = false;
+        for (Packet packet : packets) {
+            if (packet.mPid != VIDEO_PID) {
+                tables = true;
+                continue;
+            }
+            if (packet.mPayloadStart) {
+                if (pes != null) {
+                    pes.finish(data.toByteArray());
+                }
+                pes = new Pes();
+                pesList.add(pes);
+                data = new ByteArrayOutputStream();
+                // every PES starts with flags and the PCR
+                assertTrue(packet.mHasAdaptation);
+                assertTrue(packet.mHasPcr);
+                pes.mPcr = packet.mPcr;
+                pes.mRandomAccess = packet.mRandomAccess;
+                pes.mDiscontinuity = packet.mDiscontinuity;
+                pes.mAfterTables = tables;
+            } else {
+                assertFalse(packet.mHasPcr);
+                assertFalse(packet.mRandomAccess);
+                assertFalse(packet.mDiscontinuity);
+            }
+            tables = false;
+            pes.mPackets++;
+            pes.mLastAdaptationLength = packet.mAdaptationLength;
+            data.write(packet.mPayload, 0, packet.mPayload.length);
+        }
+        if (pes != null) {
+            pes.finish(data.toByteArray());
+        }
+        return pesList;
+    }
+
+    /**
+     * Splits {@code ts} into packets, checking the sync bytes, continuity counters and adaptation
+     * fields.
+     */
+    private static List<Packet> parse(final byte[] ts) {
+        assertEquals(0, ts.length % PACKET_SIZE);
+        Map<Integer, Integer> counters = new HashMap<>();
+        List<Packet> packets = new ArrayList<>();
+        for (int offset = 0; offset < ts.length; offset += PACKET_SIZE) {
+            Packet packet = new Packet();
+            assertEquals(0x47, ts[offset] & 0xFF);
+            // no transport error, no priority
+            assertEquals(0, ts[offset + 1] & 0xA0);
+            packet.mPayloadStart = (ts[offset + 1] & 0x40) != 0;
+            packet.mPid = ((ts[offset + 1] & 0x1F) << 8) | (ts[offset + 2] & 0xFF);
+            // not scrambled, always a payload
+            assertEquals(0, ts[offset + 3] & 0xC0);
+            assertEquals(0x10, ts[offset + 3] & 0x10);
+            packet.mHasAdaptation = (ts[offset + 3] & 0x20) != 0;
+            int counter = ts[offset + 3] & 0x0F;
+            Integer previous = counters.get(packet.mPid);
+            if (previous != null) {
+                assertEquals("counter of PID " + packet.mPid, (previous + 1) & 0xF, counter);
+            } else {
+                assertEquals(0, counter);
+            }
+            counters.put(packet.mPid, counter);
+
+            int payloadStart = offset + 4;
+            if (packet.mHasAdaptation) {
+                int length = ts[offset + 4] & 0xFF;
+                packet.mAdaptationLength = length + 1;
+                payloadStart += 1 + length;
+                assertTrue(payloadStart < offset + PACKET_SIZE);
+                int stuffingStart = offset + 5;
+                if (length > 0) {
+                    int flags = ts[offset + 5] & 0xFF;
+                    packet.mDiscontinuity = (flags & 0x80) != 0;
+                    packet.mRandomAccess = (flags & 0x40) != 0;
+                    packet.mHasPcr = (flags & 0x10) != 0;
+                    // no other flags
+                    assertEquals(0, flags & 0x2F);
+                    stuffingStart++;
+                    if (packet.mHasPcr) {
+                        ByteBuffer pcr = ByteBuffer.wrap(ts, offset + 6, 6);
+                        long high = pcr.getInt() & 0xFFFFFFFFL;
+                        int low = pcr.getShort() & 0xFFFF;
+                        packet.mPcr = (high << 1) | (low >> 15);
+                        // reserved bits set, extension 0
+                        assertEquals(0x7E00, low & 0x7FFF);
+                        stuffingStart += 6;
+                    }
+                }
+                for (int i = stuffingStart; i < payloadStart; i++) {
+                    assertEquals((byte) 0xFF, ts[i]);
+                }
+            }
+            packet.mPayload = Arrays.copyOfRange(ts, payloadStart, offset + PACKET_SIZE);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /**
+     * MPEG-2 CRC32, bit by bit.
+     */
+    private static int crc32(final byte[] data) {
+        int crc = 0xFFFFFFFF;
+        for (byte b : data) {
+            for (int bit = 7; bit >= 0; bit--) {
+                boolean feedback = ((crc >>> 31) ^ ((b >> bit) & 1)) != 0;
+                crc <<= 1;
+                if (feedback) {
+                    crc ^= 0x04C11DB7;
+                }
+            }
+        }
+        return crc;
+    }
+
+    private static byte[] concat(final byte[]... arrays) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            output.write(array, 0, array.length);
+        }
+        return output.toByteArray();
+    }
+
+    private static class Packet {
+        int mPid;
+        boolean mPayloadStart;
+        boolean mHasAdaptation;
+        int mAdaptationLength;
+        boolean mDiscontinuity;
+        boolean mRandomAccess;
+        boolean mHasPcr;
+        long mPcr;
+        byte[] mPayload;
+    }
+
+    private static class Pes {
+        long mPcr;
+        long mPts;
+        boolean mRandomAccess;
+        boolean mDiscontinuity;
+        boolean mAfterTables;
+        int mPackets;
+        int mLastAdaptationLength;
+        byte[] mData;
+
+        /**
+         * Checks the PES header, keeps the PTS and the elementary stream data.
+         */
+        void finish(final byte[] pes) {
+            ByteBuffer header = ByteBuffer.wrap(pes);
+            assertEquals(0x000001E0, header.getInt());
+            // unbounded
+            assertEquals(0, header.getShort());
+            assertEquals(0x80, header.get() & 0xFF);
+            // PTS only
+            assertEquals(0x80, header.get() & 0xFF);
+            assertEquals(5, header.get());
+            int high = header.get() & 0xFF;
+            int middle = header.getShort() & 0xFFFF;
+            int low = header.getShort() & 0xFFFF;
+            assertEquals(0x21, high & 0xF1);
+            assertEquals(1, middle & 1);
+            assertEquals(1, low & 1);
+            mPts = ((long) (high & 0x0E) << 29) | ((long) (middle >> 1) << 15) | (low >> 1);
+            mData = Arrays.copyOfRange(pes, PES_HEADER_SIZE, pes.length);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class PreRollBufferTest {
+    private static final long FRAME_US = 33333;
+    private static final int FRAME_SIZE = 100;
+    private static final int MAX_FRAMES = 256;
+    private static final long LONG_WINDOW_US = 1000_000_000L;
+    private static final byte[] CODEC_CONFIG = { 0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68 };
+
+    private final EncodedFramePool mPool = new EncodedFramePool();
+    private int mFrameIndex;
+
+    @Test
+    public void ringWrapsAround() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 10 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        // GOPs of 3 frames fill the arena exactly
+        for (int i = 0; i < 10; i++) {
+            deliver(buffer, i % 3 == 0);
+        }
+        assertEquals(10, buffer.bufferedFrames());
+        assertEquals(10 * FRAME_SIZE, buffer.bufferedBytes());
+
+        // evicts the first GOP, and is written at the start of the arena
+        deliver(buffer, false);
+
+        assertEquals(3, buffer.evictedFrames());
+        assertEquals(8, buffer.bufferedFrames());
+        assertEquals(8 * FRAME_SIZE, buffer.bufferedBytes());
+        CollectingRecorder recorder = new CollectingRecorder();
+        assertEquals(7 * FRAME_US, buffer.startRecording(recorder));
+        recorder.assertFrames(3, 11);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void frameCountLimitEvictsGops() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 100 * FRAME_SIZE, 4);
+        buffer.onOutputFormatChanged(null, format());
+        for (int i = 0; i < 5; i++) {
+            deliver(buffer, i % 2 == 0);
+        }
+
+        assertEquals(2, buffer.evictedFrames());
+        assertEquals(3, buffer.bufferedFrames());
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        recorder.assertFrames(2, 5);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void windowEvictsWholeGops() {
+        int gopFrames = 10;
+        long windowUs = 1000_000;
+        PreRollBuffer buffer = new PreRollBuffer(windowUs, 1000 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        for (int i = 0; i < 100; i++) {
+            deliver(buffer, i % gopFrames == 0);
+            if (i * FRAME_US >= windowUs) {
+                // at least the window, less than one more GOP
+                assertTrue(buffer.bufferedDurationUs() >= windowUs);
+                assertTrue(buffer.bufferedDurationUs() < windowUs + gopFrames * FRAME_US);
+            }
+        }
+
+        assertEquals(0, buffer.evictedFrames() % gopFrames);
+        assertEquals(0, buffer.droppedFrames());
+        assertEquals(100, buffer.evictedFrames() + buffer.bufferedFrames());
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        recorder.assertFrames((int) buffer.evictedFrames(), 100);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void budgetEvictsWholeGops() {
+        int gopFrames = 10;
+        // 2.5 GOPs
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 25 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        for (int i = 0; i < 95; i++) {
+            deliver(buffer, i % gopFrames == 0);
+            assertTrue(buffer.bufferedBytes() <= 25 * FRAME_SIZE);
+        }
+
+        // the 8th GOP and the partial 9th stay, 7 GOPs are evicted
+        assertEquals(7 * gopFrames, buffer.evictedFrames());
+        assertEquals(25, buffer.bufferedFrames());
+        assertEquals(0, buffer.droppedFrames());
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        recorder.assertFrames(70, 95);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void gopLargerThanBudgetIsDropped() {
+        // half a GOP
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 5 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        for (int i = 0; i < 23; i++) {
+            deliver(buffer, i % 10 == 0);
+        }
+
+        // each full GOP is cleared at its 6th frame, the rest of it dropped
+        assertEquals(10, buffer.evictedFrames());
+        assertEquals(10, buffer.droppedFrames());
+        assertEquals(3, buffer.bufferedFrames());
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        recorder.assertFrames(20, 23);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void frameLargerThanArenaIsDropped() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 5 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        deliver(buffer, true);
+        deliver(buffer, 6 * FRAME_SIZE, true);
+        // its GOP isn't buffered
+        deliver(buffer, false);
+
+        assertEquals(2, buffer.droppedFrames());
+        assertEquals(1, buffer.bufferedFrames());
+        deliver(buffer, true);
+        assertEquals(2, buffer.bufferedFrames());
+    }
+
+    @Test
+    public void replayStartsAtKeyFrameWithCodecConfig() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 100 * FRAME_SIZE, MAX_FRAMES);
+        MediaFormat format = format();
+        buffer.onOutputFormatChanged(null, format);
+        // without their keyframe, these are not buffered
+        deliver(buffer, false);
+        deliver(buffer, false);
+        for (int i = 0; i < 6; i++) {
+            deliver(buffer, i % 3 == 0);
+        }
+
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        assertEquals(2, buffer.droppedFrames());
+        assertEquals(1, recorder.mFormats.size());
+        assertTrue(format == recorder.mFormats.get(0));
+        recorder.assertFrames(2, 8);
+        for (int i = 0; i < 6; i++) {
+            EncodedFrame frame = recorder.mFrames.get(i);
+            if (frame.isKeyFrame()) {
+                assertEquals(ByteBuffer.wrap(CODEC_CONFIG), frame.codecConfig());
+            } else {
+                assertNull(frame.codecConfig());
+            }
+        }
+
+        // live frames follow
+        deliver(buffer, false);
+        assertEquals(7, recorder.mFrames.size());
+        assertTrue(recorder == buffer.stopRecording());
+        deliver(buffer, false);
+        assertEquals(7, recorder.mFrames.size());
+        recorder.assertFrames(2, 9);
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void recordingWaitsForKeyFrameAfterFormatChange() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 100 * FRAME_SIZE, MAX_FRAMES);
+        CollectingRecorder recorder = new CollectingRecorder();
+        // nothing buffered yet
+        assertEquals(0, buffer.startRecording(recorder));
+        buffer.onOutputFormatChanged(null, format());
+        deliver(buffer, false);
+        deliver(buffer, true);
+        deliver(buffer, false);
+
+        assertEquals(1, recorder.mFormats.size());
+        recorder.assertFrames(1, 3);
+        assertEquals(2, buffer.bufferedFrames());
+        recorder.releaseAll();
+    }
+
+    @Test
+    public void evictedFramesKeptByRecorderAreCopies() {
+        PreRollBuffer buffer = new PreRollBuffer(LONG_WINDOW_US, 6 * FRAME_SIZE, MAX_FRAMES);
+        buffer.onOutputFormatChanged(null, format());
+        for (int i = 0; i < 6; i++) {
+            deliver(buffer, i % 3 == 0);
+        }
+        CollectingRecorder recorder = new CollectingRecorder();
+        buffer.startRecording(recorder);
+        buffer.stopRecording();
+
+        // evict and overwrite all replayed frames
+        for (int i = 0; i < 6; i++) {
+            deliver(buffer, i % 3 == 0);
+        }
+        assertEquals(6, buffer.evictedFrames());
+        // the frames retained during replay kept their data
+        recorder.assertFrames(0, 6);
+        // input frames are never retained, so never copied
+        assertEquals(0, mPool.bytesCopied());
+
+        // the replayed frames were released by the buffer, the recorder holds the only reference
+        for (EncodedFrame frame : recorder.mFrames) {
+            frame.release();
+            try {
+                frame.release();
+                fail("released twice");
+            } catch (IllegalStateException expected) {
+                // expected
+            }
+        }
+    }
+
+    private void deliver(final PreRollBuffer buffer, final boolean keyFrame) {
+        deliver(buffer, FRAME_SIZE, keyFrame);
+    }
+
+    private void deliver(final PreRollBuffer buffer, final int size, final boolean keyFrame) {
+        ByteBuffer payload = ByteBuffer.allocateDirect(size);
+        while (payload.hasRemaining()) {
+            payload.put((byte) mFrameIndex);
+        }
+        payload.flip();
+        ByteBuffer codecConfig = keyFrame ? ByteBuffer.wrap(CODEC_CONFIG.clone()) : null;
+        EncodedFrame frame = mPool.wrap(payload, codecConfig,
+                keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mFrameIndex * FRAME_US);
+        mFrameIndex++;
+        buffer.onEncodedFrame(frame);
+        frame.release();
+        // the codec reuses its buffers
+        payload.put(0, (byte) -1);
+        if (codecConfig != null) {
+            codecConfig.put(4, (byte) -1);
+        }
+    }
+
+    private static MediaFormat format() {
+        return MediaFormat.createVideoFormat("video/avc", 640, 360);
+    }
+
+    /**
+     * Retains every frame, like an {@link AsyncRecorder} would.
+     */
+    private static class CollectingRecorder implements MediaCodecCallback {
+        final List<MediaFormat> mFormats = new ArrayList<>();
+        final List<EncodedFrame> mFrames = new ArrayList<>();
+
+        @Override
+        public void onEncodedFrame(final EncodedFrame frame) {
+            frame.retain();
+            mFrames.add(frame);
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+            mFormats.add(format);
+        }
+
+        /**
+         * Frames {@code from} until {@code to}, in order, starting at a keyframe.
+         */
+        void assertFrames(final int from, final int to) {
+            assertEquals(to - from, mFrames.size());
+            assertTrue(mFrames.get(0).isKeyFrame());
+            for (int i = 0; i < mFrames.size(); i++) {
+                EncodedFrame frame = mFrames.get(i);
+                int index = from + i;
+                assertEquals(index * FRAME_US, frame.presentationTimestampUs());
+                assertEquals(FRAME_SIZE, frame.size());
+                ByteBuffer data = frame.buffer();
+                assertNotNull(data);
+                while (data.hasRemaining()) {
+                    assertEquals((byte) index, data.get());
+                }
+            }
+            assertFalse(mFrames.isEmpty());
+        }
+
+        void releaseAll() {
+            for (EncodedFrame frame : mFrames) {
+                frame.release();
+            }
+            mFrames.clear();
+        }
+    }
+}
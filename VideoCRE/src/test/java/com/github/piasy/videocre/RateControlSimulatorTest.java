@@ -0,0 +1,113 @@
+package com.github.piasy.videocre;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.webrtc.MediaCodecVideoEncoder.BitrateAdjustmentType;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pins the bitrate accuracy and convergence time of {@link DefaultRateController}, so a change of
+ * its constants or logic shows up here before it shows up on a device.
+ */
+public class RateControlSimulatorTest {
+    private static final int TARGET_BITRATE_BPS = 1000_000;
+    private static final int FPS = 30;
+    private static final int DURATION_SEC = 60;
+    private static final double TOLERANCE = 0.1;
+
+    @Test
+    public void readTrace() throws IOException {
+        List<RateControlSimulator.Sample> trace = RateControlSimulator.readTrace(
+                new StringReader("# pts size\n0 4000\n\n33333, 1200\n  66666\t900  \n"));
+
+        assertEquals(3, trace.size());
+        assertEquals(33333, trace.get(1).presentationTimestampUs);
+        assertEquals(1200, trace.get(1).sizeBytes);
+        assertEquals(66666, trace.get(2).presentationTimestampUs);
+        assertEquals(900, trace.get(2).sizeBytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void readTraceRejectsMissingSize() throws IOException {
+        RateControlSimulator.readTrace(new StringReader("0 4000\n33333\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void readTraceRejectsBadNumber() throws IOException {
+        RateControlSimulator.readTrace(new StringReader("0 4k\n"));
+    }
+
+    @Test
+    public void accurateCodecNeedsNoAdjustment() {
+        for (BitrateAdjustmentType type : BitrateAdjustmentType.values()) {
+            RateControlSimulator.Result result = simulate(type, 1, FPS);
+
+            assertEquals(type.toString(), TARGET_BITRATE_BPS, result.achievedBitrateBps,
+                    TARGET_BITRATE_BPS * 0.001);
+            assertEquals(type.toString(), 0, result.convergenceTimeMs);
+            assertEquals(type.toString(), TARGET_BITRATE_BPS, result.finalCodecBitrateBps);
+            assertEquals(DURATION_SEC - 1, result.windowErrors.size());
+        }
+    }
+
+    @Test
+    public void overshootIsNotCorrectedWithoutDynamicAdjustment() {
+        RateControlSimulator.Result result = simulate(BitrateAdjustmentType.NO_ADJUSTMENT, 2, FPS);
+
+        assertEquals(2 * TARGET_BITRATE_BPS, result.achievedBitrateBps, TARGET_BITRATE_BPS * 0.001);
+        assertEquals(1, result.meanAbsError, 0.001);
+        assertEquals(-1, result.convergenceTimeMs);
+    }
+
+    @Test
+    public void dynamicAdjustmentCorrectsOvershoot() {
+        RateControlSimulator.Result result =
+                simulate(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT, 2, FPS);
+
+        assertEquals(TARGET_BITRATE_BPS / 2, result.finalCodecBitrateBps);
+        assertEquals(12000, result.convergenceTimeMs);
+        assertEquals(0.110, result.meanAbsError, 0.001);
+        assertEquals(1108032, result.achievedBitrateBps);
+    }
+
+    @Test
+    public void dynamicAdjustmentCorrectsUndershoot() {
+        RateControlSimulator.Result result =
+                simulate(BitrateAdjustmentType.DYNAMIC_ADJUSTMENT, 0.5, FPS);
+
+        assertEquals(TARGET_BITRATE_BPS * 2, result.finalCodecBitrateBps);
+        assertEquals(15000, result.convergenceTimeMs);
+        assertEquals(0.123, result.meanAbsError, 0.001);
+        assertEquals(950484, result.achievedBitrateBps);
+    }
+
+    @Test
+    public void framerateAdjustmentScalesByFps() {
+        int fps = FPS / 2;
+        RateControlSimulator.Result result =
+                simulate(BitrateAdjustmentType.FRAMERATE_ADJUSTMENT, 1, fps);
+
+        assertEquals(TARGET_BITRATE_BPS * FPS / fps, result.finalCodecBitrateBps);
+        assertEquals(TARGET_BITRATE_BPS, result.achievedBitrateBps, TARGET_BITRATE_BPS * 0.001);
+        assertEquals(0, result.convergenceTimeMs);
+    }
+
+    /**
+     * @param ratio of the codec output over the bitrate it's configured with.
+     * @param fps of the trace, the codec budgets frames for {@link #FPS}.
+     */
+    private static RateControlSimulator.Result simulate(final BitrateAdjustmentType type,
+            final double ratio, final int fps) {
+        List<RateControlSimulator.Sample> trace = new ArrayList<>();
+        int size = (int) (TARGET_BITRATE_BPS / 8 / FPS * ratio);
+        for (int i = 0; i < DURATION_SEC * fps; i++) {
+            trace.add(new RateControlSimulator.Sample(i * 1000_000L / fps, size));
+        }
+        return RateControlSimulator.run(new DefaultRateController(type), trace,
+                TARGET_BITRATE_BPS, TARGET_BITRATE_BPS, fps, TOLERANCE);
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedRecorderTest {
+    private static final long FRAME_US = 33333;
+
+    private final EncodedFramePool mPool = new EncodedFramePool();
+    private final FakeSegmentFactory mFactory = new FakeSegmentFactory();
+    private long mPtsUs;
+
+    @Test
+    public void firstSegmentStartsWithKeyFrame() {
+        SegmentedRecorder recorder = new SegmentedRecorder(mFactory, 0, 0);
+        recorder.onOutputFormatChanged(null, format());
+        deliver(recorder, false);
+        deliver(recorder, false);
+        deliver(recorder, true);
+        deliver(recorder, false);
+        recorder.stop();
+
+        assertEquals(1, recorder.segments());
+        assertEquals(2, recorder.droppedFrames());
+        assertTrue(mFactory.segment(0).mKeyFrames.get(0));
+        assertEquals(2, mFactory.finishedFrames(0));
+    }
+
+    @Test
+    public void formatReplayWaitsForKeyFrame() {
+        SegmentedRecorder recorder = new SegmentedRecorder(mFactory, 0, 0);
+        recorder.onOutputFormatChanged(null, format());
+        deliver(recorder, true);
+        deliver(recorder, false);
+        // e.g. the codec was reconfigured, its output restarts
+        recorder.onOutputFormatChanged(null, format());
+        deliver(recorder, false);
+        deliver(recorder, true);
+        deliver(recorder, false);
+        recorder.stop();
+
+        assertEquals(2, recorder.segments());
+        assertEquals(1, recorder.droppedFrames());
+        assertEquals(2, mFactory.finishedFrames(0));
+        assertEquals(2, mFactory.finishedFrames(1));
+        assertTrue(mFactory.segment(1).mKeyFrames.get(0));
+    }
+
+    @Test
+    public void framesAfterStopAreDropped() {
+        SegmentedRecorder recorder = new SegmentedRecorder(mFactory, 0, 0);
+        recorder.onOutputFormatChanged(null, format());
+        deliver(recorder, true);
+        recorder.stop();
+        recorder.stop();
+        deliver(recorder, true);
+        deliver(recorder, false);
+
+        assertEquals(1, recorder.segments());
+        assertEquals(2, recorder.droppedFrames());
+        assertEquals(1, mFactory.finishedFrames(0));
+    }
+
+    private void deliver(final SegmentedRecorder recorder, final boolean keyFrame) {
+        EncodedFrame frame = mPool.wrap(ByteBuffer.allocateDirect(100), null,
+                keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mPtsUs);
+        mPtsUs += FRAME_US;
+        recorder.onEncodedFrame(frame);
+        frame.release();
+    }
+
+    private static MediaFormat format() {
+        return MediaFormat.createVideoFormat("video/avc", 640, 360);
+    }
+
+    private static class FakeSegment implements Recorder {
+        final List<Boolean> mKeyFrames = Collections.synchronizedList(new ArrayList<Boolean>());
+
+        @Override
+        public void setLatencyTracker(final LatencyTracker latencyTracker) {
+        }
+
+        @Override
+        public void onEncodedFrame(final EncodedFrame frame) {
+            mKeyFrames.add(frame.isKeyFrame());
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private static class FakeSegmentFactory implements SegmentedRecorder.SegmentFactory {
+        private final List<FakeSegment> mSegments = new ArrayList<>();
+        private final List<Long> mFinishedFrames = new ArrayList<>();
+
+        @Override
+        public synchronized Recorder createSegment(final int index) {
+            FakeSegment segment = new FakeSegment();
+            mSegments.add(segment);
+            mFinishedFrames.add(-1L);
+            return segment;
+        }
+
+        @Override
+        public synchronized void onSegmentFinished(final int index, final Recorder segment,
+                final long frames) {
+            mFinishedFrames.set(index, frames);
+        }
+
+        synchronized FakeSegment segment(final int index) {
+            return mSegments.get(index);
+        }
+
+        synchronized long finishedFrames(final int index) {
+            return mFinishedFrames.get(index);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SinkDispatcherTest {
+    private static final int FRAME_SIZE = 1024;
+
+    @Test
+    public void blockedSinkDoesNotBlockStop() throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final SinkDispatcher dispatcher = new SinkDispatcher();
+        AsyncRecorder fast = dispatcher.addSink(new StallingSink(null, null), 64 * FRAME_SIZE,
+                AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+        // the writer stalls on the first frame, the queue fills up
+        dispatcher.addSink(new StallingSink(writing, unblock), FRAME_SIZE,
+                AsyncRecorder.OverflowPolicy.BLOCK);
+
+        final EncodedFramePool pool = new EncodedFramePool();
+        Thread codecOutput = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    EncodedFrame frame = pool.wrap(ByteBuffer.allocateDirect(FRAME_SIZE), null,
+                            MediaCodec.BUFFER_FLAG_SYNC_FRAME, i);
+                    dispatcher.onEncodedFrame(frame);
+                    frame.release();
+                }
+            }
+        });
+        codecOutput.start();
+        assertTrue(writing.await(1, TimeUnit.SECONDS));
+        codecOutput.join(200);
+        assertTrue("codec output should block on the full queue", codecOutput.isAlive());
+
+        assertEquals(2, dispatcher.getSinks().size());
+        Thread stopper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.stop();
+            }
+        });
+        stopper.start();
+        // stopping the blocking sink releases the codec output before its writer finishes
+        codecOutput.join(1000);
+        assertFalse(codecOutput.isAlive());
+        unblock.countDown();
+        stopper.join(1000);
+        assertFalse(stopper.isAlive());
+        assertTrue(fast.writtenFrames() > 0);
+    }
+
+    private static class StallingSink implements MediaCodecCallback {
+        private final CountDownLatch mWriting;
+        private final CountDownLatch mUnblock;
+
+        StallingSink(final CountDownLatch writing, final CountDownLatch unblock) {
+            mWriting = writing;
+            mUnblock = unblock;
+        }
+
+        @Override
+        public void onEncodedFrame(final EncodedFrame frame) {
+            if (mWriting == null) {
+                return;
+            }
+            mWriting.countDown();
+            try {
+                mUnblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+        }
+    }
+}
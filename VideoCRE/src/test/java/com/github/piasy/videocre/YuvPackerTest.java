@@ -0,0 +1,55 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class YuvPackerTest {
+    // 4x2: Y 0..7, one row of 2 chroma samples, U 10 11, V 20 21
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+    private static final byte[] I420 = { 0, 1, 2, 3, 4, 5, 6, 7, 10, 11, 20, 21 };
+    private static final byte[] NV21 = { 0, 1, 2, 3, 4, 5, 6, 7, 20, 10, 21, 11 };
+    private static final byte[] NV12 = { 0, 1, 2, 3, 4, 5, 6, 7, 10, 20, 11, 21 };
+
+    @Test
+    public void packI420() {
+        assertArrayEquals(I420, pack(I420, false, false));
+        assertArrayEquals(NV12, pack(I420, false, true));
+    }
+
+    @Test
+    public void packNv21() {
+        assertArrayEquals(I420, pack(NV21, true, false));
+        assertArrayEquals(NV12, pack(NV21, true, true));
+    }
+
+    @Test
+    public void oddSizeRoundsChromaUp() {
+        assertEquals(3 * 3 + 2 * 2 * 2, YuvPacker.frameSize(3, 3));
+        assertEquals(2 * 2 * 2, YuvPacker.stagingSize(3, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallDestination() {
+        YuvPacker.packI420(I420, WIDTH, HEIGHT, true, ByteBuffer.allocate(I420.length - 1),
+                new byte[YuvPacker.stagingSize(WIDTH, HEIGHT)]);
+    }
+
+    private static byte[] pack(final byte[] src, final boolean nv21, final boolean semiPlanar) {
+        ByteBuffer dst = ByteBuffer.allocateDirect(YuvPacker.frameSize(WIDTH, HEIGHT) + 3);
+        dst.position(3);
+        byte[] staging = new byte[YuvPacker.stagingSize(WIDTH, HEIGHT)];
+        int written = nv21
+                ? YuvPacker.packNv21(src, WIDTH, HEIGHT, semiPlanar, dst, staging)
+                : YuvPacker.packI420(src, WIDTH, HEIGHT, semiPlanar, dst, staging);
+        assertEquals(src.length, written);
+        assertEquals(3 + written, dst.position());
+        byte[] packed = new byte[written];
+        dst.position(3);
+        dst.get(packed);
+        return packed;
+    }
+}
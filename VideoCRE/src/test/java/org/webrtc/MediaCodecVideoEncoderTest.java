@@ -0,0 +1,64 @@
+package org.webrtc;
+
+import org.junit.Test;
+import org.webrtc.MediaCodecVideoEncoder.BitrateMode;
+import org.webrtc.MediaCodecVideoEncoder.EncoderMode;
+
+import static org.junit.Assert.assertEquals;
+
+public class MediaCodecVideoEncoderTest {
+  private static final int DEFAULT_KEY_FRAME_INTERVAL_SEC = 2;
+
+  @Test
+  public void defaultModeUsesCodecTypeGop() {
+    EncoderMode accepted = negotiate(new EncoderMode(0, 0, BitrateMode.CBR), false, false);
+
+    assertEquals(DEFAULT_KEY_FRAME_INTERVAL_SEC, accepted.keyFrameIntervalSec);
+    assertEquals(0, accepted.intraRefreshPeriod);
+    assertEquals(BitrateMode.CBR, accepted.bitrateMode);
+  }
+
+  @Test
+  public void supportedModeIsAccepted() {
+    EncoderMode accepted = negotiate(new EncoderMode(60, 30, BitrateMode.VBR), true, true);
+
+    assertEquals(60, accepted.keyFrameIntervalSec);
+    assertEquals(30, accepted.intraRefreshPeriod);
+    assertEquals(BitrateMode.VBR, accepted.bitrateMode);
+  }
+
+  @Test
+  public void unsupportedIntraRefreshFallsBack() {
+    EncoderMode accepted = negotiate(new EncoderMode(60, 30, BitrateMode.VBR), false, true);
+
+    // the GOP is kept, it doesn't depend on codec support
+    assertEquals(60, accepted.keyFrameIntervalSec);
+    assertEquals(0, accepted.intraRefreshPeriod);
+    assertEquals(BitrateMode.VBR, accepted.bitrateMode);
+  }
+
+  @Test
+  public void unsupportedBitrateModeFallsBackToCbr() {
+    EncoderMode accepted = negotiate(new EncoderMode(0, 30, BitrateMode.CQ), true, false);
+
+    assertEquals(DEFAULT_KEY_FRAME_INTERVAL_SEC, accepted.keyFrameIntervalSec);
+    assertEquals(30, accepted.intraRefreshPeriod);
+    assertEquals(BitrateMode.CBR, accepted.bitrateMode);
+  }
+
+  @Test
+  public void supportFlagsAreIgnoredWhenNotRequested() {
+    EncoderMode accepted = negotiate(new EncoderMode(1, 0, BitrateMode.CBR), true, true);
+
+    assertEquals(1, accepted.keyFrameIntervalSec);
+    assertEquals(0, accepted.intraRefreshPeriod);
+    assertEquals(BitrateMode.CBR, accepted.bitrateMode);
+  }
+
+  private static EncoderMode negotiate(EncoderMode requested, boolean intraRefreshSupported,
+      boolean bitrateModeSupported) {
+    return MediaCodecVideoEncoder.negotiateEncoderMode(requested,
+        DEFAULT_KEY_FRAME_INTERVAL_SEC, intraRefreshSupported, bitrateModeSupported,
+        "OMX.fake.avc.encoder");
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parses one synthetic access unit per invocation: SPS, PPS and {@code slices} IDR slices of
+ * {@code frameSize} bytes in total, with random payloads including emulation prevention bytes,
+ * in a direct buffer like a codec output buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class H264NalParserBenchmark {
+    private static final byte[] SPS = {
+            0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8
+    };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 };
+    // NAL header, then first_mb_in_slice 0 and slice_type 7 (I)
+    private static final byte[] IDR_SLICE_HEADER = { 0x65, (byte) 0x88 };
+
+    @Param({ "8192", "40960", "204800" })
+    public int frameSize;
+
+    @Param({ "1", "4" })
+    public int slices;
+
+    private final NalUnits mNalUnits = new NalUnits();
+    private ByteBuffer mAnnexB;
+    private ByteBuffer mAvcc;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mAnnexB = ByteBuffer.allocateDirect(frameSize + frameSize / 64 + 64);
+        putNalUnit(mAnnexB, SPS, 0, random);
+        putNalUnit(mAnnexB, PPS, 0, random);
+        for (int i = 0; i < slices; i++) {
+            putNalUnit(mAnnexB, IDR_SLICE_HEADER, frameSize / slices, random);
+        }
+        mAnnexB.flip();
+
+        mAvcc = ByteBuffer.allocateDirect(mAnnexB.remaining());
+        mAvcc.put(mAnnexB.duplicate());
+        mAvcc.flip();
+        H264NalParser.parseAnnexB(mAvcc, mNalUnits);
+        if (mNalUnits.count() != slices + 2 || !H264NalParser.annexBToAvccInPlace(mAvcc,
+                mNalUnits)) {
+            throw new IllegalStateException("bad synthetic access unit");
+        }
+    }
+
+    @Benchmark
+    public int parseAnnexB() {
+        mNalUnits.clear();
+        return H264NalParser.parseAnnexB(mAnnexB, mNalUnits);
+    }
+
+    @Benchmark
+    public int parseAvcc() {
+        mNalUnits.clear();
+        return H264NalParser.parseAvcc(mAvcc, 4, mNalUnits);
+    }
+
+    /**
+     * Annex-B to AVCC and back in place, leaving the buffer as it was.
+     */
+    @Benchmark
+    public int annexBToAvccAndBack() {
+        mNalUnits.clear();
+        int found = H264NalParser.parseAnnexB(mAnnexB, mNalUnits);
+        H264NalParser.annexBToAvccInPlace(mAnnexB, mNalUnits);
+        H264NalParser.avccToAnnexBInPlace(mAnnexB, mNalUnits);
+        return found;
+    }
+
+    /**
+     * Put a 4 byte start code, {@code header}, and {@code payloadSize} random bytes, escaped like
+     * an encoder does, so no start code appears inside.
+     */
+    private static void putNalUnit(final ByteBuffer buffer, final byte[] header,
+            final int payloadSize, final Random random) {
+        buffer.putInt(1);
+        buffer.put(header);
+        int zeros = 0;
+        for (int i = 0; i < payloadSize; i++) {
+            // entropy coded data has zero bytes about as often as random data
+            int b = random.nextInt(256);
+            if (zeros >= 2 && b <= 3) {
+                buffer.put((byte) 3);
+                zeros = 0;
+            }
+            buffer.put((byte) b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        if (payloadSize > 0 && zeros > 0) {
+            // rbsp trailing bits
+            buffer.put((byte) 0x80);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.piasy.videocre;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Makes a synthetic file with moov last faststart, into a new file or in place. The file has
+ * {@code mdatSize} bytes of media data and a chunk offset every megabyte, each pointing at a
+ * marker which is checked afterwards. The largest size puts offsets near 4 GiB, so stco is
+ * turned into co64. The file is sparse and rebuilt before each invocation, so the time is mostly
+ * the page cache copy, divide {@code mdatSize} by it for the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Mp4FastStartBenchmark {
+    private static final long CHUNK_SIZE = 1024 * 1024;
+    private static final long MARKER = 0x5A5A000000000000L;
+    private static final int FTYP_SIZE = 20;
+
+    @Param({ "67108864", "4294767295" })
+    public long mdatSize;
+
+    @Param({ "copy", "inPlace" })
+    public String mode;
+
+    private File mInput;
+    private File mOutput;
+    private long[] mOffsets;
+
+    @Setup
+    public void setUp() throws IOException {
+        mInput = File.createTempFile("Mp4FastStartBenchmark", ".mp4");
+        mOutput = new File(mInput.getPath() + ".faststart.mp4");
+    }
+
+    @Setup(Level.Invocation)
+    public void build() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mInput, "rw");
+        try {
+            file.setLength(0);
+            mOffsets = build(file.getChannel(), mdatSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void verify() throws IOException {
+        File result = "copy".equals(mode) ? mOutput : mInput;
+        RandomAccessFile file = new RandomAccessFile(result, "r");
+        try {
+            verify(file.getChannel(), mOffsets);
+        } finally {
+            file.close();
+        }
+        mOutput.delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @Benchmark
+    public boolean process() throws IOException {
+        return Mp4FastStart.process(mInput, "copy".equals(mode) ? mOutput : null);
+    }
+
+    /**
+     * ftyp, mdat with a marker at each chunk, then moov with the stco of the chunks.
+     *
+     * @return offsets of the chunks.
+     */
+    private static long[] build(final FileChannel file, final long mdatSize) throws IOException {
+        boolean largeMdat = mdatSize + 8 > 0xFFFFFFFFL;
+        ByteBuffer header = ByteBuffer.allocate(FTYP_SIZE + 16);
+        header.putInt(FTYP_SIZE).putInt(fourCc("ftyp")).putInt(fourCc("isom")).putInt(0)
+                .putInt(fourCc("isom"));
+        if (largeMdat) {
+            header.putInt(1).putInt(fourCc("mdat")).putLong(mdatSize + 16);
+        } else {
+            header.putInt((int) (mdatSize + 8)).putInt(fourCc("mdat"));
+        }
+        header.flip();
+        long dataStart = header.remaining();
+        writeFully(file, header, 0);
+
+        int chunks = (int) ((mdatSize - 8) / CHUNK_SIZE) + 1;
+        long[] offsets = new long[chunks];
+        ByteBuffer marker = ByteBuffer.allocate(8);
+        for (int i = 0; i < chunks; i++) {
+            offsets[i] = dataStart + CHUNK_SIZE * i;
+            marker.clear();
+            marker.putLong(0, MARKER | i);
+            writeFully(file, marker, offsets[i]);
+        }
+
+        String[] containers = { "moov", "trak", "mdia", "minf", "stbl" };
+        ByteBuffer moov = ByteBuffer.allocate(8 * containers.length + 108 + 16 + 4 * chunks);
+        int[] starts = new int[containers.length];
+        for (int i = 0; i < containers.length; i++) {
+            starts[i] = moov.position();
+            moov.putInt(0).putInt(fourCc(containers[i]));
+            if (i == 0) {
+                moov.putInt(108).putInt(fourCc("mvhd")).position(moov.position() + 100);
+            }
+        }
+        moov.putInt(16 + 4 * chunks).putInt(fourCc("stco")).putInt(0).putInt(chunks);
+        for (long offset : offsets) {
+            moov.putInt((int) offset);
+        }
+        for (int i = containers.length - 1; i >= 0; i--) {
+            moov.putInt(starts[i], moov.position() - starts[i]);
+        }
+        moov.flip();
+        writeFully(file, moov, dataStart + mdatSize);
+        return offsets;
+    }
+
+    /**
+     * Check moov is first, and each of its chunk offsets points at its marker.
+     */
+    private static void verify(final FileChannel file, final long[] offsets) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(file, header, FTYP_SIZE);
+        if (header.getInt(4) != fourCc("moov")) {
+            throw new IllegalStateException("moov not first");
+        }
+        ByteBuffer moov = ByteBuffer.allocate(header.getInt(0));
+        readFully(file, moov, FTYP_SIZE);
+        int table = 0;
+        int stco = fourCc("stco");
+        int co64Type = fourCc("co64");
+        while (moov.getInt(table + 4) != stco && moov.getInt(table + 4) != co64Type) {
+            table++;
+        }
+        boolean co64 = moov.getInt(table + 4) == co64Type;
+        if (moov.getInt(table + 12) != offsets.length) {
+            throw new IllegalStateException("chunk count " + moov.getInt(table + 12));
+        }
+        ByteBuffer marker = ByteBuffer.allocate(8);
+        for (int i = 0; i < offsets.length; i++) {
+            long offset = co64
+                          ? moov.getLong(table + 16 + 8 * i)
+                          : moov.getInt(table + 16 + 4 * i) & 0xFFFFFFFFL;
+            marker.clear();
+            readFully(file, marker, offset);
+            if (marker.getLong(0) != (MARKER | i)) {
+                throw new IllegalStateException("chunk " + i + " at " + offset);
+            }
+        }
+    }
+
+    private static void readFully(final FileChannel file, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("unexpected end of file");
+            }
+            offset += read;
+        }
+    }
+
+    private static void writeFully(final FileChannel file, final ByteBuffer buffer,
+            final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += file.write(buffer, offset);
+        }
+    }
+
+    private static int fourCc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+               | type.charAt(3);
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.piasy.videocre;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Writes GOPs of a 4 Mbps, 30 fps, 2 s GOP H.264 stream with {@link AnnexBRecorder} or
+ * {@link MpegTsRecorder}, to a temp file truncated at each iteration, or to a channel which drops
+ * the bytes, so the muxing cost is measured without the storage. The {@code bytesIn} and
+ * {@code bytesOut} counters report the elementary stream and the file bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecorderThroughputBenchmark {
+    private static final int FPS = 30;
+    private static final int GOP_FRAMES = 2 * FPS;
+    private static final int DELTA_FRAME_SIZE = 4_000_000 / 8 / FPS;
+    private static final int KEY_FRAME_SIZE = 5 * DELTA_FRAME_SIZE;
+    private static final long FRAME_US = 1000_000 / FPS;
+    private static final byte[] CODEC_CONFIG = {
+            0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0xDA, 0x01, 0x40, 0x16, (byte) 0xE8,
+            0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80
+    };
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytesIn;
+        public long bytesOut;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytesIn = 0;
+            bytesOut = 0;
+        }
+    }
+
+    @Param({ "annexB", "mpegTs" })
+    public String recorder;
+
+    @Param({ "discard", "file" })
+    public String output;
+
+    private final EncodedFramePool mPool = new EncodedFramePool();
+    private CountingChannel mChannel;
+    private File mFile;
+    private FileChannel mFileChannel;
+    private Recorder mRecorder;
+    private ByteBuffer mCodecConfig;
+    private ByteBuffer[] mFrames;
+    private long mPtsUs;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("file".equals(output)) {
+            mFile = File.createTempFile("RecorderThroughputBenchmark", ".out");
+            mFileChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        }
+        mChannel = new CountingChannel(mFileChannel);
+        mRecorder = "annexB".equals(recorder)
+                    ? new AnnexBRecorder(mChannel)
+                    : new MpegTsRecorder(mChannel, false);
+        mRecorder.onOutputFormatChanged(null,
+                MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 1280, 720));
+        mCodecConfig = ByteBuffer.allocateDirect(CODEC_CONFIG.length);
+        mCodecConfig.put(CODEC_CONFIG).flip();
+        Random random = new Random(1);
+        mFrames = new ByteBuffer[GOP_FRAMES];
+        for (int i = 0; i < GOP_FRAMES; i++) {
+            boolean keyFrame = i == 0;
+            byte[] frame = new byte[keyFrame ? KEY_FRAME_SIZE : DELTA_FRAME_SIZE];
+            random.nextBytes(frame);
+            frame[0] = 0;
+            frame[1] = 0;
+            frame[2] = 0;
+            frame[3] = 1;
+            frame[4] = (byte) (keyFrame ? 0x65 : 0x41);
+            mFrames[i] = ByteBuffer.allocateDirect(frame.length);
+            mFrames[i].put(frame).flip();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws IOException {
+        if (mFileChannel != null) {
+            mFileChannel.truncate(0);
+            mFileChannel.position(0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRecorder.stop();
+        if (mFile != null) {
+            mFile.delete();
+        }
+    }
+
+    @Benchmark
+    public void writeGop(final Counters counters) {
+        long written = mChannel.mBytesWritten;
+        for (int i = 0; i < GOP_FRAMES; i++) {
+            boolean keyFrame = i == 0;
+            ByteBuffer payload = mFrames[i].duplicate();
+            counters.bytesIn += payload.remaining();
+            EncodedFrame frame = mPool.wrap(payload, keyFrame ? mCodecConfig : null,
+                    keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mPtsUs);
+            mPtsUs += FRAME_US;
+            mRecorder.onEncodedFrame(frame);
+            frame.release();
+        }
+        counters.bytesOut += mChannel.mBytesWritten - written;
+    }
+
+    /**
+     * Counts bytes written to a file, or consumes them if there is none.
+     */
+    private static class CountingChannel implements GatheringByteChannel {
+        private final FileChannel mFile;
+        long mBytesWritten;
+
+        CountingChannel(final FileChannel file) {
+            mFile = file;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length)
+                throws IOException {
+            long written = 0;
+            if (mFile != null) {
+                written = mFile.write(srcs, offset, length);
+            } else {
+                for (int i = offset; i < offset + length; i++) {
+                    written += srcs[i].remaining();
+                    srcs[i].position(srcs[i].limit());
+                }
+            }
+            mBytesWritten += written;
+            return written;
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mFile == null || mFile.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mFile != null) {
+                mFile.close();
+            }
+        }
+    }
+}
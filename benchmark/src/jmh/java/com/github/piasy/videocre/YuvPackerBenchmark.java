@@ -0,0 +1,56 @@
+package com.github.piasy.videocre;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Packs one frame into a direct buffer, like a codec input buffer, per invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvPackerBenchmark {
+    @Param({ "640x360", "1280x720", "1920x1080" })
+    public String size;
+
+    @Param({ "true", "false" })
+    public boolean semiPlanar;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSrc;
+    private byte[] mStaging;
+    private ByteBuffer mDst;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        mWidth = Integer.parseInt(dimensions[0]);
+        mHeight = Integer.parseInt(dimensions[1]);
+        mSrc = new byte[YuvPacker.frameSize(mWidth, mHeight)];
+        new Random(1).nextBytes(mSrc);
+        mStaging = new byte[YuvPacker.stagingSize(mWidth, mHeight)];
+        mDst = ByteBuffer.allocateDirect(mSrc.length);
+    }
+
+    @Benchmark
+    public int packI420() {
+        mDst.clear();
+        return YuvPacker.packI420(mSrc, mWidth, mHeight, semiPlanar, mDst, mStaging);
+    }
+
+    @Benchmark
+    public int packNv21() {
+        mDst.clear();
+        return YuvPacker.packNv21(mSrc, mWidth, mHeight, semiPlanar, mDst, mStaging);
+    }
+}
@@ -1,7 +1,9 @@
 package com.github.piasy.videocre.example;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.view.WindowManager;
@@ -10,26 +12,36 @@ import android.widget.CompoundButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
-import com.github.piasy.videocre.HwAvcEncoder;
+import com.github.piasy.videocre.AsyncRecorder;
+import com.github.piasy.videocre.HwSimulcastEncoder;
+import com.github.piasy.videocre.LatencyTracker;
+import com.github.piasy.videocre.Mp4FastStart;
 import com.github.piasy.videocre.Mp4Recorder;
+import com.github.piasy.videocre.SinkDispatcher;
 import com.github.piasy.videocre.VideoCapturers;
 import com.github.piasy.videocre.VideoConfig;
 import com.github.piasy.videocre.VideoSink;
 import com.github.piasy.videocre.VideoSource;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.webrtc.MediaCodecVideoEncoder;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 
 public class VideoActivity extends AppCompatActivity {
+    private static final long MAX_QUEUED_RECORDING_BYTES = 8 * 1024 * 1024;
 
     private VideoSource mVideoSource;
     private VideoSink mVideoSink;
     private SurfaceViewRenderer mVideoView;
     private Mp4Recorder mMp4Recorder;
     private Mp4Recorder mHdMp4Recorder;
-    private HwAvcEncoder mHwAvcEncoder;
-    private HwAvcEncoder mHdHwAvcEncoder;
+    private SinkDispatcher mSinkDispatcher;
+    private SinkDispatcher mHdSinkDispatcher;
+    private HwSimulcastEncoder mHwSimulcastEncoder;
+    private LatencyTracker mLatencyTracker;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,6 +49,9 @@ public class VideoActivity extends AppCompatActivity {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
         setContentView(R.layout.activity_video);
 
+        MediaCodecVideoEncoder.getCapabilityCache()
+                .setFile(new File(getCacheDir(), "encoder_capabilities"));
+
         VideoConfig config = VideoConfig.builder()
                 .previewWidth(1280)
                 .previewHeight(720)
@@ -45,6 +60,7 @@ public class VideoActivity extends AppCompatActivity {
                 .fps(30)
                 .outputBitrate(800)
                 .build();
+        // MediaMuxer can mux HEVC since N only
         VideoConfig hdConfig = VideoConfig.builder()
                 .previewWidth(1280)
                 .previewHeight(720)
@@ -52,6 +68,11 @@ public class VideoActivity extends AppCompatActivity {
                 .outputHeight(1280)
                 .fps(30)
                 .outputBitrate(2000)
+                .codec(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                       ? MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H265
+                       : MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H264)
+                .fallbackCodecs(Collections.singletonList(
+                        MediaCodecVideoEncoder.VideoCodecType.VIDEO_CODEC_H264))
                 .build();
         VideoCapturer capturer = createVideoCapturer();
 
@@ -68,14 +89,25 @@ public class VideoActivity extends AppCompatActivity {
             finish();
             return;
         }
-        mHwAvcEncoder = new HwAvcEncoder(config, mMp4Recorder);
-        mHdHwAvcEncoder = new HwAvcEncoder(hdConfig, mHdMp4Recorder);
-        mVideoSink = new VideoSink(mVideoView, mHwAvcEncoder, mHdHwAvcEncoder);
+        mSinkDispatcher = new SinkDispatcher();
+        mSinkDispatcher.addSink(mMp4Recorder, MAX_QUEUED_RECORDING_BYTES,
+                AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+        mHdSinkDispatcher = new SinkDispatcher();
+        mHdSinkDispatcher.addSink(mHdMp4Recorder, MAX_QUEUED_RECORDING_BYTES,
+                AsyncRecorder.OverflowPolicy.DROP_UNTIL_KEY_FRAME);
+        mHwSimulcastEncoder = new HwSimulcastEncoder(Arrays.asList(config, hdConfig),
+                Arrays.asList(mSinkDispatcher, mHdSinkDispatcher));
+        mVideoSink = new VideoSink(mVideoView, mHwSimulcastEncoder);
+        mHwSimulcastEncoder.setBackpressureListener(mVideoSink);
+        mLatencyTracker = new LatencyTracker();
+        mVideoSink.setLatencyTracker(mLatencyTracker);
+        mHwSimulcastEncoder.setLatencyTracker(mLatencyTracker);
+        mMp4Recorder.setLatencyTracker(mLatencyTracker);
+        mLatencyTracker.startLogging(new Handler(), 5000);
         mVideoSource = new VideoSource(getApplicationContext(), config, capturer, mVideoSink);
 
         mVideoView.init(mVideoSource.getRootEglBase().getEglBaseContext(), null);
-        mHwAvcEncoder.start(mVideoSource.getRootEglBase());
-        mHdHwAvcEncoder.start(mVideoSource.getRootEglBase());
+        mHwSimulcastEncoder.start(mVideoSource.getRootEglBase());
 
         initView();
     }
@@ -98,12 +130,16 @@ public class VideoActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
 
+        mLatencyTracker.stopLogging();
         mVideoSource.destroy();
         mVideoView.release();
-        mHwAvcEncoder.destroy();
-        mHdHwAvcEncoder.destroy();
+        mHwSimulcastEncoder.destroy();
+        mSinkDispatcher.stop();
+        mHdSinkDispatcher.stop();
         mMp4Recorder.stop();
         mHdMp4Recorder.stop();
+        Mp4FastStart.processInBackground(mMp4Recorder.getOutputFile(), null, null);
+        Mp4FastStart.processInBackground(mHdMp4Recorder.getOutputFile(), null, null);
     }
 
     private void initView() {